@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+package shark.memstore2;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import shark.memstore2.column.ColumnBuilder;
+
+
+/**
+ * Throughput, in rows per second, of building a column: appending values through their object
+ * inspector, which gathers column stats and compression stats, then compressing and copying the
+ * column out of the builder. Compare against compression "none" for the cost of compression.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColumnBuildBenchmark {
+
+  static final int NUM_ROWS = 100000;
+
+  @Param({"int", "long", "double", "string", "boolean"})
+  public String columnType;
+
+  @Param({"0.0", "0.1", "0.5"})
+  public double nullRatio;
+
+  @Param({"16", "65536"})
+  public int cardinality;
+
+  @Param({"1", "64"})
+  public int runLength;
+
+  @Param({"none", "auto", "rle", "dictionary"})
+  public String compression;
+
+  private ObjectInspector oi;
+  private Object[] values;
+
+  @Setup
+  public void setup() {
+    oi = BenchmarkData.objectInspector(columnType);
+    values = BenchmarkData.values(columnType, NUM_ROWS, nullRatio, cardinality, runLength);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_ROWS)
+  public ByteBuffer build() {
+    ColumnBuilder<?> builder = BenchmarkData.newColumnBuilder(oi, compression, NUM_ROWS);
+    for (int i = 0; i < values.length; i++) {
+      builder.append(values[i], oi);
+    }
+    return builder.build();
+  }
+}
@@ -0,0 +1,76 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+package shark.memstore2;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hive.ql.exec.ExprNodeEvaluator;
+import org.apache.hadoop.hive.ql.exec.MapSplitPruning;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Time to test a filter against the stats of all the partitions of a cached table, as the table
+ * scan does before it launches its tasks. Returns the number of partitions kept.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapSplitPruningBenchmark {
+
+  static final int ROWS_PER_PARTITION = 1000;
+
+  @Param({"100", "10000"})
+  public int numPartitions;
+
+  @Param({"eq", "range"})
+  public String predicate;
+
+  private TablePartitionStats[] stats;
+  private ExprNodeEvaluator filter;
+
+  @Setup
+  public void setup() {
+    stats = BenchmarkData.pruningStats(numPartitions, ROWS_PER_PARTITION);
+    filter = BenchmarkData.pruningFilter(predicate, numPartitions, ROWS_PER_PARTITION);
+  }
+
+  @Benchmark
+  public int prune() {
+    int kept = 0;
+    for (int i = 0; i < stats.length; i++) {
+      if (MapSplitPruning.test(stats[i], filter)) {
+        kept++;
+      }
+    }
+    return kept;
+  }
+}
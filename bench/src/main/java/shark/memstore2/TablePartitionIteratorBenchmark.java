@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+package shark.memstore2;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * Throughput, in rows per second, of assembling the rows of a cached partition as a table scan
+ * does: a TablePartitionIterator advances the columns used, and each field of the row is read
+ * through the ColumnarStructObjectInspector.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TablePartitionIteratorBenchmark {
+
+  static final int NUM_ROWS = 100000;
+
+  static final String[] COLUMN_TYPES =
+      {"int", "long", "double", "string", "boolean", "string", "int", "double"};
+
+  @Param({"1", "4", "8"})
+  public int columnsUsed;
+
+  @Param({"0.0", "0.1"})
+  public double nullRatio;
+
+  @Param({"16", "65536"})
+  public int cardinality;
+
+  @Param({"none", "auto"})
+  public String compression;
+
+  private TablePartition partition;
+  private BitSet columnsUsedBitSet;
+  private ColumnarStructObjectInspector rowOI;
+  private StructField[] fields;
+
+  @Setup
+  public void setup() {
+    partition = BenchmarkData.partition(
+        COLUMN_TYPES, NUM_ROWS, nullRatio, cardinality, 1, compression);
+    columnsUsedBitSet = BenchmarkData.columnsUsed(COLUMN_TYPES.length, columnsUsed);
+    rowOI = BenchmarkData.rowObjectInspector(COLUMN_TYPES);
+    List<? extends StructField> allFields = rowOI.getAllStructFieldRefs();
+    fields = allFields.subList(0, columnsUsed).toArray(new StructField[0]);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_ROWS)
+  public void assembleRows(Blackhole bh) {
+    TablePartitionIterator iter = partition.prunedIterator(columnsUsedBitSet);
+    while (iter.hasNext()) {
+      ColumnarStruct row = iter.next();
+      for (int i = 0; i < fields.length; i++) {
+        bh.consume(rowOI.getStructFieldData(row, fields[i]));
+      }
+    }
+  }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.bench
+
+import java.io.{File, PrintWriter}
+import java.util.{ArrayList => JArrayList}
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+
+import scala.collection.JavaConversions._
+import scala.io.Source
+
+import org.apache.hadoop.hive.ql.session.SessionState
+
+import org.apache.spark.SparkEnv
+import org.apache.spark.scheduler.{SparkListener, SparkListenerJobEnd, SparkListenerJobStart,
+  SparkListenerTaskEnd}
+
+import shark.{SharkConfVars, SharkContext, SharkDriver, SharkEnv}
+import shark.api.QueryExecutionException
+import shark.execution.{SparkTask, TableScanOperator}
+import shark.parse.CompiledPlanCache
+
+
+/**
+ * A query of the benchmark. `exact`, for an approximate query, is the query whose answer the first
+ * value of its answer is compared to.
+ */
+case class BenchmarkQuery(name: String, sql: String, exact: Option[String] = None)
+
+
+/** The measurements of a query, over the runs of the benchmark. */
+case class QueryResult(
+    name: String,
+    compileMillis: Double,
+    executeMillis: Double,
+    bytesScanned: Long,
+    shuffleBytes: Long,
+    rows: Int,
+    relativeError: Option[Double]) {
+
+  def toTsv: String = Seq(name, "%.1f".format(compileMillis), "%.1f".format(executeMillis),
+    bytesScanned, shuffleBytes, rows, relativeError.map("%.6f".format(_)).getOrElse("-"))
+    .mkString("\t")
+}
+
+
+object QueryResult {
+
+  val HEADER = Seq("query", "compile_ms", "execute_ms", "bytes_scanned", "shuffle_bytes", "rows",
+    "relative_error").mkString("\t")
+
+  def fromTsv(line: String): QueryResult = {
+    val fields = line.split("\t")
+    QueryResult(fields(0), fields(1).toDouble, fields(2).toDouble, fields(3).toLong,
+      fields(4).toLong, fields(5).toInt, if (fields(6) == "-") None else Some(fields(6).toDouble))
+  }
+}
+
+
+/**
+ * End-to-end benchmark of Shark queries over a synthetic star schema (see StarSchema), cached
+ * in memory, on a local SharkContext. Each query of a fixed suite of scans, filters, aggregations,
+ * joins, top-K and approximate queries runs once to warm up, then `runs` times, and then once more
+ * with per-operator metrics (shark.exec.operatorMetrics) on to count the bytes scanned. The report
+ * has, for each query, the median compile and execution times, the bytes of cached columns the
+ * query scanned, the bytes it shuffled, the number of rows it returned and, for approximate
+ * queries, the relative error of the answer to the exact one. It is written as a tab separated
+ * file, and compared to the report of an earlier run if one is given.
+ *
+ * The compiled plan and query result caches are disabled, so that every run compiles and runs its
+ * query. Per-operator metrics are off for the timed runs, as collecting them adds to execution
+ * times. Run with bin/dev/run-query-benchmarks.
+ *
+ * Options:
+ *   --scale <n>        Scale of the star schema, 100,000 lineorder rows per unit (default 1).
+ *   --runs <n>         Measured runs of each query (default 3).
+ *   --master <url>     Spark master (default local[4]).
+ *   --work-dir <dir>   Where data, metastore and warehouse are kept (default bench/target/queries).
+ *   --output <file>    The report to write (default <work-dir>/report.tsv).
+ *   --baseline <file>  A report of an earlier run to compare to.
+ *   --queries <regex>  Only run the queries whose name matches.
+ */
+object QueryBenchmark {
+
+  // Fraction of the rows of the uniform sample, and of the keys of the universe samples.
+  val SAMPLE_FRACTION = 0.1
+
+  val QUERIES = Seq(
+    BenchmarkQuery("scan_sum", "SELECT sum(lo_revenue) FROM lineorder"),
+    BenchmarkQuery("filter_range",
+      """SELECT count(*), sum(lo_extendedprice * lo_discount) FROM lineorder
+        WHERE lo_discount BETWEEN 1 AND 3 AND lo_quantity < 25"""),
+    BenchmarkQuery("filter_point",
+      "SELECT lo_orderkey, lo_revenue FROM lineorder WHERE lo_orderdate = 19940101"),
+    BenchmarkQuery("agg_low_cardinality",
+      """SELECT lo_discount, count(*), sum(lo_revenue), avg(lo_quantity) FROM lineorder
+        GROUP BY lo_discount"""),
+    BenchmarkQuery("agg_high_cardinality",
+      "SELECT lo_orderkey, sum(lo_revenue) FROM lineorder GROUP BY lo_orderkey"),
+    BenchmarkQuery("join_dimension",
+      """SELECT c_region, sum(lo_revenue) FROM lineorder
+        JOIN customer ON lo_custkey = c_custkey GROUP BY c_region"""),
+    BenchmarkQuery("join_star",
+      """SELECT d_year, p_brand, sum(lo_revenue) FROM lineorder
+        JOIN date_dim ON lo_orderdate = d_datekey
+        JOIN part ON lo_partkey = p_partkey
+        JOIN supplier ON lo_suppkey = s_suppkey
+        WHERE p_category = 'mfgr#12' AND s_region = 'america'
+        GROUP BY d_year, p_brand"""),
+    BenchmarkQuery("join_fact_fact",
+      """SELECT count(*), sum(r_refund) FROM lineorder
+        JOIN returns ON lo_orderkey = r_orderkey"""),
+    BenchmarkQuery("topk_group",
+      """SELECT lo_custkey, sum(lo_revenue) AS revenue FROM lineorder
+        GROUP BY lo_custkey ORDER BY revenue DESC LIMIT 10"""),
+    BenchmarkQuery("topk_rows",
+      "SELECT lo_orderkey, lo_revenue FROM lineorder ORDER BY lo_revenue DESC LIMIT 10"),
+    BenchmarkQuery("approx_distinct",
+      "SELECT approx_distinct(lo_custkey) FROM lineorder",
+      Some("SELECT count(DISTINCT lo_custkey) FROM lineorder")),
+    BenchmarkQuery("approx_median",
+      "SELECT approx_median(lo_quantity) FROM lineorder",
+      Some("SELECT percentile(lo_quantity, 0.5) FROM lineorder")),
+    BenchmarkQuery("approx_sum",
+      "SELECT approx_sum(lo_revenue) FROM lineorder_sample",
+      Some("SELECT sum(lo_revenue) FROM lineorder")),
+    BenchmarkQuery("approx_count",
+      "SELECT approx_count(lo_orderkey) FROM lineorder_sample WHERE lo_discount < 3",
+      Some("SELECT count(lo_orderkey) FROM lineorder WHERE lo_discount < 3")),
+    BenchmarkQuery("universe_join",
+      """SELECT universe_count(lo_orderkey, %s) FROM lineorder_universe
+        JOIN returns_universe ON lo_orderkey = r_orderkey""".format(SAMPLE_FRACTION),
+      Some("SELECT count(*) FROM lineorder JOIN returns ON lo_orderkey = r_orderkey")))
+
+  // A number at the start of an answer, e.g. the estimate of "123.4 +/- 5.6 (95% Confidence)".
+  private val LEADING_NUMBER = """^\s*([-+]?[0-9.]+(?:[eE][-+]?[0-9]+)?).*""".r
+
+  def main(args: Array[String]) {
+    val options = args.grouped(2).map {
+      case Array(key, value) if key.startsWith("--") => (key.substring(2), value)
+      case other => throw new IllegalArgumentException("Bad option: " + other.mkString(" "))
+    }.toMap
+    val scale = options.getOrElse("scale", "1").toInt
+    val runs = options.getOrElse("runs", "3").toInt
+    val workDir = new File(options.getOrElse("work-dir", "bench/target/queries")).getAbsoluteFile
+    val output = new File(options.getOrElse("output", new File(workDir, "report.tsv").getPath))
+    val queryFilter = options.get("queries").map(_.r)
+
+    val sc = SharkEnv.initWithSharkContext(
+      "Shark::QueryBenchmark", options.getOrElse("master", "local[4]"))
+    val listener = new ShuffleListener
+    sc.addSparkListener(listener)
+    try {
+      setUp(sc, workDir, scale)
+      val queries = QUERIES.filter(q => queryFilter.forall(_.findFirstIn(q.name).isDefined))
+      val results = queries.map { query =>
+        val result = run(query, runs, listener)
+        println(result.toTsv)
+        result
+      }
+
+      output.getParentFile.mkdirs()
+      val writer = new PrintWriter(output, "UTF-8")
+      try {
+        writer.println("# scale=%d runs=%d".format(scale, runs))
+        writer.println(QueryResult.HEADER)
+        results.foreach(r => writer.println(r.toTsv))
+      } finally {
+        writer.close()
+      }
+      println("Wrote " + output)
+
+      options.get("baseline").foreach(baseline => compare(results, new File(baseline)))
+    } finally {
+      SharkEnv.stop()
+    }
+  }
+
+  /** Creates and caches the tables of the star schema and its samples. */
+  def setUp(sc: SharkContext, workDir: File, scale: Int) {
+    val dataDir = new File(workDir, "data-scale" + scale)
+    println("Generating the star schema at scale %d in %s".format(scale, dataDir))
+    StarSchema.generate(dataDir, scale)
+
+    sc.sql("SET javax.jdo.option.ConnectionURL=jdbc:derby:;databaseName=" +
+      new File(workDir, "metastore").getAbsolutePath + ";create=true")
+    sc.sql("SET hive.metastore.warehouse.dir=" + new File(workDir, "warehouse").getAbsolutePath)
+    sc.sql("SET " + SharkConfVars.PLAN_CACHE_SIZE.varname + "=0")
+    sc.sql("SET " + SharkConfVars.RESULT_CACHE_SIZE.varname + "=0")
+    sc.sql("SET " + SharkConfVars.OPERATOR_METRICS.varname + "=false")
+    StarSchema.load(sc, dataDir)
+
+    // A uniform sample for approx_sum and approx_count, and universe samples for joins.
+    createSample(sc, "lineorder_sample",
+      "SELECT * FROM lineorder WHERE rand(%d) < %s".format(StarSchema.SEED, SAMPLE_FRACTION))
+    createSample(sc, "lineorder_universe",
+      "SELECT * FROM lineorder WHERE universe_sample(lo_orderkey, %s)".format(SAMPLE_FRACTION))
+    createSample(sc, "returns_universe",
+      "SELECT * FROM returns WHERE universe_sample(r_orderkey, %s)".format(SAMPLE_FRACTION))
+    sc.sql("SET " + SharkConfVars.SAMPLE_SIZE.varname + "=" +
+      sc.sql("SELECT count(*) FROM lineorder_sample").head)
+    sc.sql("SET " + SharkConfVars.DATASET_SIZE.varname + "=" +
+      sc.sql("SELECT count(*) FROM lineorder").head)
+  }
+
+  private def createSample(sc: SharkContext, table: String, query: String) {
+    sc.sql("DROP TABLE IF EXISTS " + table)
+    sc.sql("CREATE TABLE %s AS %s".format(table, query))
+    sc.sql("CACHE " + table)
+  }
+
+  /**
+   * Runs a query once to warm up, and then `runs` times, measuring each run. The bytes scanned are
+   * counted by a separate run with per-operator metrics on.
+   */
+  def run(query: BenchmarkQuery, runs: Int, listener: ShuffleListener): QueryResult = {
+    val warmUp = runOnce(query.sql, listener)
+    val measured = (1 to runs).map(_ => runOnce(query.sql, listener))
+    val metricsVar = SharkConfVars.OPERATOR_METRICS.varname
+    SharkContext.hiveconf.setBoolean(metricsVar, true)
+    val bytesScanned = try {
+      runOnce(query.sql, listener).bytesScanned
+    } finally {
+      SharkContext.hiveconf.setBoolean(metricsVar, false)
+    }
+    val relativeError = query.exact.map { exact =>
+      val expected = number(runOnce(exact, listener).answer)
+      math.abs(number(warmUp.answer) - expected) / math.max(math.abs(expected), 1e-9)
+    }
+    val last = measured.lastOption.getOrElse(warmUp)
+    QueryResult(query.name, median(measured.map(_.compileMillis)),
+      median(measured.map(_.executeMillis)), bytesScanned, last.shuffleBytes,
+      last.rows.size, relativeError)
+  }
+
+  private class Run(
+      val compileMillis: Double,
+      val executeMillis: Double,
+      val bytesScanned: Long,
+      val shuffleBytes: Long,
+      val rows: Seq[String]) {
+    def answer: String = rows.headOption.map(_.split("\t")(0)).getOrElse("")
+  }
+
+  // Compiles and runs a query, reading all its results, as SharkContext.sql does.
+  private def runOnce(sql: String, listener: ShuffleListener): Run = {
+    SparkEnv.set(SharkEnv.sc.sparkEnv)
+    SessionState.start(SharkContext.sessionState)
+    val driver = new SharkDriver(SharkContext.hiveconf)
+    driver.init()
+    try {
+      listener.awaitQuiet()
+      val shuffleBytesBefore = listener.shuffleBytes
+      val compileStart = System.nanoTime
+      if (driver.compile(sql) != 0) {
+        throw new QueryExecutionException(driver.errorMessage)
+      }
+      val executeStart = System.nanoTime
+      if (driver.execute() != 0) {
+        throw new QueryExecutionException(driver.errorMessage)
+      }
+      val rows = new JArrayList[String]
+      while (driver.getResults(rows)) {}
+      val executeEnd = System.nanoTime
+      listener.awaitQuiet()
+      new Run((executeStart - compileStart) / 1e6, (executeEnd - executeStart) / 1e6,
+        bytesScanned(driver), listener.shuffleBytes - shuffleBytesBefore, rows.toSeq)
+    } finally {
+      driver.destroy()
+    }
+  }
+
+  // Bytes of cached columns decoded by the table scans of the query that ran.
+  private def bytesScanned(driver: SharkDriver): Long = {
+    driver.plan.getRootTasks.collect { case task: SparkTask =>
+      CompiledPlanCache.operators(task.getWork.terminalOperator).collect {
+        case scan: TableScanOperator if scan.metrics != null => scan.metrics.value.bytesDecoded
+      }.sum
+    }.sum
+  }
+
+  private def number(answer: String): Double = answer match {
+    case LEADING_NUMBER(value) => value.toDouble
+    case _ => throw new IllegalArgumentException("Not a numeric answer: " + answer)
+  }
+
+  private def median(values: Seq[Double]): Double = {
+    val sorted = values.sorted
+    if (sorted.isEmpty) 0.0 else sorted(sorted.size / 2)
+  }
+
+  /** Prints the ratio of each measurement to the one in an earlier report. */
+  def compare(results: Seq[QueryResult], baselineFile: File) {
+    val baseline = Source.fromFile(baselineFile, "UTF-8").getLines
+      .filter(line => !line.startsWith("#") && line != QueryResult.HEADER)
+      .map(QueryResult.fromTsv).map(r => (r.name, r)).toMap
+    def ratio(value: Double, base: Double) = if (base == 0) "-" else "%.2fx".format(value / base)
+    println("Compared to " + baselineFile)
+    println(Seq("query", "compile", "execute", "bytes_scanned", "shuffle_bytes", "relative_error")
+      .mkString("\t"))
+    for (result <- results; base <- baseline.get(result.name)) {
+      println(Seq(result.name,
+        ratio(result.compileMillis, base.compileMillis),
+        ratio(result.executeMillis, base.executeMillis),
+        ratio(result.bytesScanned, base.bytesScanned),
+        ratio(result.shuffleBytes, base.shuffleBytes),
+        "%s -> %s".format(base.relativeError.getOrElse("-"), result.relativeError.getOrElse("-")))
+        .mkString("\t"))
+    }
+  }
+}
+
+
+/**
+ * Counts the bytes written by shuffles. Listener events are delivered asynchronously, so the
+ * count is only complete once the listener is quiet (see awaitQuiet).
+ */
+class ShuffleListener extends SparkListener {
+
+  private val _shuffleBytes = new AtomicLong
+  private val activeJobs = new AtomicInteger
+  @volatile private var lastEvent = System.currentTimeMillis
+
+  def shuffleBytes: Long = _shuffleBytes.get
+
+  override def onJobStart(jobStart: SparkListenerJobStart) {
+    activeJobs.incrementAndGet()
+    lastEvent = System.currentTimeMillis
+  }
+
+  override def onJobEnd(jobEnd: SparkListenerJobEnd) {
+    activeJobs.decrementAndGet()
+    lastEvent = System.currentTimeMillis
+  }
+
+  override def onTaskEnd(taskEnd: SparkListenerTaskEnd) {
+    if (taskEnd.taskMetrics != null) {
+      taskEnd.taskMetrics.shuffleWriteMetrics.foreach { metrics =>
+        _shuffleBytes.addAndGet(metrics.shuffleBytesWritten)
+      }
+    }
+    lastEvent = System.currentTimeMillis
+  }
+
+  /**
+   * Waits, for up to 10 seconds, until no job is running and no event came for 200 ms. Warns if
+   * the listener is still busy then, as the shuffle bytes measured around it may be off.
+   */
+  def awaitQuiet() {
+    val deadline = System.currentTimeMillis + 10000
+    def isBusy = activeJobs.get > 0 || System.currentTimeMillis - lastEvent < 200
+    while (System.currentTimeMillis < deadline && isBusy) {
+      Thread.sleep(20)
+    }
+    if (isBusy) {
+      System.err.println("Warning: Spark listener not quiet after 10s (%d jobs running), "
+        .format(activeJobs.get) + "shuffle bytes may be miscounted")
+    }
+  }
+}
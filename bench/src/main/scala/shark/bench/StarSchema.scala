@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.bench
+
+import java.io.{BufferedWriter, File, FileOutputStream, OutputStreamWriter}
+import java.util.{Calendar, Random, TimeZone}
+
+import shark.SharkContext
+
+
+/**
+ * A synthetic star schema, in the style of the Star Schema Benchmark, that QueryBenchmark runs
+ * on. The lineorder fact table has 100,000 rows per unit of scale; dimensions grow with the scale
+ * too, except for the dates. returns is a second fact table keyed by order, for fact-to-fact
+ * joins. Rows are generated from a fixed seed, so a scale always gives the same data.
+ *
+ *  - date_dim(d_datekey, d_year, d_month, d_dayofweek): the days of 1992 to 1998, keyed yyyymmdd.
+ *  - customer(c_custkey, c_name, c_nation, c_region, c_segment)
+ *  - part(p_partkey, p_brand, p_category, p_price)
+ *  - supplier(s_suppkey, s_nation, s_region)
+ *  - lineorder(lo_orderkey, lo_linenumber, lo_custkey, lo_partkey, lo_suppkey, lo_orderdate,
+ *    lo_quantity, lo_extendedprice, lo_discount, lo_revenue): four lines per order on average.
+ *    Orders of a few customers and parts are much more frequent than others.
+ *  - returns(r_orderkey, r_quantity, r_refund): about one order in ten.
+ */
+object StarSchema {
+
+  val SEED = 42L
+
+  val LINEORDERS_PER_SCALE = 100000
+  val CUSTOMERS_PER_SCALE = 3000
+  val PARTS_PER_SCALE = 2000
+  val SUPPLIERS_PER_SCALE = 200
+
+  // Strings are lower case, as SharkDriver lower cases commands, literals included.
+  val REGIONS = Array("africa", "america", "asia", "europe", "middle east")
+  val SEGMENTS = Array("automobile", "building", "furniture", "household", "machinery")
+  val DAYS_OF_WEEK = Array("sunday", "monday", "tuesday", "wednesday", "thursday", "friday",
+    "saturday")
+
+  val TABLES = Seq(
+    "date_dim" -> "d_datekey INT, d_year INT, d_month INT, d_dayofweek STRING",
+    "customer" -> "c_custkey INT, c_name STRING, c_nation STRING, c_region STRING, " +
+      "c_segment STRING",
+    "part" -> "p_partkey INT, p_brand STRING, p_category STRING, p_price DOUBLE",
+    "supplier" -> "s_suppkey INT, s_nation STRING, s_region STRING",
+    "lineorder" -> "lo_orderkey BIGINT, lo_linenumber INT, lo_custkey INT, lo_partkey INT, " +
+      "lo_suppkey INT, lo_orderdate INT, lo_quantity INT, lo_extendedprice DOUBLE, " +
+      "lo_discount INT, lo_revenue DOUBLE",
+    "returns" -> "r_orderkey BIGINT, r_quantity INT, r_refund DOUBLE")
+
+  /**
+   * Writes the tables at the given scale as tab separated text files, one directory per table,
+   * unless they are already in `dir`.
+   */
+  def generate(dir: File, scale: Int) {
+    val done = new File(dir, "_SUCCESS")
+    if (done.exists) {
+      return
+    }
+    val rand = new Random(SEED)
+    val numCustomers = CUSTOMERS_PER_SCALE * scale
+    val numParts = PARTS_PER_SCALE * scale
+    val numSuppliers = SUPPLIERS_PER_SCALE * scale
+
+    val dates = {
+      val calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"))
+      calendar.clear()
+      calendar.set(1992, Calendar.JANUARY, 1)
+      val days = new scala.collection.mutable.ArrayBuffer[Int]
+      write(dir, "date_dim") { out =>
+        while (calendar.get(Calendar.YEAR) <= 1998) {
+          val year = calendar.get(Calendar.YEAR)
+          val month = calendar.get(Calendar.MONTH) + 1
+          val key = year * 10000 + month * 100 + calendar.get(Calendar.DAY_OF_MONTH)
+          days += key
+          out(Seq(key, year, month, DAYS_OF_WEEK(calendar.get(Calendar.DAY_OF_WEEK) - 1)))
+          calendar.add(Calendar.DAY_OF_MONTH, 1)
+        }
+      }
+      days.toArray
+    }
+
+    def nation(i: Int) = "nation" + (i % 25)
+    def region(i: Int) = REGIONS(i % REGIONS.length)
+
+    write(dir, "customer") { out =>
+      for (key <- 1 to numCustomers) {
+        val n = rand.nextInt(25)
+        out(Seq(key, "customer#%09d".format(key), nation(n), region(n),
+          SEGMENTS(rand.nextInt(SEGMENTS.length))))
+      }
+    }
+
+    val prices = new Array[Double](numParts + 1)
+    write(dir, "part") { out =>
+      for (key <- 1 to numParts) {
+        val category = "mfgr#" + (1 + rand.nextInt(5)) + (1 + rand.nextInt(5))
+        prices(key) = 1.0 + rand.nextInt(200000) / 100.0
+        out(Seq(key, category + (1 + rand.nextInt(40)), category, prices(key)))
+      }
+    }
+
+    write(dir, "supplier") { out =>
+      for (key <- 1 to numSuppliers) {
+        val n = rand.nextInt(25)
+        out(Seq(key, nation(n), region(n)))
+      }
+    }
+
+    // Skewed toward low keys: the key at quantile q of the orders is about q^2 * n.
+    def skewed(n: Int) = 1 + math.min(n - 1, (math.pow(rand.nextDouble, 2) * n).toInt)
+
+    val numLineorders = LINEORDERS_PER_SCALE.toLong * scale
+    val returnsWriter = openWriter(dir, "returns")
+    try {
+      write(dir, "lineorder") { out =>
+        var line = 0L
+        var orderkey = 0L
+        while (line < numLineorders) {
+          orderkey += 1
+          val custkey = skewed(numCustomers)
+          val orderdate = dates(rand.nextInt(dates.length))
+          val numLines = 1 + rand.nextInt(7)
+          var returnedQuantity = 0
+          var refund = 0.0
+          val isReturned = rand.nextInt(10) == 0
+          var linenumber = 1
+          while (linenumber <= numLines && line < numLineorders) {
+            val partkey = skewed(numParts)
+            val quantity = 1 + rand.nextInt(50)
+            val discount = rand.nextInt(11)
+            val extendedprice = quantity * prices(partkey)
+            val revenue = extendedprice * (100 - discount) / 100
+            out(Seq(orderkey, linenumber, custkey, partkey, 1 + rand.nextInt(numSuppliers),
+              orderdate, quantity, extendedprice, discount, revenue))
+            if (isReturned) {
+              returnedQuantity += quantity
+              refund += revenue
+            }
+            linenumber += 1
+            line += 1
+          }
+          if (isReturned) {
+            returnsWriter.write(Seq(orderkey, returnedQuantity, refund).mkString("\t"))
+            returnsWriter.newLine()
+          }
+        }
+      }
+    } finally {
+      returnsWriter.close()
+    }
+    done.createNewFile()
+  }
+
+  /**
+   * Creates the tables over the files written by generate(), and caches them through the CACHE
+   * command.
+   */
+  def load(sc: SharkContext, dir: File) {
+    // Set as a variable, which keeps the case of the path.
+    sc.sql("SET shark.bench.data.path=" + dir.getAbsolutePath)
+    for ((table, columns) <- TABLES) {
+      sc.sql("DROP TABLE IF EXISTS " + table)
+      sc.sql("CREATE TABLE %s (%s) ROW FORMAT DELIMITED FIELDS TERMINATED BY '\\t'".format(
+        table, columns))
+      sc.sql("LOAD DATA LOCAL INPATH '${hiveconf:shark.bench.data.path}/%s' INTO TABLE %s".format(
+        table, table))
+      sc.sql("CACHE " + table)
+    }
+  }
+
+  private def openWriter(dir: File, table: String): BufferedWriter = {
+    val tableDir = new File(dir, table)
+    tableDir.mkdirs()
+    new BufferedWriter(new OutputStreamWriter(
+      new FileOutputStream(new File(tableDir, table + ".txt")), "UTF-8"), 1 << 16)
+  }
+
+  private def write(dir: File, table: String)(f: (Seq[Any] => Unit) => Unit) {
+    val writer = openWriter(dir, table)
+    try {
+      f { row =>
+        writer.write(row.mkString("\t"))
+        writer.newLine()
+      }
+    } finally {
+      writer.close()
+    }
+  }
+}
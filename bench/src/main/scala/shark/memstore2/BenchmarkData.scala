@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.memstore2
+
+import java.nio.ByteBuffer
+import java.util.{ArrayList => JArrayList, Arrays => JArrays, BitSet, Random}
+
+import org.apache.hadoop.hive.ql.exec.{ExprNodeEvaluator, ExprNodeEvaluatorFactory}
+import org.apache.hadoop.hive.ql.plan.{ExprNodeColumnDesc, ExprNodeConstantDesc, ExprNodeDesc,
+  ExprNodeGenericFuncDesc}
+import org.apache.hadoop.hive.ql.udf.generic.{GenericUDF, GenericUDFOPAnd, GenericUDFOPEqual,
+  GenericUDFOPGreaterThan, GenericUDFOPLessThan}
+import org.apache.hadoop.hive.serde2.io.DoubleWritable
+import org.apache.hadoop.hive.serde2.objectinspector.{ObjectInspector, StructField}
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory
+import org.apache.hadoop.io.{BooleanWritable, IntWritable, LongWritable, Text}
+
+import shark.memstore2.column._
+
+
+/**
+ * Generates the columns, partitions and filters the memory store benchmarks in the bench project
+ * run on. Data is generated from a fixed seed, so every run of a benchmark sees the same values.
+ *
+ * Column types are named as in the benchmark parameters: "int", "long", "double", "string" and
+ * "boolean". Compression is one of:
+ *  - "none": the column is not compressed, as with shark.column.compress=false.
+ *  - "auto": the schemes a load picks from (RLE and boolean bit sets).
+ *  - "rle", "dictionary" or "bitset": only that scheme is tried. As for a load, the column is
+ *    left uncompressed if the scheme doesn't support its type or wouldn't make it smaller.
+ */
+object BenchmarkData {
+
+  val SEED = 42L
+
+  def objectInspector(columnType: String): ObjectInspector = columnType match {
+    case "int" => PrimitiveObjectInspectorFactory.writableIntObjectInspector
+    case "long" => PrimitiveObjectInspectorFactory.writableLongObjectInspector
+    case "double" => PrimitiveObjectInspectorFactory.writableDoubleObjectInspector
+    case "string" => PrimitiveObjectInspectorFactory.writableStringObjectInspector
+    case "boolean" => PrimitiveObjectInspectorFactory.writableBooleanObjectInspector
+    case _ => throw new IllegalArgumentException("Unsupported column type: " + columnType)
+  }
+
+  /**
+   * Returns `numRows` writables of the given column type, a fraction `nullRatio` of which are
+   * null. Values are drawn from `cardinality` distinct values, and each one is repeated
+   * `runLength` times in a row.
+   */
+  def values(
+      columnType: String,
+      numRows: Int,
+      nullRatio: Double,
+      cardinality: Int,
+      runLength: Int): Array[Object] = {
+    val random = new Random(SEED)
+    val distinct = Array.fill[Object](math.max(cardinality, 1))(randomValue(columnType, random))
+    val values = new Array[Object](numRows)
+    var i = 0
+    while (i < numRows) {
+      val v = distinct(random.nextInt(distinct.length))
+      var j = 0
+      while (j < runLength && i < numRows) {
+        values(i) = if (random.nextDouble() < nullRatio) null else v
+        i += 1
+        j += 1
+      }
+    }
+    values
+  }
+
+  private def randomValue(columnType: String, random: Random): Object = columnType match {
+    case "int" => new IntWritable(random.nextInt())
+    case "long" => new LongWritable(random.nextLong())
+    case "double" => new DoubleWritable(random.nextDouble() * 1e6)
+    case "string" =>
+      val chars = Array.fill(8 + random.nextInt(17))(('a' + random.nextInt(26)).toChar)
+      new Text(new String(chars))
+    case "boolean" => new BooleanWritable(random.nextBoolean())
+    case _ => throw new IllegalArgumentException("Unsupported column type: " + columnType)
+  }
+
+  /** Returns a column builder initialized for `numRows` rows. */
+  def newColumnBuilder(oi: ObjectInspector, compression: String, numRows: Int)
+    : ColumnBuilder[_] = {
+    val builder = ColumnBuilder.create(oi, compression != "none")
+    val schemes: Seq[CompressionAlgorithm] = compression match {
+      case "none" => Seq()
+      case "auto" => builder.asInstanceOf[CompressedColumnBuilder[_]].compressionSchemes
+      case "rle" => Seq(new RLE())
+      case "dictionary" => Seq(new DictionaryEncoding())
+      case "bitset" => Seq(new BooleanBitSetCompression())
+      case _ => throw new IllegalArgumentException("Unsupported compression: " + compression)
+    }
+    builder.asInstanceOf[CompressedColumnBuilder[_]].compressionSchemes = schemes
+    builder.initialize(numRows)
+    builder
+  }
+
+  /** Appends all the values to a new column builder and builds the column. */
+  def buildColumn(values: Array[Object], oi: ObjectInspector, compression: String): ByteBuffer = {
+    val builder = newColumnBuilder(oi, compression, values.length)
+    var i = 0
+    while (i < values.length) {
+      builder.append(values(i), oi)
+      i += 1
+    }
+    builder.build()
+  }
+
+  def newColumnIterator(column: ByteBuffer): ColumnIterator = ColumnIterator.newIterator(column)
+
+  /** Returns a partition with a column of each of the given types. */
+  def partition(
+      columnTypes: Array[String],
+      numRows: Int,
+      nullRatio: Double,
+      cardinality: Int,
+      runLength: Int,
+      compression: String): TablePartition = {
+    val columns = columnTypes.map { columnType =>
+      buildColumn(values(columnType, numRows, nullRatio, cardinality, runLength),
+        objectInspector(columnType), compression)
+    }
+    new TablePartition(numRows, columns)
+  }
+
+  /** Returns the object inspector of the rows of partition(columnTypes, ...). */
+  def rowObjectInspector(columnTypes: Array[String]): ColumnarStructObjectInspector = {
+    val fields = new JArrayList[StructField]()
+    columnTypes.zipWithIndex.foreach { case (columnType, i) =>
+      fields.add(new ColumnarStructObjectInspector.IDStructField(
+        i, "c" + i, objectInspector(columnType)))
+    }
+    new ColumnarStructObjectInspector(fields)
+  }
+
+  def columnsUsed(numColumns: Int, numUsed: Int): BitSet = {
+    val columnsUsed = new BitSet(numColumns)
+    columnsUsed.set(0, math.min(numUsed, numColumns))
+    columnsUsed
+  }
+
+  /**
+   * Returns the stats of `numPartitions` partitions of a table with a single int column, c0.
+   * The values of partition p are in [p * rowsPerPartition, (p + 1) * rowsPerPartition), in random
+   * order.
+   */
+  def pruningStats(numPartitions: Int, rowsPerPartition: Int): Array[TablePartitionStats] = {
+    val random = new Random(SEED)
+    val oi = objectInspector("int")
+    val key = new IntWritable
+    Array.tabulate(numPartitions) { p =>
+      val builder = new TablePartitionBuilder(Seq(oi), rowsPerPartition, false)
+      var i = 0
+      while (i < rowsPerPartition) {
+        key.set(p * rowsPerPartition + random.nextInt(rowsPerPartition))
+        builder.incrementRowCount()
+        builder.append(0, key, oi)
+        i += 1
+      }
+      builder.stats
+    }
+  }
+
+  /**
+   * Returns a filter on the table of pruningStats(numPartitions, rowsPerPartition), initialized
+   * as the table scan initializes it:
+   *  - "eq": c0 = k, which keeps at most one partition.
+   *  - "range": c0 > a AND c0 < b, which keeps a tenth of the partitions.
+   */
+  def pruningFilter(predicate: String, numPartitions: Int, rowsPerPartition: Int)
+    : ExprNodeEvaluator = {
+    val numRows = numPartitions * rowsPerPartition
+    val filter = predicate match {
+      case "eq" => compare(new GenericUDFOPEqual, numRows / 2)
+      case "range" =>
+        function(new GenericUDFOPAnd,
+          compare(new GenericUDFOPGreaterThan, numRows / 2),
+          compare(new GenericUDFOPLessThan, numRows / 2 + numRows / 10))
+      case _ => throw new IllegalArgumentException("Unsupported predicate: " + predicate)
+    }
+    val evaluator = ExprNodeEvaluatorFactory.get(filter)
+    evaluator.initialize(rowObjectInspector(Array("int")))
+    evaluator
+  }
+
+  private def compare(udf: GenericUDF, value: Int): ExprNodeDesc = {
+    function(udf,
+      new ExprNodeColumnDesc(TypeInfoFactory.intTypeInfo, "c0", "t", false),
+      new ExprNodeConstantDesc(TypeInfoFactory.intTypeInfo, Int.box(value)))
+  }
+
+  private def function(udf: GenericUDF, children: ExprNodeDesc*): ExprNodeDesc = {
+    new ExprNodeGenericFuncDesc(TypeInfoFactory.booleanTypeInfo, udf, JArrays.asList(children: _*))
+  }
+}
@@ -34,6 +34,8 @@ object SharkBuild extends Build {
 
   val SCALA_VERSION = "2.10.3"
 
+  val JMH_VERSION = "1.10.3"
+
   // Hadoop version to build against. For example, "0.20.2", "0.20.205.0", or
   // "1.0.1" for Apache releases, or "0.20.2-cdh3u3" for Cloudera Hadoop.
   val DEFAULT_HADOOP_VERSION = "1.0.4"
@@ -53,6 +55,13 @@ object SharkBuild extends Build {
     base = file("."),
     settings = coreSettings ++ assemblyProjSettings)
 
+  // JMH microbenchmarks of the memory store, run with bin/dev/run-benchmarks, and an end-to-end
+  // query benchmark, run with bin/dev/run-query-benchmarks.
+  lazy val bench = Project(
+    id = "bench",
+    base = file("bench"),
+    settings = benchSettings) dependsOn(root)
+
   val excludeKyro = ExclusionRule(organization = "de.javakaffee")
   val excludeHadoop = ExclusionRule(organization = "org.apache.hadoop")
   val excludeNetty = ExclusionRule(organization = "org.jboss.netty")
@@ -134,6 +143,25 @@ object SharkBuild extends Build {
       (if (TACHYON_ENABLED) Some("org.tachyonproject" % "tachyon" % "0.3.0" excludeAll(excludeKyro, excludeHadoop, excludeCurator, excludeJackson, excludeNetty, excludeAsm)) else None).toSeq
   ) ++ org.scalastyle.sbt.ScalastylePlugin.Settings
 
+  def benchSettings = Defaults.defaultSettings ++ Seq(
+    name := "shark-bench",
+    organization := "edu.berkeley.cs.amplab",
+    version := SHARK_VERSION,
+    scalaVersion := SCALA_VERSION,
+    scalacOptions := Seq("-deprecation", "-unchecked", "-optimize", "-feature"),
+
+    // The benchmarks are Java classes, so that the JMH annotation processor generates their
+    // harness when javac compiles them. Data generation and the query benchmark are in Scala.
+    libraryDependencies ++= Seq(
+      "org.openjdk.jmh" % "jmh-core" % JMH_VERSION,
+      "org.openjdk.jmh" % "jmh-generator-annprocess" % JMH_VERSION),
+
+    // JMH forks its own JVMs for the measurements, with the classpath of the one it runs in.
+    fork in run := true,
+    javaOptions in run += "-Xmx2g",
+    mainClass in (Compile, run) := Some("org.openjdk.jmh.Main")
+  )
+
   def assemblyProjSettings = Seq(
     jarName in assembly <<= version map { v => "shark-assembly-" + v + "-hadoop" + hadoopVersion + ".jar" }
   ) ++ assemblySettings ++ extraAssemblySettings
@@ -61,6 +61,10 @@ public class ExplainTaskHelper {
       shark.execution.Operator<? extends Serializable> operator =
           (shark.execution.Operator<? extends Serializable>) work;
       out.println(indentString(indent) + "**" + operator.getClass().getName());
+      // Metrics are only collected for EXPLAIN ANALYZE.
+      if (operator.metrics() != null) {
+        out.println(indentString(indent + 2) + "Runtime: " + operator.metrics().value());
+      }
       if (operator.desc() != null) {
         outputPlan(operator.desc(), out, extended, indent);
       }
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark
+
+import java.util.{LinkedList => JLinkedList}
+
+import scala.collection.JavaConversions._
+import scala.collection.mutable.ArrayBuffer
+
+import org.apache.hadoop.hive.conf.HiveConf
+import org.apache.hadoop.hive.ql.QueryPlan
+import org.apache.hadoop.hive.ql.exec.Task
+import org.apache.hadoop.hive.ql.metadata.{Table => HiveTable}
+
+import shark.api.QueryExecutionException
+import shark.execution.{MapJoinOperator, ReduceSinkOperator, SparkTask, TableScanOperator}
+import shark.execution.optimization.ColumnPruner
+import shark.memstore2.{MemoryTable, PartitionedMemoryTable, TablePartitionStats}
+import shark.parse.CompiledPlanCache
+
+
+/**
+ * Admission control of the queries of SharkServer sessions. At most
+ * shark.server.maxConcurrentQueries queries run at a time, and the memory estimated for the
+ * running queries stays within shark.server.queryMemory.mb. Other queries wait in arrival order,
+ * so that a large query is not starved by smaller ones. A query whose estimate exceeds the whole
+ * budget runs once nothing else does.
+ *
+ * A query that is queued or running for longer than shark.server.queryTimeout seconds is
+ * cancelled, as are the queued queries of a session whose client disconnected. JDBCWatcher checks
+ * for both and cancels the Spark jobs of the session.
+ */
+object AdmissionController extends LogHelper {
+
+  // Estimated memory per value of the rows shuffled or put in hash tables by a query.
+  val BYTES_PER_VALUE = 16L
+
+  class Ticket private[AdmissionController] (
+      val session: String,
+      val bytes: Long,
+      val deadline: Long) {
+    @volatile private[AdmissionController] var cancelled = false
+    @volatile private[AdmissionController] var timedOut = false
+
+    def isTimedOut: Boolean = timedOut
+  }
+
+  // Queries waiting to run, in arrival order.
+  private val queued = new JLinkedList[Ticket]
+  private val running = new ArrayBuffer[Ticket]
+  private var runningBytes = 0L
+
+  def numQueued: Int = synchronized { queued.size }
+  def numRunning: Int = synchronized { running.size }
+
+  /**
+   * Waits until the query planned as `plan` may run in `session`. The caller must release the
+   * returned ticket once the query ran. Throws a QueryExecutionException if the query was
+   * cancelled or timed out before it could run.
+   */
+  def admit(plan: QueryPlan, conf: HiveConf, session: String): Ticket = {
+    val maxQueries = SharkConfVars.getIntVar(conf, SharkConfVars.SERVER_MAX_CONCURRENT_QUERIES)
+    val maxBytes = SharkConfVars.getIntVar(conf, SharkConfVars.SERVER_QUERY_MEMORY) * 1024L * 1024L
+    val timeout = SharkConfVars.getIntVar(conf, SharkConfVars.SERVER_QUERY_TIMEOUT) * 1000L
+    val bytes = if (maxBytes > 0) math.min(estimateMemory(plan), maxBytes) else 0L
+    val deadline = if (timeout > 0) System.currentTimeMillis + timeout else Long.MaxValue
+    val ticket = new Ticket(session, bytes, deadline)
+
+    synchronized {
+      queued.add(ticket)
+      try {
+        while (!ticket.cancelled &&
+            !((queued.getFirst eq ticket) && fits(bytes, maxQueries, maxBytes))) {
+          wait()
+        }
+      } finally {
+        queued.remove(ticket)
+        notifyAll()
+      }
+      if (ticket.timedOut) {
+        throw new QueryExecutionException("Query timed out after waiting " +
+          (timeout / 1000) + " seconds to run (shark.server.queryTimeout)")
+      } else if (ticket.cancelled) {
+        throw new QueryExecutionException("Query cancelled before it could run")
+      }
+      running += ticket
+      runningBytes += bytes
+    }
+    if (bytes > 0) {
+      logInfo("Admitted a query estimated to need %d MB in session %s".format(
+        bytes / 1024 / 1024, session))
+    }
+    ticket
+  }
+
+  def release(ticket: Ticket): Unit = synchronized {
+    if (running.contains(ticket)) {
+      running -= ticket
+      runningBytes -= ticket.bytes
+      notifyAll()
+    }
+  }
+
+  /** Cancels the queued queries of a session, e.g. because its client disconnected. */
+  def cancel(session: String): Unit = synchronized {
+    queued.filter(_.session == session).foreach(_.cancelled = true)
+    notifyAll()
+  }
+
+  /**
+   * Times out the queries of a session that are past their deadline. Returns true if a running
+   * query timed out, in which case the caller cancels its Spark jobs.
+   */
+  def expire(session: String): Boolean = synchronized {
+    val now = System.currentTimeMillis
+    val expired = (queued ++ running).filter { ticket =>
+      ticket.session == session && !ticket.cancelled && ticket.deadline < now
+    }
+    expired.foreach { ticket =>
+      ticket.cancelled = true
+      ticket.timedOut = true
+    }
+    notifyAll()
+    expired.exists(running.contains)
+  }
+
+  /**
+   * Estimates the memory a query needs to shuffle rows or build hash tables, as the size of the
+   * columns it reads from the tables it scans. Queries that neither shuffle nor join with a map
+   * join are assumed to stream their rows, and need no memory beyond their tasks'.
+   *
+   * This is a crude upper bound: every row of a scanned table is counted, whatever the filters of
+   * the query and the size of the groups it aggregates rows into, at BYTES_PER_VALUE per column.
+   */
+  def estimateMemory(plan: QueryPlan): Long = {
+    sparkTasks(plan.getRootTasks).map { task =>
+      val operators = CompiledPlanCache.operators(task.getWork.terminalOperator)
+      val buffersRows = operators.exists {
+        case _: ReduceSinkOperator | _: MapJoinOperator => true
+        case _ => false
+      }
+      if (buffersRows) {
+        val topToTable = task.getWork.pctx.getTopToTable
+        operators.collect {
+          case scan: TableScanOperator if topToTable.get(scan.hiveOp) != null =>
+            val table = topToTable.get(scan.hiveOp)
+            val numColumns = new ColumnPruner(scan, table).columnsUsed.cardinality
+            tableBytes(table, numColumns)
+        }.sum
+      } else {
+        0L
+      }
+    }.sum
+  }
+
+  private def fits(bytes: Long, maxQueries: Int, maxBytes: Long): Boolean = {
+    (maxQueries <= 0 || running.size < maxQueries) &&
+      (maxBytes <= 0 || running.isEmpty || runningBytes + bytes <= maxBytes)
+  }
+
+  // The in-memory size of `numColumns` columns of a table: estimated from the row counts of a
+  // cached table, or from the size of its files recorded by Hive (e.g. by ANALYZE TABLE) in
+  // proportion to the columns read, 0 if unknown.
+  private def tableBytes(table: HiveTable, numColumns: Int): Long = {
+    val rowBytes = BYTES_PER_VALUE * (numColumns + 1)
+    def rows(stats: collection.Map[Int, TablePartitionStats]) = stats.values.map(_.numRows).sum
+    SharkEnv.memoryMetadataManager.getTable(table.getDbName, table.getTableName) match {
+      case Some(memoryTable: MemoryTable) =>
+        memoryTable.getStats.map(rows).getOrElse(0L) * rowBytes
+      case Some(partitionedTable: PartitionedMemoryTable) =>
+        partitionedTable.keyToStats.values.map(rows).sum * rowBytes
+      case _ =>
+        val totalSize = Option(table.getParameters.get("totalSize")).map(_.toLong).getOrElse(0L)
+        totalSize * math.max(numColumns, 1) / math.max(table.getCols.size, 1)
+    }
+  }
+
+  private[shark] def sparkTasks(
+      tasks: java.util.List[Task[_ <: java.io.Serializable]]): Seq[SparkTask] = {
+    if (tasks == null) {
+      Nil
+    } else {
+      tasks.flatMap {
+        case task: SparkTask => task +: sparkTasks(task.getChildTasks)
+        case task => sparkTasks(task.getChildTasks)
+      }.distinct
+    }
+  }
+}
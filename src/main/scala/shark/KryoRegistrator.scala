@@ -30,12 +30,17 @@ import org.apache.hadoop.hive.ql.exec.persistence.{MapJoinSingleKey, MapJoinObje
 
 import org.apache.spark.serializer.{KryoRegistrator => SparkKryoRegistrator}
 
+import shark.memstore2.TablePartition
+
 
 class KryoRegistrator extends SparkKryoRegistrator {
   def registerClasses(kryo: Kryo) {
 
     kryo.register(classOf[execution.ReduceKey])
 
+    // Cached partitions are written column by column in bulk when spilled or fetched.
+    kryo.register(classOf[TablePartition], new KryoTablePartitionSerializer)
+
     // The map join data structures are Java serializable.
     kryo.register(classOf[MapJoinSingleKey], new KryoJavaSerializer)
     kryo.register(classOf[MapJoinObjectKey], new KryoJavaSerializer)
@@ -64,3 +69,18 @@ class KryoWritableSerializer[T <: Writable] extends KSerializer[T] {
     writable
   }
 }
+
+
+/** A Kryo serializer for TablePartition, using the partition's own column-chunk format. */
+class KryoTablePartitionSerializer extends KSerializer[TablePartition] {
+  override def write(kryo: Kryo, output: KryoOutput, partition: TablePartition) {
+    partition.writeTo(new DataOutputStream(output))
+  }
+
+  override def read(kryo: Kryo, input: KryoInput, cls: java.lang.Class[TablePartition])
+    : TablePartition = {
+    val partition = new TablePartition
+    partition.readFrom(new DataInputStream(input))
+    partition
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark
+
+import java.util.{LinkedHashMap => JLinkedHashMap}
+import java.util.concurrent.atomic.AtomicLong
+
+import org.apache.hadoop.hive.conf.HiveConf
+import org.apache.hadoop.hive.metastore.api.Schema
+import org.apache.hadoop.hive.ql.QueryPlan
+import org.apache.hadoop.hive.ql.exec.FunctionRegistry
+import org.apache.hadoop.hive.ql.plan.ExprNodeGenericFuncDesc
+
+import shark.api.ResultSet
+import shark.execution.{SamplingOperator, ScriptOperator, SparkTask}
+import shark.parse.{CompiledPlanCache, PlanDependencies}
+
+
+/** The results of a query run by SharkServer, as returned by the driver. */
+class ServerQueryResult(val rows: Seq[String], val schema: Schema, val thriftSchema: Schema)
+
+
+/**
+ * The results of SELECT queries over cached tables, so that SharkServer and SharkContext.runSql
+ * can answer a query that ran before without running a Spark job. A result is dropped once a
+ * table it was computed from is changed, renamed or dropped (see Table.version), or once a command
+ * other than a query runs (see CompiledPlanCache.invalidate()).
+ *
+ * Results are keyed by the normalized query text, the literals of the query, the current database
+ * and the configuration of the session. Only the results of queries that scan nothing but cached
+ * tables and call no non-deterministic function are cached. The least recently used results are
+ * dropped beyond shark.resultCache.mb of results.
+ */
+object QueryResultCache extends LogHelper {
+
+  private class Entry(val result: AnyRef, val bytes: Long, val dependencies: PlanDependencies)
+
+  // The least recently used entries come first.
+  private val entries = new JLinkedHashMap[String, Entry](16, 0.75f, true)
+  private var totalBytes = 0L
+
+  private val _hits = new AtomicLong
+  private val _misses = new AtomicLong
+  private val _evictions = new AtomicLong
+
+  def hits: Long = _hits.get
+  def misses: Long = _misses.get
+  def evictions: Long = _evictions.get
+  def bytes: Long = synchronized { totalBytes }
+
+  def maxBytes(conf: HiveConf): Long = {
+    SharkConfVars.getIntVar(conf, SharkConfVars.RESULT_CACHE_SIZE) * 1024L * 1024L
+  }
+
+  /**
+   * Returns the key of the results of a command in the given session, or None if the command is
+   * not a query or results are not cached. `kind` tells apart results of the same query that are
+   * returned in different forms.
+   */
+  def key(command: String, conf: HiveConf, kind: String): Option[String] = {
+    // Cached results are returned without checking the privileges of the session.
+    if (maxBytes(conf) <= 0 ||
+        HiveConf.getBoolVar(conf, HiveConf.ConfVars.HIVE_AUTHORIZATION_ENABLED)) {
+      return None
+    }
+    // As SharkDriver.compile(), which lowercases the whole command.
+    val subbedCommand = new VariableSubstitution().substitute(conf, command.toLowerCase).trim
+    CompiledPlanCache.normalize(subbedCommand).map { query =>
+      val literals = query.literals.map { literal =>
+        val value = literal.toString
+        literal.getClass.getSimpleName + ":" + value.length + ":" + value
+      }
+      (Seq(kind, CompiledPlanCache.key(query, conf)) ++ literals).mkString("\u0000")
+    }
+  }
+
+  /**
+   * Returns what the results of the query planned as `plan` depend on, before it runs, or None if
+   * they can't be cached.
+   */
+  def dependencies(plan: QueryPlan): Option[PlanDependencies] = {
+    if (!plan.getOutputs.isEmpty) {
+      return None
+    }
+    CompiledPlanCache.querySparkTask(plan.getRootTasks).filter(isDeterministic).map { task =>
+      PlanDependencies(task, CompiledPlanCache.epoch)
+    }.filter(_.tableVersions.forall { case (_, version) => version >= 0 })
+  }
+
+  /** Returns the cached results for the key, if they are current. */
+  def get[T](key: String): Option[T] = {
+    val entryOpt = synchronized {
+      Option(entries.get(key)).flatMap { entry =>
+        if (entry.dependencies.isCurrent) {
+          Some(entry)
+        } else {
+          remove(key)
+          None
+        }
+      }
+    }
+    if (entryOpt.isDefined) _hits.incrementAndGet() else _misses.incrementAndGet()
+    entryOpt.map(_.result.asInstanceOf[T])
+  }
+
+  /**
+   * Caches the results of a query that depend on `dependencies`, unless they changed while the
+   * query ran or the results take more than `maxBytes`.
+   */
+  def put(
+      key: String,
+      result: AnyRef,
+      bytes: Long,
+      dependencies: PlanDependencies,
+      maxBytes: Long) {
+    if (bytes <= maxBytes && dependencies.isCurrent) {
+      synchronized {
+        remove(key)
+        entries.put(key, new Entry(result, bytes, dependencies))
+        totalBytes += bytes
+        val keys = entries.keySet.iterator
+        while (totalBytes > maxBytes) {
+          val eldest = keys.next()
+          totalBytes -= entries.get(eldest).bytes
+          keys.remove()
+          _evictions.incrementAndGet()
+        }
+      }
+      logDebug("Cached %d bytes of query results (%d bytes in total)".format(bytes, totalBytes))
+    }
+  }
+
+  def clear(): Unit = synchronized {
+    entries.clear()
+    totalBytes = 0
+  }
+
+  override def toString: String = synchronized {
+    "QueryResultCache(%d results, %d bytes, %d hits, %d misses, %d evictions)".format(
+      entries.size, totalBytes, hits, misses, evictions)
+  }
+
+  /** An estimate of the memory taken by rows returned by the driver. */
+  def estimateSize(rows: Seq[String]): Long = rows.map(row => 40L + 2L * row.length).sum
+
+  /** An estimate of the memory taken by a ResultSet. */
+  def estimateSize(resultSet: ResultSet): Long = {
+    resultSet.results.map { row =>
+      row.map {
+        case s: String => 40L + 2L * s.length
+        case _ => 16L
+      }.sum + 16L + 8L * row.length
+    }.sum
+  }
+
+  private def remove(key: String) {
+    val entry = entries.remove(key)
+    if (entry != null) {
+      totalBytes -= entry.bytes
+    }
+  }
+
+  // Whether the query's results only depend on the tables it scans.
+  private def isDeterministic(task: SparkTask): Boolean = {
+    val operators = CompiledPlanCache.operators(task.getWork.terminalOperator)
+    val isRandom = operators.exists {
+      case _: SamplingOperator | _: ScriptOperator => true
+      case _ => false
+    }
+    !isRandom && CompiledPlanCache.find(operators.map(_.desc), classOf[ExprNodeGenericFuncDesc])
+      .forall(function => FunctionRegistry.isDeterministic(function.getGenericUDF))
+  }
+}
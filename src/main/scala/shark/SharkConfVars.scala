@@ -36,6 +36,24 @@ object SharkConfVars {
 
   val COLUMNAR_COMPRESSION = new ConfVar("shark.column.compress", true)
 
+  // If true, cached partitions also keep a HyperLogLog sketch of every column and a quantile
+  // sketch of every numeric column in their TablePartitionStats, from which global
+  // approx_distinct and approx_median aggregates over the table are answered without a scan.
+  val COLUMN_SKETCHES = new ConfVar("shark.column.sketches", false)
+
+  // If true, delimited text tables read with LazySimpleSerDe are cached by parsing each line
+  // straight into the column builders, bypassing the SerDe and its object inspectors.
+  val DIRECT_TEXT_LOAD = new ConfVar("shark.cache.directTextLoad", true)
+
+  // If true, the small segments that INSERT INTO and LOAD INTO append to a cached table are merged
+  // in the background, once there are shark.cache.compaction.deltas of them, into partitions of
+  // about shark.cache.compaction.mb each. Once there are shark.cache.compaction.segments such
+  // merged segments, they are merged again into one.
+  val CACHE_COMPACTION = new ConfVar("shark.cache.compaction", true)
+  val CACHE_COMPACTION_DELTAS = new ConfVar("shark.cache.compaction.deltas", 16)
+  val CACHE_COMPACTION_SIZE = new ConfVar("shark.cache.compaction.mb", 64)
+  val CACHE_COMPACTION_SEGMENTS = new ConfVar("shark.cache.compaction.segments", 8)
+
   // If true, then cache any table whose name ends in "_cached".
   val CHECK_TABLENAME_FLAG = new ConfVar("shark.cache.flag.checkTableName", true)
 
@@ -51,12 +69,80 @@ object SharkConfVars {
   // Print debug information for map pruning.
   val MAP_PRUNING_PRINT_DEBUG = new ConfVar("shark.mappruning.debug", false)
 
+  // Answer global COUNT(*), MIN and MAX aggregations over cached tables from the statistics
+  // collected when the table was cached, without scanning the table.
+  val METADATA_AGGREGATION = new ConfVar("shark.metadata.aggregation", true)
+
+  // If true, concurrent aggregation queries over the same cached table that start within
+  // shark.sharedscan.window.ms of each other share one scan of the table. Meant for SharkServer.
+  // The window is the longest a query waits for others to join, and is cut short once no other
+  // query may still join, i.e. every other query is planned and can't share the same scan.
+  val SHARED_SCAN = new ConfVar("shark.sharedscan", false)
+  val SHARED_SCAN_WINDOW = new ConfVar("shark.sharedscan.window.ms", 50)
+
+  // Target size of a scan task over a partitioned cached table, in MB. Cached partitions of all
+  // selected Hive partitions are grouped by host into tasks of about this size. If 0, each cached
+  // partition is scanned by a task of its own.
+  val SCAN_COALESCE_SIZE = new ConfVar("shark.scan.coalesce.mb", 64)
+
+  // If true, map side aggregation on a single dictionary-encoded string key of a cached table
+  // runs on the dictionary codes, using an array indexed by code instead of a hash table.
+  val DICTIONARY_GROUPBY = new ConfVar("shark.groupby.dictionary", true)
+
+  // If true, every operator counts the rows it processes, the time it takes and other runtime
+  // metrics into Spark accumulators. Set for the query run by EXPLAIN ANALYZE.
+  val OPERATOR_METRICS = new ConfVar("shark.exec.operatorMetrics", false)
+
   // If true, then query plans are compressed before being sent
   val COMPRESS_QUERY_PLAN = new ConfVar("shark.queryPlan.compress", true)
 
+  // If true, operators are sent to slaves in a compact binary encoding (Kryo) instead of XML.
+  // Operators that cannot be encoded are still sent as XML.
+  val BINARY_QUERY_PLAN = new ConfVar("shark.queryPlan.binary", true)
+
+  // If true, slaves keep the operators they deserialized and initialized, and reuse them for later
+  // tasks of the same plan. The number of plans kept per slave is set by the
+  // shark.queryPlan.cache.size system property of the slave, 64 by default.
+  val QUERY_PLAN_CACHE = new ConfVar("shark.queryPlan.cache", true)
+
+  // Number of compiled SELECT queries each driver keeps, by query text with literals replaced by
+  // placeholders. A query that only differs from a cached one in its literals reuses the cached
+  // operator tree instead of being analyzed again. 0 disables the cache.
+  val PLAN_CACHE_SIZE = new ConfVar("shark.planCache.size", 32)
+
+  // Megabytes of query results that SharkServer and SharkContext.runSql keep, to answer queries
+  // over cached tables that ran before without running them again. 0 disables the cache.
+  val RESULT_CACHE_SIZE = new ConfVar("shark.resultCache.mb", 64)
+
+  // Admission control of SharkServer queries (see AdmissionController). At most
+  // shark.server.maxConcurrentQueries queries run at a time, and queries that would take the
+  // estimated memory of the running queries beyond shark.server.queryMemory.mb wait. A query that
+  // is queued or running for longer than shark.server.queryTimeout seconds is cancelled. 0
+  // disables each limit. They are meant to be set when starting SharkServer, with -hiveconf.
+  val SERVER_MAX_CONCURRENT_QUERIES = new ConfVar("shark.server.maxConcurrentQueries", 0)
+  val SERVER_QUERY_MEMORY = new ConfVar("shark.server.queryMemory.mb", 0)
+  val SERVER_QUERY_TIMEOUT = new ConfVar("shark.server.queryTimeout", 0)
+
+  // The Spark fair scheduler pool of the queries of a SharkServer session. By default, sessions
+  // are spread by their ID over shark.server.pools pools named shark-session-<n>, so that they
+  // share the cluster about equally without creating a pool per session: Spark never removes
+  // pools. Pools with other weights and minimum shares are declared in
+  // spark.scheduler.allocation.file. Only used when SharkServer runs with
+  // spark.scheduler.mode=FAIR.
+  val SERVER_SCHEDULER_POOL = new ConfVar("shark.server.pool", "")
+  val SERVER_SCHEDULER_POOLS = new ConfVar("shark.server.pools", 16)
+
   val SAMPLE_SIZE = new ConfVar("blinkdb.sample.size", 0l)
   val DATASET_SIZE = new ConfVar("blinkdb.dataset.size", 0l)
 
+  // Number of Poissonized bootstrap replicas maintained by group by operators. If positive,
+  // aggregates are emitted together with an empirical confidence interval computed in the same
+  // scan. 0 disables bootstrap error estimation.
+  val BOOTSTRAP_TRIALS = new ConfVar("blinkdb.bootstrap.trials", 0)
+
+  // Confidence level of the intervals reported in bootstrap mode.
+  val BOOTSTRAP_CONFIDENCE = new ConfVar("blinkdb.bootstrap.confidence", 0.95f)
+
   // Add Shark configuration variables and their default values to the given conf,
   // so default values show up in 'set'.
   def initializeWithDefaults(conf: Configuration) {
@@ -73,22 +159,89 @@ object SharkConfVars {
     if (conf.get(COLUMNAR_COMPRESSION.varname) == null) {
       conf.setBoolean(COLUMNAR_COMPRESSION.varname, COLUMNAR_COMPRESSION.defaultBoolVal)
     }
+    if (conf.get(COLUMN_SKETCHES.varname) == null) {
+      conf.setBoolean(COLUMN_SKETCHES.varname, COLUMN_SKETCHES.defaultBoolVal)
+    }
+    if (conf.get(DIRECT_TEXT_LOAD.varname) == null) {
+      conf.setBoolean(DIRECT_TEXT_LOAD.varname, DIRECT_TEXT_LOAD.defaultBoolVal)
+    }
+    if (conf.get(CACHE_COMPACTION.varname) == null) {
+      conf.setBoolean(CACHE_COMPACTION.varname, CACHE_COMPACTION.defaultBoolVal)
+    }
+    if (conf.get(CACHE_COMPACTION_DELTAS.varname) == null) {
+      conf.setInt(CACHE_COMPACTION_DELTAS.varname, CACHE_COMPACTION_DELTAS.defaultIntVal)
+    }
+    if (conf.get(CACHE_COMPACTION_SIZE.varname) == null) {
+      conf.setInt(CACHE_COMPACTION_SIZE.varname, CACHE_COMPACTION_SIZE.defaultIntVal)
+    }
+    if (conf.get(CACHE_COMPACTION_SEGMENTS.varname) == null) {
+      conf.setInt(CACHE_COMPACTION_SEGMENTS.varname, CACHE_COMPACTION_SEGMENTS.defaultIntVal)
+    }
     if (conf.get(CHECK_TABLENAME_FLAG.varname) == null) {
       conf.setBoolean(CHECK_TABLENAME_FLAG.varname, CHECK_TABLENAME_FLAG.defaultBoolVal)
     }
     if (conf.get(COMPRESS_QUERY_PLAN.varname) == null) {
       conf.setBoolean(COMPRESS_QUERY_PLAN.varname, COMPRESS_QUERY_PLAN.defaultBoolVal)
     }
+    if (conf.get(BINARY_QUERY_PLAN.varname) == null) {
+      conf.setBoolean(BINARY_QUERY_PLAN.varname, BINARY_QUERY_PLAN.defaultBoolVal)
+    }
+    if (conf.get(QUERY_PLAN_CACHE.varname) == null) {
+      conf.setBoolean(QUERY_PLAN_CACHE.varname, QUERY_PLAN_CACHE.defaultBoolVal)
+    }
+    if (conf.get(PLAN_CACHE_SIZE.varname) == null) {
+      conf.setInt(PLAN_CACHE_SIZE.varname, PLAN_CACHE_SIZE.defaultIntVal)
+    }
+    if (conf.get(RESULT_CACHE_SIZE.varname) == null) {
+      conf.setInt(RESULT_CACHE_SIZE.varname, RESULT_CACHE_SIZE.defaultIntVal)
+    }
+    if (conf.get(SERVER_MAX_CONCURRENT_QUERIES.varname) == null) {
+      conf.setInt(SERVER_MAX_CONCURRENT_QUERIES.varname,
+        SERVER_MAX_CONCURRENT_QUERIES.defaultIntVal)
+    }
+    if (conf.get(SERVER_QUERY_MEMORY.varname) == null) {
+      conf.setInt(SERVER_QUERY_MEMORY.varname, SERVER_QUERY_MEMORY.defaultIntVal)
+    }
+    if (conf.get(SERVER_QUERY_TIMEOUT.varname) == null) {
+      conf.setInt(SERVER_QUERY_TIMEOUT.varname, SERVER_QUERY_TIMEOUT.defaultIntVal)
+    }
+    if (conf.get(SERVER_SCHEDULER_POOLS.varname) == null) {
+      conf.setInt(SERVER_SCHEDULER_POOLS.varname, SERVER_SCHEDULER_POOLS.defaultIntVal)
+    }
     if (conf.get(MAP_PRUNING.varname) == null) {
       conf.setBoolean(MAP_PRUNING.varname, MAP_PRUNING.defaultBoolVal)
     }
     if (conf.get(MAP_PRUNING_PRINT_DEBUG.varname) == null) {
       conf.setBoolean(MAP_PRUNING_PRINT_DEBUG.varname, MAP_PRUNING_PRINT_DEBUG.defaultBoolVal)
     }
+    if (conf.get(METADATA_AGGREGATION.varname) == null) {
+      conf.setBoolean(METADATA_AGGREGATION.varname, METADATA_AGGREGATION.defaultBoolVal)
+    }
+    if (conf.get(SHARED_SCAN.varname) == null) {
+      conf.setBoolean(SHARED_SCAN.varname, SHARED_SCAN.defaultBoolVal)
+    }
+    if (conf.get(SHARED_SCAN_WINDOW.varname) == null) {
+      conf.setInt(SHARED_SCAN_WINDOW.varname, SHARED_SCAN_WINDOW.defaultIntVal)
+    }
+    if (conf.get(SCAN_COALESCE_SIZE.varname) == null) {
+      conf.setInt(SCAN_COALESCE_SIZE.varname, SCAN_COALESCE_SIZE.defaultIntVal)
+    }
+    if (conf.get(DICTIONARY_GROUPBY.varname) == null) {
+      conf.setBoolean(DICTIONARY_GROUPBY.varname, DICTIONARY_GROUPBY.defaultBoolVal)
+    }
+    if (conf.get(OPERATOR_METRICS.varname) == null) {
+      conf.setBoolean(OPERATOR_METRICS.varname, OPERATOR_METRICS.defaultBoolVal)
+    }
     if (conf.get(SAMPLE_SIZE.varname) == null)
       conf.setLong(SAMPLE_SIZE.varname, SAMPLE_SIZE.defaultLongVal)
     if (conf.get(DATASET_SIZE.varname) == null)
       conf.setLong(DATASET_SIZE.varname, DATASET_SIZE.defaultLongVal)      
+    if (conf.get(BOOTSTRAP_TRIALS.varname) == null) {
+      conf.setInt(BOOTSTRAP_TRIALS.varname, BOOTSTRAP_TRIALS.defaultIntVal)
+    }
+    if (conf.get(BOOTSTRAP_CONFIDENCE.varname) == null) {
+      conf.setFloat(BOOTSTRAP_CONFIDENCE.varname, BOOTSTRAP_CONFIDENCE.defaultFloatVal)
+    }
   }
 
   def getIntVar(conf: Configuration, variable: ConfVar): Int = {
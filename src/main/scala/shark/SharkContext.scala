@@ -311,7 +311,15 @@ class SharkContext(
 
     SessionState.start(sessionState)
 
-    if (proc.isInstanceOf[Driver]) {
+    val resultCacheKeyOpt = if (proc.isInstanceOf[Driver]) {
+      QueryResultCache.key(cmd, hiveconf, "runSql:" + maxRows)
+    } else {
+      None
+    }
+    val cachedResultOpt = resultCacheKeyOpt.flatMap(QueryResultCache.get[ResultSet](_))
+    if (cachedResultOpt.isDefined) {
+      cachedResultOpt.get
+    } else if (proc.isInstanceOf[Driver]) {
       val driver = new SharkDriver(hiveconf)
       try {
         driver.init()
@@ -325,11 +333,16 @@ class SharkContext(
               Array.tabulate(numCols) { i => row.get(i) }
             }
 
-            if (rdd.limit < 0) {
+            val resultSet = if (rdd.limit < 0) {
               new ResultSet(rdd.schema, data.take(maxRows))
             } else {
               new ResultSet(rdd.schema, data.take(math.min(maxRows, rdd.limit)))
             }
+            for (key <- resultCacheKeyOpt; dependencies <- driver.resultDependencies) {
+              QueryResultCache.put(key, resultSet, QueryResultCache.estimateSize(resultSet),
+                dependencies, QueryResultCache.maxBytes(hiveconf))
+            }
+            resultSet
           case None =>
             // If this is not a select statement, we use the Driver's getResults function
             // to fetch the results back.
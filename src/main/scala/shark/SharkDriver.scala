@@ -29,18 +29,21 @@ import org.apache.hadoop.hive.ql.log.PerfLogger
 import org.apache.hadoop.hive.ql.metadata.AuthorizationException
 import org.apache.hadoop.hive.ql.parse._
 import org.apache.hadoop.hive.ql.plan._
+import org.apache.hadoop.hive.ql.processors.CommandProcessorResponse
 import org.apache.hadoop.hive.ql.session.SessionState
 import org.apache.hadoop.hive.serde2.{SerDe, SerDeUtils}
 import org.apache.hadoop.util.StringUtils
 
 import shark.api.TableRDD
 import shark.api.QueryExecutionException
-import shark.execution.{SharkDDLTask, SharkDDLWork}
+import shark.execution.{SharedScanScheduler, SharkDDLTask, SharkDDLWork}
 import shark.execution.{SharkExplainTask, SharkExplainWork}
 import shark.execution.{SparkLoadWork, SparkLoadTask}
 import shark.execution.{SparkTask, SparkWork}
 import shark.memstore2.ColumnarSerDe
-import shark.parse.{QueryContext, SharkSemanticAnalyzerFactory}
+import shark.parse.{CompiledPlan, CompiledPlanCache, PlanDependencies, QueryContext}
+import shark.parse.SharkSemanticAnalyzerFactory
+import shark.udf.{SketchFunctions, UniverseSampling}
 import shark.util.QueryRewriteUtils
 
 
@@ -64,6 +67,12 @@ private[shark] object SharkDriver extends LogHelper {
 
   registerSerDe(classOf[ColumnarSerDe])
 
+  // Sketch based approximate aggregates (approx_distinct, approx_quantile, approx_median).
+  SketchFunctions.register()
+
+  // Universe sampling for approximate joins (universe_sample, universe_count, universe_sum).
+  UniverseSampling.register()
+
   // Task factory. Add Shark specific tasks.
   TaskFactory.taskvec.addAll(Seq(
     new TaskFactory.taskTuple(classOf[SharkDDLWork], classOf[SharkDDLTask]),
@@ -139,6 +148,25 @@ private[shark] class SharkDriver(conf: HiveConf) extends Driver(conf) with LogHe
 
   var useTableRddSink = false
 
+  // The compiled plan of the current query, if it can be put in the CompiledPlanCache once the
+  // query is closed.
+  private var compiledPlan: CompiledPlan = _
+  private var compiledPlanExecuted = false
+
+  // Whether the current command might change what queries compile to, in which case the
+  // CompiledPlanCache is invalidated once it ran.
+  private var invalidatesCompiledPlans = false
+
+  // What the results of the current query depend on, once it runs, if they can be put in the
+  // QueryResultCache.
+  private var _resultDependencies: Option[PlanDependencies] = None
+
+  def resultDependencies: Option[PlanDependencies] = _resultDependencies
+
+  // The SharkServer session whose queries the driver runs, which the AdmissionController admits.
+  // null outside of SharkServer.
+  var serverSession: String = null
+
   override def init(): Unit = {
     // Forces the static code in SharkDriver to execute.
     SharkDriver.runStaticCode()
@@ -147,6 +175,17 @@ private[shark] class SharkDriver(conf: HiveConf) extends Driver(conf) with LogHe
     super.init()
   }
 
+  override def run(command: String): CommandProcessorResponse = {
+    // Lets the first query of a shared scan know that this query may still join it, until its plan
+    // is known.
+    SharedScanScheduler.queryStarted()
+    try {
+      super.run(command)
+    } finally {
+      SharedScanScheduler.queryFinished()
+    }
+  }
+
   def tableRdd(cmd: String): Option[TableRDD] = {
     useTableRddSink = true
     
@@ -195,7 +234,8 @@ private[shark] class SharkDriver(conf: HiveConf) extends Driver(conf) with LogHe
       var cmd_splits = _cmd.split(')')
       var cmd_temp = ""
       for ( x <- cmd_splits ) {
-        if ( x contains "approx" ) {
+        // The sketch based aggregates do not take the sample and dataset sizes.
+        if ( (x contains "approx") && !SketchFunctions.isCalledIn(x) ) {
           cmd_temp = cmd_temp + x +  " , " + sampleSize + " , " + datasetSize + " ) "
         } else if ( x contains "(" ) {
             cmd_temp = cmd_temp + x + " ) "
@@ -219,42 +259,78 @@ private[shark] class SharkDriver(conf: HiveConf) extends Driver(conf) with LogHe
     }
     saveSession(queryState)
 
+    compiledPlanExecuted = false
+    invalidatesCompiledPlans = false
+    val compiledPlanEpoch = CompiledPlanCache.epoch
+
     try {
+      val varSubbedCmd = new VariableSubstitution().substitute(conf, _cmd).trim
+      val explainAnalyze = QueryRewriteUtils.isExplainAnalyze(varSubbedCmd)
       val command = {
-        val varSubbedCmd = new VariableSubstitution().substitute(conf, _cmd).trim
         val cmdInUpperCase = varSubbedCmd.toUpperCase
         if (cmdInUpperCase.startsWith("CACHE")) {
           QueryRewriteUtils.cacheToAlterTable(varSubbedCmd)
         } else if (cmdInUpperCase.startsWith("UNCACHE")) {
           QueryRewriteUtils.uncacheToAlterTable(varSubbedCmd)
+        } else if (explainAnalyze) {
+          QueryRewriteUtils.explainAnalyzeToExplain(varSubbedCmd)
         } else {
           varSubbedCmd
         }
       }
-      context = new QueryContext(conf, useTableRddSink)
-      context.setCmd(command)
-      context.setTryCount(getTryCount())
-
-      val tree = ParseUtils.findRootNonNullToken((new ParseDriver()).parse(command, context))
-      val sem = SharkSemanticAnalyzerFactory.get(conf, tree)
-
-      // Do semantic analysis and plan generation
       val saHooks = SharkDriver.saHooksMethod.invoke(this, HiveConf.ConfVars.SEMANTIC_ANALYZER_HOOK,
         classOf[AbstractSemanticAnalyzerHook]).asInstanceOf[JavaList[AbstractSemanticAnalyzerHook]]
-      if (saHooks != null) {
-        val hookCtx = new HiveSemanticAnalyzerHookContextImpl()
-        hookCtx.setConf(conf)
-        saHooks.foreach(_.preAnalyze(hookCtx, tree))
-        sem.analyze(tree, context)
-        hookCtx.update(sem)
-        saHooks.foreach(_.postAnalyze(hookCtx, sem.getRootTasks()))
-      } else {
-        sem.analyze(tree, context)
+
+      // A SELECT query that only differs from an earlier one in its literals reuses its plan.
+      // Queries whose results are returned as a TableRDD aren't cached, as the RDD might be
+      // computed after the plan was reused.
+      val planCacheSize = SharkConfVars.getIntVar(conf, SharkConfVars.PLAN_CACHE_SIZE)
+      val normalizedQueryOpt =
+        if (planCacheSize > 0 && !useTableRddSink && (saHooks == null || saHooks.isEmpty)) {
+          CompiledPlanCache.normalize(command)
+        } else {
+          None
+        }
+      val planCacheKeyOpt = normalizedQueryOpt.map(CompiledPlanCache.key(_, conf))
+      val cachedPlanOpt = planCacheKeyOpt.flatMap { key =>
+        CompiledPlanCache.acquire(key, normalizedQueryOpt.get.literals)
       }
 
-      logDebug("Semantic Analysis Completed")
+      val sem = cachedPlanOpt match {
+        case Some(cachedPlan) =>
+          logInfo("Reusing the compiled plan of an earlier query")
+          context = cachedPlan.context
+          context.setTryCount(getTryCount())
+          cachedPlan.prepare(command, conf)
+          Option(SessionState.get()).foreach(_.setCommandType(HiveOperation.QUERY))
+          cachedPlan.sem
+        case None =>
+          context = new QueryContext(conf, useTableRddSink)
+          context.explainAnalyze = explainAnalyze
+          context.setCmd(command)
+          context.setTryCount(getTryCount())
+
+          val tree = ParseUtils.findRootNonNullToken((new ParseDriver()).parse(command, context))
+          val sem = SharkSemanticAnalyzerFactory.get(conf, tree)
+
+          // Do semantic analysis and plan generation
+          if (saHooks != null) {
+            val hookCtx = new HiveSemanticAnalyzerHookContextImpl()
+            hookCtx.setConf(conf)
+            saHooks.foreach(_.preAnalyze(hookCtx, tree))
+            sem.analyze(tree, context)
+            hookCtx.update(sem)
+            saHooks.foreach(_.postAnalyze(hookCtx, sem.getRootTasks()))
+          } else {
+            sem.analyze(tree, context)
+          }
 
-      sem.validate()
+          logDebug("Semantic Analysis Completed")
+
+          sem.validate()
+          sem
+      }
+      invalidatesCompiledPlans = CompiledPlanCache.mayChangeTables(sem)
 
       plan = new QueryPlan(command, sem,  perfLogger.getStartTime(PerfLogger.DRIVER_RUN))
 
@@ -264,7 +340,7 @@ private[shark] class SharkDriver(conf: HiveConf) extends Driver(conf) with LogHe
       }
 
       // get the output schema
-      schema = Driver.getSchema(sem, conf)
+      schema = cachedPlanOpt.map(_.schema).getOrElse(Driver.getSchema(sem, conf))
 
       // skip the testing serialization code
 
@@ -285,6 +361,11 @@ private[shark] class SharkDriver(conf: HiveConf) extends Driver(conf) with LogHe
         }
       }
 
+      compiledPlan = cachedPlanOpt.orElse(planCacheKeyOpt.flatMap { key =>
+        CompiledPlanCache.newPlan(
+          key, normalizedQueryOpt.get, sem, context, schema, compiledPlanEpoch)
+      }).orNull
+
       // Success!
       0
     } catch {
@@ -309,6 +390,77 @@ private[shark] class SharkDriver(conf: HiveConf) extends Driver(conf) with LogHe
     }
   }
 
+  override def execute(): Int = {
+    if (AdmissionController.sparkTasks(plan.getRootTasks).isEmpty) {
+      SharedScanScheduler.queryPlanned()
+    }
+    _resultDependencies =
+      if (!invalidatesCompiledPlans && QueryResultCache.maxBytes(conf) > 0) {
+        QueryResultCache.dependencies(plan)
+      } else {
+        None
+      }
+    val ticket = if (serverSession != null) {
+      try {
+        AdmissionController.admit(plan, conf, serverSession)
+      } catch {
+        case e: QueryExecutionException => {
+          errorMessage = "FAILED: " + e.getMessage
+          logError(errorMessage)
+          return 12
+        }
+      }
+    } else {
+      null
+    }
+    val ret = try {
+      super.execute()
+    } finally {
+      if (ticket != null) {
+        AdmissionController.release(ticket)
+      }
+      if (invalidatesCompiledPlans) {
+        CompiledPlanCache.invalidate()
+      }
+    }
+    if (ret != 0 && ticket != null && ticket.isTimedOut) {
+      errorMessage = "FAILED: Query cancelled after running for longer than " +
+        SharkConfVars.getIntVar(conf, SharkConfVars.SERVER_QUERY_TIMEOUT) +
+        " seconds (shark.server.queryTimeout)"
+    }
+    compiledPlanExecuted = (ret == 0)
+    if (ret != 0) {
+      _resultDependencies = None
+    }
+    ret
+  }
+
+  override def close(): Int = {
+    val ret = super.close()
+    releaseCompiledPlan()
+    ret
+  }
+
+  override def destroy() {
+    super.destroy()
+    releaseCompiledPlan()
+  }
+
+  // Puts the plan of the query back into the CompiledPlanCache once its results were read. From
+  // then on, other drivers can use it.
+  private def releaseCompiledPlan() {
+    if (compiledPlan != null) {
+      if (compiledPlanExecuted) {
+        compiledPlan.context.clear()
+        plan = null
+        context = null
+        CompiledPlanCache.release(
+          compiledPlan, SharkConfVars.getIntVar(conf, SharkConfVars.PLAN_CACHE_SIZE))
+      }
+      compiledPlan = null
+    }
+  }
+
   def saveSession(qs: SharkDriver.QueryState) {
     val oldss: SessionState = SessionState.get();
     if (oldss != null && oldss.getHiveOperation() != null) {
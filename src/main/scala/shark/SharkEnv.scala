@@ -25,8 +25,9 @@ import org.apache.spark.scheduler.StatsReportListener
 
 import shark.api.JavaSharkContext
 import shark.execution.serialization.{KryoSerializer, ShuffleSerializer}
-import shark.memstore2.{MemoryMetadataManager, Table}
-import shark.tachyon.TachyonUtilImpl
+import shark.localfs.LocalFSUtil
+import shark.memstore2.{CacheType, MemoryMetadataManager, Table}
+import shark.tachyon.{TachyonUtil, TachyonUtilImpl}
 
 
 /** A singleton object for the master program. The slaves should not access this. */
@@ -108,6 +109,14 @@ object SharkEnv extends LogHelper {
   val tachyonUtil = new TachyonUtilImpl(
     System.getenv("TACHYON_MASTER"), System.getenv("TACHYON_WAREHOUSE_PATH"))
 
+  // A var so that tests can point it to a temporary directory.
+  var localFSUtil = new LocalFSUtil(System.getenv("SHARK_LOCAL_WAREHOUSE_PATH"))
+
+  /** Returns the store for tables of an off-heap cache type, i.e. TACHYON or LOCAL_FS. */
+  def offHeapUtil(cacheMode: CacheType.CacheType): TachyonUtil = {
+    if (cacheMode == CacheType.LOCAL_FS) localFSUtil else tachyonUtil
+  }
+
   // The following line turns Kryo serialization debug log on. It is extremely chatty.
   //com.esotericsoftware.minlog.Log.set(com.esotericsoftware.minlog.Log.LEVEL_DEBUG)
 
@@ -28,6 +28,8 @@ import java.util.Properties
 import java.util.concurrent.CountDownLatch
 
 import scala.annotation.tailrec
+import scala.collection.JavaConversions._
+import scala.collection.mutable.Queue
 import scala.concurrent._
 import scala.concurrent.ExecutionContext.Implicits.global
 
@@ -57,6 +59,7 @@ import org.apache.thrift.transport.TSocket
 import org.apache.spark.SparkEnv
 
 import shark.memstore2.TableRecovery
+import shark.parse.PlanDependencies
 
 
 /**
@@ -190,6 +193,10 @@ object SharkServer extends LogHelper {
           if (sock != null)
             sock.getOutputStream().write((new Array[Byte](0)).toArray)
           logDebug("Session Socket Alive - " + sessionID)
+          if (AdmissionController.expire(sessionID)) {
+            logInfo("Query timed out, cancelling its jobs - " + sessionID)
+            SharkEnv.sc.cancelJobGroup(sessionID)
+          }
           Thread.sleep(2*1000)
         }
       } catch {
@@ -199,6 +206,7 @@ object SharkServer extends LogHelper {
       // Session is terminated either manually or automatically
       // clean up the jobs associated with the session ID
       logInfo("Session Socket connection lost, cleaning up - " + sessionID)
+      AdmissionController.cancel(sessionID)
       SharkEnv.sc.cancelJobGroup(sessionID)
     }
 
@@ -220,7 +228,7 @@ object SharkServer extends LogHelper {
 
 
 class GatedSharkServerHandler(latch:CountDownLatch, remoteClient:String,
-    sessionID:String) extends SharkServerHandler {
+    sessionID:String) extends SharkServerHandler(sessionID) {
   override def execute(cmd: String): Unit = {
     latch.await
     
@@ -241,7 +249,13 @@ class GatedSharkServerHandler(latch:CountDownLatch, remoteClient:String,
 }
 
 
-class SharkServerHandler extends HiveServerHandler with LogHelper {
+/**
+ * Runs the commands of a SharkServer session. sessionID is null for commands that the server runs
+ * itself, which are not subject to admission control.
+ */
+class SharkServerHandler(sessionID: String) extends HiveServerHandler with LogHelper {
+
+  def this() = this(null)
 
   private val ss = SessionState.get()
 
@@ -252,6 +266,7 @@ class SharkServerHandler extends HiveServerHandler with LogHelper {
   private val driver = {
     val d = new SharkDriver(conf.asInstanceOf[HiveConf])
     d.init()
+    d.serverSession = sessionID
     d
   }
 
@@ -260,6 +275,20 @@ class SharkServerHandler extends HiveServerHandler with LogHelper {
 
   private var isSharkQuery = false
 
+  // Rows of the current query that were read from the QueryResultCache and not fetched yet.
+  private val bufferedRows = new Queue[String]
+
+  // The results of the current query, if they were read from the QueryResultCache.
+  private var cachedResult: ServerQueryResult = null
+
+  // Rows of the current query fetched by the client so far, kept to cache the result once the
+  // client has fetched all of it. Null once the rows take more than the QueryResultCache holds,
+  // or if the result can't be cached.
+  private var recordedRows: ArrayList[String] = null
+  private var recordedBytes = 0L
+  private var recordKey: String = null
+  private var recordDependencies: PlanDependencies = null
+
   override def execute(cmd: String) {
     SessionState.get()
     val cmd_trimmed = cmd.trim()
@@ -272,7 +301,29 @@ class SharkServerHandler extends HiveServerHandler with LogHelper {
       if (proc.isInstanceOf[Driver]) {
         isSharkQuery = true
         proc.asInstanceOf[Driver].destroy()
-        response = Option(driver.run(cmd))
+        bufferedRows.clear()
+        cachedResult = null
+        recordedRows = null
+        val resultCacheKeyOpt = QueryResultCache.key(cmd, hiveConf, "server")
+        resultCacheKeyOpt.flatMap(QueryResultCache.get[ServerQueryResult](_)) match {
+          case Some(result) =>
+            cachedResult = result
+            bufferedRows ++= result.rows
+            response = Some(new CommandProcessorResponse(0))
+          case None =>
+            if (sessionID != null) {
+              SharkEnv.sc.setLocalProperty("spark.scheduler.pool", schedulerPool)
+            }
+            response = Option(driver.run(cmd))
+            if (response.get.getResponseCode == 0) {
+              for (key <- resultCacheKeyOpt; dependencies <- driver.resultDependencies) {
+                recordedRows = new ArrayList[String]
+                recordedBytes = 0L
+                recordKey = key
+                recordDependencies = dependencies
+              }
+            }
+        }
       } else {
         isSharkQuery = false
         // Need to reset output for each non-Shark query.
@@ -291,6 +342,44 @@ class SharkServerHandler extends HiveServerHandler with LogHelper {
     }
   }
 
+  private def hiveConf = conf.asInstanceOf[HiveConf]
+
+  // The fair scheduler pool of the session: the one it names, or one of a fixed set of pools that
+  // sessions are spread over, as Spark keeps every pool it creates.
+  private def schedulerPool: String = {
+    val pool = SharkConfVars.getVar(conf, SharkConfVars.SERVER_SCHEDULER_POOL)
+    if (pool.isEmpty) {
+      val numPools = SharkConfVars.getIntVar(conf, SharkConfVars.SERVER_SCHEDULER_POOLS)
+      "shark-session-" + (sessionID.hashCode & Int.MaxValue) % math.max(numPools, 1)
+    } else {
+      pool
+    }
+  }
+
+  // Reads the next rows of the current query from the driver into `res`. The rows are recorded
+  // while they fit in the QueryResultCache, and cached once the driver has no more rows, so the
+  // client's fetch size is kept and results too large to cache are streamed without a copy.
+  private def fetchFromDriver(res: JavaList[String]) {
+    val start = res.size
+    val hasMore = driver.getResults(res)
+    if (recordedRows != null) {
+      val rows = res.subList(start, res.size)
+      val maxBytes = QueryResultCache.maxBytes(hiveConf)
+      recordedBytes += QueryResultCache.estimateSize(rows)
+      if (recordedBytes > maxBytes) {
+        recordedRows = null
+      } else {
+        recordedRows.addAll(rows)
+        if (!hasMore) {
+          val result = new ServerQueryResult(
+            recordedRows.toIndexedSeq, driver.getSchema, driver.getThriftSchema)
+          QueryResultCache.put(recordKey, result, recordedBytes, recordDependencies, maxBytes)
+          recordedRows = null
+        }
+      }
+    }
+  }
+
   // Called once per non-Shark query.
   def setupSessionIO(session: SessionState) {
     try {
@@ -319,7 +408,12 @@ class SharkServerHandler extends HiveServerHandler with LogHelper {
   override def fetchAll(): JavaList[String] = {
     val res = new ArrayList[String]()
     if (isSharkQuery) {
-      driver.getResults(res)
+      while (!bufferedRows.isEmpty) {
+        res.add(bufferedRows.dequeue())
+      }
+      if (cachedResult == null) {
+        fetchFromDriver(res)
+      }
       res
     } else {
       // Returns all results if second arg (numRows) <= 0
@@ -330,8 +424,13 @@ class SharkServerHandler extends HiveServerHandler with LogHelper {
   override def fetchN(numRows: Int): JavaList[String] = {
     val res = new ArrayList[String]()
     if (isSharkQuery) {
-      driver.setMaxRows(numRows)
-      driver.getResults(res)
+      while (res.size < numRows && !bufferedRows.isEmpty) {
+        res.add(bufferedRows.dequeue())
+      }
+      if (cachedResult == null && res.size < numRows) {
+        driver.setMaxRows(numRows - res.size)
+        fetchFromDriver(res)
+      }
       res
     } else {
       super.fetchN(numRows)
@@ -355,7 +454,7 @@ class SharkServerHandler extends HiveServerHandler with LogHelper {
     if (!isSharkQuery) {
       new Schema
     } else {
-      val schema: Schema = driver.getSchema
+      val schema: Schema = if (cachedResult != null) cachedResult.schema else driver.getSchema
       if (schema == null) {
         new Schema
       } else {
@@ -368,7 +467,8 @@ class SharkServerHandler extends HiveServerHandler with LogHelper {
     if (!isSharkQuery) {
       new Schema
     } else {
-      val schema: Schema = driver.getThriftSchema
+      val schema: Schema =
+        if (cachedResult != null) cachedResult.thriftSchema else driver.getThriftSchema
       if (schema == null) {
         new Schema
       } else {
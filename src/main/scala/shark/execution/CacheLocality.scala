@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark
+// Put this file in Spark's package to access the scheduler's view of preferred locations.
+
+import scala.collection.mutable.HashMap
+
+import org.apache.spark.rdd.RDD
+import org.apache.spark.storage.RDDBlockId
+
+
+object CacheLocality {
+
+  /**
+   * Returns the hosts the scheduler prefers for a partition. Unlike RDD.preferredLocations, this
+   * includes the locations of cached blocks of the RDD or of its narrow ancestors.
+   */
+  def preferredHosts(rdd: RDD[_], partition: Int): Seq[String] = {
+    rdd.context.getPreferredLocs(rdd, partition).map(_.host)
+  }
+
+  /**
+   * Returns the size in bytes of each partition of each RDD, as stored by the block managers, or
+   * None for partitions that are not (fully) cached. A partition that is not cached itself is the
+   * sum of the partitions it reads through narrow dependencies, e.g. for partitions pruned from
+   * or mapped over a cached RDD.
+   */
+  def cachedPartitionSizes(rdds: Seq[RDD[_]]): Seq[Seq[Option[Long]]] = {
+    if (rdds.isEmpty) {
+      return Nil
+    }
+    // The largest copy of each block, in memory and on disk.
+    val blockSizes = new HashMap[(Int, Int), Long]
+    rdds.head.context.getExecutorStorageStatus.foreach { status =>
+      status.blocks.foreach {
+        case (RDDBlockId(rddId, split), block) =>
+          val size = block.memSize + block.diskSize
+          if (size > blockSizes.getOrElse((rddId, split), 0L)) {
+            blockSizes((rddId, split)) = size
+          }
+        case _ =>
+      }
+    }
+
+    def size(rdd: RDD[_], split: Int): Option[Long] = blockSizes.get((rdd.id, split)).orElse {
+      val narrow = rdd.dependencies.collect { case dep: NarrowDependency[_] => dep }
+      if (narrow.isEmpty || narrow.size < rdd.dependencies.size) {
+        None
+      } else {
+        val parentSizes = narrow.flatMap(dep => dep.getParents(split).map(size(dep.rdd, _)))
+        if (parentSizes.isEmpty || parentSizes.exists(_.isEmpty)) {
+          None
+        } else {
+          Some(parentSizes.map(_.get).sum)
+        }
+      }
+    }
+
+    rdds.map(rdd => rdd.partitions.indices.map(size(rdd, _)))
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.execution
+
+import scala.collection.mutable.ArrayBuffer
+
+import org.apache.spark.{CacheLocality, Dependency, NarrowDependency, Partition, SparkContext}
+import org.apache.spark.TaskContext
+import org.apache.spark.rdd.RDD
+
+
+private[execution]
+class CoalescedTableScanPartition(
+    val index: Int,
+    val parents: Array[(Int, Partition)],
+    val hosts: Seq[String])
+  extends Partition
+
+
+/**
+ * Scans the cached partitions of many Hive partitions with fewer tasks. Each task reads a group of
+ * partitions, possibly from different Hive partitions, and pairs every row with the values of the
+ * partition columns of the Hive partition it came from, as the UnionRDD it replaces did.
+ *
+ * @param rdds The row RDDs of each Hive partition.
+ * @param partValues The values of the partition columns for each RDD in `rdds`.
+ * @param groups The (RDD index, split index) pairs read by each task, and the preferred hosts.
+ */
+class CoalescedTableScanRDD(
+    @transient sc: SparkContext,
+    var rdds: Seq[RDD[_]],
+    partValues: Seq[Array[String]],
+    @transient groups: Seq[(Seq[(Int, Int)], Seq[String])])
+  extends RDD[Any](sc, Nil) {
+
+  override def getPartitions: Array[Partition] = {
+    val partitions = groups.zipWithIndex.map { case((members, hosts), index) =>
+      val parents = members.map { case(r, split) => (r, rdds(r).partitions(split)) }
+      new CoalescedTableScanPartition(index, parents.toArray, hosts)
+    }
+    partitions.toArray
+  }
+
+  override def getDependencies: Seq[Dependency[_]] = rdds.zipWithIndex.map { case(rdd, r) =>
+    new NarrowDependency(rdd) {
+      override def getParents(id: Int): Seq[Int] = {
+        val parents = partitions(id).asInstanceOf[CoalescedTableScanPartition].parents
+        parents.filter(_._1 == r).map(_._2.index)
+      }
+    }
+  }
+
+  override def getPreferredLocations(split: Partition): Seq[String] = {
+    split.asInstanceOf[CoalescedTableScanPartition].hosts
+  }
+
+  override def compute(split: Partition, context: TaskContext): Iterator[Any] = {
+    val rowWithPartArr = new Array[Object](2)
+    split.asInstanceOf[CoalescedTableScanPartition].parents.iterator.flatMap {
+      case(r, parentSplit) =>
+        val values = partValues(r)
+        rdds(r).iterator(parentSplit, context).map { value =>
+          rowWithPartArr.update(0, value.asInstanceOf[Object])
+          rowWithPartArr.update(1, values)
+          rowWithPartArr.asInstanceOf[Object]
+        }
+    }
+  }
+
+  override def clearDependencies() {
+    super.clearDependencies()
+    rdds = null
+  }
+}
+
+
+object CoalescedTableScanRDD {
+
+  /**
+   * Groups the partitions of `rdds` into tasks of about `targetSize` bytes. Partitions are first
+   * grouped by the host caching them, so that each task stays local. A partition is sized from
+   * its cached blocks, as stored by the block managers, or else from `estimatedSplitSizes`.
+   *
+   * @param estimatedSplitSizes The estimated size in bytes of a partition of each RDD in `rdds`.
+   */
+  def apply(
+      rdds: Seq[RDD[_]],
+      partValues: Seq[Array[String]],
+      estimatedSplitSizes: Seq[Long],
+      targetSize: Long): CoalescedTableScanRDD = {
+    val storedSizes = CacheLocality.cachedPartitionSizes(rdds)
+    val splits = for (r <- rdds.indices; split <- rdds(r).partitions.indices) yield (r, split)
+    val groups = group(
+      splits,
+      { case(r, split) => CacheLocality.preferredHosts(rdds(r), split).headOption },
+      { case(r, split) => storedSizes(r)(split).getOrElse(estimatedSplitSizes(r)) },
+      targetSize)
+    new CoalescedTableScanRDD(rdds.head.context, rdds, partValues, groups)
+  }
+
+  /**
+   * Groups (RDD index, split index) pairs by host, then packs the splits of each host, in order,
+   * into groups of at most `targetSize` bytes. A split larger than that is a group of its own.
+   * Returns the splits of each group and its preferred hosts.
+   */
+  def group(
+      splits: Seq[(Int, Int)],
+      host: ((Int, Int)) => Option[String],
+      size: ((Int, Int)) => Long,
+      targetSize: Long): Seq[(Seq[(Int, Int)], Seq[String])] = {
+    val groups = new ArrayBuffer[(Seq[(Int, Int)], Seq[String])]
+    splits.groupBy(host).toSeq.sortBy(_._1.getOrElse("")).foreach { case(hostOpt, hostSplits) =>
+      var group = new ArrayBuffer[(Int, Int)]
+      var groupSize = 0L
+      hostSplits.foreach { split =>
+        val splitSize = size(split)
+        if (!group.isEmpty && groupSize + splitSize > targetSize) {
+          groups += ((group, hostOpt.toSeq))
+          group = new ArrayBuffer[(Int, Int)]
+          groupSize = 0L
+        }
+        group += split
+        groupSize += splitSize
+      }
+      if (!group.isEmpty) {
+        groups += ((group, hostOpt.toSeq))
+      }
+    }
+    groups
+  }
+}
@@ -33,6 +33,7 @@ import org.apache.hadoop.mapred.{JobID, TaskAttemptID, TaskID}
 import org.apache.spark.TaskContext
 import org.apache.spark.rdd.RDD
 
+import shark.execution.optimization.MetadataAggregation
 import shark.execution.serialization.OperatorSerializationWrapper
 
 
@@ -184,8 +185,13 @@ class FileSinkOperator extends TerminalOperator with Serializable {
         }
 
       case _ =>
+        // A result computed from table statistics is a single row, written by the master
+        // instead of launching a job.
         val rows: Array[Long] = rdd.context.runJob(
-          rdd, FileSinkOperator.executeProcessFileSinkPartition(this))
+          rdd,
+          FileSinkOperator.executeProcessFileSinkPartition(this),
+          0 until rdd.partitions.size,
+          allowLocal = MetadataAggregation.isAnswered(this))
         logDebug("Total number of rows written: " + rows.sum)
     }
 
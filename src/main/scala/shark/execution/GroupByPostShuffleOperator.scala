@@ -25,20 +25,25 @@ import scala.collection.JavaConversions._
 import scala.reflect.BeanProperty
 
 import org.apache.hadoop.hive.conf.HiveConf
-import org.apache.hadoop.hive.ql.plan.{ExprNodeColumnDesc, TableDesc}
+import org.apache.hadoop.hive.ql.plan.{ExprNodeColumnDesc, GroupByDesc, TableDesc}
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer
-import org.apache.hadoop.hive.serde2.objectinspector.{ObjectInspector, ObjectInspectorUtils,
-  StandardStructObjectInspector, StructObjectInspector, UnionObject}
+import org.apache.hadoop.hive.serde2.objectinspector.{ObjectInspector, ObjectInspectorConverters,
+  ObjectInspectorUtils, PrimitiveObjectInspector, StandardStructObjectInspector,
+  StructObjectInspector, UnionObject}
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.{PrimitiveObjectInspectorFactory,
+  PrimitiveObjectInspectorUtils}
 import org.apache.hadoop.hive.serde2.Deserializer
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils
-import org.apache.hadoop.io.BytesWritable
+import org.apache.hadoop.io.{BytesWritable, Text}
 
 import org.apache.spark.{Aggregator, HashPartitioner}
 import org.apache.spark.rdd.{RDD, ShuffledRDD}
 
 import shark.SharkEnv
 import shark.execution._
+import shark.execution.optimization.MetadataAggregation
 import shark.execution.serialization.OperatorSerializationWrapper
 
 
@@ -65,6 +70,11 @@ class GroupByPostShuffleOperator extends GroupByPreShuffleOperator
   @transient val distinctHashSets = new JHashMap[Int, JArrayList[JHashSet[KeyWrapper]]]()
   @transient var unionExprEvaluator: ExprNodeEvaluator = _
 
+  // Set by the semantic analyzer if this global aggregation might be answered from the statistics
+  // of a cached table. answeredFromMetadata is set on execution if it was.
+  @transient var metadataAggregation: MetadataAggregation = _
+  @transient var answeredFromMetadata: Boolean = false
+
   override def createLocals() {
     super.createLocals()
 
@@ -93,6 +103,49 @@ class GroupByPostShuffleOperator extends GroupByPreShuffleOperator
     valueTableDesc = kvd.head._2._2
   }
 
+  /**
+   * On the reduce side, bootstrap works either on raw rows (COMPLETE mode, no map side
+   * aggregation), in which case the Poisson weights are drawn here, or on the partial
+   * aggregations of all replicas of a key packed into one value by a bootstrapping pre-shuffle
+   * group by (MERGEPARTIAL).
+   */
+  override protected def bootstrapSupported: Boolean = {
+    conf.getMode match {
+      case GroupByDesc.Mode.COMPLETE => !conf.getAggregators.exists(_.getDistinct)
+      case GroupByDesc.Mode.MERGEPARTIAL => parentOperator.parentOperators.exists {
+        case gby: GroupByPostShuffleOperator => false
+        case gby: GroupByPreShuffleOperator => gby.bootstrapTrials > 0
+        case _ => false
+      }
+      case _ => false
+    }
+  }
+
+  /**
+   * In bootstrap mode, numeric aggregates are emitted as strings carrying the error bar, in the
+   * same format as the approx_* aggregates. Other aggregates are emitted unchanged.
+   */
+  override protected def aggregationOutputObjectInspectors: Array[ObjectInspector] = {
+    Array.tabulate[ObjectInspector](aggregationObjectInspectors.length) { i =>
+      if (emitsErrorBar(i)) {
+        PrimitiveObjectInspectorFactory.writableStringObjectInspector
+      } else {
+        aggregationObjectInspectors(i)
+      }
+    }
+  }
+
+  private def emitsErrorBar(i: Int): Boolean = {
+    bootstrapTrials > 0 && (aggregationObjectInspectors(i) match {
+      case oi: PrimitiveObjectInspector => oi.getPrimitiveCategory match {
+        case PrimitiveCategory.BYTE | PrimitiveCategory.SHORT | PrimitiveCategory.INT |
+             PrimitiveCategory.LONG | PrimitiveCategory.FLOAT | PrimitiveCategory.DOUBLE => true
+        case _ => false
+      }
+      case _ => false
+    })
+  }
+
   private def initializeKeyWrapperFactories() {
     distinctKeyAggrs.keySet.iterator.foreach { unionId =>
       val aggrIndices = distinctKeyAggrs.get(unionId)
@@ -193,6 +246,15 @@ class GroupByPostShuffleOperator extends GroupByPreShuffleOperator
   }
 
   override def execute(): RDD[_] = {
+    if (metadataAggregation != null && bootstrapTrials == 0) {
+      val resultsOpt = metadataAggregation.evaluate()
+      if (resultsOpt.isDefined) {
+        logInfo("Answered %s from cached table statistics".format(metadataAggregation))
+        answeredFromMetadata = true
+        return executeFromMetadata(resultsOpt.get)
+      }
+    }
+
     val inputRdd = executeParents().head._2.asInstanceOf[RDD[(Any, Any)]]
 
     var numReduceTasks = hconf.getIntVar(HiveConf.ConfVars.HADOOPNUMREDUCERS)
@@ -203,18 +265,21 @@ class GroupByPostShuffleOperator extends GroupByPreShuffleOperator
     val repartitionedRDD = new ShuffledRDD[Any, Any, (Any, Any)](inputRdd, partitioner)
       .setSerializer(SharkEnv.shuffleSerializerName)
 
+    val metrics = this.metrics
     if (distinctKeyAggrs.size > 0) {
       // If there are distinct aggregations, do sort-based aggregation.
       val op = OperatorSerializationWrapper(this)
 
-      repartitionedRDD.mapPartitions(iter => {
-        // Sort the input based on the key.
-        val buf = iter.toArray.asInstanceOf[Array[(ReduceKeyReduceSide, Array[Byte])]]
-        val sorted = buf.sortWith((x, y) => x._1.compareTo(y._1) < 0).iterator
-
-        // Perform sort-based aggregation.
+      repartitionedRDD.mapPartitions(partition => {
         op.initializeOnSlave()
-        op.sortAggregate(sorted)
+        OperatorMetrics.measure(metrics, op.value, partition) { iter =>
+          // Sort the input based on the key.
+          val buf = iter.toArray.asInstanceOf[Array[(ReduceKeyReduceSide, Array[Byte])]]
+          val sorted = buf.sortWith((x, y) => x._1.compareTo(y._1) < 0).iterator
+
+          // Perform sort-based aggregation.
+          op.sortAggregate(sorted)
+        }
       }, preservesPartitioning = true)
 
     } else {
@@ -228,7 +293,41 @@ class GroupByPostShuffleOperator extends GroupByPreShuffleOperator
       val op = OperatorSerializationWrapper(this)
       hashedRdd.mapPartitionsWithIndex { case(split, partition) =>
         op.initializeOnSlave()
-        op.hashAggregate(partition)
+        // The rows in are the groups of the shuffle's hash table.
+        OperatorMetrics.measure(metrics, op.value, partition) { iter =>
+          if (op.bootstrapTrials > 0) {
+            op.hashAggregateBootstrap(split, iter)
+          } else {
+            op.hashAggregate(iter)
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Emit the single output row of a global aggregation computed from table statistics. The parent
+   * operators are not executed, so the table is not scanned.
+   */
+  private def executeFromMetadata(results: Array[Object]): RDD[_] = {
+    val op = OperatorSerializationWrapper(this)
+    SharkEnv.sc.parallelize(Seq(results), 1).mapPartitions { iter =>
+      op.initializeOnSlave()
+      iter.map(op.convertMetadataResults)
+    }
+  }
+
+  /** Convert boxed Java aggregation results to the output object inspectors of the evaluators. */
+  def convertMetadataResults(results: Array[Object]): Array[Object] = {
+    Array.tabulate[Object](results.length) { i =>
+      if (results(i) == null) {
+        null
+      } else {
+        val category = PrimitiveObjectInspectorUtils.getTypeEntryFromPrimitiveJavaClass(
+          results(i).getClass).primitiveCategory
+        val javaOI = PrimitiveObjectInspectorFactory.getPrimitiveJavaObjectInspector(category)
+        ObjectInspectorConverters.getConverter(javaOI, aggregationObjectInspectors(i))
+          .convert(results(i))
       }
     }
   }
@@ -444,6 +543,90 @@ class GroupByPostShuffleOperator extends GroupByPreShuffleOperator
     }
   }
 
+  def hashAggregateBootstrap(split: Int, iter: Iterator[_]) = {
+    val bytes = new BytesWritable()
+    logDebug("Running Post Shuffle Group-By with %d bootstrap trials".format(bootstrapTrials))
+    val outputCache = new Array[Object](keyFields.length + aggregationEvals.length)
+    val reusedRow = new Array[Any](2)
+    val replicas = Array.fill(bootstrapTrials + 1)(newAggregations())
+
+    // Without map side aggregation, values are raw rows and we draw the weights here.
+    val weighRows = conf.getMode == GroupByDesc.Mode.COMPLETE
+    val rand = PoissonBootstrap.newRandom(split)
+
+    val newIter = iter.map { case (key: ReduceKeyReduceSide, values: Seq[Array[Byte]]) =>
+      bytes.set(key.byteArray, 0, key.length)
+      reusedRow(0) = keySer.deserialize(bytes)
+      replicas.foreach(resetAggregations)
+      values.foreach { case v: Array[Byte] =>
+        if (weighRows) {
+          bytes.set(v, 0, v.length)
+          reusedRow(1) = valueSer.deserialize(bytes)
+          aggregateExistingKey(reusedRow, replicas(0))
+          var r = 1
+          while (r <= bootstrapTrials) {
+            var w = PoissonBootstrap.nextWeight(rand)
+            while (w > 0) {
+              aggregateExistingKey(reusedRow, replicas(r))
+              w -= 1
+            }
+            r += 1
+          }
+        } else {
+          // The partial aggregations of all the replicas of the key in a map side partition.
+          PoissonBootstrap.foreachValue(v) { (replica, offset, length) =>
+            bytes.set(v, offset, length)
+            reusedRow(1) = valueSer.deserialize(bytes)
+            aggregateExistingKey(reusedRow, replicas(replica))
+          }
+        }
+      }
+
+      var i = 0
+      val numKeys = keyFields.length
+      while (i < numKeys) {
+        outputCache(i) = keyFields(i).evaluate(reusedRow)
+        i += 1
+      }
+      while (i < numKeys + aggregationEvals.length) {
+        outputCache(i) = evaluateBootstrap(i - numKeys, replicas)
+        i += 1
+      }
+      outputCache
+    }
+
+    if (!newIter.hasNext && keyFields.length == 0) {
+      Iterator(createEmptyRow())
+    } else {
+      newIter
+    }
+  }
+
+  /**
+   * Evaluate an aggregation over replica 0, attaching the percentile confidence interval over
+   * the other replicas if the aggregate is numeric. Replicas for which the aggregate is NULL (e.g.
+   * a replica that drew weight 0 for every row of the group) are left out of the interval.
+   */
+  private def evaluateBootstrap(i: Int, replicas: Array[Array[AggregationBuffer]]): Object = {
+    val estimate = aggregationEvals(i).evaluate(replicas(0)(i))
+    if (!emitsErrorBar(i) || estimate == null) {
+      estimate
+    } else {
+      val oi = aggregationObjectInspectors(i).asInstanceOf[PrimitiveObjectInspector]
+      val estimateValue = PrimitiveObjectInspectorUtils.getDouble(estimate, oi)
+      val replicaValues = new ArrayBuffer[Double](replicas.length - 1)
+      var r = 1
+      while (r < replicas.length) {
+        val value = aggregationEvals(i).evaluate(replicas(r)(i))
+        if (value != null) {
+          replicaValues += PrimitiveObjectInspectorUtils.getDouble(value, oi)
+        }
+        r += 1
+      }
+      new Text(PoissonBootstrap.format(estimateValue, replicaValues.toArray, bootstrapConfidence))
+    }
+  }
+
   private def createEmptyRow(): Array[Object] = {
     val aggrs = newAggregations()
     val output = new Array[Object](aggrs.length)
@@ -454,7 +637,11 @@ class GroupByPostShuffleOperator extends GroupByPreShuffleOperator
         emptyObj = aggregationParameterFields.map { field => null }.toArray
       }
       aggregationEvals(i).aggregate(aggrs(i), emptyObj)
-      output(i) = aggregationEvals(i).evaluate(aggrs(i))
+      output(i) = if (bootstrapTrials > 0) {
+        evaluateBootstrap(i, Array(aggrs))
+      } else {
+        aggregationEvals(i).evaluate(aggrs(i))
+      }
       i += 1
     }
     output
@@ -32,7 +32,12 @@ import org.apache.hadoop.hive.serde2.objectinspector.{ObjectInspector, ObjectIns
     ObjectInspectorUtils, StructObjectInspector}
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption
 
-import shark.execution.UnaryOperator
+import org.apache.spark.rdd.RDD
+
+import shark.SharkConfVars
+import shark.execution.{BootstrapReplicaRow, PoissonBootstrap, SharedScanScheduler, UnaryOperator}
+import shark.execution.{ReduceSinkOperator => SharkReduceSinkOperator}
+import shark.memstore2.column.DictionaryText
 
 
 /**
@@ -44,6 +49,13 @@ class GroupByPreShuffleOperator extends UnaryOperator[GroupByDesc] {
   @BeanProperty var minReductionHashAggr: Float = _
   @BeanProperty var numRowsCompareHashAggr: Int = _
 
+  // Number of Poissonized bootstrap replicas per aggregation. 0 if bootstrap is disabled.
+  @BeanProperty var bootstrapTrials: Int = _
+  @BeanProperty var bootstrapConfidence: Float = _
+
+  // Whether a single string key may be aggregated on its dictionary codes, see DictionaryTable.
+  @BeanProperty var dictionaryGroupBy: Boolean = _
+
   @transient var keyFactory: KeyWrapperFactory = _
   @transient var rowInspector: ObjectInspector = _
 
@@ -113,6 +125,34 @@ class GroupByPreShuffleOperator extends UnaryOperator[GroupByDesc] {
      conf = desc
      minReductionHashAggr = hconf.get(HiveConf.ConfVars.HIVEMAPAGGRHASHMINREDUCTION.varname).toFloat
      numRowsCompareHashAggr = hconf.get(HiveConf.ConfVars.HIVEGROUPBYMAPINTERVAL.varname).toInt
+
+     val trials = SharkConfVars.getIntVar(hconf, SharkConfVars.BOOTSTRAP_TRIALS)
+     bootstrapTrials = if (trials > 0 && bootstrapSupported) {
+       math.min(trials, PoissonBootstrap.MAX_TRIALS)
+     } else {
+       0
+     }
+     bootstrapConfidence = SharkConfVars.getFloatVar(hconf, SharkConfVars.BOOTSTRAP_CONFIDENCE)
+     dictionaryGroupBy = SharkConfVars.getBoolVar(hconf, SharkConfVars.DICTIONARY_GROUPBY) &&
+       conf.getKeys.size == 1
+  }
+
+  /**
+   * Whether this operator can run in bootstrap mode. Map side, the partial aggregations of the
+   * replicas are shipped packed together, so the shuffle must feed a post-shuffle group by that
+   * unpacks and merges them. Distinct aggregations are insensitive to row weights and are not
+   * supported.
+   */
+  protected def bootstrapSupported: Boolean = {
+    !conf.getAggregators.exists(_.getDistinct) && childOperators.size == 1 &&
+      (childOperators.head match {
+        case rs: SharkReduceSinkOperator => rs.childOperators.exists {
+          case gby: GroupByPostShuffleOperator =>
+            gby.desc.getMode == GroupByDesc.Mode.MERGEPARTIAL
+          case _ => false
+        }
+        case _ => false
+      })
   }
 
   override def initializeOnMaster() {
@@ -127,21 +167,36 @@ class GroupByPreShuffleOperator extends UnaryOperator[GroupByDesc] {
     createLocals()
   }
 
+  override def execute(): RDD[_] = {
+    SharedScanScheduler.execute(this).getOrElse(super.execute())
+  }
+
   // copied from the org.apache.hadoop.hive.ql.exec.GroupByOperator 
   override def outputObjectInspector() = {
     val totalFields = keyFields.length + aggregationEvals.length
         
     val ois = new ArrayBuffer[ObjectInspector](totalFields)
     ois ++= (currentKeyObjectInspectors)
-    ois ++= (aggregationObjectInspectors)
+    ois ++= (aggregationOutputObjectInspectors)
 
     val fieldNames = conf.getOutputColumnNames()
 
     import scala.collection.JavaConversions._
     ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, ois.toList)
   }
+
+  protected def aggregationOutputObjectInspectors: Array[ObjectInspector] =
+    aggregationObjectInspectors
   
   override def processPartition(split: Int, iter: Iterator[_]) = {
+    if (bootstrapTrials > 0) {
+      processPartitionBootstrap(split, iter)
+    } else {
+      processPartitionNoBootstrap(iter)
+    }
+  }
+
+  def processPartitionNoBootstrap(iter: Iterator[_]) = {
     logDebug("Running Pre-Shuffle Group-By")
     var numRowsInput = 0
     var numRowsHashTbl = 0
@@ -150,23 +205,52 @@ class GroupByPreShuffleOperator extends UnaryOperator[GroupByDesc] {
     // Do aggregation on map side using hashAggregations hash table.
     val hashAggregations = new JHashMap[KeyWrapper, Array[AggregationBuffer]]()
 
+    // Rows whose key is a dictionary-encoded string find their aggregations through the
+    // DictionaryTable of the current dictionary, which caches the entries of hashAggregations by
+    // code. A new dictionary replaces the table, while the entries stay in hashAggregations.
+    var dictionaryTable: DictionaryTable = null
+
     val newKeys: KeyWrapper = keyFactory.getKeyWrapper()
 
     while (iter.hasNext && useHashAggr) {
       val row = iter.next().asInstanceOf[AnyRef]
       numRowsInput += 1
 
-      newKeys.getNewKey(row, rowInspector)
-      newKeys.setHashKey()
-
-      var aggs = hashAggregations.get(newKeys)
+      val dictionaryKey = if (dictionaryGroupBy) keyFields(0).evaluate(row) else null
+      var aggs: Array[AggregationBuffer] = null
       var isNewKey = false
-      if (aggs == null) {
-        isNewKey = true
-        val newKeyProber = newKeys.copyKey()
-        aggs = newAggregations()
-        hashAggregations.put(newKeyProber, aggs)
-        numRowsHashTbl += 1
+      dictionaryKey match {
+        case key: DictionaryText if key.dictionary != null =>
+          if (dictionaryTable == null || (dictionaryTable.dictionary ne key.dictionary)) {
+            dictionaryTable = new DictionaryTable(key.dictionary, key.dictionarySize)
+          }
+          aggs = dictionaryTable.aggregations(key.code)
+          if (aggs == null) {
+            // First time the code is seen in this dictionary: look up the decoded string, which
+            // rows of earlier dictionaries may already have aggregated.
+            newKeys.getNewKey(row, rowInspector)
+            newKeys.setHashKey()
+            aggs = hashAggregations.get(newKeys)
+            if (aggs == null) {
+              isNewKey = true
+              aggs = newAggregations()
+              hashAggregations.put(newKeys.copyKey(), aggs)
+              numRowsHashTbl += 1
+            }
+            dictionaryTable.setAggregations(key.code, aggs)
+          }
+        case _ =>
+          newKeys.getNewKey(row, rowInspector)
+          newKeys.setHashKey()
+
+          aggs = hashAggregations.get(newKeys)
+          if (aggs == null) {
+            isNewKey = true
+            val newKeyProber = newKeys.copyKey()
+            aggs = newAggregations()
+            hashAggregations.put(newKeyProber, aggs)
+            numRowsHashTbl += 1
+          }
       }
       if (isNewKey) {
         aggregateNewKey(row, aggs)
@@ -188,6 +272,9 @@ class GroupByPreShuffleOperator extends UnaryOperator[GroupByDesc] {
           " minReduction=" + minReductionHashAggr)
       }
     }
+    if (taskMetrics != null) {
+      taskMetrics.addHashTable(numRowsHashTbl)
+    }
 
     // Generate an iterator for the aggregation output from hashAggregations.
     val outputCache = new Array[Object](keyFields.length + aggregationEvals.length)
@@ -226,6 +313,135 @@ class GroupByPreShuffleOperator extends UnaryOperator[GroupByDesc] {
     }
   }
 
+  /**
+   * Map side aggregation in bootstrap mode. Each row updates replica 0 once and each of the
+   * bootstrapTrials replicas with an independent Poisson(1) weight, all in the same pass. A single
+   * BootstrapReplicaRow is emitted per key, from which the ReduceSinkOperator packs the partial
+   * aggregations of all replicas into one shuffled value. Hash aggregation is always used since
+   * the replicas would otherwise multiply the output size.
+   */
+  def processPartitionBootstrap(split: Int, iter: Iterator[_]) = {
+    logDebug("Running Pre-Shuffle Group-By with %d bootstrap trials".format(bootstrapTrials))
+    val rand = PoissonBootstrap.newRandom(split)
+    val hashAggregations = new JHashMap[KeyWrapper, Array[Array[AggregationBuffer]]]()
+    val newKeys: KeyWrapper = keyFactory.getKeyWrapper()
+    val parameters = new Array[Array[Object]](aggregationEvals.length)
+
+    while (iter.hasNext) {
+      val row = iter.next().asInstanceOf[AnyRef]
+      newKeys.getNewKey(row, rowInspector)
+      newKeys.setHashKey()
+
+      var replicas = hashAggregations.get(newKeys)
+      if (replicas == null) {
+        replicas = Array.fill(bootstrapTrials + 1)(newAggregations())
+        hashAggregations.put(newKeys.copyKey(), replicas)
+      }
+
+      // Evaluate the aggregation parameters once and feed them to all replicas.
+      var i = 0
+      while (i < aggregationEvals.length) {
+        parameters(i) = aggregationParameterFields(i).map(_.evaluate(row))
+        i += 1
+      }
+      aggregateWeighted(parameters, replicas(0), 1)
+      var r = 1
+      while (r <= bootstrapTrials) {
+        aggregateWeighted(parameters, replicas(r), PoissonBootstrap.nextWeight(rand))
+        r += 1
+      }
+    }
+    if (taskMetrics != null) {
+      taskMetrics.addHashTable(hashAggregations.size)
+    }
+
+    val outputCache = new Array[Object](keyFields.length + aggregationEvals.length)
+    var currentReplicas: Array[Array[AggregationBuffer]] = null
+    val replicaRow = new BootstrapReplicaRow(bootstrapTrials + 1, outputCache) {
+      override def evaluate(replica: Int) {
+        var i = 0
+        while (i < aggregationEvals.length) {
+          outputCache(i + keyFields.length) =
+            aggregationEvals(i).evaluate(currentReplicas(replica)(i))
+          i += 1
+        }
+      }
+    }
+    hashAggregations.toIterator.map { case(key, replicas) =>
+      val keyArr = key.getKeyArray()
+      System.arraycopy(keyArr, 0, outputCache, 0, keyArr.length)
+      currentReplicas = replicas
+      replicaRow
+    }
+  }
+
+  /**
+   * The aggregations of hashAggregations for the values of one dictionary, indexed by the codes of
+   * the DictionaryText keys, so a row only hashes its key the first time its code is seen.
+   */
+  class DictionaryTable(val dictionary: AnyRef, size: Int) {
+    private val codeAggregations = new Array[Array[AggregationBuffer]](size)
+
+    def aggregations(code: Int): Array[AggregationBuffer] = codeAggregations(code)
+
+    def setAggregations(code: Int, aggs: Array[AggregationBuffer]) {
+      codeAggregations(code) = aggs
+    }
+  }
+
+  /**
+   * Map side hash aggregation fed one row at a time, used by shared scans to push each row decoded
+   * from a cached partition to the group bys of several queries. Unlike processPartition, hash
+   * aggregation is always used and output rows are not reused, so they can be buffered.
+   */
+  class HashAggregator {
+    private val hashAggregations = new JHashMap[KeyWrapper, Array[AggregationBuffer]]()
+    private val newKeys: KeyWrapper = keyFactory.getKeyWrapper()
+
+    def aggregate(row: AnyRef) {
+      newKeys.getNewKey(row, rowInspector)
+      newKeys.setHashKey()
+
+      val aggs = hashAggregations.get(newKeys)
+      if (aggs == null) {
+        val newAggs = newAggregations()
+        hashAggregations.put(newKeys.copyKey(), newAggs)
+        aggregateNewKey(row, newAggs)
+      } else {
+        aggregateExistingKey(row, aggs)
+      }
+    }
+
+    def result: Iterator[Array[Object]] = hashAggregations.toIterator.map { case(key, aggrs) =>
+      val keyArr = key.getKeyArray()
+      val output = new Array[Object](keyArr.length + aggrs.length)
+      System.arraycopy(keyArr, 0, output, 0, keyArr.length)
+      var i = 0
+      while (i < aggrs.length) {
+        // Evaluators may reuse their result objects across buffers.
+        output(i + keyArr.length) = ObjectInspectorUtils.copyToStandardObject(
+          aggregationEvals(i).evaluate(aggrs(i)), aggregationObjectInspectors(i),
+          ObjectInspectorCopyOption.DEFAULT)
+        i += 1
+      }
+      output
+    }
+  }
+
+  @inline protected final
+  def aggregateWeighted(
+      parameters: Array[Array[Object]], aggregations: Array[AggregationBuffer], weight: Int) {
+    var w = 0
+    while (w < weight) {
+      var i = 0
+      while (i < aggregations.length) {
+        aggregationEvals(i).aggregate(aggregations(i), parameters(i))
+        i += 1
+      }
+      w += 1
+    }
+  }
+
   @inline protected final
   def aggregateNewKey(row: Object, aggregations: Array[AggregationBuffer]) {
     var i = 0
@@ -78,21 +78,12 @@ class HadoopTableReader(@transient _tableDesc: TableDesc, @transient _localHConf
       hiveTable: HiveTable,
       deserializerClass: Class[_ <: Deserializer],
       filterOpt: Option[PathFilter]): RDD[_] = {
-    assert(!hiveTable.isPartitioned, """makeRDDForTable() cannot be called on a partitioned table,
-      since input formats may differ across partitions. Use makeRDDForTablePartitions() instead.""")
-
     // Create local references to member variables, so that the entire `this` object won't be
     // serialized in the closure below.
     val tableDesc = _tableDesc
     val broadcastedHiveConf = _broadcastedHiveConf
 
-    val tablePath = hiveTable.getPath
-    val inputPathStr = applyFilterIfNeeded(tablePath, filterOpt)
-
-    logDebug("Table input: %s".format(tablePath))
-    val ifc = hiveTable.getInputFormatClass
-      .asInstanceOf[java.lang.Class[InputFormat[Writable, Writable]]]
-    val hadoopRDD = createHadoopRdd(tableDesc, inputPathStr, ifc)
+    val hadoopRDD = makeRawRDDForTable(hiveTable, filterOpt)
 
     val deserializedHadoopRDD = hadoopRDD.mapPartitions { iter =>
       val hconf = broadcastedHiveConf.value.value
@@ -110,6 +101,37 @@ class HadoopTableReader(@transient _tableDesc: TableDesc, @transient _localHConf
     deserializedHadoopRDD
   }
 
+  /**
+   * Creates a Hadoop RDD that contains the Writables read from the target table's data directory,
+   * without deserializing them.
+   */
+  def makeRawRDDForTable(hiveTable: HiveTable, filterOpt: Option[PathFilter]): RDD[Writable] = {
+    assert(!hiveTable.isPartitioned, """makeRawRDDForTable() cannot be called on a partitioned
+      table, since input formats may differ across partitions. Use makeRawRDDForPartition().""")
+
+    val tablePath = hiveTable.getPath
+    val inputPathStr = applyFilterIfNeeded(tablePath, filterOpt)
+
+    logDebug("Table input: %s".format(tablePath))
+    val ifc = hiveTable.getInputFormatClass
+      .asInstanceOf[java.lang.Class[InputFormat[Writable, Writable]]]
+    createHadoopRdd(_tableDesc, inputPathStr, ifc)
+  }
+
+  /**
+   * Creates a Hadoop RDD that contains the Writables read from a Hive partition's data directory,
+   * without deserializing them or attaching the partition values.
+   */
+  def makeRawRDDForPartition(
+      partition: HivePartition,
+      filterOpt: Option[PathFilter]): RDD[Writable] = {
+    val partDesc = Utilities.getPartitionDesc(partition)
+    val inputPathStr = applyFilterIfNeeded(partition.getPartitionPath, filterOpt)
+    val ifc = partDesc.getInputFileFormatClass
+      .asInstanceOf[java.lang.Class[InputFormat[Writable, Writable]]]
+    createHadoopRdd(_tableDesc, inputPathStr, ifc)
+  }
+
   override def makeRDDForPartitionedTable(
       partitions: Seq[HivePartition],
       pruningFnOpt: Option[PruningFunctionType] = None
@@ -108,8 +108,9 @@ class JoinOperator extends CommonJoinOperator[JoinDesc] with ReduceSinkTableDesc
       rddsInJoinOrder.toSeq.asInstanceOf[Seq[RDD[(_, _)]]], part)
 
     val op = OperatorSerializationWrapper(this)
+    val metrics = this.metrics
 
-    cogrouped.mapPartitions { part =>
+    cogrouped.mapPartitions { partition =>
       op.initializeOnSlave()
 
       val writable = new BytesWritable
@@ -117,22 +118,26 @@ class JoinOperator extends CommonJoinOperator[JoinDesc] with ReduceSinkTableDesc
 
       val cp = new CartesianProduct[Any](op.numTables)
 
-      part.flatMap { case (k: ReduceKeyReduceSide, bufs: Array[_]) =>
-        writable.set(k.byteArray, 0, k.length)
-
-        // If nullCheck is false, we can skip deserializing the key.
-        if (op.nullCheck &&
-            SerDeUtils.hasAnyNullObject(
-              op.keyDeserializer.deserialize(writable).asInstanceOf[JList[_]],
-              op.keyObjectInspector,
-              nullSafes)) {
-          bufs.iterator.zipWithIndex.flatMap { case (buf, label) =>
-            val bufsNull = Array.fill(op.numTables)(ArrayBuffer[Any]())
-            bufsNull(label) = buf
-            op.generateTuples(cp.product(bufsNull.asInstanceOf[Array[Seq[Any]]], op.joinConditions))
+      // The rows in are the cogrouped keys.
+      OperatorMetrics.measure(metrics, op.value, partition) { part =>
+        part.flatMap { case (k: ReduceKeyReduceSide, bufs: Array[_]) =>
+          writable.set(k.byteArray, 0, k.length)
+
+          // If nullCheck is false, we can skip deserializing the key.
+          if (op.nullCheck &&
+              SerDeUtils.hasAnyNullObject(
+                op.keyDeserializer.deserialize(writable).asInstanceOf[JList[_]],
+                op.keyObjectInspector,
+                nullSafes)) {
+            bufs.iterator.zipWithIndex.flatMap { case (buf, label) =>
+              val bufsNull = Array.fill(op.numTables)(ArrayBuffer[Any]())
+              bufsNull(label) = buf
+              op.generateTuples(
+                cp.product(bufsNull.asInstanceOf[Array[Seq[Any]]], op.joinConditions))
+            }
+          } else {
+            op.generateTuples(cp.product(bufs.asInstanceOf[Array[Seq[Any]]], op.joinConditions))
           }
-        } else {
-          op.generateTuples(cp.product(bufs.asInstanceOf[Array[Seq[Any]]], op.joinConditions))
         }
       }
     }
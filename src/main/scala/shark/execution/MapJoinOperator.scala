@@ -163,6 +163,13 @@ class MapJoinOperator extends CommonJoinOperator[MapJoinDesc] {
       (pos, map)
     }.toMap
 
+    val metrics = this.metrics
+    if (metrics != null) {
+      val m = new OperatorMetrics
+      hashtables.values.foreach(hashtable => m.addHashTable(hashtable.size))
+      metrics += m
+    }
+
     val fetcher = SharkEnv.sc.broadcast(hashtables)
     val op = op1
     rdds(bigTableAlias)._2.mapPartitions { partition =>
@@ -170,7 +177,9 @@ class MapJoinOperator extends CommonJoinOperator[MapJoinDesc] {
       op.logDebug("Input object inspectors: " + op.objectInspectors)
 
       op.initializeOnSlave()
-      val newPart = op.joinOnPartition(partition, fetcher.value)
+      val newPart = OperatorMetrics.measure(metrics, op.value, partition) { iter =>
+        op.joinOnPartition(iter, fetcher.value)
+      }
       op.logDebug("Finished executing mapPartitions for operator: " + op)
 
       newPart
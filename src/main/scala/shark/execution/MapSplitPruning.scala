@@ -32,6 +32,7 @@ import org.apache.hadoop.hive.ql.udf.generic.GenericUDFOPOr
 
 import shark.memstore2.ColumnarStructObjectInspector.IDStructField
 import shark.memstore2.TablePartitionStats
+import shark.memstore2.column.KeyRange
 
 
 object MapSplitPruning {
@@ -181,6 +182,66 @@ object MapSplitPruning {
     }
   }
 
+  /**
+   * Returns the range of values of the column at `fieldID` outside of which no row passes the
+   * filter, or KeyRange.ALL. Only conjunctions of comparisons and BETWEENs of the column with
+   * constants narrow the range.
+   */
+  def columnRange(e: ExprNodeEvaluator, fieldID: Int): KeyRange = e match {
+    case e: ExprNodeGenericFuncEvaluator => {
+      e.genericUDF match {
+        case _: GenericUDFOPAnd =>
+          columnRange(e.children(0), fieldID).intersect(columnRange(e.children(1), fieldID))
+        case _: GenericUDFBetween =>
+          val invert = e.children(0).asInstanceOf[ExprNodeConstantEvaluator].expr.getValue
+          (e.children(1), e.children(2), e.children(3)) match {
+            case (col: ExprNodeColumnEvaluator, left: ExprNodeConstantEvaluator,
+                right: ExprNodeConstantEvaluator)
+                if isField(col, fieldID) && !invert.asInstanceOf[Boolean] =>
+              KeyRange.bound(left.expr.getValue, isLower = true, inclusive = true).intersect(
+                KeyRange.bound(right.expr.getValue, isLower = false, inclusive = true))
+            case _ => KeyRange.ALL
+          }
+        case udf: GenericUDFBaseCompare =>
+          (e.children(0), e.children(1)) match {
+            case (col: ExprNodeColumnEvaluator, const: ExprNodeConstantEvaluator)
+                if isField(col, fieldID) =>
+              comparisonRange(udf, const.expr.getValue, columnOnLeft = true)
+            case (const: ExprNodeConstantEvaluator, col: ExprNodeColumnEvaluator)
+                if isField(col, fieldID) =>
+              comparisonRange(udf, const.expr.getValue, columnOnLeft = false)
+            case _ => KeyRange.ALL
+          }
+        case _ => KeyRange.ALL
+      }
+    }
+    case _ => KeyRange.ALL
+  }
+
+  private def isField(columnEval: ExprNodeColumnEvaluator, fieldID: Int): Boolean = {
+    columnEval.field match {
+      case myField: MyField =>
+        MapSplitPruningHelper.getStructFieldFromUnionOIField(myField) match {
+          case idStructField: IDStructField => idStructField.fieldID == fieldID
+          case _ => false
+        }
+      case idStructField: IDStructField => idStructField.fieldID == fieldID
+      case _ => false
+    }
+  }
+
+  private def comparisonRange(
+      udf: GenericUDFBaseCompare,
+      value: Object,
+      columnOnLeft: Boolean): KeyRange = udf match {
+    case _: GenericUDFOPEqual => KeyRange.point(value)
+    case _: GenericUDFOPEqualOrGreaterThan => KeyRange.bound(value, columnOnLeft, true)
+    case _: GenericUDFOPGreaterThan => KeyRange.bound(value, columnOnLeft, false)
+    case _: GenericUDFOPEqualOrLessThan => KeyRange.bound(value, !columnOnLeft, true)
+    case _: GenericUDFOPLessThan => KeyRange.bound(value, !columnOnLeft, false)
+    case _ => KeyRange.ALL
+  }
+
   private def getIDStructField(field: StructField): IDStructField = field match {
     case myField: MyField => {
       // For partitioned tables, the ColumnarStruct's IDStructFields are enclosed inside
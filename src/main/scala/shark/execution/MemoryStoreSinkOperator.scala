@@ -22,13 +22,16 @@ import java.nio.ByteBuffer
 import scala.collection.mutable.ArrayBuffer
 import scala.reflect.BeanProperty
 
+import org.apache.hadoop.hive.serde2.objectinspector.{ObjectInspector, StructObjectInspector}
 import org.apache.hadoop.io.Writable
 
+import org.apache.spark.SparkEnv
 import org.apache.spark.rdd.{RDD, UnionRDD}
 import org.apache.spark.storage.StorageLevel
 
 import shark.{SharkConfVars, SharkEnv}
 import shark.execution.serialization.{OperatorSerializationWrapper, JavaSerializer}
+import shark.execution.serialization.KryoSerializer
 import shark.memstore2._
 import shark.tachyon.TachyonTableWriter
 
@@ -46,6 +49,9 @@ class MemoryStoreSinkOperator extends TerminalOperator {
   // If true, columnar storage will use compression.
   @BeanProperty var shouldCompress: Boolean = _
 
+  // If true, the stats of each partition also carry per-column sketches.
+  @BeanProperty var buildSketches: Boolean = _
+
   // For CTAS, this is the name of the table that is created. For INSERTS, this is the name of*
   // the table that is modified.
   @BeanProperty var tableName: String = _
@@ -70,16 +76,22 @@ class MemoryStoreSinkOperator extends TerminalOperator {
   // to create a TachyonTableWriter, if Tachyon is used.
   @transient var numColumns: Int = _
 
+  // The position of the column that rows are range-partitioned and sorted on before they are
+  // cached, if the table has a "shark.cache.sortBy" property.
+  @transient var sortColumnOpt: Option[Int] = None
+
   override def initializeOnMaster() {
     super.initializeOnMaster()
     partitionSize = SharkConfVars.getIntVar(localHconf, SharkConfVars.COLUMN_BUILDER_PARTITION_SIZE)
     shouldCompress = SharkConfVars.getBoolVar(localHconf, SharkConfVars.COLUMNAR_COMPRESSION)
+    buildSketches = SharkConfVars.getBoolVar(localHconf, SharkConfVars.COLUMN_SKETCHES)
   }
 
   override def initializeOnSlave() {
     super.initializeOnSlave()
     localHconf.setInt(SharkConfVars.COLUMN_BUILDER_PARTITION_SIZE.varname, partitionSize)
     localHconf.setBoolean(SharkConfVars.COLUMNAR_COMPRESSION.varname, shouldCompress)
+    localHconf.setBoolean(SharkConfVars.COLUMN_SKETCHES.varname, buildSketches)
   }
 
   override def execute(): RDD[_] = {
@@ -90,29 +102,47 @@ class MemoryStoreSinkOperator extends TerminalOperator {
     val tableKey = MemoryMetadataManager.makeTableKey(databaseName, tableName)
 
     val tachyonWriter: TachyonTableWriter =
-      if (cacheMode == CacheType.TACHYON) {
-        if (!isInsertInto && SharkEnv.tachyonUtil.tableExists(tableKey, hivePartitionKeyOpt)) {
+      if (CacheType.isOffHeap(cacheMode)) {
+        val offHeapUtil = SharkEnv.offHeapUtil(cacheMode)
+        if (!isInsertInto && offHeapUtil.tableExists(tableKey, hivePartitionKeyOpt)) {
           // For INSERT OVERWRITE, delete the old table or Hive partition directory, if it exists.
-          SharkEnv.tachyonUtil.dropTable(tableKey, hivePartitionKeyOpt)
+          offHeapUtil.dropTable(tableKey, hivePartitionKeyOpt)
         }
         // Use an additional row to store metadata (e.g. number of rows in each partition).
-        SharkEnv.tachyonUtil.createTableWriter(tableKey, hivePartitionKeyOpt, numColumns + 1)
+        offHeapUtil.createTableWriter(tableKey, hivePartitionKeyOpt, numColumns + 1)
       } else {
         null
       }
 
+    // Rows of a table sorted on a column are read back from the sort with another object
+    // inspector.
+    val sortColumn = sortColumnOpt.getOrElse(-1)
+    val (rowRdd, serializedRowOI) = sortColumnOpt match {
+      case Some(column) =>
+        val rowOI = objectInspector.asInstanceOf[StructObjectInspector]
+        (TableSorter.sortRows(inputRdd, KryoSerializer.serialize(rowOI), column),
+          KryoSerializer.serialize(TableSorter.sortedRowObjectInspector(rowOI)))
+      case None =>
+        (inputRdd, null)
+    }
+
     // Put all rows of the table into a set of TablePartition's. Each partition contains
     // only one TablePartition object.
-    var outputRDD: RDD[TablePartition] = inputRdd.mapPartitionsWithIndex { case (part, iter) =>
+    var outputRDD: RDD[TablePartition] = rowRdd.mapPartitionsWithIndex { case (part, iter) =>
       op.initializeOnSlave()
       val serde = new ColumnarSerDe
       serde.initialize(op.localHconf, op.localHiveOp.getConf.getTableInfo.getProperties)
+      val rowOI = if (serializedRowOI == null) {
+        op.objectInspector
+      } else {
+        KryoSerializer.deserialize[ObjectInspector](serializedRowOI)
+      }
 
       // Serialize each row into the builder object.
       // ColumnarSerDe will return a TablePartitionBuilder.
       var builder: Writable = null
       iter.foreach { row =>
-        builder = serde.serialize(row.asInstanceOf[AnyRef], op.objectInspector)
+        builder = serde.serialize(row.asInstanceOf[AnyRef], rowOI)
       }
 
       if (builder == null) {
@@ -120,14 +150,15 @@ class MemoryStoreSinkOperator extends TerminalOperator {
         statsAcc += Tuple2(part, new TablePartitionStats(Array(), 0))
         Iterator(new TablePartition(0, Array()))
       } else {
-        statsAcc += Tuple2(part, builder.asInstanceOf[TablePartitionBuilder].stats)
+        val stats = builder.asInstanceOf[TablePartitionBuilder].stats
+        statsAcc += Tuple2(part, if (sortColumn >= 0) stats.sortedOn(sortColumn) else stats)
         Iterator(builder.asInstanceOf[TablePartitionBuilder].build)
       }
     }
 
     if (tachyonWriter != null) {
       // Put the table in Tachyon.
-      op.logInfo("Putting RDD for %s.%s in Tachyon".format(databaseName, tableName))
+      op.logInfo("Putting RDD for %s.%s in %s".format(databaseName, tableName, cacheMode))
       tachyonWriter.createTable(ByteBuffer.allocate(0))
       outputRDD = outputRDD.mapPartitionsWithIndex { case(part, iter) =>
         val partition = iter.next()
@@ -136,9 +167,13 @@ class MemoryStoreSinkOperator extends TerminalOperator {
         }
         Iterator(partition)
       }
-      // Force evaluate so the data gets put into Tachyon.
-      outputRDD.context.runJob(
-        outputRDD, (iter: Iterator[TablePartition]) => iter.foreach(_ => Unit))
+      // Force evaluate so the data gets put into Tachyon. Each task returns the host of its
+      // block manager, recorded as the location of the partition it wrote.
+      val hosts = outputRDD.context.runJob(outputRDD, (iter: Iterator[TablePartition]) => {
+        iter.foreach(_ => Unit)
+        SparkEnv.get.blockManager.blockManagerId.host
+      })
+      tachyonWriter.writePartitionLocations(hosts)
     } else {
       // Run a job on the RDD that contains the query output to force the data into the memory
       // store. The statistics will also be collected by 'statsAcc' during job execution.
@@ -159,7 +194,7 @@ class MemoryStoreSinkOperator extends TerminalOperator {
       if (cacheMode == CacheType.NONE) "disk" else cacheMode.toString))
 
     val tableStats =
-      if (cacheMode == CacheType.TACHYON) {
+      if (CacheType.isOffHeap(cacheMode)) {
         tachyonWriter.updateMetadata(ByteBuffer.wrap(JavaSerializer.serialize(statsAcc.value.toMap)))
         statsAcc.value.toMap
       } else {
@@ -190,6 +225,8 @@ class MemoryStoreSinkOperator extends TerminalOperator {
           if (isInsertInto) {
             // Ok, a Tachyon table should manage stats for each rdd, and never union the maps.
             memoryTable.update(outputRDD, statsAcc.value)
+            SharkEnv.memoryMetadataManager.compactor.compactIfNeeded(
+              memoryTable, localHconf, localHiveOp.getConf.getTableInfo.getProperties)
           } else {
             memoryTable.put(outputRDD, statsAcc.value.toMap)
           }
@@ -29,9 +29,10 @@ import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory
 import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector
 import org.apache.hadoop.hive.ql.exec.ExprNodeEvaluator
 
+import org.apache.spark.Accumulable
 import org.apache.spark.rdd.RDD
 
-import shark.LogHelper
+import shark.{LogHelper, SharkConfVars, SharkEnv}
 import shark.execution.serialization.OperatorSerializationWrapper
 
 
@@ -51,6 +52,17 @@ abstract class Operator[+T <: HiveDesc] extends LogHelper with Serializable {
    */
   def initializeOnSlave() {}
 
+  /**
+   * Calls initializeOnSlave(), unless it already ran on this instance. Slaves reuse operators
+   * across the tasks of a plan, see OperatorSerializationWrapper.release().
+   */
+  def initializeOnSlaveOnce() {
+    if (!_initializedOnSlave) {
+      initializeOnSlave()
+      _initializedOnSlave = true
+    }
+  }
+
   def processPartition(split: Int, iter: Iterator[_]): Iterator[_]
 
   /**
@@ -65,6 +77,9 @@ abstract class Operator[+T <: HiveDesc] extends LogHelper with Serializable {
   def initializeMasterOnAll() {
     _parentOperators.foreach(_.initializeMasterOnAll())
     objectInspectors = inputObjectInspectors()
+    if (hconf != null && SharkConfVars.getBoolVar(hconf, SharkConfVars.OPERATOR_METRICS)) {
+      metrics = SharkEnv.sc.accumulable(new OperatorMetrics)(OperatorMetrics.Param)
+    }
     initializeOnMaster()
   }
 
@@ -118,6 +133,16 @@ abstract class Operator[+T <: HiveDesc] extends LogHelper with Serializable {
   @transient private val _childOperators = new ArrayBuffer[Operator[_<:HiveDesc]]()
   @transient private val _parentOperators = new ArrayBuffer[Operator[_<:HiveDesc]]()
   @transient var objectInspectors: Seq[ObjectInspector] =_
+  @transient private var _initializedOnSlave = false
+
+  /**
+   * Runtime metrics of the operator, summed over all tasks. Created on the master if
+   * shark.exec.operatorMetrics is set, and null otherwise. See OperatorMetrics.measure().
+   */
+  @transient var metrics: Accumulable[OperatorMetrics, OperatorMetrics] = _
+
+  /** The metrics of the running task, on slaves. Null unless metrics are collected. */
+  @transient var taskMetrics: OperatorMetrics = _
 
   protected def executeParents(): Seq[(Int, RDD[_])] = {
     parentOperators.map(p => (p.getTag, p.execute()))
@@ -331,14 +356,20 @@ object Operator extends LogHelper {
    */
   def executeProcessPartition(operator: Operator[_ <: HiveDesc], rdd: RDD[_]): RDD[_] = {
     val op = OperatorSerializationWrapper(operator)
-    rdd.mapPartitionsWithIndex { case(split, partition) =>
+    val metrics = operator.metrics
+    rdd.mapPartitionsWithContext { case(context, partition) =>
+      val split = context.partitionId
       op.logDebug("Started executing mapPartitions for operator: " + op)
       op.logDebug("Input object inspectors: " + op.objectInspectors)
 
-      op.initializeOnSlave()
-      val newPart = op.processPartition(split, partition)
+      op.initializeOnSlaveOnce()
+      val newPart = OperatorMetrics.measure(metrics, op.value, partition) { iter =>
+        op.processPartition(split, iter)
+      }
       op.logDebug("Finished executing mapPartitions for operator: " + op)
 
+      // The rows of newPart are read until the end of the task.
+      context.addOnCompleteCallback(() => op.release())
       newPart
     }
   }
@@ -49,7 +49,8 @@ object OperatorFactory extends LogHelper {
       numColumns: Int,
       hivePartitionKeyOpt: Option[String],
       cacheMode: CacheType,
-      isInsertInto: Boolean): TerminalOperator = {
+      isInsertInto: Boolean,
+      sortColumnOpt: Option[Int] = None): TerminalOperator = {
     // TODO the terminal operator is the FileSinkOperator in Hive?
     val hiveOp = hiveTerminalOp.asInstanceOf[org.apache.hadoop.hive.ql.exec.FileSinkOperator]
     val sinkOp = _newOperatorInstance(
@@ -61,6 +62,7 @@ object OperatorFactory extends LogHelper {
     sinkOp.cacheMode = cacheMode
     sinkOp.hivePartitionKeyOpt = hivePartitionKeyOpt
     sinkOp.isInsertInto = isInsertInto
+    sinkOp.sortColumnOpt = sortColumnOpt
     _createAndSetParents(sinkOp, hiveTerminalOp.getParentOperators).asInstanceOf[TerminalOperator]
   }
 
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shark.execution
+
+import org.apache.spark.{Accumulable, AccumulableParam}
+
+
+/**
+ * Runtime counters of an operator. Each task counts into its own instance, the local value of the
+ * operator's accumulator, and Spark sums the instances of all tasks on the master. Collected only
+ * when shark.exec.operatorMetrics is set, e.g. by EXPLAIN ANALYZE.
+ *
+ * Time is wall time. totalNanos includes the time spent pulling rows from the operators upstream
+ * in the same task, which is counted again in inputNanos, so that selfNanos is the time spent in
+ * the operator alone.
+ */
+class OperatorMetrics extends Serializable {
+  var tasks: Long = 0
+  var rowsIn: Long = 0
+  var rowsOut: Long = 0
+  var totalNanos: Long = 0
+  var inputNanos: Long = 0
+  // Size of the columns read from cached partitions.
+  var bytesDecoded: Long = 0
+  // Cached partitions considered, and skipped by map pruning.
+  var partitionsScanned: Long = 0
+  var partitionsPruned: Long = 0
+  // Entries of hash tables built by the operator: summed over tasks, and the largest one.
+  var hashTableEntries: Long = 0
+  var maxHashTableEntries: Long = 0
+
+  def selfNanos: Long = math.max(totalNanos - inputNanos, 0)
+
+  def addHashTable(entries: Long) {
+    hashTableEntries += entries
+    maxHashTableEntries = math.max(maxHashTableEntries, entries)
+  }
+
+  def merge(other: OperatorMetrics): OperatorMetrics = {
+    tasks += other.tasks
+    rowsIn += other.rowsIn
+    rowsOut += other.rowsOut
+    totalNanos += other.totalNanos
+    inputNanos += other.inputNanos
+    bytesDecoded += other.bytesDecoded
+    partitionsScanned += other.partitionsScanned
+    partitionsPruned += other.partitionsPruned
+    hashTableEntries += other.hashTableEntries
+    maxHashTableEntries = math.max(maxHashTableEntries, other.maxHashTableEntries)
+    this
+  }
+
+  override def toString: String = {
+    val fields = Seq(
+      "tasks: " + tasks,
+      "rows in: " + rowsIn,
+      "rows out: " + rowsOut,
+      "time: %.1f ms".format(selfNanos / 1e6)) ++
+      (if (bytesDecoded > 0) Seq("bytes decoded: " + bytesDecoded) else Nil) ++
+      (if (partitionsScanned > 0) {
+        Seq("partitions pruned: %d/%d".format(partitionsPruned, partitionsScanned))
+      } else {
+        Nil
+      }) ++
+      (if (hashTableEntries > 0) {
+        Seq("hash table entries: %d (max %d)".format(hashTableEntries, maxHashTableEntries))
+      } else {
+        Nil
+      })
+    fields.mkString(", ")
+  }
+}
+
+
+object OperatorMetrics {
+
+  object Param extends AccumulableParam[OperatorMetrics, OperatorMetrics] {
+    override def addAccumulator(r: OperatorMetrics, t: OperatorMetrics) = r.merge(t)
+    override def addInPlace(r1: OperatorMetrics, r2: OperatorMetrics) = r1.merge(r2)
+    override def zero(initialValue: OperatorMetrics) = new OperatorMetrics
+  }
+
+  /**
+   * Runs `process` over the rows of a partition, counting rows and time into the current task's
+   * value of `metrics`, which is also set as `op.taskMetrics` (unless `op` is null) for the
+   * operator to add its own counters to. Just runs `process` if `metrics` is null. Called on
+   * slaves.
+   *
+   * @param isSource Whether `input` is not the output of another operator, e.g. for a table scan,
+   *     in which case the time spent reading it is the operator's and its rows are not counted.
+   */
+  def measure(
+      metrics: Accumulable[OperatorMetrics, OperatorMetrics],
+      op: Operator[_ <: HiveDesc],
+      input: Iterator[_],
+      isSource: Boolean = false)(process: Iterator[_] => Iterator[_]): Iterator[_] = {
+    if (metrics == null) {
+      process(input)
+    } else {
+      val m = metrics.localValue
+      if (op != null) {
+        op.taskMetrics = m
+      }
+      m.tasks += 1
+      val measuredInput = if (isSource) input else new Iterator[Any] {
+        override def hasNext: Boolean = {
+          val start = System.nanoTime
+          val result = input.hasNext
+          m.inputNanos += System.nanoTime - start
+          result
+        }
+        override def next(): Any = {
+          val start = System.nanoTime
+          val result = input.next()
+          m.inputNanos += System.nanoTime - start
+          m.rowsIn += 1
+          result
+        }
+      }
+      // Operators such as map side aggregations consume their input before returning.
+      val start = System.nanoTime
+      val output = process(measuredInput)
+      m.totalNanos += System.nanoTime - start
+      new Iterator[Any] {
+        override def hasNext: Boolean = {
+          val start = System.nanoTime
+          val result = output.hasNext
+          m.totalNanos += System.nanoTime - start
+          result
+        }
+        override def next(): Any = {
+          val start = System.nanoTime
+          val result = output.next()
+          m.totalNanos += System.nanoTime - start
+          m.rowsOut += 1
+          result
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.execution
+
+import java.util.Random
+
+import org.apache.hadoop.io.BytesWritable
+
+
+/**
+ * A row emitted by the pre-shuffle group by operator in bootstrap mode. It stands for the partial
+ * aggregation rows of all the replicas of a key, which the ReduceSinkOperator shuffles as a single
+ * value packed by PoissonBootstrap.appendValue, with the key serialized once. Replica 0 is the
+ * estimate over the unweighted input.
+ *
+ * Evaluators may reuse their result objects across aggregation buffers, so the row of a replica
+ * is only valid until the row of another replica is evaluated.
+ */
+abstract class BootstrapReplicaRow(val numReplicas: Int, val row: Array[Object]) {
+
+  /** Fills `row` with the key and partial aggregations of the given replica. */
+  def evaluate(replica: Int)
+}
+
+
+/**
+ * Helpers for single-pass Poissonized bootstrap error estimation.
+ *
+ * Instead of materializing K resamples of the input, every input row is fed to K replicas of
+ * each aggregation buffer with an independent Poisson(1) weight. For large inputs this closely
+ * approximates sampling with replacement, so the spread of the K replica results gives an
+ * empirical confidence interval for any aggregate, not just those with closed-form errors.
+ */
+object PoissonBootstrap {
+
+  /** Maximum number of replicas. */
+  val MAX_TRIALS = 0xFFFF - 1
+
+  /** Weights beyond this are so unlikely (p < 1e-14) that we cap them. */
+  val MAX_WEIGHT = 16
+
+  // Cumulative distribution function of Poisson(1), used for inverse transform sampling.
+  private val POISSON_CDF: Array[Double] = {
+    val cdf = new Array[Double](MAX_WEIGHT + 1)
+    var p = math.exp(-1.0)
+    var sum = 0.0
+    var k = 0
+    while (k <= MAX_WEIGHT) {
+      sum += p
+      cdf(k) = sum
+      k += 1
+      p /= k
+    }
+    cdf
+  }
+
+  /**
+   * Create the random number generator for a partition. Seeding by the partition index keeps the
+   * weights deterministic across task retries while keeping partitions independent.
+   */
+  def newRandom(split: Int): Random = new Random(0x5DEECE66DL ^ (split * 0x9E3779B97F4A7C15L))
+
+  /** Draw the next Poisson(1) weight. */
+  def nextWeight(rand: Random): Int = {
+    val u = rand.nextDouble()
+    var k = 0
+    while (k < MAX_WEIGHT && u > POISSON_CDF(k)) {
+      k += 1
+    }
+    k
+  }
+
+  /**
+   * Append the serialized value of the next replica to the packed value of a key, as its 4-byte
+   * length followed by its bytes.
+   */
+  def appendValue(packed: BytesWritable, value: BytesWritable) {
+    val offset = packed.getLength
+    val length = value.getLength
+    packed.setSize(offset + 4 + length)
+    val bytes = packed.getBytes
+    bytes(offset) = (length >>> 24).toByte
+    bytes(offset + 1) = (length >>> 16).toByte
+    bytes(offset + 2) = (length >>> 8).toByte
+    bytes(offset + 3) = length.toByte
+    System.arraycopy(value.getBytes, 0, bytes, offset + 4, length)
+  }
+
+  /**
+   * Call f(replica, offset, length) for the serialized value of each replica in a value packed by
+   * appendValue, in replica order.
+   */
+  def foreachValue(packed: Array[Byte])(f: (Int, Int, Int) => Unit) {
+    var offset = 0
+    var replica = 0
+    while (offset < packed.length) {
+      val length = ((packed(offset) & 0xFF) << 24) | ((packed(offset + 1) & 0xFF) << 16) |
+        ((packed(offset + 2) & 0xFF) << 8) | (packed(offset + 3) & 0xFF)
+      f(replica, offset + 4, length)
+      offset += 4 + length
+      replica += 1
+    }
+  }
+
+  /**
+   * Return the (lower, upper) bounds of the percentile confidence interval over the replica
+   * estimates. The input array is sorted in place.
+   */
+  def percentileInterval(replicas: Array[Double], confidence: Double): (Double, Double) = {
+    require(replicas.length > 0)
+    java.util.Arrays.sort(replicas)
+    val alpha = (1.0 - confidence) / 2
+    val last = replicas.length - 1
+    // Guard the rank computation against floating point error, e.g. (1 - 0.9) / 2 * 100 < 5.
+    val lower = replicas(math.max(0, math.floor(alpha * last + 1e-9).toInt))
+    val upper = replicas(math.min(last, math.ceil((1.0 - alpha) * last - 1e-9).toInt))
+    (lower, upper)
+  }
+
+  /**
+   * Format an estimate with its error bar, in the same style as the closed-form approx_*
+   * aggregates: "estimate +/- error (xx% Confidence)".
+   */
+  def format(estimate: Double, replicas: Array[Double], confidence: Double): String = {
+    val error = if (replicas.isEmpty) {
+      0.0
+    } else {
+      val (lower, upper) = percentileInterval(replicas, confidence)
+      (upper - lower) / 2
+    }
+    "%s +/- %s (%d%% Confidence)".format(estimate, error, math.round(confidence * 100))
+  }
+}
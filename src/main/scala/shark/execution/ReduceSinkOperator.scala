@@ -150,7 +150,19 @@ class ReduceSinkOperator extends UnaryOperator[ReduceSinkDesc] {
     // deterministic as did Hive.
     val rand = new Random(13)
 
-    iter.map { row =>
+    // The values of all the replicas of a key, from a bootstrapping pre-shuffle group by.
+    val packedValue = new BytesWritable
+
+    iter.map { input =>
+      // A bootstrapping pre-shuffle group by emits the partial aggregations of all the replicas
+      // of a key at once. The key is taken from replica 0, and serialized once.
+      val row = input match {
+        case replicaRow: BootstrapReplicaRow =>
+          replicaRow.evaluate(0)
+          replicaRow.row
+        case _ => input
+      }
+
       // TODO: we don't need partition code for group-by or join
 
       // Determine the partition code (Hive calls it keyHashCode), used for
@@ -177,15 +189,21 @@ class ReduceSinkOperator extends UnaryOperator[ReduceSinkDesc] {
         i += 1
       }
 
-      // Evaluate the value columns.
-      i = 0
-      while (i < valueEval.length) {
-        evaluatedValue(i) = valueEval(i).evaluate(row)
-        i += 1
-      }
-
       val key = keySer.serialize(evaluatedKey, keyObjInspector).asInstanceOf[BytesWritable]
-      val value = valueSer.serialize(evaluatedValue, valObjInspector).asInstanceOf[BytesWritable]
+      val value = input match {
+        case replicaRow: BootstrapReplicaRow =>
+          packedValue.setSize(0)
+          var r = 0
+          while (r < replicaRow.numReplicas) {
+            if (r > 0) {
+              replicaRow.evaluate(r)
+            }
+            PoissonBootstrap.appendValue(packedValue, serializeValue(row, evaluatedValue))
+            r += 1
+          }
+          packedValue
+        case _ => serializeValue(row, evaluatedValue)
+      }
 
       reduceKey.bytesWritable = key
       reduceKey.partitionCode = partitionCode
@@ -193,6 +211,16 @@ class ReduceSinkOperator extends UnaryOperator[ReduceSinkDesc] {
     }
   }
 
+  // Evaluate the value columns of a row and serialize them.
+  private def serializeValue(row: Any, evaluatedValue: Array[Object]): BytesWritable = {
+    var i = 0
+    while (i < valueEval.length) {
+      evaluatedValue(i) = valueEval(i).evaluate(row)
+      i += 1
+    }
+    valueSer.serialize(evaluatedValue, valObjInspector).asInstanceOf[BytesWritable]
+  }
+
   /**
    * Process a partition when there is distinct key aggregations. One row per
    * distinct column is emitted here.
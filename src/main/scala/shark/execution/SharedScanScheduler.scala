@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.execution
+
+import java.util.{BitSet, HashMap => JHashMap}
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicInteger
+
+import scala.collection.mutable.ArrayBuffer
+
+import org.apache.hadoop.hive.ql.exec.GroupByPreShuffleOperator
+
+import org.apache.spark.rdd.{PartitionPruningRDD, RDD}
+import org.apache.spark.storage.StorageLevel
+
+import shark.{LogHelper, SharkConfVars, SharkEnv}
+import shark.execution.optimization.ColumnPruner
+import shark.execution.serialization.OperatorSerializationWrapper
+import shark.memstore2.TablePartition
+import shark.parse.CompiledPlanCache
+
+
+/**
+ * The map side of one query in a shared scan: the filters and selects between the table scan and
+ * the pre-shuffle group by, the group by itself, and the partitions left after map pruning.
+ */
+class SharedScanPipeline(
+    val operators: Seq[OperatorSerializationWrapper[UnaryOperator[_ <: HiveDesc]]],
+    val groupBy: OperatorSerializationWrapper[GroupByPreShuffleOperator],
+    val partitionsToScan: Array[Boolean])
+  extends Serializable
+
+
+/**
+ * Fuses the map side of concurrent aggregation queries over the same cached table, e.g. the
+ * bursts of queries sent by a dashboard to SharkServer. Queries whose pre-shuffle group by reads
+ * a cached table through filters and selects only, and which start within
+ * shark.sharedscan.window.ms of each other, are batched. The first query of a batch only waits
+ * while other queries may still join it: queries whose plan is not known yet, and queries planned
+ * with a group by that can share a scan of the same table RDD but has not joined a batch yet. So a
+ * query is not delayed by queries that can't join it. Each partition of the table is then decoded
+ * once and every row is pushed to the group bys of all queries in the batch. The partial aggregates
+ * are kept in one cached RDD, from which each query reads its own output and carries on with its
+ * shuffle as usual.
+ */
+object SharedScanScheduler extends LogHelper {
+
+  // Batches still accepting queries, keyed by the id of the cached table RDD they scan.
+  private val openScans = new JHashMap[Int, SharedScan]
+
+  // Queries started by a SharkDriver whose SparkTasks did not run yet, and the number of group bys
+  // of planned queries that can share a scan of each table RDD but did not join a batch. Guarded by
+  // openScans, which is notified whenever they drop.
+  private var numUnplanned = 0
+  private val candidates = new JHashMap[Int, Int]
+
+  // Whether the query running on this thread is counted in numUnplanned, and the ids of the table
+  // RDDs it is a candidate for.
+  private val isUnplanned = new ThreadLocal[Boolean] {
+    override def initialValue = false
+  }
+  private val candidateRdds = new ThreadLocal[ArrayBuffer[Int]] {
+    override def initialValue = new ArrayBuffer[Int]
+  }
+
+  // The number of scans shared by more than one query so far.
+  private[shark] val numSharedScans = new AtomicInteger
+
+  // Batches joined by queries running on this thread, released once the query has run.
+  private val joinedScans = new ThreadLocal[ArrayBuffer[SharedScan]] {
+    override def initialValue = new ArrayBuffer[SharedScan]
+  }
+
+  /**
+   * Returns the output RDD of a pre-shuffle group by computed by a shared scan, or None if the
+   * group by cannot share its scan or no other query joined the batch. Called on master.
+   */
+  def execute(groupBy: GroupByPreShuffleOperator): Option[RDD[_]] = {
+    findScan(groupBy).flatMap { case(tableScan, operators) =>
+      val tableNameSplit = tableScan.tableDesc.getTableName.split('.')
+      val tableOpt = SharkEnv.memoryMetadataManager.getMemoryTable(
+        tableNameSplit(0), tableNameSplit(1))
+      tableOpt.flatMap(_.acquireRDDAndStats).flatMap { case (tableRdd, tableStats) =>
+        val numPartitions = tableRdd.partitions.size
+        val pruningFuncOpt = tableScan.mapPruningFunc(tableRdd, tableStats)
+        val partitionsToScan = pruningFuncOpt match {
+          case Some(prunePartitionFunc) => Array.tabulate(numPartitions)(prunePartitionFunc)
+          case None => Array.fill(numPartitions)(true)
+        }
+        val pipeline = new SharedScanPipeline(
+          operators.map(op => OperatorSerializationWrapper(op)),
+          OperatorSerializationWrapper(groupBy),
+          partitionsToScan)
+        val columnsUsed = new ColumnPruner(tableScan, tableScan.table).columnsUsed
+        val window = SharkConfVars.getIntVar(
+          tableScan.localHConf, SharkConfVars.SHARED_SCAN_WINDOW)
+        join(tableRdd, pipeline, columnsUsed, window)
+      }
+    }
+  }
+
+  /** Called by a SharkDriver before it compiles and runs a query. */
+  def queryStarted() {
+    openScans.synchronized { numUnplanned += 1 }
+    isUnplanned.set(true)
+  }
+
+  /**
+   * Called once the plan of the query running on this thread is known: by a SharkDriver for a
+   * query without SparkTasks, or by registerCandidates.
+   */
+  def queryPlanned() {
+    if (isUnplanned.get) {
+      isUnplanned.set(false)
+      openScans.synchronized {
+        numUnplanned -= 1
+        openScans.notifyAll()
+      }
+    }
+  }
+
+  /** Called by a SharkDriver once a query has run. */
+  def queryFinished() {
+    queryPlanned()
+  }
+
+  /**
+   * Registers the group bys of a SparkTask's plan that can share a scan, so that the first query
+   * of a batch over the same table RDD waits for them. Called on master before the plan runs.
+   */
+  def registerCandidates(terminalOp: TerminalOperator) {
+    val rddIds = CompiledPlanCache.operators(terminalOp).collect {
+      case groupBy: GroupByPreShuffleOperator => findScan(groupBy)
+    }.flatten.flatMap { case (tableScan, _) =>
+      val tableNameSplit = tableScan.tableDesc.getTableName.split('.')
+      SharkEnv.memoryMetadataManager.getMemoryTable(tableNameSplit(0), tableNameSplit(1))
+        .flatMap(_.getRDD).map(_.id)
+    }
+    openScans.synchronized {
+      rddIds.foreach(id => candidates.put(id, numCandidates(id) + 1))
+    }
+    candidateRdds.get ++= rddIds
+    queryPlanned()
+  }
+
+  /**
+   * Releases the shared scans joined by the query that ran on this thread, and withdraws the
+   * candidates it registered but did not join with.
+   */
+  def release() {
+    joinedScans.get.foreach(_.release())
+    joinedScans.get.clear()
+    candidateRdds.get.toList.foreach(unregisterCandidate)
+  }
+
+  /**
+   * Returns the table scan feeding a group by and the operators in between, if the group by can
+   * share its scan. The path must be a single chain from a scan of an unpartitioned cached table
+   * to a file sink, since the shared output is released as soon as the query has run.
+   */
+  private def findScan(
+      groupBy: GroupByPreShuffleOperator)
+    : Option[(TableScanOperator, Seq[UnaryOperator[_ <: HiveDesc]])] = {
+    if (groupBy.bootstrapTrials > 0 || !writesToFileSink(groupBy)) {
+      None
+    } else {
+      val operators = new ArrayBuffer[UnaryOperator[_ <: HiveDesc]]
+      var op: Operator[_] = groupBy.parentOperators.head
+      while ((op.isInstanceOf[FilterOperator] || op.isInstanceOf[SelectOperator]) &&
+          op.parentOperators.size == 1 && op.childOperators.size == 1) {
+        op.asInstanceOf[UnaryOperator[_ <: HiveDesc]] +=: operators
+        op = op.parentOperators.head
+      }
+      op match {
+        case ts: TableScanOperator if ts.childOperators.size == 1 && ts.isInMemoryTableScan &&
+            !ts.table.isPartitioned &&
+            SharkConfVars.getBoolVar(ts.localHConf, SharkConfVars.SHARED_SCAN) =>
+          Some((ts, operators))
+        case _ => None
+      }
+    }
+  }
+
+  // Called with the openScans lock held.
+  private def numCandidates(rddId: Int): Int = {
+    if (candidates.containsKey(rddId)) candidates.get(rddId) else 0
+  }
+
+  // Removes a candidate of the query running on this thread, if it registered one for the RDD.
+  private def unregisterCandidate(rddId: Int) {
+    if (candidateRdds.get.contains(rddId)) {
+      candidateRdds.get -= rddId
+      openScans.synchronized {
+        val remaining = numCandidates(rddId) - 1
+        if (remaining > 0) candidates.put(rddId, remaining) else candidates.remove(rddId)
+        openScans.notifyAll()
+      }
+    }
+  }
+
+  private def writesToFileSink(op: Operator[_]): Boolean = op.childOperators.toSeq match {
+    case Seq(sink: FileSinkOperator) => true
+    case Seq(child) => writesToFileSink(child)
+    case _ => false
+  }
+
+  private def join(
+      tableRdd: RDD[_],
+      pipeline: SharedScanPipeline,
+      columnsUsed: BitSet,
+      window: Int): Option[RDD[_]] = {
+    unregisterCandidate(tableRdd.id)
+    val (scan, index, isFirst) = openScans.synchronized {
+      var scan = openScans.get(tableRdd.id)
+      val isFirst = scan == null
+      if (isFirst) {
+        scan = new SharedScan(tableRdd)
+        openScans.put(tableRdd.id, scan)
+      }
+      val index = scan.add(pipeline, columnsUsed)
+      openScans.notifyAll()
+      (scan, index, isFirst)
+    }
+
+    // The first query of a batch waits for the others, for as long as some queries may still join
+    // it, and then closes the batch.
+    if (isFirst) {
+      try {
+        openScans.synchronized {
+          val deadline = System.currentTimeMillis + window
+          var remaining = window.toLong
+          while (remaining > 0 && (numUnplanned > 0 || numCandidates(tableRdd.id) > 0)) {
+            openScans.wait(remaining)
+            remaining = deadline - System.currentTimeMillis
+          }
+        }
+      } finally {
+        openScans.synchronized { openScans.remove(tableRdd.id) }
+        scan.close()
+      }
+    }
+    scan.awaitClose()
+
+    scan.outputFor(index).map { rdd =>
+      joinedScans.get += scan
+      rdd
+    }
+  }
+
+  /**
+   * Decodes a partition of a cached table once and pushes every row to the pipelines that did not
+   * prune the partition. Returns the partial aggregates of each pipeline. Called on slaves.
+   */
+  private def scanPartition(
+      split: Int,
+      iter: Iterator[_],
+      pipelines: Seq[SharedScanPipeline],
+      columnsUsed: BitSet): Iterator[Array[ArrayBuffer[Array[Object]]]] = {
+    val outputs = Array.fill(pipelines.size)(new ArrayBuffer[Array[Object]])
+    val active = pipelines.indices.filter(i => pipelines(i).partitionsToScan(split))
+    if (iter.hasNext && !active.isEmpty) {
+      val feeds = active.map(i => new RowFeed)
+      val aggregators = active.map(i => pipelines(i).groupBy.value).map { groupBy =>
+        groupBy.initializeOnSlave()
+        new groupBy.HashAggregator
+      }
+      // Filters and selects process rows lazily, so pulling from them right after feeding them
+      // a row yields the row's output, if any.
+      val pipelineOutputs = active.zip(feeds).map { case(i, feed) =>
+        pipelines(i).operators.foldLeft[Iterator[_]](feed) { (rows, wrapper) =>
+          val op = wrapper.value
+          op.initializeOnSlave()
+          op.processPartition(split, rows)
+        }
+      }.toArray
+
+      val rows = iter.next().asInstanceOf[TablePartition].prunedIterator(columnsUsed)
+      while (rows.hasNext) {
+        val row = rows.next()
+        var i = 0
+        while (i < pipelineOutputs.length) {
+          feeds(i).row = row
+          val pipelineOutput = pipelineOutputs(i)
+          while (pipelineOutput.hasNext) {
+            aggregators(i).aggregate(pipelineOutput.next().asInstanceOf[AnyRef])
+          }
+          i += 1
+        }
+      }
+      active.zip(aggregators).foreach { case(i, aggregator) => outputs(i) ++= aggregator.result }
+    }
+    Iterator(outputs)
+  }
+
+  /** A batch of queries sharing a scan of one cached table RDD. */
+  private class SharedScan(tableRdd: RDD[_]) {
+    private val pipelines = new ArrayBuffer[SharedScanPipeline]
+    private val columnsUsed = new BitSet
+    private val closed = new CountDownLatch(1)
+    private var numActive = 0
+    @volatile private var output: RDD[Array[ArrayBuffer[Array[Object]]]] = _
+
+    def add(pipeline: SharedScanPipeline, pipelineColumnsUsed: BitSet): Int = synchronized {
+      pipelines += pipeline
+      columnsUsed.or(pipelineColumnsUsed)
+      pipelines.size - 1
+    }
+
+    def close() {
+      synchronized {
+        if (pipelines.size > 1) {
+          logInfo("Sharing a scan of RDD %d among %d queries".format(tableRdd.id, pipelines.size))
+          numSharedScans.incrementAndGet()
+          val scanPipelines = pipelines.toArray.toSeq
+          val scanColumns = columnsUsed
+          output = tableRdd.mapPartitionsWithIndex { case(split, iter) =>
+            scanPartition(split, iter, scanPipelines, scanColumns)
+          }.persist(StorageLevel.MEMORY_ONLY)
+          numActive = pipelines.size
+        }
+      }
+      closed.countDown()
+    }
+
+    def awaitClose() {
+      closed.await()
+    }
+
+    def outputFor(index: Int): Option[RDD[_]] = {
+      if (output == null) {
+        None
+      } else {
+        val partitionsToScan = pipelines(index).partitionsToScan
+        val rdd = output.mapPartitions(_.flatMap(_(index).iterator), true)
+        Some(PartitionPruningRDD.create(rdd, split => partitionsToScan(split)))
+      }
+    }
+
+    def release() {
+      synchronized {
+        numActive -= 1
+        if (numActive == 0) {
+          output.unpersist()
+        }
+      }
+    }
+  }
+}
+
+
+/** A single-row iterator that is refilled with each row of a shared scan. */
+private class RowFeed extends Iterator[Any] {
+  var row: Any = null
+
+  override def hasNext: Boolean = row != null
+
+  override def next(): Any = {
+    val current = row
+    row = null
+    current
+  }
+}
@@ -92,9 +92,9 @@ private[shark] class SharkDDLTask extends HiveTask[SharkDDLWork]
     val tableName = createTblDesc.getTableName
     val tblProps = createTblDesc.getTblProps
 
-    if (cacheMode == CacheType.TACHYON) {
+    if (CacheType.isOffHeap(cacheMode)) {
       // For Tachyon tables (partitioned or not), just create the parent directory.
-      SharkEnv.tachyonUtil.createDirectory(
+      SharkEnv.offHeapUtil(cacheMode).createDirectory(
         MemoryMetadataManager.makeTableKey(dbName, tableName), hivePartitionKeyOpt = None)
     } else {
       val isHivePartitioned = (createTblDesc.getPartCols.size > 0)
@@ -131,8 +131,8 @@ private[shark] class SharkDDLTask extends HiveTask[SharkDDLWork]
     val partColToValue: JavaMap[String, String] = addPartitionDesc.getPartSpec
     // String format for partition key: 'col1=value1/col2=value2/...'
     val partKeyStr: String = MemoryMetadataManager.makeHivePartitionKeyStr(partCols, partColToValue)
-    if (cacheMode == CacheType.TACHYON) {
-      SharkEnv.tachyonUtil.createDirectory(
+    if (CacheType.isOffHeap(cacheMode)) {
+      SharkEnv.offHeapUtil(cacheMode).createDirectory(
         MemoryMetadataManager.makeTableKey(dbName, tableName), Some(partKeyStr))
     } else {
       val partitionedTable = getPartitionedTableWithAssertions(dbName, tableName)
@@ -160,8 +160,8 @@ private[shark] class SharkDDLTask extends HiveTask[SharkDDLWork]
 
     if (partSpecs == null) {
       // The command is a true DROP TABLE.
-      if (cacheMode == CacheType.TACHYON) {
-        SharkEnv.tachyonUtil.dropTable(tableKey, hivePartitionKeyOpt = None)
+      if (CacheType.isOffHeap(cacheMode)) {
+        SharkEnv.offHeapUtil(cacheMode).dropTable(tableKey, hivePartitionKeyOpt = None)
       } else {
         SharkEnv.memoryMetadataManager.removeTable(dbName, tableName)
       }
@@ -173,8 +173,8 @@ private[shark] class SharkDDLTask extends HiveTask[SharkDDLWork]
         val partColToValue: JavaMap[String, String] = partSpec.getPartSpecWithoutOperator
         // String format for partition key: 'col1=value1/col2=value2/...'
         val partKeyStr = MemoryMetadataManager.makeHivePartitionKeyStr(partCols, partColToValue)
-        if (cacheMode == CacheType.TACHYON) {
-          SharkEnv.tachyonUtil.dropTable(tableKey, Some(partKeyStr))
+        if (CacheType.isOffHeap(cacheMode)) {
+          SharkEnv.offHeapUtil(cacheMode).dropTable(tableKey, Some(partKeyStr))
         } else {
           val partitionedTable = getPartitionedTableWithAssertions(dbName, tableName)
           getPartitionedTableWithAssertions(dbName, tableName).removePartition(partKeyStr)
@@ -200,10 +200,10 @@ private[shark] class SharkDDLTask extends HiveTask[SharkDDLWork]
       case AlterTableDesc.AlterTableTypes.RENAME => {
         val oldName = alterTableDesc.getOldName
         val newName = alterTableDesc.getNewName
-        if (cacheMode == CacheType.TACHYON) {
+        if (CacheType.isOffHeap(cacheMode)) {
           val oldTableKey = MemoryMetadataManager.makeTableKey(dbName, oldName)
           val newTableKey = MemoryMetadataManager.makeTableKey(dbName, newName)
-          SharkEnv.tachyonUtil.renameDirectory(oldTableKey, newTableKey)
+          SharkEnv.offHeapUtil(cacheMode).renameDirectory(oldTableKey, newTableKey)
         } else {
           SharkEnv.memoryMetadataManager.renameTable(dbName, oldName, newName)
         }
@@ -29,29 +29,41 @@ import org.apache.hadoop.hive.ql.exec.{ExplainTask, Task}
 import org.apache.hadoop.hive.ql.plan.ExplainWork
 import org.apache.hadoop.util.StringUtils
 
-import shark.LogHelper
+import shark.{LogHelper, SharkConfVars}
 
 
+/**
+ * @param analyze Whether the Shark query plans are run, and printed with the runtime metrics of
+ *     each operator (EXPLAIN ANALYZE).
+ */
 class SharkExplainWork(
   resFile: String,
   rootTasks: JavaList[Task[_ <: java.io.Serializable]],
   astStringTree: String,
-  extended: Boolean)
+  extended: Boolean,
+  val analyze: Boolean = false)
  extends ExplainWork(resFile, rootTasks, astStringTree, extended, false)
 
 
 /**
- * SharkExplainTask executes EXPLAIN for RDD operators.
+ * SharkExplainTask executes EXPLAIN for RDD operators. For EXPLAIN ANALYZE, it first runs each
+ * Shark query plan with shark.exec.operatorMetrics set, so that the operators in the printed plan
+ * carry their runtime metrics.
  */
 class SharkExplainTask extends Task[SharkExplainWork] with java.io.Serializable with LogHelper {
 
   val hiveExplainTask = new ExplainTask
 
+  @transient private var _queryPlan: QueryPlan = _
+
   override def execute(driverContext: DriverContext): Int = {
     logDebug("Executing " + this.getClass.getName())
     hiveExplainTask.setWork(work)
 
     try {
+      // Run the queries first, and keep the summary of each run.
+      val runSummaries: Map[Int, String] = if (work.analyze) runSparkTasks(driverContext) else Map()
+
       val resFile = new Path(work.getResFile())
       val outS = resFile.getFileSystem(conf).create(resFile)
       val out = new PrintStream(outS)
@@ -72,6 +84,7 @@ class SharkExplainTask extends Task[SharkExplainWork] with java.io.Serializable
           task match {
             case sparkTask: SparkTask => {
               out.println("SHARK QUERY PLAN #%d:".format(taskIndex))
+              runSummaries.get(taskIndex).foreach(summary => out.println("  " + summary))
               val terminalOp = sparkTask.getWork().terminalOperator
               ExplainTaskHelper.outputPlan(terminalOp, out, work.getExtended, 2)
               out.println()
@@ -93,7 +106,35 @@ class SharkExplainTask extends Task[SharkExplainWork] with java.io.Serializable
     }
   }
 
+  /**
+   * Runs the Shark query plans among the root tasks, collecting operator metrics, and returns a
+   * summary of each run by task index. Plans that write to a cached table are not run.
+   */
+  private def runSparkTasks(driverContext: DriverContext): Map[Int, String] = {
+    val collectMetrics = SharkConfVars.getBoolVar(conf, SharkConfVars.OPERATOR_METRICS)
+    conf.setBoolean(SharkConfVars.OPERATOR_METRICS.varname, true)
+    try {
+      work.getRootTasks.zipWithIndex.collect {
+        case (sparkTask: SparkTask, taskIndex)
+            if sparkTask.getWork.terminalOperator.isInstanceOf[MemoryStoreSinkOperator] =>
+          (taskIndex, "Not run: EXPLAIN ANALYZE does not run queries that write to cached tables")
+        case (sparkTask: SparkTask, taskIndex) =>
+          val startTime = System.currentTimeMillis
+          sparkTask.initialize(conf, _queryPlan, driverContext)
+          sparkTask.executeTask()
+          // Plans that return their results to the driver are only run when the results are read.
+          val numRowsOpt = sparkTask.tableRdd.map(_.count())
+          val timeTaken = System.currentTimeMillis - startTime
+          (taskIndex, "Run in %d ms%s".format(
+            timeTaken, numRowsOpt.map(", %d rows returned".format(_)).getOrElse("")))
+      }.toMap
+    } finally {
+      conf.setBoolean(SharkConfVars.OPERATOR_METRICS.varname, collectMetrics)
+    }
+  }
+
   override def initialize(conf: HiveConf, queryPlan: QueryPlan, driverContext: DriverContext) {
+    _queryPlan = queryPlan
     hiveExplainTask.initialize(conf, queryPlan, driverContext)
     super.initialize(conf, queryPlan, driverContext)
   }
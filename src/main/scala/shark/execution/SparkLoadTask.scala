@@ -36,7 +36,7 @@ import org.apache.hadoop.hive.serde2.objectinspector.{ObjectInspector, StructObj
 import org.apache.hadoop.io.Writable
 import org.apache.hadoop.mapred.{FileInputFormat, InputFormat}
 
-import org.apache.spark.SerializableWritable
+import org.apache.spark.{SerializableWritable, SparkEnv}
 import org.apache.spark.broadcast.Broadcast
 import org.apache.spark.rdd.RDD
 import org.apache.spark.storage.StorageLevel
@@ -189,6 +189,11 @@ class SparkLoadTask extends HiveTask[SparkLoadWork] with Serializable with LogHe
    * @param inputOI Object inspector used to read rows from `inputRdd`.
    * @param hivePartitionKeyOpt A defined Hive partition key if the RDD being loaded is part of a
    *        Hive-partitioned table.
+   * @param textPartValuesOpt Defined if `inputRdd` contains undeserialized lines of delimited text
+   *        to parse directly into columns, with the values of the Hive partition columns (empty if
+   *        the table isn't Hive-partitioned). See DelimitedTextParser.
+   * @param sortColumnOpt The position of the column to range-partition and sort the rows on, if
+   *        the table has a "shark.cache.sortBy" property. Rows are then never parsed directly.
    */
   private def materialize(
       inputRdd: RDD[_],
@@ -196,42 +201,62 @@ class SparkLoadTask extends HiveTask[SparkLoadWork] with Serializable with LogHe
       broadcastedHiveConf: Broadcast[SerializableWritable[HiveConf]],
       inputOI: StructObjectInspector,
       tableKey: String,
-      hivePartitionKeyOpt: Option[String]) = {
+      hivePartitionKeyOpt: Option[String],
+      textPartValuesOpt: Option[Seq[String]],
+      sortColumnOpt: Option[Int]) = {
     val statsAcc = SharkEnv.sc.accumulableCollection(ArrayBuffer[(Int, TablePartitionStats)]())
-    val tachyonWriter = if (work.cacheMode == CacheType.TACHYON) {
+    val tachyonWriter = if (CacheType.isOffHeap(work.cacheMode)) {
       // Find the number of columns in the table schema using `serDeProps`.
       val numColumns = serDeProps.getProperty(Constants.LIST_COLUMNS).split(',').size
       // Use an additional row to store metadata (e.g. number of rows in each partition).
-      SharkEnv.tachyonUtil.createTableWriter(tableKey, hivePartitionKeyOpt, numColumns + 1)
+      SharkEnv.offHeapUtil(work.cacheMode).createTableWriter(
+        tableKey, hivePartitionKeyOpt, numColumns + 1)
     } else {
       null
     }
-    val serializedOI = KryoSerializer.serialize(inputOI)
-    var transformedRdd = inputRdd.mapPartitionsWithIndex { case (partIndex, partIter) =>
+    val sortColumn = sortColumnOpt.getOrElse(-1)
+    val (rowRdd, serializedOI) = sortColumnOpt match {
+      case Some(column) =>
+        logInfo("Sorting %s on column %d".format(tableKey, column))
+        (TableSorter.sortRows(inputRdd, KryoSerializer.serialize(inputOI), column),
+          KryoSerializer.serialize(TableSorter.sortedRowObjectInspector(inputOI)))
+      case None =>
+        (inputRdd, KryoSerializer.serialize(inputOI))
+    }
+    var transformedRdd = rowRdd.mapPartitionsWithIndex { case (partIndex, partIter) =>
       val serde = new ColumnarSerDe
       serde.initialize(broadcastedHiveConf.value.value, serDeProps)
-      val localInputOI = KryoSerializer.deserialize[ObjectInspector](serializedOI)
       var builder: Writable = null
-      partIter.foreach { row =>
-        builder = serde.serialize(row.asInstanceOf[AnyRef], localInputOI)
+      textPartValuesOpt match {
+        case Some(partValues) =>
+          val parser = new DelimitedTextParser(serde.serDeParams, partValues)
+          partIter.foreach { row =>
+            builder = serde.serializeText(row.asInstanceOf[Writable], parser)
+          }
+        case None =>
+          val localInputOI = KryoSerializer.deserialize[ObjectInspector](serializedOI)
+          partIter.foreach { row =>
+            builder = serde.serialize(row.asInstanceOf[AnyRef], localInputOI)
+          }
       }
       if (builder == null) {
         // Empty partition.
         statsAcc += Tuple2(partIndex, new TablePartitionStats(Array.empty, 0))
         Iterator(new TablePartition(0, Array()))
       } else {
-        statsAcc += Tuple2(partIndex, builder.asInstanceOf[TablePartitionBuilder].stats)
+        val stats = builder.asInstanceOf[TablePartitionBuilder].stats
+        statsAcc += Tuple2(partIndex, if (sortColumn >= 0) stats.sortedOn(sortColumn) else stats)
         Iterator(builder.asInstanceOf[TablePartitionBuilder].build())
       }
     }
     // Run a job to materialize the RDD.
-    if (work.cacheMode == CacheType.TACHYON) {
+    if (CacheType.isOffHeap(work.cacheMode)) {
       // Put the table in Tachyon.
-      logInfo("Putting RDD for %s in Tachyon".format(tableKey))
+      logInfo("Putting RDD for %s in %s".format(tableKey, work.cacheMode))
       if (work.commandType == SparkLoadWork.CommandTypes.OVERWRITE &&
-          SharkEnv.tachyonUtil.tableExists(tableKey, hivePartitionKeyOpt)) {
+          SharkEnv.offHeapUtil(work.cacheMode).tableExists(tableKey, hivePartitionKeyOpt)) {
         // For INSERT OVERWRITE, delete the old table or Hive partition directory, if it exists.
-        SharkEnv.tachyonUtil.dropTable(tableKey, hivePartitionKeyOpt)
+        SharkEnv.offHeapUtil(work.cacheMode).dropTable(tableKey, hivePartitionKeyOpt)
       }
       tachyonWriter.createTable(ByteBuffer.allocate(0))
       transformedRdd = transformedRdd.mapPartitionsWithIndex { case(part, iter) =>
@@ -244,9 +269,14 @@ class SparkLoadTask extends HiveTask[SparkLoadWork] with Serializable with LogHe
     } else {
       transformedRdd.persist(StorageLevel.MEMORY_AND_DISK)
     }
-    transformedRdd.context.runJob(
-      transformedRdd, (iter: Iterator[TablePartition]) => iter.foreach(_ => Unit))
-    if (work.cacheMode == CacheType.TACHYON) {
+    // Each task returns the host of its block manager, recorded as the location of the partition
+    // it wrote to an off-heap store.
+    val hosts = transformedRdd.context.runJob(transformedRdd, (iter: Iterator[TablePartition]) => {
+      iter.foreach(_ => Unit)
+      SparkEnv.get.blockManager.blockManagerId.host
+    })
+    if (CacheType.isOffHeap(work.cacheMode)) {
+      tachyonWriter.writePartitionLocations(hosts)
       tachyonWriter.updateMetadata(ByteBuffer.wrap(JavaSerializer.serialize(statsAcc.value.toMap)))
     }
     (transformedRdd, statsAcc.value)
@@ -292,8 +322,17 @@ class SparkLoadTask extends HiveTask[SparkLoadWork] with Serializable with LogHe
     val tableSchema = hiveTable.getSchema
     val serDe = hiveTable.getDeserializer
     serDe.initialize(conf, tableSchema)
+    val sortColumnOpt = SparkLoadTask.getSortColumn(hiveTable)
+    val parseText = sortColumnOpt.isEmpty &&
+      DelimitedTextParser.canParse(conf, serDe.getClass, tableSchema)
     // Scan the Hive table's data directory.
-    val inputRDD = hadoopReader.makeRDDForTable(hiveTable, serDe.getClass, pathFilterOpt)
+    val inputRDD = if (parseText) {
+      logInfo("Parsing delimited text of %s.%s directly into columns".format(
+        databaseName, tableName))
+      hadoopReader.makeRawRDDForTable(hiveTable, pathFilterOpt)
+    } else {
+      hadoopReader.makeRDDForTable(hiveTable, serDe.getClass, pathFilterOpt)
+    }
     // Transform the HadoopRDD to an RDD[TablePartition].
     val (tablePartitionRDD, tableStats) = materialize(
       inputRDD,
@@ -301,14 +340,17 @@ class SparkLoadTask extends HiveTask[SparkLoadWork] with Serializable with LogHe
       hadoopReader.broadcastedHiveConf,
       serDe.getObjectInspector.asInstanceOf[StructObjectInspector],
       MemoryMetadataManager.makeTableKey(databaseName, tableName),
-      hivePartitionKeyOpt = None)
-    if (work.cacheMode != CacheType.TACHYON) {
+      hivePartitionKeyOpt = None,
+      textPartValuesOpt = if (parseText) Some(Nil) else None,
+      sortColumnOpt = sortColumnOpt)
+    if (!CacheType.isOffHeap(work.cacheMode)) {
       val memoryTable = getOrCreateMemoryTable(hiveTable)
       work.commandType match {
         case (SparkLoadWork.CommandTypes.OVERWRITE | SparkLoadWork.CommandTypes.NEW_ENTRY) =>
           memoryTable.put(tablePartitionRDD, tableStats.toMap)
         case SparkLoadWork.CommandTypes.INSERT => {
           memoryTable.update(tablePartitionRDD, tableStats)
+          SharkEnv.memoryMetadataManager.compactor.compactIfNeeded(memoryTable, conf, tableSchema)
         }
       }
     }
@@ -371,6 +413,7 @@ class SparkLoadTask extends HiveTask[SparkLoadWork] with Serializable with LogHe
     val databaseName = hiveTable.getDbName
     val tableName = hiveTable.getTableName
     val partCols = hiveTable.getPartCols.map(_.getName)
+    val sortColumnOpt = SparkLoadTask.getSortColumn(hiveTable)
 
     for (partSpec <- partSpecs) {
       // Read, materialize, and store a columnar-backed RDD for `partSpec`.
@@ -383,16 +426,24 @@ class SparkLoadTask extends HiveTask[SparkLoadWork] with Serializable with LogHe
       // columns and the partition columns.
       val unionOI = HiveUtils.makeUnionOIForPartitionedTable(partSchema, partSerDe)
       // Create a HadoopRDD for the file scan.
-      val inputRDD = hadoopReader.makeRDDForPartitionedTable(
-        Map(partition -> partSerDe.getClass), pathFilterOpt)
+      val parseText = sortColumnOpt.isEmpty &&
+        DelimitedTextParser.canParse(conf, partSerDe.getClass, partSchema)
+      val inputRDD = if (parseText) {
+        hadoopReader.makeRawRDDForPartition(partition, pathFilterOpt)
+      } else {
+        hadoopReader.makeRDDForPartitionedTable(
+          Map(partition -> partSerDe.getClass), pathFilterOpt)
+      }
       val (tablePartitionRDD, tableStats) = materialize(
         inputRDD,
         SparkLoadTask.addPartitionInfoToSerDeProps(partCols, partition.getSchema),
         hadoopReader.broadcastedHiveConf,
         unionOI,
         MemoryMetadataManager.makeTableKey(databaseName, tableName),
-        Some(partitionKey))
-      if (work.cacheMode != CacheType.TACHYON) {
+        Some(partitionKey),
+        if (parseText) Some(partCols.map(partSpec.get(_))) else None,
+        sortColumnOpt)
+      if (!CacheType.isOffHeap(work.cacheMode)) {
         // Handle appends or overwrites.
         val partitionedTable = getOrCreatePartitionedMemoryTable(hiveTable, partSpec)
         if (partitionedTable.containsPartition(partitionKey) &&
@@ -415,6 +466,11 @@ class SparkLoadTask extends HiveTask[SparkLoadWork] with Serializable with LogHe
 
 object SparkLoadTask {
 
+  /** Returns the position of the column the table is sorted on when cached, if any. */
+  private def getSortColumn(hiveTable: HiveTable): Option[Int] = {
+    SharkTblProperties.getSortColumn(hiveTable.getParameters, hiveTable.getCols).filter(_ >= 0)
+  }
+
   /**
    * Returns a copy of `baseSerDeProps` with the names and types for the table's partitioning
    * columns appended to respective row metadata properties.
@@ -34,6 +34,7 @@ import org.apache.spark.rdd.RDD
 
 import shark.api.TableRDD
 import shark.{LogHelper, SharkEnv}
+import shark.memstore2.MemoryTable
 
 
 class SparkWork(
@@ -43,6 +44,12 @@ class SparkWork(
 extends java.io.Serializable
 
 
+private[shark] object SparkTask {
+  // The local property SparkContext.setJobGroup sets the job group of a thread's jobs in.
+  val JOB_GROUP_PROPERTY = "spark.jobGroup.id"
+}
+
+
 /**
  * SparkTask executes a query plan composed of RDD operators.
  */
@@ -87,24 +94,39 @@ class SparkTask extends HiveTask[SparkWork] with Serializable with LogHelper {
     initializeTableScanTableDesc(tableScanOps)
 
     terminalOp.initializeMasterOnAll()
+    SharedScanScheduler.registerCandidates(terminalOp)
 
-    // Set Spark's job description to be this query.
-    SharkEnv.sc.setJobGroup("shark.job", work.pctx.getContext.getCmd)
+    // Set Spark's job description to be this query. Keep the job group of a SharkServer session,
+    // through which the server cancels the jobs of the session's queries.
+    val jobGroup = Option(SharkEnv.sc.getLocalProperty(SparkTask.JOB_GROUP_PROPERTY))
+      .getOrElse("shark.job")
+    SharkEnv.sc.setJobGroup(jobGroup, work.pctx.getContext.getCmd)
 
     // Set the fair scheduler's pool using mapred.fairscheduler.pool if it is defined.
     Option(conf.get("mapred.fairscheduler.pool")).foreach { pool =>
       SharkEnv.sc.setLocalProperty("spark.scheduler.pool", pool)
     }
 
-    val sinkRdd = terminalOp.execute().asInstanceOf[RDD[Any]]
+    _tableRdd = None
+    try {
+      val sinkRdd = terminalOp.execute().asInstanceOf[RDD[Any]]
 
-    val limit = terminalOp.parentOperators.head match {
-      case op: LimitOperator => op.limit
-      case _ => -1
-    }
+      val limit = terminalOp.parentOperators.head match {
+        case op: LimitOperator => op.limit
+        case _ => -1
+      }
 
-    if (terminalOp.isInstanceOf[TableRddSinkOperator]) {
-      _tableRdd = Some(new TableRDD(sinkRdd, work.resultSchema, terminalOp.objectInspector, limit))
+      if (terminalOp.isInstanceOf[TableRddSinkOperator]) {
+        _tableRdd = Some(
+          new TableRDD(sinkRdd, work.resultSchema, terminalOp.objectInspector, limit))
+      }
+    } finally {
+      SharedScanScheduler.release()
+      // A TableRDD is computed after the query ran, so it keeps the cached data it reads from.
+      _tableRdd match {
+        case Some(rdd) => MemoryTable.keepSnapshots(rdd)
+        case None => MemoryTable.releaseSnapshots()
+      }
     }
 
     0
@@ -128,6 +150,7 @@ class SparkTask extends HiveTask[SparkWork] with Serializable with LogHelper {
           work.pctx.getPrunedPartitions())
         op.parts = ppl.getConfirmedPartns.toArray(emptyPartnArray) ++
           ppl.getUnknownPartns.toArray(emptyPartnArray)
+        op.hasUnknownParts = !ppl.getUnknownPartns.isEmpty
         val allParts = op.parts ++ ppl.getDeniedPartns.toArray
         if (allParts.size == 0) {
           op.firstConfPartDesc = new PartitionDesc(op.tableDesc, null)
@@ -17,8 +17,10 @@
 
 package shark.execution
 
+import scala.collection.JavaConversions._
 import scala.collection.mutable.{ArrayBuffer, HashMap}
 
+import org.apache.hadoop.hive.conf.HiveConf
 import org.apache.hadoop.hive.metastore.api.Constants.META_TABLE_PARTITION_COLUMNS
 import org.apache.hadoop.hive.ql.exec.Utilities
 import org.apache.hadoop.hive.ql.metadata.{Partition => HivePartition, Table => HiveTable}
@@ -26,17 +28,20 @@ import org.apache.hadoop.hive.ql.plan.TableDesc
 
 import org.apache.spark.rdd.{EmptyRDD, RDD, UnionRDD}
 
-import shark.{LogHelper, SharkEnv}
+import shark.{LogHelper, SharkConfVars, SharkEnv}
 import shark.api.QueryExecutionException
 import shark.execution.serialization.JavaSerializer
-import shark.memstore2.{MemoryMetadataManager, Table, TablePartition, TablePartitionStats}
+import shark.memstore2.{ColumnarSerDe, MemoryMetadataManager, Table, TablePartition,
+  TablePartitionStats}
+import shark.memstore2.CacheType.CacheType
 import shark.tachyon.TachyonException
 
 
 /**
  * A trait for subclasses that handle table scans. In Shark, there is one subclass for each
  * type of table storage: HeapTableReader for Shark tables in Spark's block manager,
- * TachyonTableReader for tables in Tachyon, and HadoopTableReader for Hive tables in a filesystem.
+ * OffHeapTableReader for tables in Tachyon or the local filesystem store, and HadoopTableReader for
+ * Hive tables in a filesystem.
  */
 trait TableReader extends LogHelper {
 
@@ -53,8 +58,11 @@ trait TableReader extends LogHelper {
     ): RDD[_]
 }
 
-/** Helper class for scanning tables stored in Tachyon. */
-class TachyonTableReader(@transient _tableDesc: TableDesc) extends TableReader {
+/** Helper class for scanning tables stored off-heap, in Tachyon or the local filesystem store. */
+class OffHeapTableReader(@transient _tableDesc: TableDesc, @transient _cacheMode: CacheType)
+  extends TableReader {
+
+  @transient private val _util = SharkEnv.offHeapUtil(_cacheMode)
 
   // Split from 'databaseName.tableName'
   private val _tableNameSplit = _tableDesc.getTableName.split('.')
@@ -115,11 +123,11 @@ class TachyonTableReader(@transient _tableDesc: TableDesc) extends TableReader {
       tableKey: String,
       hivePartitionKeyOpt: Option[String],
       pruningFnOpt: Option[PruningFunctionType]): RDD[Any] = {
-    // Check that the table is in Tachyon.
-    if (!SharkEnv.tachyonUtil.tableExists(tableKey, hivePartitionKeyOpt)) {
-      throw new TachyonException("Table " + tableKey + " does not exist in Tachyon")
+    // Check that the table is in Tachyon, or in the local filesystem store.
+    if (!_util.tableExists(tableKey, hivePartitionKeyOpt)) {
+      throw new TachyonException("Table %s does not exist in %s".format(tableKey, _cacheMode))
     }
-    val tableRDDsAndStats = SharkEnv.tachyonUtil.createRDD(tableKey, hivePartitionKeyOpt)
+    val tableRDDsAndStats = _util.createRDD(tableKey, hivePartitionKeyOpt)
     val prunedRDDs = if (pruningFnOpt.isDefined) {
       val pruningFn = pruningFnOpt.get
       tableRDDsAndStats.map(tableRDDWithStats =>
@@ -138,7 +146,8 @@ class TachyonTableReader(@transient _tableDesc: TableDesc) extends TableReader {
 }
 
 /** Helper class for scanning tables stored in Spark's block manager */
-class HeapTableReader(@transient _tableDesc: TableDesc) extends TableReader {
+class HeapTableReader(@transient _tableDesc: TableDesc, @transient _localHConf: HiveConf)
+  extends TableReader {
 
   // Split from 'databaseName.tableName'
   private val _tableNameSplit = _tableDesc.getTableName.split('.')
@@ -156,16 +165,15 @@ class HeapTableReader(@transient _tableDesc: TableDesc) extends TableReader {
       throwMissingTableException()
     }
 
-    val table = tableOpt.get
-    val tableRdd = table.getRDD.get
-    val tableStats = table.getStats.get
+    val (tableRdd, tableStats) = tableOpt.get.acquireRDDAndStats.get
     // Prune if an applicable function is given.
     pruningFnOpt.map(_(tableRdd, tableStats)).getOrElse(tableRdd)
   }
 
   /**
-   * Fetches an RDD from the Shark metastore for each partition key given. Returns a single, unioned
-   * RDD representing all of the specified partition keys.
+   * Fetches an RDD from the Shark metastore for each partition key given. Returns a single RDD
+   * representing all of the specified partition keys. Unless shark.scan.coalesce.mb is 0, the
+   * cached partitions of all Hive partitions are grouped into tasks of about that size.
    *
    * @param partitions A collection of Hive-partition metadata, such as partition columns and
    *     partition key specifications.
@@ -174,15 +182,21 @@ class HeapTableReader(@transient _tableDesc: TableDesc) extends TableReader {
       partitions: Seq[HivePartition],
       pruningFnOpt: Option[PruningFunctionType] = None
     ): RDD[_] = {
-    val hivePartitionRDDs = partitions.map { partition =>
-      val partDesc = Utilities.getPartitionDesc(partition)
-      // Get partition field info
-      val partSpec = partDesc.getPartSpec()
-      val partProps = partDesc.getProperties()
+    if (partitions.isEmpty) {
+      return new EmptyRDD[Object](SharkEnv.sc)
+    }
 
-      val partColsDelimited = partProps.getProperty(META_TABLE_PARTITION_COLUMNS)
-      // Partitioning columns are delimited by "/"
-      val partCols = partColsDelimited.trim().split("/").toSeq
+    // Look up the table once; its Hive partitions are then found by key.
+    val hivePartitionedTableOpt = SharkEnv.memoryMetadataManager.getPartitionedTable(
+      _databaseName, _tableName)
+    if (hivePartitionedTableOpt.isEmpty) {
+      throwMissingTableException()
+    }
+    val hivePartitionedTable = hivePartitionedTableOpt.get
+    val partCols = partitions.head.getTable.getPartitionKeys.map(_.getName)
+
+    val scans = partitions.map { partition =>
+      val partSpec = partition.getSpec
       // 'partValues[i]' contains the value for the partitioning column at 'partCols[i]'.
       val partValues = if (partSpec == null) {
         Array.fill(partCols.size)(new String)
@@ -191,13 +205,6 @@ class HeapTableReader(@transient _tableDesc: TableDesc) extends TableReader {
       }
 
       val partitionKeyStr = MemoryMetadataManager.makeHivePartitionKeyStr(partCols, partSpec)
-      val hivePartitionedTableOpt = SharkEnv.memoryMetadataManager.getPartitionedTable(
-        _databaseName, _tableName)
-      if (hivePartitionedTableOpt.isEmpty) {
-        throwMissingTableException()
-      }
-      val hivePartitionedTable = hivePartitionedTableOpt.get
-
       val rddAndStatsOpt = hivePartitionedTable.getPartitionAndStats(partitionKeyStr)
       if (rddAndStatsOpt.isEmpty) {
         throwMissingPartitionException(partitionKeyStr)
@@ -205,24 +212,48 @@ class HeapTableReader(@transient _tableDesc: TableDesc) extends TableReader {
       val (hivePartitionRDD, hivePartitionStats) = (rddAndStatsOpt.get._1, rddAndStatsOpt.get._2)
       val prunedPartitionRDD = pruningFnOpt.map(_(hivePartitionRDD, hivePartitionStats))
         .getOrElse(hivePartitionRDD)
-      prunedPartitionRDD.mapPartitions { iter =>
-        if (iter.hasNext) {
-          // Map each tuple to a row object
-          val rowWithPartArr = new Array[Object](2)
-          iter.map { value =>
-            rowWithPartArr.update(0, value.asInstanceOf[Object])
-            rowWithPartArr.update(1, partValues)
-            rowWithPartArr.asInstanceOf[Object]
+      val knownStats = hivePartitionStats.values.filter(_ != null)
+      val rowsPerSplit = if (knownStats.isEmpty) -1L else {
+        knownStats.map(_.numRows).sum / knownStats.size
+      }
+      (prunedPartitionRDD, partValues, rowsPerSplit)
+    }
+
+    val targetSize = SharkConfVars.getIntVar(_localHConf, SharkConfVars.SCAN_COALESCE_SIZE) *
+      1024L * 1024L
+    if (targetSize > 0) {
+      val rowSize = {
+        val serde = new ColumnarSerDe
+        serde.initialize(null, _tableDesc.getProperties)
+        ColumnarSerDe.getFieldSize(serde.getObjectInspector)
+      }
+      // Used for partitions whose blocks the block managers do not report, e.g. evicted ones.
+      // Those without stats as well are read in a task of their own.
+      val estimatedSplitSizes = scans.map { case(_, _, rows) =>
+        if (rows < 0) targetSize else rows * rowSize
+      }
+      val rdd = CoalescedTableScanRDD(
+        scans.map(_._1), scans.map(_._2), estimatedSplitSizes, targetSize)
+      logInfo("Scanning %d Hive partitions of %s.%s in %d tasks".format(
+        partitions.size, _databaseName, _tableName, rdd.partitions.size))
+      rdd
+    } else {
+      val hivePartitionRDDs = scans.map { case(prunedPartitionRDD, partValues, _) =>
+        prunedPartitionRDD.mapPartitions { iter =>
+          if (iter.hasNext) {
+            // Map each tuple to a row object
+            val rowWithPartArr = new Array[Object](2)
+            iter.map { value =>
+              rowWithPartArr.update(0, value.asInstanceOf[Object])
+              rowWithPartArr.update(1, partValues)
+              rowWithPartArr.asInstanceOf[Object]
+            }
+          } else {
+           Iterator.empty
           }
-        } else {
-         Iterator.empty
         }
       }
-    }
-    if (hivePartitionRDDs.size > 0) {
       new UnionRDD(hivePartitionRDDs.head.context, hivePartitionRDDs)
-    } else {
-      new EmptyRDD[Object](SharkEnv.sc)
     }
   }
 
@@ -20,6 +20,7 @@ package shark.execution
 import java.util.{ArrayList, Arrays}
 
 import scala.collection.JavaConversions._
+import scala.collection.mutable.HashMap
 import scala.reflect.BeanProperty
 
 import org.apache.hadoop.hive.conf.HiveConf
@@ -41,6 +42,7 @@ import shark.memstore2.CacheType
 import shark.memstore2.CacheType._
 import shark.memstore2.{ColumnarSerDe, MemoryMetadataManager}
 import shark.memstore2.{TablePartition, TablePartitionStats}
+import shark.memstore2.column.KeyRange
 import shark.util.HiveUtils
 
 
@@ -59,6 +61,10 @@ class TableScanOperator extends TopOperator[TableScanDesc] {
   // table isn't Hive-partitioned. Set in SparkTask::initializeTableScanTableDesc().
   @transient var parts: Array[Partition] = _
 
+  // Whether partition pruning could not decide if some of `parts` pass the query's filters. Set in
+  // SparkTask::initializeTableScanTableDesc().
+  @transient var hasUnknownParts = false
+
   // For convenience, a local copy of the HiveConf for this task.
   @transient var localHConf: HiveConf = _
 
@@ -90,7 +96,7 @@ class TableScanOperator extends TopOperator[TableScanDesc] {
 
   override def outputObjectInspector() = {
     if (parts == null) {
-      val serializer = if (isInMemoryTableScan || cacheMode == CacheType.TACHYON) {
+      val serializer = if (isInMemoryTableScan || CacheType.isOffHeap(cacheMode)) {
         new ColumnarSerDe
       } else {
         tableDesc.getDeserializerClass().newInstance()
@@ -99,7 +105,7 @@ class TableScanOperator extends TopOperator[TableScanDesc] {
       serializer.getObjectInspector()
     } else {
       val partProps = firstConfPartDesc.getProperties()
-      val partSerDe = if (isInMemoryTableScan || cacheMode == CacheType.TACHYON) {
+      val partSerDe = if (isInMemoryTableScan || CacheType.isOffHeap(cacheMode)) {
         new ColumnarSerDe
       } else {
         firstConfPartDesc.getDeserializerClass().newInstance()
@@ -110,6 +116,18 @@ class TableScanOperator extends TopOperator[TableScanDesc] {
   }
 
   override def execute(): RDD[_] = {
+    val metrics = this.metrics
+    val rdd = executeScan()
+    if (metrics == null) {
+      rdd
+    } else {
+      rdd.mapPartitions { iter =>
+        OperatorMetrics.measure(metrics, null, iter, isSource = true)(identity)
+      }
+    }
+  }
+
+  private def executeScan(): RDD[_] = {
     assert(parentOperators.size == 0)
 
     val tableNameSplit = tableDesc.getTableName.split('.') // Split from 'databaseName.tableName'
@@ -118,19 +136,19 @@ class TableScanOperator extends TopOperator[TableScanDesc] {
 
     // There are three places we can load the table from.
     // 1. Spark heap (block manager), accessed through the Shark MemoryMetadataManager
-    // 2. Tachyon table
+    // 2. Tachyon table, or table in the local filesystem store
     // 3. Hive table on HDFS (or other Hadoop storage)
     // TODO(harvey): Pruning Hive-partitioned, cached tables isn't supported yet.
-    if (isInMemoryTableScan || cacheMode == CacheType.TACHYON) {
+    if (isInMemoryTableScan || CacheType.isOffHeap(cacheMode)) {
       if (isInMemoryTableScan) {
         assert(cacheMode == CacheType.MEMORY || cacheMode == CacheType.MEMORY_ONLY,
           "Table %s.%s is in Shark metastore, but its cacheMode (%s) indicates otherwise".
             format(databaseName, tableName, cacheMode))
       }
-      val tableReader = if (cacheMode == CacheType.TACHYON) {
-        new TachyonTableReader(tableDesc)
+      val tableReader = if (CacheType.isOffHeap(cacheMode)) {
+        new OffHeapTableReader(tableDesc, cacheMode)
       } else {
-        new HeapTableReader(tableDesc)
+        new HeapTableReader(tableDesc, localHConf)
       }
       if (table.isPartitioned) {
         tableReader.makeRDDForPartitionedTable(parts, Some(createPrunedRdd _))
@@ -146,20 +164,98 @@ class TableScanOperator extends TopOperator[TableScanDesc] {
   private def createPrunedRdd(
       rdd: RDD[_],
       indexToStats: collection.Map[Int, TablePartitionStats]): RDD[_] = {
-    // Run map pruning if the flag is set, there exists a filter predicate on
-    // the input table and we have statistics on the table.
     val columnsUsed = new ColumnPruner(this, table).columnsUsed
 
-    if (!table.isPartitioned && cacheMode == CacheType.TACHYON) {
-      SharkEnv.tachyonUtil.pushDownColumnPruning(rdd, columnsUsed)
+    if (!table.isPartitioned && CacheType.isOffHeap(cacheMode)) {
+      SharkEnv.offHeapUtil(cacheMode).pushDownColumnPruning(rdd, columnsUsed)
     }
 
+    // Partitions sorted on a column filtered on are only scanned over the rows in range.
+    val rangeByPartition = sortedRanges(indexToStats)
+    val metrics = this.metrics
+    val scanRdd = rdd.mapPartitionsWithIndex { case(split, iter) =>
+      if (iter.hasNext) {
+        val tablePartition = iter.next().asInstanceOf[TablePartition]
+        if (metrics != null) {
+          metrics.localValue.bytesDecoded += tablePartition.columns.zipWithIndex.map {
+            case (column, i) if column != null && columnsUsed.get(i) => column.limit.toLong
+            case _ => 0L
+          }.sum
+        }
+        rangeByPartition.get(split) match {
+          case Some((column, range)) => tablePartition.rangeIterator(columnsUsed, column, range)
+          case None => tablePartition.prunedIterator(columnsUsed)
+        }
+      } else {
+        Iterator.empty
+      }
+    }
+
+    mapPruningFunc(rdd, indexToStats) match {
+      case Some(prunePartitionFunc) =>
+        val startTime = System.currentTimeMillis
+        val prunedRdd = PartitionPruningRDD.create(scanRdd, prunePartitionFunc)
+        val timeTaken = System.currentTimeMillis - startTime
+        logInfo("Map pruning %d partitions into %s partitions took %d ms".format(
+          rdd.partitions.size, prunedRdd.partitions.size, timeTaken))
+        addPruningMetrics(rdd.partitions.size, prunedRdd.partitions.size)
+        prunedRdd
+      case None =>
+        addPruningMetrics(rdd.partitions.size, rdd.partitions.size)
+        scanRdd
+    }
+  }
+
+  // Counts the cached partitions of a table or Hive partition into the metrics. Called on master.
+  private def addPruningMetrics(numPartitions: Int, numScanned: Int) {
+    if (metrics != null) {
+      val m = new OperatorMetrics
+      m.partitionsScanned = numPartitions
+      m.partitionsPruned = numPartitions - numScanned
+      metrics += m
+    }
+  }
+
+  /**
+   * Returns, for each partition of a cached table sorted on a column, the column and the range of
+   * its values that the filter directly above this scan may pass. Partitions for which the filter
+   * doesn't narrow the range are left out. Called on master.
+   */
+  private def sortedRanges(
+      indexToStats: collection.Map[Int, TablePartitionStats]): Map[Int, (Int, KeyRange)] = {
+    val sortedPartitions = indexToStats.filter { case(index, stats) =>
+      stats != null && stats.sortColumn >= 0
+    }
+    if (sortedPartitions.isEmpty ||
+        !SharkConfVars.getBoolVar(localHConf, SharkConfVars.MAP_PRUNING) ||
+        !childOperators(0).isInstanceOf[FilterOperator]) {
+      Map.empty
+    } else {
+      val filterOp = childOperators(0).asInstanceOf[FilterOperator]
+      filterOp.initializeOnSlave()
+      val rangeByColumn = new HashMap[Int, KeyRange]
+      sortedPartitions.map { case(index, stats) =>
+        val range = rangeByColumn.getOrElseUpdate(stats.sortColumn,
+          MapSplitPruning.columnRange(filterOp.conditionEvaluator, stats.sortColumn))
+        (index, (stats.sortColumn, range))
+      }.filter(!_._2._2.isAll).toMap
+    }
+  }
+
+  /**
+   * Returns a function that tests whether a partition of a cached table may contain rows passing
+   * the filter directly above this scan, or None if map pruning does not apply. Called on master.
+   */
+  def mapPruningFunc(
+      rdd: RDD[_],
+      indexToStats: collection.Map[Int, TablePartitionStats]): Option[Int => Boolean] = {
+    // Run map pruning if the flag is set, there exists a filter predicate on
+    // the input table and we have statistics on the table.
     val shouldPrune = SharkConfVars.getBoolVar(localHConf, SharkConfVars.MAP_PRUNING) &&
       childOperators(0).isInstanceOf[FilterOperator] &&
       indexToStats.size == rdd.partitions.size
 
-    val prunedRdd: RDD[_] = if (shouldPrune) {
-      val startTime = System.currentTimeMillis
+    if (shouldPrune) {
       val printPruneDebug = SharkConfVars.getBoolVar(
         localHConf, SharkConfVars.MAP_PRUNING_PRINT_DEBUG)
 
@@ -180,25 +276,9 @@ class TableScanOperator extends TopOperator[TableScanDesc] {
           true
         }
       }
-
-      // Do the pruning.
-      val prunedRdd = PartitionPruningRDD.create(rdd, prunePartitionFunc)
-      val timeTaken = System.currentTimeMillis - startTime
-      logInfo("Map pruning %d partitions into %s partitions took %d ms".format(
-        rdd.partitions.size, prunedRdd.partitions.size, timeTaken))
-      prunedRdd
+      Some(prunePartitionFunc _)
     } else {
-      rdd
-    }
-
-    prunedRdd.mapPartitions { iter =>
-      if (iter.hasNext) {
-        val tablePartition1 = iter.next()
-        val tablePartition = tablePartition1.asInstanceOf[TablePartition]
-        tablePartition.prunedIterator(columnsUsed)
-      } else {
-        Iterator.empty
-      }
+      None
     }
   }
 
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.execution
+
+import java.util.{Arrays => JArrays}
+
+import org.apache.hadoop.hive.serde2.binarysortable.{HiveStructDeserializer, HiveStructSerializer}
+import org.apache.hadoop.hive.serde2.objectinspector.{ObjectInspectorFactory, ObjectInspectorUtils,
+  StructObjectInspector}
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption
+import org.apache.hadoop.io.BytesWritable
+
+import org.apache.spark.rdd.RDD
+
+import shark.execution.serialization.KryoSerializer
+
+
+/**
+ * Sorts the rows of a table on one of its columns before they are cached, so that the partitions
+ * of the cached table hold disjoint, increasing ranges of that column. See the
+ * "shark.cache.sortBy" table property.
+ */
+object TableSorter {
+
+  /**
+   * Range-partitions the rows of `rdd` on the column at position `sortColumn` and sorts each
+   * partition, keeping the number of partitions. As for an ORDER BY, rows are shuffled with the
+   * column serialized in BinarySortable format as the key, so nulls come first. The rows returned
+   * are read with the object inspector returned by sortedRowObjectInspector().
+   *
+   * @param serializedOI The Kryo-serialized StructObjectInspector of the rows of `rdd`.
+   */
+  def sortRows(rdd: RDD[_], serializedOI: Array[Byte], sortColumn: Int): RDD[Any] = {
+    val keyedRdd: RDD[(ReduceKey, Any)] = rdd.mapPartitions { iter =>
+      val rowOI = KryoSerializer.deserialize[StructObjectInspector](serializedOI)
+      val sortField = rowOI.getAllStructFieldRefs.get(sortColumn)
+      val keyOI = ObjectInspectorFactory.getStandardStructObjectInspector(
+        JArrays.asList(sortField.getFieldName),
+        JArrays.asList(sortField.getFieldObjectInspector))
+      val keySerializer = new HiveStructSerializer(keyOI)
+      val rowSerializer = new HiveStructSerializer(rowOI)
+      val key = new Array[Object](1)
+      iter.map { row =>
+        key(0) = rowOI.getStructFieldData(row, sortField)
+        // The range partitioner samples the keys, so none of them can be reused.
+        val reduceKey = new ReduceKeyMapSide(new BytesWritable(keySerializer.serialize(key)))
+        (reduceKey: ReduceKey, new BytesWritable(rowSerializer.serialize(row.asInstanceOf[AnyRef])))
+      }
+    }
+
+    RDDUtils.sortByKey(keyedRdd).mapPartitions { iter =>
+      val rowOI = KryoSerializer.deserialize[StructObjectInspector](serializedOI)
+      val rowDeserializer = new HiveStructDeserializer(rowOI)
+      iter.map { case(key, value) => rowDeserializer.deserialize(value.asInstanceOf[Array[Byte]]) }
+    }
+  }
+
+  /** Returns the object inspector for the rows returned by sortRows(). */
+  def sortedRowObjectInspector(rowOI: StructObjectInspector): StructObjectInspector = {
+    ObjectInspectorUtils.getStandardObjectInspector(rowOI, ObjectInspectorCopyOption.WRITABLE)
+      .asInstanceOf[StructObjectInspector]
+  }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.execution.optimization
+
+import java.sql.Timestamp
+
+import scala.collection.JavaConversions._
+
+import org.apache.hadoop.hive.ql.exec.{FunctionRegistry, GroupByPostShuffleOperator,
+  GroupByPreShuffleOperator}
+import org.apache.hadoop.hive.ql.plan.{AggregationDesc, ExprNodeColumnDesc, ExprNodeConstantDesc}
+import org.apache.hadoop.hive.ql.plan.{ExprNodeDesc, ExprNodeGenericFuncDesc, GroupByDesc}
+import org.apache.hadoop.io.Text
+
+import shark.{LogHelper, SharkEnv}
+import shark.execution.{FilterOperator, HiveDesc, Operator, ReduceSinkOperator, SelectOperator}
+import shark.execution.{TableScanOperator, TerminalOperator}
+import shark.memstore2.{CacheType, MemoryMetadataManager, TablePartitionStats}
+import shark.memstore2.column.ColumnSketches
+import shark.memstore2.column.ColumnStats._
+import shark.udf.SketchFunctions
+import shark.util.{HyperLogLog, QuantileSketch}
+
+
+/**
+ * A global aggregation over a cached table that can be answered from the TablePartitionStats
+ * collected when the table was cached, without scanning it:
+ *   SELECT COUNT(*), MIN(col), MAX(col) FROM cached_table [WHERE <predicate on partition keys>]
+ *
+ * Filters must be deterministic and only reference Hive partition columns, in which case partition
+ * pruning has already selected exactly the rows that pass them, unless it reports partitions it
+ * could not decide on. Filters that reference no column at all, e.g. WHERE 1 = 0, are not
+ * evaluated by partition pruning, so they need a scan too. MIN and MAX are only answered if every
+ * partition has exact (min, max) statistics for the column. APPROX_DISTINCT(col) and
+ * APPROX_MEDIAN(col) are answered by merging the column sketches of the partitions, if the table
+ * was cached with shark.column.sketches on.
+ *
+ * @param aggregations for each aggregation, the function name and the name of the table column it
+ *        aggregates (None for COUNT(*)).
+ * @param filterColumns the table columns referenced by filters between the scan and the group by.
+ */
+class MetadataAggregation(
+    tableScan: TableScanOperator,
+    aggregations: Seq[(String, Option[String])],
+    filterColumns: Seq[String])
+  extends LogHelper {
+
+  /**
+   * Compute the aggregation results from the cached table's statistics on the master. Returns
+   * None if the statistics are not sufficient, in which case the query should scan the table.
+   * Results are boxed Java values (String for string columns, null for MIN / MAX over no values).
+   */
+  def evaluate(): Option[Array[Object]] = {
+    if (!tableScan.isInMemoryTableScan || CacheType.isOffHeap(tableScan.cacheMode)) {
+      return None
+    }
+    val table = tableScan.table
+    val partitionColumns = table.getPartCols.map(_.getName)
+    if (!filterColumns.forall(partitionColumns.contains(_)) || tableScan.hasUnknownParts) {
+      return None
+    }
+    val columns = table.getCols.map(_.getName)
+    val columnIndexes = aggregations.map { case (_, column) => column.map(columns.indexOf(_)) }
+    if (columnIndexes.exists(_ == Some(-1))) {
+      return None
+    }
+
+    val partitionStatsOpt = collectStats()
+    if (partitionStatsOpt.isEmpty) {
+      return None
+    }
+    val partitionStats = partitionStatsOpt.get
+
+    val results = aggregations.zip(columnIndexes).map {
+      case (("count", _), _) =>
+        Some(java.lang.Long.valueOf(partitionStats.map(_.numRows).sum))
+      case ((SketchFunctions.APPROX_DISTINCT, _), Some(index)) =>
+        MetadataAggregation.mergeSketches(partitionStats, index).map { sketches =>
+          java.lang.Long.valueOf(sketches.distinct.cardinality): Object
+        }
+      case ((SketchFunctions.APPROX_MEDIAN, _), Some(index)) =>
+        MetadataAggregation.mergeSketches(partitionStats, index).filter(_.quantiles != null).map {
+          sketches =>
+            if (sketches.quantiles.count == 0) {
+              null
+            } else {
+              java.lang.Double.valueOf(sketches.quantiles.quantile(0.5)): Object
+            }
+        }
+      case ((function, _), Some(index)) =>
+        val ranges = partitionStats.map(stats => MetadataAggregation.range(stats, index))
+        if (ranges.exists(_.isEmpty)) {
+          None
+        } else {
+          val values = ranges.flatMap(_.get).map { case (min, max) =>
+            if (function == "min") min else max
+          }
+          if (values.isEmpty) {
+            Some(null)
+          } else {
+            val ordered = values.sortWith(MetadataAggregation.compare(_, _) < 0)
+            Some(MetadataAggregation.toJava(if (function == "min") ordered.head else ordered.last))
+          }
+        }
+      case _ => None
+    }
+
+    if (results.exists(_.isEmpty)) None else Some(results.map(_.get).toArray)
+  }
+
+  /**
+   * Return the stats of every RDD partition of the scanned table (or of the Hive partitions that
+   * survived partition pruning), or None if some are missing.
+   */
+  private def collectStats(): Option[Seq[TablePartitionStats]] = {
+    val table = tableScan.table
+    val databaseName = table.getDbName
+    val tableName = table.getTableName
+    val rddAndStats = if (table.isPartitioned) {
+      val partitionedTableOpt = SharkEnv.memoryMetadataManager.getPartitionedTable(
+        databaseName, tableName)
+      if (partitionedTableOpt.isEmpty) {
+        return None
+      }
+      val partitionColumns = table.getPartCols.map(_.getName)
+      tableScan.parts.toSeq.map { part =>
+        val partitionKey = MemoryMetadataManager.makeHivePartitionKeyStr(
+          partitionColumns, part.getSpec)
+        partitionedTableOpt.get.getPartitionAndStats(partitionKey)
+      }
+    } else {
+      val tableOpt = SharkEnv.memoryMetadataManager.getMemoryTable(databaseName, tableName)
+      if (tableOpt.isEmpty) {
+        return None
+      }
+      Seq(tableOpt.get.getRDDAndStats)
+    }
+
+    if (rddAndStats.exists(_.isEmpty)) {
+      None
+    } else {
+      // Stats are only complete if there is an entry for each RDD partition.
+      val complete = rddAndStats.flatten.forall { case (rdd, stats) =>
+        stats.size == rdd.partitions.size && stats.values.forall(_ != null)
+      }
+      if (complete) Some(rddAndStats.flatten.flatMap(_._2.values)) else None
+    }
+  }
+
+  override def toString = {
+    "MetadataAggregation(" + tableScan.table.getTableName + ": " +
+      aggregations.map { case (f, c) => f + "(" + c.getOrElse("*") + ")" }.mkString(", ") + ")"
+  }
+}
+
+
+object MetadataAggregation extends LogHelper {
+
+  /**
+   * Look for a global COUNT / MIN / MAX aggregation directly over a table scan in the plan rooted
+   * at the given terminal operator. If found, attach a MetadataAggregation to its post-shuffle
+   * group by operator, which will try to answer the query from statistics when executed.
+   */
+  def plan(terminalOp: TerminalOperator) {
+    val postGroupBy = skipSelects(terminalOp.parentOperators)
+    val preGroupBy = postGroupBy match {
+      case Some(post: GroupByPostShuffleOperator)
+          if post.desc.getMode == GroupByDesc.Mode.MERGEPARTIAL && post.desc.getKeys.isEmpty =>
+        post.parentOperators match {
+          case Seq(rs: ReduceSinkOperator) => rs.parentOperators match {
+            case Seq(post: GroupByPostShuffleOperator) => None
+            case Seq(pre: GroupByPreShuffleOperator) => Some(pre)
+            case _ => None
+          }
+          case _ => None
+        }
+      case _ => None
+    }
+    preGroupBy.flatMap(planPreShuffle).foreach { aggregation =>
+      logInfo("Will try to answer from cached table statistics: " + aggregation)
+      postGroupBy.get.asInstanceOf[GroupByPostShuffleOperator].metadataAggregation = aggregation
+    }
+  }
+
+  /**
+   * Whether the output of the given operator is computed from statistics on the master. Only
+   * selects are allowed between the operator and the group by that was answered.
+   */
+  def isAnswered(op: Operator[_ <: HiveDesc]): Boolean = {
+    skipSelects(op.parentOperators) match {
+      case Some(post: GroupByPostShuffleOperator) => post.answeredFromMetadata
+      case _ => false
+    }
+  }
+
+  private def skipSelects(ops: Seq[Operator[_ <: HiveDesc]]): Option[Operator[_ <: HiveDesc]] = {
+    ops match {
+      case Seq(sel: SelectOperator) => skipSelects(sel.parentOperators)
+      case Seq(op) => Some(op)
+      case _ => None
+    }
+  }
+
+  private def planPreShuffle(pre: GroupByPreShuffleOperator): Option[MetadataAggregation] = {
+    val desc = pre.desc
+    if (desc.getMode != GroupByDesc.Mode.HASH || !desc.getKeys.isEmpty) {
+      return None
+    }
+
+    // Find the table scan, and the filters on the way.
+    var filters: List[FilterOperator] = Nil
+    var op: Operator[_ <: HiveDesc] = pre
+    var tableScan: TableScanOperator = null
+    while (tableScan == null) {
+      op.parentOperators match {
+        case Seq(ts: TableScanOperator) => tableScan = ts
+        case Seq(sel: SelectOperator) => op = sel
+        case Seq(filter: FilterOperator) => filters = filter :: filters; op = filter
+        case _ => return None
+      }
+    }
+
+    val aggregations = desc.getAggregators.map { aggr =>
+      planAggregation(aggr, pre)
+    }
+    val filterColumns = filters.flatMap { filter =>
+      filter.desc.getPredicate.getCols.map(resolveColumn(_, filter))
+    }
+    val predicates = filters.map(_.desc.getPredicate)
+    if (aggregations.exists(_.isEmpty) || filterColumns.exists(_.isEmpty) ||
+        predicates.exists(predicate => predicate.getCols.isEmpty || !isDeterministic(predicate))) {
+      None
+    } else {
+      Some(new MetadataAggregation(tableScan, aggregations.map(_.get), filterColumns.map(_.get)))
+    }
+  }
+
+  private def planAggregation(
+      aggr: AggregationDesc,
+      op: Operator[_ <: HiveDesc]): Option[(String, Option[String])] = {
+    val function = aggr.getGenericUDAFName.toLowerCase
+    val parameters = aggr.getParameters
+    if (aggr.getDistinct) {
+      None
+    } else if (function == "count") {
+      // COUNT(*) or COUNT(<non-null constant>). COUNT(column) depends on the number of nulls.
+      val countsRows = parameters.forall {
+        case c: ExprNodeConstantDesc => c.getValue != null
+        case _ => false
+      }
+      if (countsRows) Some((function, None)) else None
+    } else if ((function == "min" || function == "max" ||
+        function == SketchFunctions.APPROX_DISTINCT || function == SketchFunctions.APPROX_MEDIAN)
+        && parameters.size == 1) {
+      parameters.head match {
+        case c: ExprNodeColumnDesc =>
+          resolveColumn(c.getColumn, op).map(column => (function, Some(column)))
+        case _ => None
+      }
+    } else {
+      None
+    }
+  }
+
+  // Whether every function in the expression is deterministic, e.g. no rand().
+  private def isDeterministic(expr: ExprNodeDesc): Boolean = {
+    val isFunctionDeterministic = expr match {
+      case func: ExprNodeGenericFuncDesc => FunctionRegistry.isDeterministic(func.getGenericUDF)
+      case _ => true
+    }
+    isFunctionDeterministic &&
+      (expr.getChildren == null || expr.getChildren.forall(isDeterministic(_)))
+  }
+
+  /**
+   * Resolve a column in the input of the given operator to a column of the table scanned, going
+   * through selects that pass it along unchanged.
+   */
+  private def resolveColumn(name: String, op: Operator[_ <: HiveDesc]): Option[String] = {
+    op.parentOperators match {
+      case Seq(ts: TableScanOperator) => Some(name)
+      case Seq(filter: FilterOperator) => resolveColumn(name, filter)
+      case Seq(sel: SelectOperator) =>
+        if (sel.desc.isSelStarNoCompute) {
+          resolveColumn(name, sel)
+        } else {
+          val index = sel.desc.getOutputColumnNames.indexOf(name)
+          if (index < 0) {
+            None
+          } else {
+            sel.desc.getColList.get(index) match {
+              case c: ExprNodeColumnDesc => resolveColumn(c.getColumn, sel)
+              case _ => None
+            }
+          }
+        }
+      case _ => None
+    }
+  }
+
+  /**
+   * Return the exact (min, max) of a column in a partition: Some(None) if the partition has no
+   * non-null values in the column, or None if there are no usable statistics.
+   */
+  private def range(stats: TablePartitionStats, column: Int): Option[Option[(Any, Any)]] = {
+    if (stats.stats == null || column >= stats.stats.length || stats.stats(column) == null) {
+      return None
+    }
+    stats.stats(column) match {
+      // The initial min of each kind of stats is larger than its initial max, so a partition
+      // without values is detected by min > max.
+      case s: BooleanColumnStats => Some(if (s.min && !s.max) None else Some((s.min, s.max)))
+      case s: ByteColumnStats => Some(if (s.min > s.max) None else Some((s.min, s.max)))
+      case s: ShortColumnStats => Some(if (s.min > s.max) None else Some((s.min, s.max)))
+      case s: IntColumnStats => Some(if (s.min > s.max) None else Some((s.min, s.max)))
+      case s: LongColumnStats => Some(if (s.min > s.max) None else Some((s.min, s.max)))
+      case s: FloatColumnStats => Some(if (s.min > s.max) None else Some((s.min, s.max)))
+      case s: DoubleColumnStats => Some(if (s.min > s.max) None else Some((s.min, s.max)))
+      case s: TimestampColumnStats =>
+        if (s.min.after(s.max)) {
+          Some(None)
+        } else if (s.max.getTime == 0) {
+          // The max starts at the epoch, so it is not exact if all values are before it.
+          None
+        } else {
+          Some(Some((s.min, s.max)))
+        }
+      case s: StringColumnStats => Some(if (s.min == null) None else Some((s.min, s.max)))
+      case _ => None
+    }
+  }
+
+  /**
+   * Merge the sketches of a column over all non-empty partitions into new sketches, or return
+   * None if a partition has none. The quantile sketch is null unless every partition has one.
+   */
+  private def mergeSketches(
+      partitionStats: Seq[TablePartitionStats],
+      column: Int): Option[ColumnSketches] = {
+    val nonEmpty = partitionStats.filter(_.numRows > 0)
+    val hasSketches = nonEmpty.forall { stats =>
+      stats.sketches != null && column < stats.sketches.length && stats.sketches(column) != null
+    }
+    if (!hasSketches) {
+      None
+    } else {
+      val hasQuantiles = nonEmpty.forall(_.sketches(column).quantiles != null)
+      val merged = new ColumnSketches(
+        new HyperLogLog, if (hasQuantiles) new QuantileSketch else null)
+      nonEmpty.foreach(stats => merged.merge(stats.sketches(column)))
+      Some(merged)
+    }
+  }
+
+  private def compare(a: Any, b: Any): Int = (a, b) match {
+    case (x: Text, y: Text) => x.compareTo(y)
+    case (x: Timestamp, y: Timestamp) => x.compareTo(y)
+    case _ => a.asInstanceOf[Comparable[Any]].compareTo(b)
+  }
+
+  private def toJava(v: Any): Object = v match {
+    case t: Text => t.toString
+    case _ => v.asInstanceOf[Object]
+  }
+}
@@ -17,6 +17,7 @@
 
 package shark.execution.serialization
 
+import shark.{ConfVar, SharkConfVars}
 import shark.execution.HiveDesc
 import shark.execution.Operator
 
@@ -24,7 +25,12 @@ import shark.execution.Operator
 /**
  * A wrapper around our operators so they can be serialized by standard Java
  * serialization. This really just delegates the serialization of the operators
- * to XML, and that of object inspectors to Kryo.
+ * to PlanSerializer's binary encoding, or to XML for the operator and Kryo for
+ * its object inspectors if shark.queryPlan.binary is off.
+ *
+ * If shark.queryPlan.cache is on, slaves keep the operators they deserialized in
+ * the PlanCache once the task is done with them (see release()), and later tasks
+ * of the same plan reuse them.
  *
  * Use OperatorSerializationWrapper(operator) to create a wrapper.
  */
@@ -34,28 +40,90 @@ class OperatorSerializationWrapper[T <: Operator[_ <: HiveDesc]]
   /** The operator we are going to serialize. */
   @transient var _value: T = _
 
-  /** The operator serialized by the XMLEncoder, minus the object inspectors. */
+  /** Whether _value was deserialized or taken from the PlanCache by this wrapper. */
+  @transient private var _valueOnSlave = false
+
+  /**
+   * The operator and its object inspectors encoded by PlanSerializer if isBinary, or the
+   * operator serialized by the XMLEncoder, minus the object inspectors.
+   */
   var opSerialized: Array[Byte] = _
 
-  /** The object inspectors, serialized by Kryo. */
+  /** The object inspectors, serialized by Kryo. Null if isBinary. */
   var objectInspectorsSerialized: Array[Byte] = _
 
+  var isBinary: Boolean = false
+
+  /** A digest of the serialized operator, or null if slaves shouldn't cache it. */
+  var fingerprint: String = _
+
   def value: T = {
     if (_value == null) {
       assert(opSerialized != null)
       assert(opSerialized.length > 0)
-      assert(objectInspectorsSerialized != null)
-      assert(objectInspectorsSerialized.length > 0)
-      _value = XmlSerializer.deserialize[T](opSerialized)
-      _value.objectInspectors = KryoSerializer.deserialize(objectInspectorsSerialized)
+      if (fingerprint != null) {
+        _value = PlanCache.acquire(fingerprint).asInstanceOf[T]
+      }
+      if (_value == null) {
+        _value = deserialize()
+      }
+      _valueOnSlave = true
     }
     _value
   }
 
   def value_= (v: T):Unit = {
     _value = v
-    opSerialized = XmlSerializer.serialize(value, v.hconf)
-    objectInspectorsSerialized = KryoSerializer.serialize(value.objectInspectors)
+    val conf = v.hconf
+    def getBoolVar(variable: ConfVar) =
+      if (conf == null) variable.defaultBoolVal else SharkConfVars.getBoolVar(conf, variable)
+
+    isBinary = false
+    if (getBoolVar(SharkConfVars.BINARY_QUERY_PLAN)) {
+      try {
+        opSerialized = PlanSerializer.serialize(value)
+        objectInspectorsSerialized = null
+        isBinary = true
+      } catch {
+        case e: Exception =>
+          logWarning("Cannot encode " + v + " in binary, sending it as XML instead", e)
+      }
+    }
+    if (!isBinary) {
+      opSerialized = XmlSerializer.serialize(value, conf)
+      objectInspectorsSerialized = KryoSerializer.serialize(value.objectInspectors)
+    }
+    fingerprint =
+      if (getBoolVar(SharkConfVars.QUERY_PLAN_CACHE)) {
+        PlanSerializer.fingerprint(opSerialized, objectInspectorsSerialized)
+      } else {
+        null
+      }
+  }
+
+  /**
+   * Called on slaves by the task using the operator once it is done with it, e.g. in a task
+   * completion callback. The operator is put in the PlanCache for the next task of the plan, so
+   * it must not be used by this task anymore.
+   */
+  def release() {
+    if (_valueOnSlave && fingerprint != null) {
+      PlanCache.release(fingerprint, _value)
+      _value = null.asInstanceOf[T]
+      _valueOnSlave = false
+    }
+  }
+
+  private def deserialize(): T = {
+    if (isBinary) {
+      PlanSerializer.deserialize[T](opSerialized)
+    } else {
+      assert(objectInspectorsSerialized != null)
+      assert(objectInspectorsSerialized.length > 0)
+      val op = XmlSerializer.deserialize[T](opSerialized)
+      op.objectInspectors = KryoSerializer.deserialize(objectInspectorsSerialized)
+      op
+    }
   }
 
   override def toString(): String = {
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.execution.serialization
+
+import java.util.{LinkedHashMap => JLinkedHashMap, Map => JMap}
+
+import scala.collection.mutable.ArrayBuffer
+
+import shark.execution.{HiveDesc, Operator}
+
+
+/**
+ * Operators that tasks on this slave deserialized and are done with, by plan fingerprint (see
+ * OperatorSerializationWrapper). A later task of the same plan takes one instead of deserializing
+ * and initializing the operator again. An operator is only used by one task at a time, so there
+ * are as many operators kept for a plan as tasks of the plan ran concurrently.
+ *
+ * The operators of the least recently used plans are dropped beyond shark.queryPlan.cache.size
+ * plans, a system property of the slave.
+ */
+object PlanCache {
+
+  val MAX_PLANS = System.getProperty("shark.queryPlan.cache.size", "64").toInt
+
+  private val idle = new JLinkedHashMap[String, ArrayBuffer[Operator[_ <: HiveDesc]]](
+    16, 0.75f, true) {
+    override def removeEldestEntry(
+        eldest: JMap.Entry[String, ArrayBuffer[Operator[_ <: HiveDesc]]]): Boolean = {
+      size > MAX_PLANS
+    }
+  }
+
+  /** Takes an operator of the plan out of the cache. Returns null if there is none. */
+  def acquire(fingerprint: String): Operator[_ <: HiveDesc] = synchronized {
+    val ops = idle.get(fingerprint)
+    if (ops == null || ops.isEmpty) null else ops.remove(ops.size - 1)
+  }
+
+  /** Puts back an operator of the plan, which the caller must not use anymore. */
+  def release(fingerprint: String, op: Operator[_ <: HiveDesc]) {
+    if (MAX_PLANS > 0) {
+      synchronized {
+        var ops = idle.get(fingerprint)
+        if (ops == null) {
+          ops = new ArrayBuffer[Operator[_ <: HiveDesc]]
+          idle.put(fingerprint, ops)
+        }
+        ops += op
+      }
+    }
+  }
+
+  def clear(): Unit = synchronized {
+    idle.clear()
+  }
+}
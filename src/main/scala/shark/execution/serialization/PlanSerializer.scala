@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.execution.serialization
+
+import java.io.{DataInputStream, DataOutputStream}
+import java.security.MessageDigest
+
+import com.esotericsoftware.kryo.{Kryo, Serializer => KSerializer}
+import com.esotericsoftware.kryo.io.{Input => KryoInput, Output => KryoOutput}
+
+import org.apache.hadoop.hive.conf.HiveConf
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector
+
+import shark.execution.{HiveDesc, Operator}
+
+
+/**
+ * Binary encoding of operators, used to send query plans to slaves: an operator and its object
+ * inspectors are written in a single Kryo pass. This is several times smaller and faster to
+ * decode than the XML written by XmlSerializer. As with XML, fields marked @transient are skipped;
+ * unlike XML, all other fields are written, whether or not they are bean properties.
+ */
+object PlanSerializer {
+
+  // Kryo instances are not thread safe.
+  private val kryos = new ThreadLocal[Kryo] {
+    override def initialValue(): Kryo = {
+      val kryo = KryoSerializer.ser.newKryo()
+      kryo.register(classOf[HiveConf], new KryoHiveConfSerializer)
+      kryo
+    }
+  }
+
+  def serialize(op: Operator[_ <: HiveDesc]): Array[Byte] = {
+    val kryo = kryos.get
+    val output = new KryoOutput(4096, -1)
+    kryo.writeClassAndObject(output, op)
+    kryo.writeClassAndObject(output, op.objectInspectors)
+    output.toBytes
+  }
+
+  def deserialize[T <: Operator[_ <: HiveDesc]](bytes: Array[Byte]): T = {
+    val kryo = kryos.get
+    kryo.setClassLoader(Thread.currentThread.getContextClassLoader)
+    val input = new KryoInput(bytes)
+    val op = kryo.readClassAndObject(input).asInstanceOf[T]
+    op.objectInspectors = kryo.readClassAndObject(input).asInstanceOf[Seq[ObjectInspector]]
+    op
+  }
+
+  /** Returns a digest of serialized operators, as a hex string. */
+  def fingerprint(serialized: Array[Byte]*): String = {
+    val digest = MessageDigest.getInstance("SHA-1")
+    serialized.foreach(bytes => if (bytes != null) digest.update(bytes))
+    digest.digest().map("%02x".format(_)).mkString
+  }
+}
+
+
+/**
+ * Writes a HiveConf as its properties and aux jars. Kryo cannot write the fields of a HiveConf,
+ * which include its class loader.
+ */
+class KryoHiveConfSerializer extends KSerializer[HiveConf] {
+  override def write(kryo: Kryo, output: KryoOutput, conf: HiveConf) {
+    output.writeString(conf.getAuxJars)
+    conf.write(new DataOutputStream(output))
+  }
+
+  override def read(kryo: Kryo, input: KryoInput, cls: java.lang.Class[HiveConf]): HiveConf = {
+    val conf = new HiveConf
+    conf.setAuxJars(input.readString())
+    conf.readFields(new DataInputStream(input))
+    conf
+  }
+}
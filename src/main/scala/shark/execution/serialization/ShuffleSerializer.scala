@@ -17,9 +17,11 @@
 
 package shark.execution.serialization
 
-import java.io.{InputStream, OutputStream}
+import java.io.{EOFException, InputStream, OutputStream}
 import java.nio.ByteBuffer
 
+import com.ning.compress.lzf.{LZFDecoder, LZFEncoder}
+
 import org.apache.hadoop.io.BytesWritable
 
 import org.apache.spark.SparkConf
@@ -37,9 +39,15 @@ import shark.execution.{ReduceKey, ReduceKeyReduceSide}
  *   (wrapped in BytesWritable object).
  * - Shark operators wrap each key (BytesWritable) in a ReduceKeyMapSide object. The values remain
  *   unchanged as BytesWritable.
- * - ShuffleSerializationStream simply flushes the underlying byte arrays for key/value into the
- *   serialization stream. The length is prepended before the byte array so the deserializer knows
- *   how many bytes to read.
+ * - ShuffleSerializationStream buffers the key/value byte arrays into blocks of about
+ *   spark.shark.shuffle.blockSize bytes. Within a block, each key is stored as the length of the
+ *   prefix it shares with the previous key plus the remaining bytes, which makes runs of equal or
+ *   similar keys (e.g. from a sorted or low-cardinality group by) nearly free. If
+ *   spark.shark.shuffle.compressBlocks is true, each block is then LZF-compressed if that makes
+ *   it smaller. It defaults to true only when spark.shuffle.compress is false, since Spark
+ *   otherwise compresses the whole stream again. A block never spans a flush, so every shuffle
+ *   file segment decodes on its own. The block buffer of a stream is only allocated on its first
+ *   record, since a map task opens a stream for every reducer.
  *
  * The deserialization process simply reverses the above, with a few caveats:
  * - The data type for the keys becomes ReduceKeyReduceSide, wrapping around a byte array (rather
@@ -48,17 +56,39 @@ import shark.execution.{ReduceKey, ReduceKeyReduceSide}
  * The reason is that during aggregations and joins (post shuffle), the key-value pairs are inserted
  * into a hash table. We want to reduce the size of the hash table. Having the BytesWritable wrapper
  * would increase the size of the hash table by another 16 bytes per key-value pair.
+ *
+ * Blocks are decoded into buffers reused for the whole stream. Since the keys and values are kept
+ * by the operators after the shuffle, each record still gets arrays of its own, except that a key
+ * equal to the previous one is returned as the same ReduceKeyReduceSide.
  */
 class ShuffleSerializer(conf: SparkConf) extends Serializer {
 
   // A no-arg constructor since conf is not needed in this serializer.
   def this() = this(null)
 
-  override def newInstance(): SerializerInstance = new ShuffleSerializerInstance
+  private val blockSize = if (conf == null) ShuffleSerializer.DEFAULT_BLOCK_SIZE else {
+    conf.getInt("spark.shark.shuffle.blockSize", ShuffleSerializer.DEFAULT_BLOCK_SIZE)
+  }
+
+  // Spark compresses shuffle streams unless spark.shuffle.compress is false.
+  private val compressBlocks = conf != null && conf.getBoolean(
+    "spark.shark.shuffle.compressBlocks", !conf.getBoolean("spark.shuffle.compress", true))
+
+  override def newInstance(): SerializerInstance = {
+    new ShuffleSerializerInstance(blockSize, compressBlocks)
+  }
+}
+
+
+object ShuffleSerializer {
+  val DEFAULT_BLOCK_SIZE = 64 * 1024
 }
 
 
-class ShuffleSerializerInstance extends SerializerInstance {
+class ShuffleSerializerInstance(blockSize: Int, compressBlocks: Boolean)
+  extends SerializerInstance {
+
+  def this() = this(ShuffleSerializer.DEFAULT_BLOCK_SIZE, false)
 
   override def serialize[T](t: T): ByteBuffer = throw new UnsupportedOperationException
 
@@ -68,7 +98,7 @@ class ShuffleSerializerInstance extends SerializerInstance {
     throw new UnsupportedOperationException
 
   override def serializeStream(s: OutputStream): SerializationStream = {
-    new ShuffleSerializationStream(s)
+    new ShuffleSerializationStream(s, blockSize, compressBlocks)
   }
 
   override def deserializeStream(s: InputStream): DeserializationStream = {
@@ -77,23 +107,67 @@ class ShuffleSerializerInstance extends SerializerInstance {
 }
 
 
-class ShuffleSerializationStream(stream: OutputStream) extends SerializationStream {
+/**
+ * Writes records in blocks. Each block is written as its uncompressed length and its stored
+ * length (equal if the block is not compressed), followed by the stored bytes. Each record in a
+ * block is written as: shared key prefix length, key suffix length, value length, key suffix
+ * bytes and value bytes, the lengths as unsigned varints.
+ */
+class ShuffleSerializationStream(stream: OutputStream, blockSize: Int, compressBlocks: Boolean)
+  extends SerializationStream {
+
+  def this(stream: OutputStream) = this(stream, ShuffleSerializer.DEFAULT_BLOCK_SIZE, false)
+
+  // Allocated on the first record.
+  private var block: Array[Byte] = null
+  private var blockLength = 0
+
+  // The previous key in the current block.
+  private var prevKey = new Array[Byte](64)
+  private var prevKeyLength = 0
 
   override def writeObject[T](t: T): SerializationStream = {
     // On the write-side, the ReduceKey should be of type ReduceKeyMapSide.
     val (key, value) = t.asInstanceOf[(ReduceKey, BytesWritable)]
-    writeUnsignedVarInt(key.length)
-    writeUnsignedVarInt(value.getLength)
-    stream.write(key.byteArray, 0, key.length)
-    stream.write(value.getBytes(), 0, value.getLength)
+    val keyBytes = key.byteArray
+    val keyLength = key.length
+    val valueLength = value.getLength
+
+    val maxPrefix = math.min(keyLength, prevKeyLength)
+    var prefix = 0
+    while (prefix < maxPrefix && keyBytes(prefix) == prevKey(prefix)) {
+      prefix += 1
+    }
+    val suffix = keyLength - prefix
+
+    ensureBlockCapacity(15 + suffix + valueLength)
+    putUnsignedVarInt(prefix)
+    putUnsignedVarInt(suffix)
+    putUnsignedVarInt(valueLength)
+    System.arraycopy(keyBytes, prefix, block, blockLength, suffix)
+    blockLength += suffix
+    System.arraycopy(value.getBytes, 0, block, blockLength, valueLength)
+    blockLength += valueLength
+
+    if (prevKey.length < keyLength) {
+      prevKey = java.util.Arrays.copyOf(prevKey, math.max(keyLength, prevKey.length * 2))
+    }
+    System.arraycopy(keyBytes, prefix, prevKey, prefix, suffix)
+    prevKeyLength = keyLength
+
+    if (blockLength >= blockSize) {
+      writeBlock()
+    }
     this
   }
 
   override def flush() {
+    writeBlock()
     stream.flush()
   }
 
   override def close() {
+    writeBlock()
     stream.close()
   }
 
@@ -105,25 +179,81 @@ class ShuffleSerializationStream(stream: OutputStream) extends SerializationStre
     }
     stream.write(v & 0x7F)
   }
+
+  private def writeBlock() {
+    if (blockLength > 0) {
+      val compressed = if (compressBlocks) LZFEncoder.encode(block, 0, blockLength) else null
+      writeUnsignedVarInt(blockLength)
+      if (compressed != null && compressed.length < blockLength) {
+        writeUnsignedVarInt(compressed.length)
+        stream.write(compressed)
+      } else {
+        writeUnsignedVarInt(blockLength)
+        stream.write(block, 0, blockLength)
+      }
+      blockLength = 0
+      prevKeyLength = 0
+    }
+  }
+
+  private def ensureBlockCapacity(length: Int) {
+    if (block == null) {
+      block = new Array[Byte](math.max(blockSize + 64, length))
+    } else if (blockLength + length > block.length) {
+      block = java.util.Arrays.copyOf(block, math.max(blockLength + length, block.length * 2))
+    }
+  }
+
+  private def putUnsignedVarInt(value: Int) {
+    var v = value
+    while ((v & 0xFFFFFF80) != 0L) {
+      block(blockLength) = ((v & 0x7F) | 0x80).toByte
+      blockLength += 1
+      v = v >>> 7
+    }
+    block(blockLength) = (v & 0x7F).toByte
+    blockLength += 1
+  }
 }
 
 
 class ShuffleDeserializationStream(stream: InputStream) extends DeserializationStream {
 
+  // The current block, decompressed, and the read position in it.
+  private var block: Array[Byte] = ShuffleDeserializationStream.EMPTY_BYTES
+  private var blockLength = 0
+  private var pos = 0
+
+  private var compressed: Array[Byte] = ShuffleDeserializationStream.EMPTY_BYTES
+
+  // The previous key in the current block.
+  private var prevKey: ReduceKeyReduceSide = null
+
   override def readObject[T](): T = {
     // Return type is (ReduceKeyReduceSide, Array[Byte])
-    val keyLen = readUnsignedVarInt()
-    if (keyLen < 0) {
-      throw new java.io.EOFException
+    if (pos >= blockLength) {
+      readBlock()
     }
-    val valueLen = readUnsignedVarInt()
-    val keyByteArray = new Array[Byte](keyLen)
-    readFully(stream, keyByteArray, keyLen)
-    val reduceKey = new ReduceKeyReduceSide(keyByteArray)
+    val prefix = getUnsignedVarInt()
+    val suffix = getUnsignedVarInt()
+    val valueLen = getUnsignedVarInt()
+
+    val reduceKey = if (suffix == 0 && prevKey != null && prefix == prevKey.length) {
+      prevKey
+    } else {
+      val keyByteArray = new Array[Byte](prefix + suffix)
+      if (prefix > 0) {
+        System.arraycopy(prevKey.byteArray, 0, keyByteArray, 0, prefix)
+      }
+      System.arraycopy(block, pos, keyByteArray, prefix, suffix)
+      pos += suffix
+      new ReduceKeyReduceSide(keyByteArray)
+    }
+    prevKey = reduceKey
 
     if (valueLen > 0) {
-      val valueByteArray = new Array[Byte](valueLen)
-      readFully(stream, valueByteArray, valueLen)
+      val valueByteArray = java.util.Arrays.copyOfRange(block, pos, pos + valueLen)
+      pos += valueLen
       (reduceKey, valueByteArray).asInstanceOf[T]
     } else {
       (reduceKey, ShuffleDeserializationStream.EMPTY_BYTES).asInstanceOf[T]
@@ -133,7 +263,9 @@ class ShuffleDeserializationStream(stream: InputStream) extends DeserializationS
   def readFully(stream: InputStream, bytes: Array[Byte], length: Int) {
     var read = 0
     while (read < length) {
-      read += stream.read(bytes, read, length - read)
+      val n = stream.read(bytes, read, length - read)
+      if (n < 0) throw new EOFException
+      read += n
     }
   }
 
@@ -146,7 +278,7 @@ class ShuffleDeserializationStream(stream: InputStream) extends DeserializationS
     var i: Int = 0
     def readOrThrow(): Int = {
       val in = stream.read()
-      if (in < 0) throw new java.io.EOFException
+      if (in < 0) throw new EOFException
       in & 0xFF
     }
     var b: Int = readOrThrow()
@@ -158,6 +290,42 @@ class ShuffleDeserializationStream(stream: InputStream) extends DeserializationS
     }
     value | (b << i)
   }
+
+  /** Reads the next block into the reused buffers. Throws EOFException at the end of stream. */
+  private def readBlock() {
+    val rawLength = readUnsignedVarInt()
+    val storedLength = readUnsignedVarInt()
+    if (block.length < rawLength) {
+      block = new Array[Byte](rawLength)
+    }
+    if (storedLength == rawLength) {
+      readFully(stream, block, rawLength)
+    } else {
+      if (compressed.length < storedLength) {
+        compressed = new Array[Byte](storedLength)
+      }
+      readFully(stream, compressed, storedLength)
+      LZFDecoder.decode(compressed, 0, storedLength, block)
+    }
+    blockLength = rawLength
+    pos = 0
+    prevKey = null
+  }
+
+  private def getUnsignedVarInt(): Int = {
+    var value: Int = 0
+    var i: Int = 0
+    var b: Int = block(pos) & 0xFF
+    pos += 1
+    while ((b & 0x80) != 0) {
+      value |= (b & 0x7F) << i
+      i += 7
+      if (i > 35) throw new IllegalArgumentException("Variable length quantity is too long")
+      b = block(pos) & 0xFF
+      pos += 1
+    }
+    value | (b << i)
+  }
 }
 
 
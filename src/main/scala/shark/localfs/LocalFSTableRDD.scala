@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.localfs
+
+import java.io.RandomAccessFile
+import java.nio.{ByteBuffer, ByteOrder}
+import java.nio.channels.FileChannel
+import java.util.BitSet
+
+import org.apache.spark.{Partition, SparkContext, TaskContext}
+import org.apache.spark.rdd.RDD
+
+import shark.memstore2.TablePartition
+
+
+private class LocalFSTablePartition(val index: Int, val location: Option[String])
+  extends Partition
+
+
+/**
+ * An RDD that reads a table written by LocalFSTableWriter. Each partition memory-maps the files of
+ * the columns in use, so the columns are read from the page cache rather than copied to the heap.
+ *
+ * @param hosts The host that wrote each partition, if known, used as its preferred location.
+ */
+class LocalFSTableRDD(
+    path: String,
+    numColumns: Int,
+    numPartitions: Int,
+    hosts: Seq[Option[String]],
+    @transient sc: SparkContext)
+  extends RDD[TablePartition](sc, Nil) {
+
+  // Columns used by the query, not counting the metadata column. Null if all columns are used.
+  var mColumnUsed: BitSet = null
+
+  def setColumnUsed(columnUsed: BitSet) {
+    mColumnUsed = columnUsed
+  }
+
+  override def getPartitions: Array[Partition] = {
+    Array.tabulate[Partition](numPartitions) { part =>
+      new LocalFSTablePartition(part, hosts.lift(part).flatten)
+    }
+  }
+
+  override def compute(split: Partition, context: TaskContext): Iterator[TablePartition] = {
+    val buffers = Array.tabulate[ByteBuffer](numColumns) { column =>
+      if (column != 0 && mColumnUsed != null && !mColumnUsed.get(column - 1)) {
+        null
+      } else {
+        val columnFile = LocalFSTableWriter.columnFile(path, column, split.index)
+        val file = new RandomAccessFile(columnFile, "r")
+        try {
+          // The mapping stays valid after the channel is closed.
+          val channel = file.getChannel
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size).order(ByteOrder.nativeOrder())
+        } finally {
+          file.close()
+        }
+      }
+    }
+    Iterator(new TablePartition(buffers))
+  }
+
+  override def getPreferredLocations(split: Partition): Seq[String] = {
+    split.asInstanceOf[LocalFSTablePartition].location.toSeq
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.localfs
+
+import java.io.File
+import java.nio.ByteBuffer
+
+import shark.tachyon.TachyonTableWriter
+
+
+/**
+ * Writes a table to an insert directory of the local filesystem store. Column files are written
+ * on the worker nodes, and the driver records the host that wrote each partition.
+ */
+class LocalFSTableWriter(path: String, numColumns: Int) extends TachyonTableWriter {
+
+  /** Create the table directory. Called only on the driver node. */
+  override def createTable(metadata: ByteBuffer) {
+    new File(path).mkdirs()
+    LocalFSUtil.writeFile(LocalFSTableWriter.columnsFile(path), _.write(
+      numColumns.toString.getBytes("UTF-8")))
+    if (metadata.hasRemaining) {
+      updateMetadata(metadata)
+    }
+  }
+
+  /**
+   * Write the table statistics. Called only on the driver node, once all partitions are written,
+   * after which the insert becomes visible to readers.
+   */
+  override def updateMetadata(metadata: ByteBuffer) {
+    val buf = metadata.duplicate()
+    LocalFSUtil.writeFile(LocalFSTableWriter.metadataFile(path), _.getChannel.write(buf))
+  }
+
+  /** Write the data of a partition of a given column. Called only on worker nodes. */
+  override def writeColumnPartition(column: Int, part: Int, data: ByteBuffer) {
+    val file = LocalFSTableWriter.columnFile(path, column, part)
+    file.getParentFile.mkdirs()
+    val buf = data.duplicate()
+    buf.rewind()
+    LocalFSUtil.writeFile(file, { out =>
+      val channel = out.getChannel
+      while (buf.hasRemaining) {
+        channel.write(buf)
+      }
+    })
+  }
+
+  /** Write the host of each partition, one per line. Called only on the driver node. */
+  override def writePartitionLocations(hosts: Seq[String]) {
+    LocalFSUtil.writeFile(LocalFSTableWriter.hostsFile(path), _.write(
+      hosts.mkString("\n").getBytes("UTF-8")))
+  }
+}
+
+
+object LocalFSTableWriter {
+
+  def metadataFile(path: String) = new File(path, "metadata")
+
+  def columnsFile(path: String) = new File(path, "columns")
+
+  def columnFile(path: String, column: Int, part: Int) = {
+    new File(new File(path, "col_" + column), "part_" + part)
+  }
+
+  def hostsFile(path: String) = new File(path, "hosts")
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.localfs
+
+import java.io.{DataInputStream, File, FileInputStream, FileOutputStream}
+import java.util.BitSet
+
+import org.apache.hadoop.fs.FileUtil
+
+import org.apache.spark.rdd.RDD
+
+import shark.{LogHelper, SharkEnv}
+import shark.execution.serialization.JavaSerializer
+import shark.memstore2.{TablePartition, TablePartitionStats}
+import shark.memstore2.column.MemoryStoreException
+import shark.tachyon.{TachyonTableWriter, TachyonUtil}
+
+
+/**
+ * Stores tables of the LOCAL_FS cache type under a local or shared POSIX directory, following the
+ * same contract and layout as Tachyon tables: each table (or Hive partition) directory holds one
+ * directory per insert, and each insert directory holds the table statistics and one file per
+ * column and partition. Scans memory-map only the column files they use.
+ *
+ * If the directory is local to each node rather than shared, scans can only run on the nodes
+ * that wrote the partitions. The driver records the block manager host of the task that wrote
+ * each partition, which becomes the partition's preferred location.
+ */
+class LocalFSUtil(val warehousePath: String) extends TachyonUtil with LogHelper {
+
+  private val INSERT_DIR_PREFIX = "insert_"
+
+  private def getPath(tableKey: String, hivePartitionKeyOpt: Option[String]): File = {
+    if (warehousePath == null) {
+      throw new MemoryStoreException("SHARK_LOCAL_WAREHOUSE_PATH is not set.")
+    }
+    val tableDir = new File(warehousePath, tableKey)
+    hivePartitionKeyOpt.map(new File(tableDir, _)).getOrElse(tableDir)
+  }
+
+  override def pushDownColumnPruning(rdd: RDD[_], columnUsed: BitSet): Boolean = {
+    val isLocalFSTableRdd = rdd.isInstanceOf[LocalFSTableRDD]
+    if (isLocalFSTableRdd) {
+      rdd.asInstanceOf[LocalFSTableRDD].setColumnUsed(columnUsed)
+    }
+    isLocalFSTableRdd
+  }
+
+  override def tachyonEnabled(): Boolean = (warehousePath != null)
+
+  override def tableExists(tableKey: String, hivePartitionKeyOpt: Option[String]): Boolean = {
+    getPath(tableKey, hivePartitionKeyOpt).isDirectory
+  }
+
+  override def dropTable(tableKey: String, hivePartitionKeyOpt: Option[String]): Boolean = {
+    FileUtil.fullyDelete(getPath(tableKey, hivePartitionKeyOpt))
+  }
+
+  override def createDirectory(
+      tableKey: String,
+      hivePartitionKeyOpt: Option[String]): Boolean = {
+    val dir = getPath(tableKey, hivePartitionKeyOpt)
+    dir.isDirectory || dir.mkdirs()
+  }
+
+  override def renameDirectory(oldTableKey: String, newTableKey: String): Boolean = {
+    getPath(oldTableKey, None).renameTo(getPath(newTableKey, None))
+  }
+
+  override def createRDD(
+      tableKey: String,
+      hivePartitionKeyOpt: Option[String]
+    ): Seq[(RDD[TablePartition], collection.Map[Int, TablePartitionStats])] = {
+    // Create a LocalFSTableRDD for each insert directory whose statistics were written, i.e. for
+    // each insert that completed.
+    val insertDirs = Option(getPath(tableKey, hivePartitionKeyOpt).listFiles).getOrElse(Array())
+      .filter(dir => dir.getName.startsWith(INSERT_DIR_PREFIX) &&
+        LocalFSTableWriter.metadataFile(dir.getPath).exists)
+      .sortBy(_.getName.stripPrefix(INSERT_DIR_PREFIX).toInt)
+    insertDirs.map { dir =>
+      val indexToStats = JavaSerializer.deserialize[collection.Map[Int, TablePartitionStats]](
+        LocalFSUtil.readFile(LocalFSTableWriter.metadataFile(dir.getPath)))
+      val numColumns = new String(
+        LocalFSUtil.readFile(LocalFSTableWriter.columnsFile(dir.getPath)), "UTF-8").trim.toInt
+      val hostsFile = LocalFSTableWriter.hostsFile(dir.getPath)
+      val hosts = if (hostsFile.exists) {
+        new String(LocalFSUtil.readFile(hostsFile), "UTF-8").split("\n", -1).toSeq
+          .map(host => Some(host).filter(_.nonEmpty))
+      } else {
+        Nil
+      }
+      val rdd = new LocalFSTableRDD(
+        dir.getPath, numColumns, indexToStats.size, hosts, SharkEnv.sc)
+      (rdd: RDD[TablePartition], indexToStats)
+    }
+  }
+
+  override def createTableWriter(
+      tableKey: String,
+      hivePartitionKeyOpt: Option[String],
+      numColumns: Int): TachyonTableWriter = {
+    val parentDirectory = getPath(tableKey, hivePartitionKeyOpt)
+    parentDirectory.mkdirs()
+    // Make sure there aren't conflicts with inserts from this or a previous Shark session.
+    var insertNum = Option(parentDirectory.list).getOrElse(Array())
+      .filter(_.startsWith(INSERT_DIR_PREFIX))
+      .map(_.stripPrefix(INSERT_DIR_PREFIX).toInt)
+      .foldLeft(0)(math.max) + 1
+    while (!new File(parentDirectory, INSERT_DIR_PREFIX + insertNum).mkdir()) {
+      insertNum += 1
+    }
+    new LocalFSTableWriter(new File(parentDirectory, INSERT_DIR_PREFIX + insertNum).getPath,
+      numColumns)
+  }
+}
+
+
+object LocalFSUtil {
+
+  def readFile(file: File): Array[Byte] = {
+    val in = new DataInputStream(new FileInputStream(file))
+    try {
+      val bytes = new Array[Byte](file.length.toInt)
+      in.readFully(bytes)
+      bytes
+    } finally {
+      in.close()
+    }
+  }
+
+  /** Writes a file atomically, by writing a temporary file first and renaming it. */
+  def writeFile(file: File, write: FileOutputStream => Unit) {
+    val tmpFile = new File(file.getParentFile, "." + file.getName + ".tmp")
+    val out = new FileOutputStream(tmpFile)
+    try {
+      write(out)
+    } finally {
+      out.close()
+    }
+    if (!tmpFile.renameTo(file)) {
+      file.delete()
+      if (!tmpFile.renameTo(file)) {
+        throw new MemoryStoreException("Could not write " + file)
+      }
+    }
+  }
+}
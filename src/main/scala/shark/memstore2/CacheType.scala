@@ -32,13 +32,18 @@ object CacheType extends Enumeration with LogHelper {
    * - MEMORY_ONLY: Stored only in memory and dropped at the end of each Shark session.
    * - TACHYON: A distributed storage system that manages an in-memory cache for sharing files and
                 RDDs across cluster frameworks.
+   * - LOCAL_FS: Stored in columnar format under SHARK_LOCAL_WAREHOUSE_PATH, a local or shared
+   *             POSIX directory, and memory-mapped when scanned. Persistent across Shark sessions.
    * - NONE: Stored on disk (e.g., HDFS) and managed by Hive.
    */
   type CacheType = Value
-  val MEMORY, MEMORY_ONLY, TACHYON, NONE = Value
+  val MEMORY, MEMORY_ONLY, TACHYON, LOCAL_FS, NONE = Value
 
   def shouldCache(c: CacheType): Boolean = (c != NONE)
 
+  /** Whether tables of the given cache type are stored outside of Spark's block manager. */
+  def isOffHeap(c: CacheType): Boolean = (c == TACHYON || c == LOCAL_FS)
+
   /** Get the cache type object from a string representation. */
   def fromString(name: String): CacheType = {
     if (name == null || name == "" || name.toLowerCase == "false") {
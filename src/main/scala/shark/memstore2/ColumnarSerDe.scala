@@ -43,6 +43,7 @@ class ColumnarSerDe extends SerDe with LogHelper {
   var serDeParams: SerDeParameters = _
   var estimatedNumRows: Int = _
   var shouldCompress: Boolean = _
+  var buildSketches: Boolean = _
   val serializeStream = new ByteStream.Output
 
   override def initialize(conf: Configuration, tbl: Properties) {
@@ -64,6 +65,7 @@ class ColumnarSerDe extends SerDe with LogHelper {
       val rowSize = ColumnarSerDe.getFieldSize(objectInspector).toLong
       estimatedNumRows = (partitionSize / rowSize).toInt
       shouldCompress = SharkConfVars.getBoolVar(conf, SharkConfVars.COLUMNAR_COMPRESSION)
+      buildSketches = SharkConfVars.getBoolVar(conf, SharkConfVars.COLUMN_SKETCHES)
       logInfo("Initializing column serde " +
         "with compression %s. Estimated partition size: %d; number of rows: %d"
         .format(if (shouldCompress) "on" else "off", partitionSize, estimatedNumRows))
@@ -82,13 +84,26 @@ class ColumnarSerDe extends SerDe with LogHelper {
 
   override def getSerializedClass: Class[_ <: Writable] = classOf[TablePartitionBuilder]
 
-  override def serialize(obj: Object, objInspector: ObjectInspector): Writable = {
+  private def partitionBuilder: TablePartitionBuilder = {
     if (tablePartitionBuilder == null) {
       tablePartitionBuilder = new TablePartitionBuilder(objectInspector, estimatedNumRows,
-        shouldCompress)
+        shouldCompress, buildSketches)
     }
+    tablePartitionBuilder
+  }
 
-    tablePartitionBuilder.incrementRowCount()
+  /**
+   * Serialize a line of delimited text by parsing its fields straight into the partition being
+   * built, instead of deserializing it with LazySimpleSerDe first.
+   */
+  def serializeText(blob: Writable, parser: DelimitedTextParser): Writable = {
+    partitionBuilder.incrementRowCount()
+    parser.parse(blob, tablePartitionBuilder)
+    tablePartitionBuilder
+  }
+
+  override def serialize(obj: Object, objInspector: ObjectInspector): Writable = {
+    partitionBuilder.incrementRowCount()
     val soi = objInspector.asInstanceOf[StructObjectInspector]
     val fields: JList[_ <: StructField] = soi.getAllStructFieldRefs
 
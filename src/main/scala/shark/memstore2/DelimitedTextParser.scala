@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.memstore2
+
+import java.nio.charset.CharacterCodingException
+import java.sql.Timestamp
+import java.util.Properties
+
+import scala.collection.JavaConversions._
+
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.hive.serde2.Deserializer
+import org.apache.hadoop.hive.serde2.`lazy`.{LazyByte, LazyInteger, LazyLong, LazyShort,
+  LazySimpleSerDe}
+import org.apache.hadoop.hive.serde2.`lazy`.LazySimpleSerDe.SerDeParameters
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo
+import org.apache.hadoop.io.{BytesWritable, Text, Writable}
+
+import shark.SharkConfVars
+import shark.memstore2.column.MemoryStoreException
+
+
+/**
+ * Parses lines of delimited text, as read by LazySimpleSerDe, straight into the column builders of
+ * a TablePartitionBuilder. Fields are split on the first-level separator and primitives are parsed
+ * from the raw bytes, so no lazy objects or object inspectors are created per field. Values that
+ * LazySimpleSerDe would read as NULL (the null sequence, malformed numbers, missing trailing
+ * fields) are appended as nulls.
+ *
+ * @param serDeParams Parameters of the table, with the Hive partition columns last if any.
+ * @param partValues Values of the Hive partition columns, appended to every row.
+ */
+class DelimitedTextParser(serDeParams: SerDeParameters, partValues: Seq[String]) {
+
+  private val separator: Byte = serDeParams.getSeparators()(0)
+
+  private val nullSequence: Array[Byte] = {
+    val nullText = serDeParams.getNullSequence
+    java.util.Arrays.copyOf(nullText.getBytes, nullText.getLength)
+  }
+
+  private val categories: Array[PrimitiveCategory] = serDeParams.getColumnTypes.map { t =>
+    t.asInstanceOf[PrimitiveTypeInfo].getPrimitiveCategory
+  }.toArray
+
+  private val numTextFields = categories.length - partValues.size
+
+  private val partTexts: Array[Text] = partValues.map(new Text(_)).toArray
+
+  // Reused for the values of string columns. Column builders copy the bytes.
+  private val text = new Text
+
+  def parse(blob: Writable, builder: TablePartitionBuilder) {
+    var bytes: Array[Byte] = null
+    var length = 0
+    blob match {
+      case t: Text =>
+        bytes = t.getBytes
+        length = t.getLength
+      case b: BytesWritable =>
+        bytes = b.getBytes
+        length = b.getLength
+      case _ =>
+        throw new MemoryStoreException("Cannot parse " + blob.getClass.getName + " as text")
+    }
+
+    var field = 0
+    var start = 0
+    while (field < numTextFields) {
+      if (start > length) {
+        // The row has fewer fields than the table.
+        builder.appendNull(field)
+      } else {
+        var end = start
+        while (end < length && bytes(end) != separator) {
+          end += 1
+        }
+        appendField(builder, field, bytes, start, end - start)
+        start = end + 1
+      }
+      field += 1
+    }
+
+    var i = 0
+    while (i < partTexts.length) {
+      builder.appendValue(numTextFields + i, partTexts(i))
+      i += 1
+    }
+  }
+
+  private def appendField(
+      builder: TablePartitionBuilder, field: Int, bytes: Array[Byte], start: Int, length: Int) {
+    if (isNullSequence(bytes, start, length)) {
+      builder.appendNull(field)
+    } else {
+      try {
+        categories(field) match {
+          case PrimitiveCategory.STRING =>
+            text.set(bytes, start, length)
+            builder.appendValue(field, text)
+          case PrimitiveCategory.INT =>
+            builder.appendValue(field, LazyInteger.parseInt(bytes, start, length, 10))
+          case PrimitiveCategory.LONG =>
+            builder.appendValue(field, LazyLong.parseLong(bytes, start, length, 10))
+          case PrimitiveCategory.SHORT =>
+            builder.appendValue(field, LazyShort.parseShort(bytes, start, length, 10))
+          case PrimitiveCategory.BYTE =>
+            builder.appendValue(field, LazyByte.parseByte(bytes, start, length, 10))
+          case PrimitiveCategory.DOUBLE =>
+            builder.appendValue(field, Text.decode(bytes, start, length).toDouble)
+          case PrimitiveCategory.FLOAT =>
+            builder.appendValue(field, Text.decode(bytes, start, length).toFloat)
+          case PrimitiveCategory.BOOLEAN =>
+            appendBoolean(builder, field, bytes, start, length)
+          case PrimitiveCategory.TIMESTAMP =>
+            val s = new String(bytes, start, length, "US-ASCII")
+            if (s == "NULL") {
+              builder.appendNull(field)
+            } else {
+              builder.appendValue(field, Timestamp.valueOf(s))
+            }
+        }
+      } catch {
+        // NumberFormatException is an IllegalArgumentException.
+        case e: IllegalArgumentException => builder.appendNull(field)
+        case e: CharacterCodingException => builder.appendNull(field)
+      }
+    }
+  }
+
+  private def appendBoolean(
+      builder: TablePartitionBuilder, field: Int, bytes: Array[Byte], start: Int, length: Int) {
+    val s = new String(bytes, start, length, "US-ASCII")
+    if (s.equalsIgnoreCase("true")) {
+      builder.appendValue(field, true)
+    } else if (s.equalsIgnoreCase("false")) {
+      builder.appendValue(field, false)
+    } else {
+      builder.appendNull(field)
+    }
+  }
+
+  private def isNullSequence(bytes: Array[Byte], start: Int, length: Int): Boolean = {
+    if (length != nullSequence.length) {
+      false
+    } else {
+      var i = 0
+      while (i < length && bytes(start + i) == nullSequence(i)) {
+        i += 1
+      }
+      i == length
+    }
+  }
+}
+
+
+object DelimitedTextParser {
+
+  val SUPPORTED_CATEGORIES = Set(
+    PrimitiveCategory.BOOLEAN, PrimitiveCategory.BYTE, PrimitiveCategory.SHORT,
+    PrimitiveCategory.INT, PrimitiveCategory.LONG, PrimitiveCategory.FLOAT,
+    PrimitiveCategory.DOUBLE, PrimitiveCategory.STRING, PrimitiveCategory.TIMESTAMP)
+
+  /**
+   * Whether rows read with the given deserializer and table properties can be parsed directly.
+   * The deserializer must be LazySimpleSerDe without escaping or a last column that takes the rest
+   * of the line, and all columns must be of a supported primitive type. Column sketches are only
+   * built through object inspectors, so they disable direct parsing as well.
+   */
+  def canParse(
+      conf: Configuration,
+      deserializerClass: Class[_ <: Deserializer],
+      tableProps: Properties): Boolean = {
+    if (!SharkConfVars.getBoolVar(conf, SharkConfVars.DIRECT_TEXT_LOAD) ||
+        SharkConfVars.getBoolVar(conf, SharkConfVars.COLUMN_SKETCHES) ||
+        deserializerClass != classOf[LazySimpleSerDe]) {
+      false
+    } else {
+      val serDeParams = LazySimpleSerDe.initSerdeParams(conf, tableProps, getClass.getName)
+      !serDeParams.isEscaped && !serDeParams.isLastColumnTakesRest &&
+        serDeParams.getColumnTypes.forall {
+          case t: PrimitiveTypeInfo => SUPPORTED_CATEGORIES.contains(t.getPrimitiveCategory)
+          case _ => false
+        }
+    }
+  }
+}
@@ -38,6 +38,9 @@ class MemoryMetadataManager extends LogHelper {
   private val _tables: concurrent.Map[String, Table] =
     new ConcurrentHashMap[String, Table]()
 
+  // Merges the deltas appended to cached tables in the background.
+  val compactor = new TableCompactor(this)
+
   def isHivePartitioned(databaseName: String, tableName: String): Boolean = {
     val tableKey = MemoryMetadataManager.makeTableKey(databaseName, tableName)
     _tables.get(tableKey) match {
@@ -83,6 +86,11 @@ class MemoryMetadataManager extends LogHelper {
     _tables.get(MemoryMetadataManager.makeTableKey(databaseName, tableName))
   }
 
+  /** Returns the version of a cached table (see Table.version), or -1 if it isn't cached. */
+  def tableVersion(databaseName: String, tableName: String): Long = {
+    getTable(databaseName, tableName).map(_.version).getOrElse(-1L)
+  }
+
   def getMemoryTable(databaseName: String, tableName: String): Option[MemoryTable] = {
     val tableKey = MemoryMetadataManager.makeTableKey(databaseName, tableName)
     val tableOpt = _tables.get(tableKey)
@@ -105,6 +113,20 @@ class MemoryMetadataManager extends LogHelper {
     tableOpt.asInstanceOf[Option[PartitionedMemoryTable]]
   }
 
+  /**
+   * Atomically replaces the consecutive segments `replaced` of `table` by `merged`, the result of
+   * compacting them. Returns false, leaving the table unchanged, if the table was dropped or
+   * overwritten, or its segments were otherwise changed since they were read.
+   */
+  def replaceSegments(
+      table: MemoryTable,
+      replaced: Seq[MemoryTable.Segment],
+      merged: MemoryTable.Segment): Boolean = table.synchronized {
+    // Holding the table's lock, a concurrent removeTable() either already removed the table, or
+    // will unpersist the table's RDD with `merged` in it.
+    _tables.values.exists(_ eq table) && table.replaceSegments(replaced, merged)
+  }
+
   def renameTable(databaseName: String, oldName: String, newName: String) {
     if (containsTable(databaseName, oldName)) {
       val oldTableKey = MemoryMetadataManager.makeTableKey(databaseName, oldName)
@@ -137,6 +159,7 @@ class MemoryMetadataManager extends LogHelper {
   }
 
   def shutdown() {
+    compactor.stop()
     val db = Hive.get()
     for (table <- _tables.values) {
       table.cacheMode match {
@@ -14,18 +14,31 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package shark.memstore2
 
-import org.apache.spark.rdd.RDD
+import java.lang.ref.{PhantomReference, Reference, ReferenceQueue}
+import java.util.{HashMap => JHashMap}
+
+import org.apache.spark.rdd.{RDD, UnionRDD}
 
-import scala.collection.mutable.{Buffer, HashMap}
+import scala.collection.mutable.{ArrayBuffer, Buffer, HashMap}
 
 import shark.execution.RDDUtils
 
 
 /**
  * A metadata container for a table in Shark that's backed by an RDD.
+ *
+ * The table's data is kept as a sequence of segments: the RDD set by put(), followed by an RDD for
+ * each append made by update(). Appended segments are deltas until a TableCompactor merges them
+ * into a single segment with right-sized partitions. The table's RDD is the union of its segments,
+ * and its stats are the stats of each segment, offset by the number of partitions before it.
+ *
+ * Each change to the segments, compactions included, makes a new snapshot of the table. Queries
+ * hold the snapshot they scan from acquireRDDAndStats() until they have run, and segments replaced
+ * by a compaction are unpersisted once no query holds a snapshot that still contains them. A query
+ * returning a TableRDD, which is computed after the query ran, holds its snapshots until the
+ * TableRDD is garbage collected.
  */
 private[shark] class MemoryTable(
     databaseName: String,
@@ -35,6 +48,17 @@ private[shark] class MemoryTable(
 
   private var _rddValueOpt: Option[RDDValue] = None
 
+  private val _segments = new ArrayBuffer[MemoryTable.Segment]
+
+  // Incremented whenever the segments change.
+  private var _snapshot = 0L
+
+  // Number of queries holding each snapshot.
+  private val _readers = new HashMap[Long, Int]
+
+  // Segments replaced by a compaction, with the last snapshot that contains them.
+  private val _retired = new ArrayBuffer[(Long, Seq[MemoryTable.Segment])]
+
   /**
    * Sets the RDD and stats fields the `_rddValueOpt`. Used for INSERT/LOAD OVERWRITE.
    * @param newRDD The table's data.
@@ -42,46 +66,191 @@ private[shark] class MemoryTable(
    * @return The previous (RDD, stats) pair for this table.
    */
   def put(
-  	  newRDD: RDD[TablePartition],
-  	  newStats: collection.Map[Int, TablePartitionStats] = new HashMap[Int, TablePartitionStats]()
-  	): Option[(RDD[TablePartition], collection.Map[Int, TablePartitionStats])] = {
-  	val prevRDDAndStatsOpt = _rddValueOpt.map(_.toTuple)
-  	if (_rddValueOpt.isDefined) {
-  	  _rddValueOpt.foreach { rddValue =>
-  	  	rddValue.rdd = newRDD
-  	  	rddValue.stats = newStats
-  	  }
-  	} else {
-      _rddValueOpt = Some(new RDDValue(newRDD, newStats))
-  	}
-    prevRDDAndStatsOpt 
+      newRDD: RDD[TablePartition],
+      newStats: collection.Map[Int, TablePartitionStats] = new HashMap[Int, TablePartitionStats]()
+    ): Option[(RDD[TablePartition], collection.Map[Int, TablePartitionStats])] = synchronized {
+    val prevRDDAndStatsOpt = _rddValueOpt.map(_.toTuple)
+    _segments.clear()
+    _segments += new MemoryTable.Segment(newRDD, newStats, isDelta = false)
+    refresh()
+    updateVersion()
+    prevRDDAndStatsOpt
   }
 
   /**
-   * Used for append operations, such as INSERT and LOAD INTO.
+   * Used for append operations, such as INSERT and LOAD INTO. The appended data is kept as a delta
+   * segment of the table.
    *
    * @param newRDD Data to append to the table.
    * @param newStats Stats for each TablePartition in `newRDD`.
    * @return The previous (RDD, stats) pair for this table.
    */
   def update(
-  	  newRDD: RDD[TablePartition],
-  	  newStats: Buffer[(Int, TablePartitionStats)]
-  	): Option[(RDD[TablePartition], collection.Map[Int, TablePartitionStats])] = {
+      newRDD: RDD[TablePartition],
+      newStats: Buffer[(Int, TablePartitionStats)]
+    ): Option[(RDD[TablePartition], collection.Map[Int, TablePartitionStats])] = synchronized {
     val prevRDDAndStatsOpt = _rddValueOpt.map(_.toTuple)
-  	if (_rddValueOpt.isDefined) {
-      val (prevRDD, prevStats) = (prevRDDAndStatsOpt.get._1, prevRDDAndStatsOpt.get._2)
-      val updatedRDDValue = _rddValueOpt.get
-      updatedRDDValue.rdd = RDDUtils.unionAndFlatten(prevRDD, newRDD)
-      updatedRDDValue.stats = Table.mergeStats(newStats, prevStats).toMap
+    if (_rddValueOpt.isDefined) {
+      _segments += new MemoryTable.Segment(newRDD, newStats.toMap, isDelta = true)
+      refresh()
+      updateVersion()
     } else {
       put(newRDD, newStats.toMap)
     }
     prevRDDAndStatsOpt
   }
 
-  def getRDD = _rddValueOpt.map(_.rdd)
+  /** Returns the delta segments appended since the last put() or compaction, in order. */
+  def deltas: Seq[MemoryTable.Segment] = synchronized {
+    _segments.filter(_.isDelta).toList
+  }
 
-  def getStats = _rddValueOpt.map(_.stats)
+  /** Returns the segments following the one set by put(), compacted or not, in order. */
+  def appendedSegments: Seq[MemoryTable.Segment] = synchronized {
+    _segments.drop(1).toList
+  }
 
+  /**
+   * Replaces the segments in `replaced`, which must still be consecutive segments of the table,
+   * by `merged`. Returns false, leaving the table unchanged, if the table was overwritten or
+   * compacted since `replaced` was read. The replaced segments are unpersisted once no query holds
+   * a snapshot of the table from before the swap.
+   */
+  def replaceSegments(
+      replaced: Seq[MemoryTable.Segment],
+      merged: MemoryTable.Segment): Boolean = synchronized {
+    val start = _segments.indexWhere(_ eq replaced.head)
+    val isCurrent = start >= 0 && start + replaced.size <= _segments.size &&
+      replaced.zipWithIndex.forall { case (segment, i) => _segments(start + i) eq segment }
+    if (isCurrent) {
+      _retired += Tuple2(_snapshot, replaced)
+      _segments.remove(start, replaced.size)
+      _segments.insert(start, merged)
+      refresh()
+      unpersistRetired()
+    }
+    isCurrent
+  }
+
+  // Unpersists the retired segments that no query can still be scanning.
+  private def unpersistRetired() {
+    val oldestHeld = if (_readers.isEmpty) Long.MaxValue else _readers.keys.min
+    val (unused, held) = _retired.partition { case (lastSnapshot, _) => lastSnapshot < oldestHeld }
+    _retired.clear()
+    _retired ++= held
+    unused.foreach { case (_, segments) => segments.foreach(s => RDDUtils.unpersistRDD(s.rdd)) }
+  }
+
+  // Recomputes the table's RDD and stats from its segments.
+  private def refresh() {
+    _snapshot += 1
+    val rdd: RDD[TablePartition] = if (_segments.size == 1) {
+      _segments.head.rdd
+    } else {
+      new UnionRDD(_segments.head.rdd.context, _segments.map(_.rdd))
+    }
+    val stats = new HashMap[Int, TablePartitionStats]
+    var offset = 0
+    _segments.foreach { segment =>
+      segment.stats.foreach { case (index, partitionStats) =>
+        stats.put(index + offset, partitionStats)
+      }
+      offset += segment.rdd.partitions.size
+    }
+    _rddValueOpt match {
+      case Some(rddValue) =>
+        rddValue.rdd = rdd
+        rddValue.stats = stats
+      case None =>
+        _rddValueOpt = Some(new RDDValue(rdd, stats))
+    }
+  }
+
+  def getRDD = synchronized { _rddValueOpt.map(_.rdd) }
+
+  def getStats = synchronized { _rddValueOpt.map(_.stats) }
+
+  /**
+   * Returns the table's RDD together with the stats of its partitions. Unlike separate calls to
+   * getRDD and getStats, the pair is consistent even if a compaction completes concurrently.
+   */
+  def getRDDAndStats = synchronized { _rddValueOpt.map(_.toTuple) }
+
+  /**
+   * Like getRDDAndStats, for a query that scans the RDD. The segments in it are kept persisted
+   * until MemoryTable.releaseSnapshots() or MemoryTable.keepSnapshots() is called on the same
+   * thread, once the query has run.
+   */
+  def acquireRDDAndStats = synchronized {
+    _readers(_snapshot) = _readers.getOrElse(_snapshot, 0) + 1
+    MemoryTable.heldSnapshots.get += Tuple2(this, _snapshot)
+    _rddValueOpt.map(_.toTuple)
+  }
+
+  private def release(snapshot: Long) = synchronized {
+    val numReaders = _readers(snapshot) - 1
+    if (numReaders == 0) {
+      _readers.remove(snapshot)
+      unpersistRetired()
+    } else {
+      _readers(snapshot) = numReaders
+    }
+  }
+}
+
+
+private[shark] object MemoryTable {
+
+  // Snapshots of tables held by the query running on this thread.
+  private val heldSnapshots = new ThreadLocal[ArrayBuffer[(MemoryTable, Long)]] {
+    override def initialValue = new ArrayBuffer[(MemoryTable, Long)]
+  }
+
+  // Snapshots kept for RDDs returned by queries, until the RDDs are garbage collected.
+  private val collectedOwners = new ReferenceQueue[AnyRef]
+  private val keptSnapshots = new JHashMap[Reference[_ <: AnyRef], Seq[(MemoryTable, Long)]]
+
+  /** Releases the snapshots acquired by the query that ran on this thread. */
+  def releaseSnapshots() {
+    heldSnapshots.get.foreach { case (table, snapshot) => table.release(snapshot) }
+    heldSnapshots.get.clear()
+    releaseCollected()
+  }
+
+  /**
+   * Hands the snapshots acquired by the query that ran on this thread over to `owner`, an RDD
+   * computed after the query ran, e.g. a TableRDD. They are released once `owner` was garbage
+   * collected, at the end of a later query.
+   */
+  def keepSnapshots(owner: AnyRef) {
+    val snapshots = heldSnapshots.get.toList
+    heldSnapshots.get.clear()
+    if (!snapshots.isEmpty) {
+      keptSnapshots.synchronized {
+        keptSnapshots.put(new PhantomReference(owner, collectedOwners), snapshots)
+      }
+    }
+    releaseCollected()
+  }
+
+  private def releaseCollected() {
+    var ref = collectedOwners.poll()
+    while (ref != null) {
+      val snapshots = keptSnapshots.synchronized { keptSnapshots.remove(ref) }
+      snapshots.foreach { case (table, snapshot) => table.release(snapshot) }
+      ref = collectedOwners.poll()
+    }
+  }
+
+  /**
+   * Part of a MemoryTable's data.
+   *
+   * @param rdd The segment's data.
+   * @param stats Stats for each TablePartition in `rdd`.
+   * @param isDelta Whether the segment was appended by an update() and not compacted yet.
+   */
+  class Segment(
+      val rdd: RDD[TablePartition],
+      val stats: collection.Map[Int, TablePartitionStats],
+      val isDelta: Boolean)
 }
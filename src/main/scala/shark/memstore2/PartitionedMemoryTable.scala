@@ -88,6 +88,7 @@ class PartitionedMemoryTable(
     val newRDDValue = new RDDValue(newRDD, newStats)
     _keyToPartitions.put(partitionKey, newRDDValue)
     _cachePolicy.notifyPut(partitionKey, newRDDValue)
+    updateVersion()
     prevRDDAndStats
   }
 
@@ -106,6 +107,7 @@ class PartitionedMemoryTable(
       val updatedRDDValue = _keyToPartitions.get(partitionKey).get
       updatedRDDValue.rdd = RDDUtils.unionAndFlatten(prevRDD, newRDD)
       updatedRDDValue.stats = Table.mergeStats(newStats, prevStats).toMap
+      updateVersion()
     } else {
       // No previous RDDValue entry currently exists for `partitionKey`, so add one.
       putPartition(partitionKey, newRDD, newStats.toMap)
@@ -119,6 +121,7 @@ class PartitionedMemoryTable(
     val rddRemoved = _keyToPartitions.remove(partitionKey)
     if (rddRemoved.isDefined) {
       _cachePolicy.notifyRemove(partitionKey)
+      updateVersion()
     }
     rddRemoved.map(_.toTuple)
   }
@@ -128,6 +131,11 @@ class PartitionedMemoryTable(
     _keyToPartitions.mapValues(_.rdd).toMap
   }
 
+  /** Returns the stats of every cached Hive-partition, without notifying the cache policy. */
+  def keyToStats: collection.immutable.Map[String, collection.Map[Int, TablePartitionStats]] = {
+    _keyToPartitions.mapValues(_.stats).toMap
+  }
+
   def setPartitionCachePolicy(cachePolicyStr: String, fallbackMaxSize: Int) {
     // The loadFunc will upgrade the persistence level of the RDD to the preferred storage level.
     val loadFunc: String => RDDValue = (partitionKey: String) => {
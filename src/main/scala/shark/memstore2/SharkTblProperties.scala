@@ -19,6 +19,8 @@ package shark.memstore2
 
 import java.util.{Map => JavaMap}
 
+import org.apache.hadoop.hive.metastore.api.FieldSchema
+
 
 /**
  * Collection of static fields and helpers for table properties (i.e., from A
@@ -39,6 +41,10 @@ object SharkTblProperties {
   // Default value for the "shark.cache" table property
   val CACHE_FLAG = new TableProperty("shark.cache", "true")
 
+  // Name of the column that the rows of a cached table are range-partitioned and sorted on, if
+  // any. Set by CACHE <table> SORTED BY (<column>).
+  val SORT_COLUMN = new TableProperty("shark.cache.sortBy", "")
+
   def getOrSetDefault(tblProps: JavaMap[String, String], variable: TableProperty): String = {
     if (!tblProps.containsKey(variable.varname)) {
       tblProps.put(variable.varname, variable.defaultVal)
@@ -60,6 +66,16 @@ object SharkTblProperties {
     tblProps
   }
 
+  /**
+   * Returns the position among `columns` of the column named by the "shark.cache.sortBy" property
+   * in `tblProps`, or None if the property isn't set. The position is -1 if no column has the name.
+   */
+  def getSortColumn(tblProps: JavaMap[String, String], columns: Seq[FieldSchema]): Option[Int] = {
+    Option(tblProps.get(SORT_COLUMN.varname)).filter(!_.isEmpty).map { name =>
+      columns.indexWhere(_.getName.equalsIgnoreCase(name))
+    }
+  }
+
   def removeSharkProperties(tblProps: JavaMap[String, String]) {
     tblProps.remove(CACHE_FLAG.varname)
     tblProps.remove(CACHE_POLICY.varname)
@@ -17,6 +17,8 @@
 
 package shark.memstore2
 
+import java.util.concurrent.atomic.AtomicLong
+
 import scala.collection.mutable.ArrayBuffer
 
 import org.apache.spark.rdd.RDD
@@ -37,6 +39,19 @@ private[shark] abstract class Table(
     var tableName: String,
     var cacheMode: CacheType.CacheType) {
 
+  @volatile private var _version = Table.nextVersion()
+
+  /**
+   * Changes whenever the table's contents are replaced or appended to, but not when its segments
+   * are compacted. Versions are unique across tables, so a table that was dropped and cached again
+   * has a new version too. Compiled plans over the table are only reused while it is unchanged.
+   */
+  def version: Long = _version
+
+  protected def updateVersion() {
+    _version = Table.nextVersion()
+  }
+
   /**
    * A mutable wrapper for an RDD and stats for its partitions.
    */
@@ -50,6 +65,10 @@ private[shark] abstract class Table(
 
 object Table {
 
+  private val lastVersion = new AtomicLong
+
+  private def nextVersion(): Long = lastVersion.incrementAndGet()
+
   /**
    * Merges contents of `otherStatsMaps` into `targetStatsMap`.
    */
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shark.memstore2
+
+import java.util.{Collections, Properties}
+import java.util.concurrent.{ConcurrentHashMap, Executors, ThreadFactory}
+
+import scala.collection.mutable.ArrayBuffer
+
+import org.apache.hadoop.hive.conf.HiveConf
+import org.apache.hadoop.io.Writable
+
+import org.apache.spark.{SerializableWritable, SparkEnv}
+import org.apache.spark.broadcast.Broadcast
+import org.apache.spark.rdd.{RDD, UnionRDD}
+import org.apache.spark.storage.StorageLevel
+
+import shark.{LogHelper, SharkConfVars, SharkEnv}
+
+
+/**
+ * Merges the delta segments that INSERT INTO and LOAD INTO append to a cached table (see
+ * MemoryTable) in the background. Without compaction, each append adds its own, usually small,
+ * TablePartitions to the table, so frequent small loads leave the table with many partitions under
+ * a long union lineage, which makes scans launch many tasks and planning slower.
+ *
+ * Once a table has shark.cache.compaction.deltas deltas, their rows are re-encoded into partitions
+ * of about shark.cache.compaction.mb each, with freshly built TablePartitionStats. The merged
+ * segment is swapped in by MemoryMetadataManager only if the table still holds the deltas it was
+ * built from, e.g. not if the table was overwritten or dropped meanwhile. Queries that started
+ * before the swap scan the replaced deltas, which MemoryTable unpersists once those queries ran.
+ *
+ * Each compaction adds a compacted segment, so once a table has shark.cache.compaction.segments of
+ * them, they are merged together with the deltas that follow them.
+ */
+class TableCompactor(metadataManager: MemoryMetadataManager) extends LogHelper {
+
+  // A single thread, so that compactions don't compete with each other for the cluster.
+  private val executor = Executors.newSingleThreadExecutor(new ThreadFactory {
+    override def newThread(r: Runnable): Thread = {
+      val thread = new Thread(r, "Shark table compactor")
+      thread.setDaemon(true)
+      thread
+    }
+  })
+
+  // Tables with a compaction scheduled or running.
+  private val compacting =
+    Collections.newSetFromMap(new ConcurrentHashMap[MemoryTable, java.lang.Boolean])
+
+  /**
+   * Schedules a compaction of `table` if it has enough deltas or compacted segments. Called on the
+   * master after data is appended to the table.
+   *
+   * @param serDeProps Properties the table's ColumnarSerDe is initialized with.
+   */
+  def compactIfNeeded(table: MemoryTable, conf: HiveConf, serDeProps: Properties) {
+    val maxDeltas = SharkConfVars.getIntVar(conf, SharkConfVars.CACHE_COMPACTION_DELTAS)
+    val maxCompacted = SharkConfVars.getIntVar(conf, SharkConfVars.CACHE_COMPACTION_SEGMENTS)
+    val appended = table.appendedSegments
+    if (SharkConfVars.getBoolVar(conf, SharkConfVars.CACHE_COMPACTION) &&
+        (appended.count(_.isDelta) >= maxDeltas || appended.count(!_.isDelta) >= maxCompacted) &&
+        compacting.add(table)) {
+      val broadcastedConf = SharkEnv.sc.broadcast(new SerializableWritable(conf))
+      val targetSize = SharkConfVars.getIntVar(conf, SharkConfVars.CACHE_COMPACTION_SIZE)
+      val sparkEnv = SparkEnv.get
+      executor.execute(new Runnable {
+        override def run() {
+          SparkEnv.set(sparkEnv)
+          try {
+            compact(table, broadcastedConf, serDeProps, targetSize.toLong * 1024 * 1024,
+              maxCompacted)
+          } catch {
+            case e: Exception =>
+              logError("Failed to compact %s.%s".format(table.databaseName, table.tableName), e)
+          } finally {
+            compacting.remove(table)
+          }
+        }
+      })
+    }
+  }
+
+  private def compact(
+      table: MemoryTable,
+      broadcastedConf: Broadcast[SerializableWritable[HiveConf]],
+      serDeProps: Properties,
+      targetSize: Long,
+      maxCompacted: Int) {
+    // Deltas always follow the compacted segments, so both choices are consecutive segments.
+    val appended = table.appendedSegments
+    val segments = if (appended.count(!_.isDelta) >= maxCompacted) {
+      appended
+    } else {
+      appended.filter(_.isDelta)
+    }
+    if (segments.size < 2) {
+      return
+    }
+    val numRows = segments.flatMap(_.stats.values).map(_.numRows).sum
+    val rowSize = {
+      val serde = new ColumnarSerDe
+      serde.initialize(null, serDeProps)
+      math.max(ColumnarSerDe.getFieldSize(serde.getObjectInspector), 1)
+    }
+    val numPartitions = math.max(1L, math.ceil(numRows * rowSize / targetSize.toDouble).toLong)
+    logInfo("Compacting %d segments of %s.%s (%d rows) into %d partitions".format(
+      segments.size, table.databaseName, table.tableName, numRows, numPartitions))
+
+    val statsAcc = SharkEnv.sc.accumulableCollection(ArrayBuffer[(Int, TablePartitionStats)]())
+    val segmentsRdd: RDD[TablePartition] =
+      new UnionRDD(SharkEnv.sc, segments.map(_.rdd)).coalesce(numPartitions.toInt)
+    val mergedRdd = segmentsRdd.mapPartitionsWithIndex { case (partIndex, partIter) =>
+      val serde = new ColumnarSerDe
+      serde.initialize(broadcastedConf.value.value, serDeProps)
+      val oi = serde.getObjectInspector
+      var builder: Writable = null
+      partIter.foreach { tablePartition =>
+        tablePartition.iterator.foreach { row =>
+          builder = serde.serialize(row, oi)
+        }
+      }
+      if (builder == null) {
+        // Empty partition.
+        statsAcc += Tuple2(partIndex, new TablePartitionStats(Array.empty, 0))
+        Iterator(new TablePartition(0, Array()))
+      } else {
+        statsAcc += Tuple2(partIndex, builder.asInstanceOf[TablePartitionBuilder].stats)
+        Iterator(builder.asInstanceOf[TablePartitionBuilder].build())
+      }
+    }
+    mergedRdd.setName(table.tableName)
+    mergedRdd.persist(
+      if (table.cacheMode == CacheType.MEMORY_ONLY) {
+        StorageLevel.MEMORY_ONLY
+      } else {
+        StorageLevel.MEMORY_AND_DISK
+      })
+    SharkEnv.sc.runJob(mergedRdd, (iter: Iterator[TablePartition]) => iter.foreach(_ => Unit))
+
+    val merged = new MemoryTable.Segment(mergedRdd, statsAcc.value.toMap, isDelta = false)
+    if (!metadataManager.replaceSegments(table, segments, merged)) {
+      logInfo("%s.%s changed during compaction, discarding the compacted partitions".format(
+        table.databaseName, table.tableName))
+      mergedRdd.unpersist()
+    }
+  }
+
+  def stop() {
+    executor.shutdownNow()
+  }
+}
@@ -17,17 +17,24 @@
 
 package shark.memstore2
 
-import java.io.{Externalizable, ObjectInput, ObjectOutput}
+import java.io.{DataInput, DataOutput, Externalizable, ObjectInput, ObjectOutput}
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
+import java.nio.channels.{ReadableByteChannel, WritableByteChannel}
 import java.util.BitSet
-import shark.memstore2.column.ColumnIterator
+
+import shark.memstore2.column.{ColumnIterator, KeyRange}
 
 
 /**
  * TablePartition contains a whole partition of data in columnar format. It
  * simply contains a list of columns and their meta data. It should be built
  * using a TablePartitionBuilder.
+ *
+ * When serialized, e.g. by Spark when a cached partition is spilled to disk or fetched from a
+ * remote block manager, a partition is written as a header (the number of rows, the number of
+ * columns and the length of each column, -1 for a pruned column) followed by the bytes of each
+ * column. The columns are written with bulk copies, and read back as slices of a single buffer.
  */
 class TablePartition(private var _numRows: Long, private var _columns: Array[ByteBuffer])
   extends Externalizable {
@@ -82,34 +89,146 @@ class TablePartition(private var _numRows: Long, private var _columns: Array[Byt
     new TablePartitionIterator(_numRows, columnIterators, columnsUsed)
   }
 
-  override def readExternal(in: ObjectInput) {
-    _numRows = in.readLong()
-    val numColumns = in.readInt()
-    _columns = Array.fill[ByteBuffer](numColumns) {
-      val columnLen = in.readInt()
-      val buf = ByteBuffer.allocate(columnLen)
-      in.readFully(buf.array(), 0, columnLen)
-      buf
+  /**
+   * Return an iterator over the rows whose value of `column` may fall in `range`, for a partition
+   * sorted on `column`. Rows before the range are skipped without being decoded where the
+   * column encodings allow it, and rows past the range are not read.
+   */
+  def rangeIterator(columnsUsed: BitSet, column: Int, range: KeyRange): TablePartitionIterator = {
+    val (from, until) = KeyRange.findRows(_columns(column), _numRows.toInt, range)
+    val columnIterators: Array[ColumnIterator] = _columns.map { buffer =>
+      if (buffer == null) null else ColumnIterator.newIterator(buffer)
     }
+    val iter = new TablePartitionIterator(until, columnIterators, columnsUsed)
+    iter.skip(from)
+    iter
   }
 
-  override def writeExternal(out: ObjectOutput) {
-    out.writeLong(numRows)
-    out.writeInt(columns.length)
-    for (column <- columns) {
-      val buf = column.duplicate()
-      buf.rewind()
-      // If the ByteBuffer is backed by a byte array, just write the byte array out.
-      // Otherwise, write each byte one by one.
-      if (buf.hasArray()) {
-        val byteArray = buf.array()
-        out.writeInt(byteArray.length)
-        out.write(byteArray, 0, byteArray.length)
+  /** Size in bytes of the serialized partition. */
+  def serializedSize: Long = {
+    header.remaining + _columns.map(c => if (c == null) 0L else c.limit.toLong).sum
+  }
+
+  /** Writes the partition to a channel, without copying the column buffers. */
+  def writeTo(channel: WritableByteChannel) {
+    (header +: _columns.filter(_ != null).map(columnBytes)).foreach { buf =>
+      while (buf.hasRemaining) {
+        channel.write(buf)
+      }
+    }
+  }
+
+  /** Writes the partition to a stream, e.g. an ObjectOutput or a Kryo output. */
+  def writeTo(out: DataOutput) {
+    val headerBuf = header
+    out.write(headerBuf.array, 0, headerBuf.limit)
+    var chunk: Array[Byte] = null
+    _columns.filter(_ != null).map(columnBytes).foreach { buf =>
+      if (buf.hasArray) {
+        out.write(buf.array, buf.arrayOffset + buf.position, buf.remaining)
       } else {
-        out.writeInt(buf.remaining())
-        while (buf.hasRemaining()) {
-          out.write(buf.get())
+        // Copy direct buffers out in chunks rather than one byte at a time.
+        if (chunk == null) {
+          chunk = new Array[Byte](TablePartition.COPY_CHUNK_SIZE)
         }
+        while (buf.hasRemaining) {
+          val length = math.min(chunk.length, buf.remaining)
+          buf.get(chunk, 0, length)
+          out.write(chunk, 0, length)
+        }
+      }
+    }
+  }
+
+  /** Reads a partition written by writeTo(DataOutput). The columns share one buffer. */
+  def readFrom(in: DataInput) {
+    _numRows = in.readLong()
+    val lengths = Array.fill(in.readInt())(in.readInt())
+    val data = new Array[Byte](lengths.filter(_ > 0).sum)
+    in.readFully(data)
+    _columns = TablePartition.sliceColumns(ByteBuffer.wrap(data), lengths)
+  }
+
+  override def readExternal(in: ObjectInput) {
+    readFrom(in: DataInput)
+  }
+
+  override def writeExternal(out: ObjectOutput) {
+    writeTo(out: DataOutput)
+  }
+
+  private def header: ByteBuffer = {
+    val buffer = ByteBuffer.allocate(8 + 4 + 4 * _columns.length)
+    buffer.putLong(_numRows)
+    buffer.putInt(_columns.length)
+    _columns.foreach(c => buffer.putInt(if (c == null) -1 else c.limit))
+    buffer.flip()
+    buffer
+  }
+
+  // The bytes of a column, from its start to its limit.
+  private def columnBytes(column: ByteBuffer): ByteBuffer = {
+    val buf = column.duplicate()
+    buf.rewind()
+    buf
+  }
+}
+
+
+object TablePartition {
+
+  val COPY_CHUNK_SIZE = 64 * 1024
+
+  /**
+   * Wraps a partition written by writeTo, e.g. a memory-mapped file, without copying: the columns
+   * are slices of `buffer`. Reads from the current position of `buffer` and advances it past the
+   * partition.
+   */
+  def readFrom(buffer: ByteBuffer): TablePartition = {
+    val headerBuf = buffer.duplicate().order(ByteOrder.BIG_ENDIAN)
+    val numRows = headerBuf.getLong()
+    val lengths = Array.fill(headerBuf.getInt())(headerBuf.getInt())
+    buffer.position(headerBuf.position)
+    val columns = sliceColumns(buffer, lengths)
+    buffer.position(buffer.position + lengths.filter(_ > 0).sum)
+    new TablePartition(numRows, columns)
+  }
+
+  /** Reads a partition written by writeTo from a channel into a single heap buffer. */
+  def readFrom(channel: ReadableByteChannel): TablePartition = {
+    val headerStart = ByteBuffer.allocate(12)
+    readFully(channel, headerStart)
+    val numRows = headerStart.getLong()
+    val numColumns = headerStart.getInt()
+    val lengthsBuf = ByteBuffer.allocate(4 * numColumns)
+    readFully(channel, lengthsBuf)
+    val lengths = Array.fill(numColumns)(lengthsBuf.getInt())
+    val data = ByteBuffer.allocate(lengths.filter(_ > 0).sum)
+    readFully(channel, data)
+    new TablePartition(numRows, sliceColumns(data, lengths))
+  }
+
+  private def readFully(channel: ReadableByteChannel, buffer: ByteBuffer) {
+    while (buffer.hasRemaining) {
+      if (channel.read(buffer) < 0) {
+        throw new java.io.EOFException
+      }
+    }
+    buffer.flip()
+  }
+
+  // Splits the bytes of consecutive columns, starting at the position of `data`, into slices.
+  private def sliceColumns(data: ByteBuffer, lengths: Array[Int]): Array[ByteBuffer] = {
+    var offset = data.position
+    lengths.map { length =>
+      if (length < 0) {
+        null
+      } else {
+        val column = data.duplicate()
+        column.position(offset)
+        column.limit(offset + length)
+        offset += length
+        column.slice()
       }
     }
   }
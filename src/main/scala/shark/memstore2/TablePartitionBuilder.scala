@@ -25,21 +25,32 @@ import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector
 import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector
 import org.apache.hadoop.io.Writable
 
-import shark.memstore2.column.ColumnBuilder
+import shark.memstore2.column.{ColumnBuilder, ColumnSketches, NullableColumnBuilder}
 
 
 /**
  * Used to build a TablePartition. This is used in the serializer to convert a
  * partition of data into columnar format and to generate a TablePartition.
+ * If buildSketches is true, the partition stats also carry per-column sketches.
  */
 class TablePartitionBuilder(
     ois: Seq[ObjectInspector],
     initialColumnSize: Int,
-    shouldCompress: Boolean)
+    shouldCompress: Boolean,
+    buildSketches: Boolean)
   extends Writable {
 
-  def this(oi: StructObjectInspector, initialColumnSize: Int, shouldCompress: Boolean = true) = {
-    this(oi.getAllStructFieldRefs.map(_.getFieldObjectInspector), initialColumnSize, shouldCompress)
+  def this(ois: Seq[ObjectInspector], initialColumnSize: Int, shouldCompress: Boolean) = {
+    this(ois, initialColumnSize, shouldCompress, false)
+  }
+
+  def this(
+      oi: StructObjectInspector,
+      initialColumnSize: Int,
+      shouldCompress: Boolean = true,
+      buildSketches: Boolean = false) = {
+    this(oi.getAllStructFieldRefs.map(_.getFieldObjectInspector), initialColumnSize,
+      shouldCompress, buildSketches)
   }
 
   private var numRows: Long = 0
@@ -50,15 +61,36 @@ class TablePartitionBuilder(
     columnBuilder
   }.toArray
 
+  private val columnSketches: Array[ColumnSketches] =
+    if (buildSketches) ois.map(ColumnSketches.create).toArray else null
+
   def incrementRowCount() {
     numRows += 1
   }
 
   def append(columnIndex: Int, o: Object, oi: ObjectInspector) {
     columnBuilders(columnIndex).append(o, oi)
+    if (columnSketches != null && columnSketches(columnIndex) != null) {
+      columnSketches(columnIndex).append(o, oi)
+    }
+  }
+
+  /**
+   * Append a value that is already in the Scala representation of the column type, e.g. an Int
+   * for INT columns or a Text for STRING columns. Used by loaders that bypass object inspectors;
+   * sketches are not updated.
+   */
+  def appendValue[T](columnIndex: Int, v: T) {
+    columnBuilders(columnIndex).asInstanceOf[ColumnBuilder[T]].appendValue(v)
+  }
+
+  def appendNull(columnIndex: Int) {
+    columnBuilders(columnIndex).asInstanceOf[NullableColumnBuilder[_]].appendNull()
   }
 
-  def stats: TablePartitionStats = new TablePartitionStats(columnBuilders.map(_.stats), numRows)
+  def stats: TablePartitionStats = {
+    new TablePartitionStats(columnBuilders.map(_.stats), numRows, columnSketches)
+  }
 
   def build(): TablePartition = new TablePartition(numRows, columnBuilders.map(_.build()))
 
@@ -55,6 +55,22 @@ class TablePartitionIterator(
     }
     _struct
   }
+
+  /**
+   * Skips the next `n` rows. The used columns move past the encoded values of the rows without
+   * decoding them, where their encoding allows it.
+   */
+  def skip(n: Long) {
+    val skipped = math.min(n, numRows - _position)
+    if (skipped > 0) {
+      _position += skipped
+      var i = columnUsed.nextSetBit(0)
+      while (i > -1) {
+        columnIterators(i).skip(skipped.toInt)
+        i = columnUsed.nextSetBit(i + 1)
+      }
+    }
+  }
 }
 
 object TablePartitionIterator {
@@ -17,15 +17,30 @@
 
 package shark.memstore2
 
-import shark.memstore2.column.ColumnStats
+import shark.memstore2.column.{ColumnSketches, ColumnStats}
 
 
 /**
- * Stores column statistics for a table partition.
+ * Stores column statistics for a table partition. sketches is null unless the partition was
+ * built with shark.column.sketches enabled; an entry is null for columns that have no sketch.
+ * sortColumn is the index of the column the rows of the partition are sorted on, or -1.
  */
-class TablePartitionStats(val stats: Array[ColumnStats[_]], val numRows: Long)
+class TablePartitionStats(
+    val stats: Array[ColumnStats[_]],
+    val numRows: Long,
+    val sketches: Array[ColumnSketches],
+    val sortColumn: Int)
   extends Serializable {
 
+  def this(stats: Array[ColumnStats[_]], numRows: Long, sketches: Array[ColumnSketches]) =
+    this(stats, numRows, sketches, -1)
+
+  def this(stats: Array[ColumnStats[_]], numRows: Long) = this(stats, numRows, null)
+
+  /** Returns these stats for a partition whose rows are sorted on the given column. */
+  def sortedOn(column: Int): TablePartitionStats =
+    new TablePartitionStats(stats, numRows, sketches, column)
+
   override def toString =
     numRows + " rows\n" +
     stats.zipWithIndex.map { case (column, index) =>
@@ -35,7 +35,11 @@ trait ColumnBuilder[T] {
   private var _initialSize: Int = _
 
   def append(o: Object, oi: ObjectInspector) {
-    val v = t.get(o, oi)
+    appendValue(t.get(o, oi))
+  }
+
+  /** Append a value that is already in the Scala representation of this column type. */
+  def appendValue(v: T) {
     _buffer = growIfNeeded(_buffer, t.actualSize(v))
     t.append(v, _buffer)
     gatherStats(v)
@@ -42,6 +42,18 @@ trait ColumnIterator {
    * multiple times returning the same value.
    */
   def current: Object
+
+  /**
+   * Skips the next `n` elements. Implementations move past the encoded elements without decoding
+   * them where they can.
+   */
+  def skip(n: Int) {
+    var i = 0
+    while (i < n) {
+      next()
+      i += 1
+    }
+  }
 }
 
 
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.memstore2.column
+
+import org.apache.hadoop.hive.serde2.objectinspector.{ObjectInspector, PrimitiveObjectInspector}
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils
+
+import shark.util.{HyperLogLog, QuantileSketch, ValueHasher}
+
+
+/**
+ * Mergeable summaries of the non-null values of a column in a table partition: a HyperLogLog
+ * sketch of its distinct values and, for numeric columns, a quantile sketch (null otherwise).
+ * They use the same sketches as approx_distinct and approx_median, so the sketches of all
+ * partitions of a table can be merged to answer those aggregates without scanning it.
+ */
+class ColumnSketches(val distinct: HyperLogLog, val quantiles: QuantileSketch)
+  extends Serializable {
+
+  @transient private var hasher: ValueHasher = _
+
+  def append(o: Object, oi: ObjectInspector) {
+    if (o != null) {
+      if (hasher == null) {
+        hasher = new ValueHasher
+      }
+      val poi = oi.asInstanceOf[PrimitiveObjectInspector]
+      distinct.offerHash(hasher.hash(o, poi))
+      if (quantiles != null) {
+        quantiles.offer(PrimitiveObjectInspectorUtils.getDouble(o, poi))
+      }
+    }
+  }
+
+  def merge(other: ColumnSketches): ColumnSketches = {
+    distinct.merge(other.distinct)
+    if (quantiles != null && other.quantiles != null) {
+      quantiles.merge(other.quantiles)
+    }
+    this
+  }
+
+  override def toString = {
+    distinct.toString + (if (quantiles != null) ", median=" + quantiles.quantile(0.5) else "")
+  }
+}
+
+
+object ColumnSketches {
+
+  /** Create empty sketches for a column, or return null if the column type is not primitive. */
+  def create(oi: ObjectInspector): ColumnSketches = {
+    if (oi.getCategory != ObjectInspector.Category.PRIMITIVE) {
+      null
+    } else {
+      val quantiles = oi.asInstanceOf[PrimitiveObjectInspector].getPrimitiveCategory match {
+        case PrimitiveCategory.BYTE | PrimitiveCategory.SHORT | PrimitiveCategory.INT |
+             PrimitiveCategory.LONG | PrimitiveCategory.FLOAT | PrimitiveCategory.DOUBLE =>
+          new QuantileSketch
+        case _ => null
+      }
+      new ColumnSketches(new HyperLogLog, quantiles)
+    }
+  }
+}
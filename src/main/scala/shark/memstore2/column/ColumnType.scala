@@ -80,6 +80,13 @@ sealed abstract class ColumnType[T : ClassTag, V : ClassTag](
    */
   def extractInto(buffer: ByteBuffer, writable: V)
 
+  /**
+   * Move the buffer's position past the next `count` values, without extracting them.
+   */
+  def skip(buffer: ByteBuffer, count: Int) {
+    buffer.position(buffer.position() + count * defaultSize)
+  }
+
   /**
    * Create a new writable object corresponding to this type.
    */
@@ -306,6 +313,10 @@ object STRING extends ColumnType[Text, Text](8, 8) {
 
   override def newWritable() = new Text
 
+  override def skip(buffer: ByteBuffer, count: Int) {
+    ColumnType.skipVariableWidth(buffer, count)
+  }
+
   override def clone(v: Text) = {
     val t = new Text()
     t.set(v)
@@ -384,6 +395,10 @@ object BINARY extends ColumnType[BytesWritable, BytesWritable](10, 16) {
   }
 
   override def newWritable() = new BytesWritable
+
+  override def skip(buffer: ByteBuffer, count: Int) {
+    ColumnType.skipVariableWidth(buffer, count)
+  }
   
   override def actualSize(v: BytesWritable) = v.getLength() + 4
 }
@@ -414,5 +429,23 @@ object GENERIC extends ColumnType[ByteStream.Output, ByteArrayRef](11, 16) {
 
   override def newWritable() = new ByteArrayRef
 
+  override def skip(buffer: ByteBuffer, count: Int) {
+    ColumnType.skipVariableWidth(buffer, count)
+  }
+
   override def actualSize(v: ByteStream.Output): Int = v.getCount() + 4
 }
+
+
+object ColumnType {
+
+  /** Skip `count` values stored as their 4-byte length followed by their bytes. */
+  def skipVariableWidth(buffer: ByteBuffer, count: Int) {
+    var i = 0
+    while (i < count) {
+      val length = buffer.getInt()
+      buffer.position(buffer.position() + length)
+      i += 1
+    }
+  }
+}
@@ -19,7 +19,7 @@ package shark.memstore2.column
 
 import java.nio.ByteBuffer
 
-import org.apache.hadoop.io.BooleanWritable
+import org.apache.hadoop.io.{BooleanWritable, Text}
 
 import shark.memstore2.column.Implicits._
 
@@ -30,7 +30,7 @@ import shark.memstore2.column.Implicits._
  */
 trait CompressedColumnIterator extends ColumnIterator {
 
-  private var _decoder: Iterator[_] = _
+  private var _decoder: ColumnDecoder[_] = _
   private var _current: Any = _
 
   def buffer: ByteBuffer
@@ -58,13 +58,34 @@ trait CompressedColumnIterator extends ColumnIterator {
   override def hasNext = _decoder.hasNext
 
   override def current = _current.asInstanceOf[Object]
+
+  override def skip(n: Int) {
+    _decoder.skip(n)
+  }
+}
+
+/**
+ * Decodes the values of a column from a buffer.
+ */
+abstract class ColumnDecoder[V] extends Iterator[V] {
+
+  /** Skips the next `n` values, without decoding them where the encoding allows it. */
+  def skip(n: Int) {
+    var i = 0
+    while (i < n) {
+      next()
+      i += 1
+    }
+  }
 }
 
 /**
  * Default representation of a Decoder. In this case the underlying buffer
  * has uncompressed data
  */
-class DefaultDecoder[V](buffer: ByteBuffer, columnType: ColumnType[_, V]) extends Iterator[V] {
+class DefaultDecoder[V](buffer: ByteBuffer, columnType: ColumnType[_, V])
+  extends ColumnDecoder[V] {
+
   private val _current: V = columnType.newWritable()
 
   override def hasNext = buffer.hasRemaining()
@@ -73,12 +94,16 @@ class DefaultDecoder[V](buffer: ByteBuffer, columnType: ColumnType[_, V]) extend
     columnType.extractInto(buffer, _current)
     _current
   }
+
+  override def skip(n: Int) {
+    columnType.skip(buffer, n)
+  }
 }
 
 /**
  * Run Length Decoder, decodes data compressed in RLE format of [element, length]
  */
-class RLDecoder[V](buffer: ByteBuffer, columnType: ColumnType[_, V]) extends Iterator[V] {
+class RLDecoder[V](buffer: ByteBuffer, columnType: ColumnType[_, V]) extends ColumnDecoder[V] {
 
   private var _run: Int = _
   private var _count: Int = 0
@@ -97,21 +122,47 @@ class RLDecoder[V](buffer: ByteBuffer, columnType: ColumnType[_, V]) extends Ite
     }
     _current
   }
+
+  override def skip(n: Int) {
+    var remaining = n
+    while (remaining > 0) {
+      if (_count == _run) {
+        // The value of a run is only decoded if the skip ends inside the run.
+        val valuePosition = buffer.position()
+        columnType.skip(buffer, 1)
+        _run = buffer.getInt()
+        _count = 0
+        if (remaining < _run) {
+          val runPosition = buffer.position()
+          buffer.position(valuePosition)
+          columnType.extractInto(buffer, _current)
+          buffer.position(runPosition)
+        }
+      }
+      val skipped = math.min(remaining, _run - _count)
+      _count += skipped
+      remaining -= skipped
+    }
+  }
 }
 
 /**
  * Dictionary encoding compression.
  */
-class DictDecoder[V](buffer: ByteBuffer, columnType: ColumnType[_, V]) extends Iterator[V] {
+class DictDecoder[V](buffer: ByteBuffer, columnType: ColumnType[_, V]) extends ColumnDecoder[V] {
 
   // Dictionary in the form of an array. The index is the encoded value, and the value is the
-  // decompressed value.
+  // decompressed value. String values are DictionaryTexts, tagged with their index.
   private val _dictionary: Array[V] =  {
     val size = buffer.getInt()
     val arr = columnType.writableScalaTag.newArray(size)
     var count = 0
     while (count < size) {
-      val writable = columnType.newWritable()
+      val writable = if (columnType == STRING) {
+        new DictionaryText(arr, size, count).asInstanceOf[V]
+      } else {
+        columnType.newWritable()
+      }
       columnType.extractInto(buffer, writable)
       arr(count) = writable.asInstanceOf[V]
       count += 1
@@ -125,6 +176,10 @@ class DictDecoder[V](buffer: ByteBuffer, columnType: ColumnType[_, V]) extends I
     val index = buffer.getShort().toInt
     _dictionary(index)
   }
+
+  override def skip(n: Int) {
+    buffer.position(buffer.position() + 2 * n)
+  }
 }
 
 /**
@@ -137,7 +192,7 @@ class BooleanBitSetDecoder[V](
     var _uncompressedSize: Int,
     var _curValue: Long,
     var _writable: BooleanWritable
-  ) extends Iterator[V] {
+  ) extends ColumnDecoder[V] {
 
   def this(buffer: ByteBuffer, columnType: ColumnType[_, V])
       = this(buffer, columnType, 0, buffer.getInt(), 0, new BooleanWritable())
@@ -156,5 +211,41 @@ class BooleanBitSetDecoder[V](
     _writable.set(retval)
     _writable.asInstanceOf[V]
   }
+
+  override def skip(n: Int) {
+    val perLong = BooleanBitSetCompression.BOOLEANS_PER_LONG
+    val newPos = _pos + n
+    val longsRead = (_pos + perLong - 1) / perLong
+    val longsNeeded = (newPos + perLong - 1) / perLong
+    if (longsNeeded > longsRead) {
+      if (newPos % perLong == 0) {
+        buffer.position(buffer.position() + (longsNeeded - longsRead) * 8)
+      } else {
+        // The skip ends inside a long, which next() won't read again.
+        buffer.position(buffer.position() + (longsNeeded - longsRead - 1) * 8)
+        _curValue = buffer.getLong()
+      }
+    }
+    _pos = newPos
+  }
 }
 
+
+/**
+ * A value of a dictionary-encoded string column. Values decoded from the same dictionary are the
+ * same objects for the same code, so operators can index dense arrays by `code` instead of
+ * hashing the strings, as long as `dictionary` (compared by reference) stays the same.
+ *
+ * The dictionary is transient: a value written out and read back as a Writable is a plain string
+ * with a null dictionary, which operators must treat as an ordinary Text.
+ *
+ * @param dictionary The dictionary this value belongs to.
+ * @param dictionarySize The number of values in the dictionary.
+ * @param code The index of this value in the dictionary.
+ */
+class DictionaryText(@transient val dictionary: AnyRef, val dictionarySize: Int, val code: Int)
+  extends Text {
+
+  // Used when a value is deserialized.
+  def this() = this(null, 0, -1)
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.memstore2.column
+
+import java.nio.{ByteBuffer, ByteOrder}
+import java.sql.Timestamp
+
+import org.apache.hadoop.hive.serde2.io.{ByteWritable, DoubleWritable, ShortWritable,
+  TimestampWritable}
+import org.apache.hadoop.io.{FloatWritable, IntWritable, LongWritable, Text, WritableComparator}
+
+import shark.memstore2.column.Implicits._
+
+
+/**
+ * A range of values of a column, outside of which no row passes a filter. Bounds are kept in the
+ * form returned by KeyRange.normalize(), and None for an unbounded side.
+ */
+case class KeyRange(
+    lower: Option[Any],
+    lowerInclusive: Boolean,
+    upper: Option[Any],
+    upperInclusive: Boolean) {
+
+  def isAll: Boolean = lower.isEmpty && upper.isEmpty
+
+  /** Returns the range of values in both ranges. Bounds that cannot be compared are dropped. */
+  def intersect(other: KeyRange): KeyRange = {
+    val (newLower, newLowerInclusive) = tighter(
+      lower, lowerInclusive, other.lower, other.lowerInclusive, 1)
+    val (newUpper, newUpperInclusive) = tighter(
+      upper, upperInclusive, other.upper, other.upperInclusive, -1)
+    KeyRange(newLower, newLowerInclusive, newUpper, newUpperInclusive)
+  }
+
+  // Picks the bound that excludes more values: the larger lower bound (sign 1) or the smaller
+  // upper bound (sign -1).
+  private def tighter(
+      a: Option[Any], aInclusive: Boolean, b: Option[Any], bInclusive: Boolean, sign: Int)
+    : (Option[Any], Boolean) = {
+    (a, b) match {
+      case (None, _) => (b, bInclusive)
+      case (_, None) => (a, aInclusive)
+      case (Some(x), Some(y)) if KeyRange.family(x) == KeyRange.family(y) =>
+        val c = KeyRange.compare(x, y) * sign
+        if (c > 0 || (c == 0 && !aInclusive)) (a, aInclusive) else (b, bInclusive)
+      case _ => (a, aInclusive)
+    }
+  }
+}
+
+
+object KeyRange {
+
+  val ALL = KeyRange(None, true, None, true)
+
+  private val NUMERIC = 0
+  private val BYTES = 1
+  private val TIMESTAMP_FAMILY = 2
+  private val UNSUPPORTED = -1
+
+  /** Returns the range of a single value, or ALL if the value cannot be compared. */
+  def point(value: Any): KeyRange = {
+    val v = normalize(value)
+    if (v == null) ALL else KeyRange(Some(v), true, Some(v), true)
+  }
+
+  /** Returns the range above (or below, if `isLower` is false) a value. */
+  def bound(value: Any, isLower: Boolean, inclusive: Boolean): KeyRange = {
+    val v = normalize(value)
+    if (v == null) {
+      ALL
+    } else if (isLower) {
+      KeyRange(Some(v), inclusive, None, true)
+    } else {
+      KeyRange(None, true, Some(v), inclusive)
+    }
+  }
+
+  /**
+   * Converts a filter constant, or a value read from a column, to the form ranges are compared
+   * in: integral numbers to Long, floating point numbers to Double, strings to their UTF-8 bytes.
+   * Returns null for null and for values of other types.
+   */
+  def normalize(value: Any): Any = value match {
+    case v: Byte => v.toLong
+    case v: Short => v.toLong
+    case v: Int => v.toLong
+    case v: Long => v
+    case v: Float => v.toDouble
+    case v: Double => v
+    case v: String => v.getBytes("UTF-8")
+    case v: Timestamp => v
+    case v: ByteWritable => v.get.toLong
+    case v: ShortWritable => v.get.toLong
+    case v: IntWritable => v.get.toLong
+    case v: LongWritable => v.get
+    case v: FloatWritable => v.get.toDouble
+    case v: DoubleWritable => v.get
+    case v: Text => java.util.Arrays.copyOf(v.getBytes, v.getLength)
+    case v: TimestampWritable => v.getTimestamp
+    case _ => null
+  }
+
+  private def family(v: Any): Int = v match {
+    case _: Long | _: Double => NUMERIC
+    case _: Array[Byte] => BYTES
+    case _: Timestamp => TIMESTAMP_FAMILY
+    case _ => UNSUPPORTED
+  }
+
+  private def family(columnType: ColumnType[_, _]): Int = columnType match {
+    case BYTE | SHORT | INT | LONG | FLOAT | DOUBLE => NUMERIC
+    case STRING => BYTES
+    case TIMESTAMP => TIMESTAMP_FAMILY
+    case _ => UNSUPPORTED
+  }
+
+  /**
+   * Compares two normalized values of the same family. The order agrees with the BinarySortable
+   * order rows are sorted in, except that it may consider more values equal (e.g. 0.0 and -0.0).
+   */
+  def compare(a: Any, b: Any): Int = (a, b) match {
+    case (x: Long, y: Long) => if (x < y) -1 else if (x > y) 1 else 0
+    case (x: Array[Byte], y: Array[Byte]) =>
+      WritableComparator.compareBytes(x, 0, x.length, y, 0, y.length)
+    case (x: Timestamp, y: Timestamp) => x.compareTo(y)
+    case _ =>
+      val x = toDouble(a)
+      val y = toDouble(b)
+      // Double.compare() puts NaN last, but also orders -0.0 before 0.0, which a filter does not.
+      if (x < y) -1 else if (x > y) 1 else if (x == y) 0 else java.lang.Double.compare(x, y)
+  }
+
+  private def toDouble(v: Any): Double = v match {
+    case x: Long => x.toDouble
+    case x: Double => x
+  }
+
+  /**
+   * Returns the rows [from, until) of a column sorted in ascending order, with nulls first, whose
+   * values may fall in `range`. Fixed-width columns that are not compressed are binary searched.
+   * Other columns are decoded from the start up to the last row in range.
+   *
+   * @param buffer A column, as built by a NullableColumnBuilder.
+   */
+  def findRows(buffer: ByteBuffer, numRows: Int, range: KeyRange): (Int, Int) = {
+    val b = buffer.duplicate().order(ByteOrder.nativeOrder())
+    val nullCount = b.getInt()
+    // A sorted column has its nulls first. Don't narrow anything otherwise.
+    val nullsFirst = nullCount == 0 || b.getInt(b.position + (nullCount - 1) * 4) == nullCount - 1
+    b.position(b.position + nullCount * 4)
+    val columnType: ColumnType[_, _] = b.getInt()
+    val compressionType: CompressionType = b.getInt()
+
+    // Bounds of another type than the column's are ignored.
+    val columnFamily = family(columnType)
+    val lower = range.lower.filter(family(_) == columnFamily)
+    val upper = range.upper.filter(family(_) == columnFamily)
+    def belowLower(v: Any): Boolean = lower.exists { l =>
+      val c = compare(v, l)
+      c < 0 || (c == 0 && !range.lowerInclusive)
+    }
+    def aboveUpper(v: Any): Boolean = upper.exists { u =>
+      val c = compare(v, u)
+      c > 0 || (c == 0 && !range.upperInclusive)
+    }
+
+    if (!nullsFirst || columnFamily == UNSUPPORTED || (lower.isEmpty && upper.isEmpty)) {
+      (0, numRows)
+    } else if (compressionType == DefaultCompressionType && columnType != STRING) {
+      // Fixed-width values, one after the other.
+      val dataStart = b.position
+      val size = columnType.defaultSize
+      def valueAt(i: Int): Any = {
+        b.position(dataStart + i * size)
+        normalize(columnType.extract(b))
+      }
+      val numValues = numRows - nullCount
+      val from = firstIndex(0, numValues, i => !belowLower(valueAt(i)))
+      val until = firstIndex(from, numValues, i => aboveUpper(valueAt(i)))
+      (nullCount + from, nullCount + until)
+    } else {
+      val iter = ColumnIterator.newIterator(buffer)
+      var i = 0
+      var from = -1
+      var until = numRows
+      while (i < numRows && until == numRows) {
+        iter.next()
+        if (i >= nullCount) {
+          val v = normalize(iter.current)
+          if (from == -1 && !belowLower(v)) {
+            from = i
+          }
+          if (from != -1 && aboveUpper(v)) {
+            until = i
+          }
+        }
+        i += 1
+      }
+      if (from == -1) (numRows, numRows) else (from, until)
+    }
+  }
+
+  /** Returns the first index in [from, until) for which `p` holds, which must be monotonic. */
+  private def firstIndex(from: Int, until: Int, p: Int => Boolean): Int = {
+    var lo = from
+    var hi = until
+    while (lo < hi) {
+      val mid = (lo + hi) >>> 1
+      if (p(mid)) hi = mid else lo = mid + 1
+    }
+    lo
+  }
+}
@@ -46,12 +46,21 @@ trait NullableColumnBuilder[T] extends ColumnBuilder[T] {
 
   override def append(o: Object, oi: ObjectInspector) {
     if (o == null) {
-      _nulls = growIfNeeded(_nulls, 4)
-      _nulls.putInt(_pos)
-      _nullCount += 1
+      appendNull()
     } else {
       super.append(o, oi)
     }
+  }
+
+  override def appendValue(v: T) {
+    super.appendValue(v)
+    _pos += 1
+  }
+
+  def appendNull() {
+    _nulls = growIfNeeded(_nulls, 4)
+    _nulls.putInt(_pos)
+    _nullCount += 1
     _pos += 1
   }
 
@@ -63,6 +63,20 @@ class NullableColumnIterator(buffer: ByteBuffer) extends ColumnIterator {
     _pos += 1
   }
 
+  override def skip(n: Int) {
+    val end = _pos + n
+    var nonNulls = n
+    while (_nulls < _nullCount && _currentNullIndex < end) {
+      nonNulls -= 1
+      _nulls += 1
+      if (_nulls < _nullCount) {
+        _currentNullIndex = _d.getInt()
+      }
+    }
+    _delegate.skip(nonNulls)
+    _pos = end
+  }
+
   override def hasNext: Boolean = (_nulls < _nullCount) || _delegate.hasNext
 
   def current: Object = if (_isNull) null else _delegate.current
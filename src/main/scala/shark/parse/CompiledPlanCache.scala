@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.parse
+
+import java.lang.reflect.{Field, Modifier}
+import java.security.MessageDigest
+import java.util.{IdentityHashMap, LinkedHashMap => JLinkedHashMap}
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+import scala.collection.JavaConversions._
+import scala.collection.mutable.ArrayBuffer
+
+import org.apache.hadoop.hive.conf.HiveConf
+import org.apache.hadoop.hive.metastore.api.Schema
+import org.apache.hadoop.hive.ql.exec.{FetchTask, Task, TaskFactory}
+import org.apache.hadoop.hive.ql.metadata.Hive
+import org.apache.hadoop.hive.ql.parse.BaseSemanticAnalyzer
+import org.apache.hadoop.hive.ql.plan.ExprNodeConstantDesc
+import org.apache.hadoop.hive.serde2.typeinfo.{TypeInfo, TypeInfoFactory}
+
+import shark.{LogHelper, SharkEnv}
+import shark.execution.{HiveDesc, Operator, SparkTask}
+
+
+/**
+ * The text of a query with its number and string literals replaced by placeholders, and the
+ * values of the literals, typed as Hive types them (Integer, Long, Double or String).
+ */
+class NormalizedQuery(val text: String, val literals: Array[Object])
+
+
+/**
+ * A SELECT query compiled by SharkDriver, which later queries that only differ from it in their
+ * literals can run again instead of being parsed, analyzed and optimized.
+ *
+ * A literal is bound to the constants of the plan that have the same value and type. Literals that
+ * don't appear in the operators (a LIMIT, or a predicate the optimizer removed) and literals with
+ * the same value as another literal of the query can't be told apart in the plan, and must be
+ * equal in queries that reuse it.
+ *
+ * @param key the normalized query, with the current database and the configuration.
+ */
+class CompiledPlan private[parse] (
+    val key: String,
+    val sem: BaseSemanticAnalyzer,
+    val context: QueryContext,
+    val schema: Schema,
+    dependencies: PlanDependencies,
+    private var literals: Array[Object]) {
+
+  private val sparkTask = sem.getRootTasks.head.asInstanceOf[SparkTask]
+
+  // For each literal, the constants it is bound to, or null if the literal is fixed.
+  private val bindings: Array[Seq[ExprNodeConstantDesc]] = {
+    val work = sparkTask.getWork
+    val operatorConstants = CompiledPlanCache.find(
+      CompiledPlanCache.operators(work.terminalOperator).map(_.desc), classOf[ExprNodeConstantDesc])
+    val prunerConstants = CompiledPlanCache.find(
+      work.pctx.getOpToPartPruner.values.toSeq, classOf[ExprNodeConstantDesc])
+    literals.map { value =>
+      val bound = operatorConstants.filter(CompiledPlanCache.isConstant(_, value))
+      if (bound.isEmpty || literals.count(_ == value) > 1) {
+        null
+      } else {
+        bound ++ prunerConstants.filter(CompiledPlanCache.isConstant(_, value))
+      }
+    }
+  }
+
+  def isCurrent: Boolean = dependencies.isCurrent
+
+  /**
+   * Sets the literals of the plan to those of another query with the same key. Returns false,
+   * leaving the plan unchanged, if the query's fixed literals differ.
+   */
+  def bind(newLiterals: Array[Object]): Boolean = {
+    val matches = newLiterals.length == literals.length &&
+      literals.indices.forall(i => bindings(i) != null || newLiterals(i) == literals(i))
+    if (matches) {
+      literals.indices.filter(i => newLiterals(i) != literals(i)).foreach { i =>
+        bindings(i).foreach(_.setValue(newLiterals(i)))
+      }
+      literals = newLiterals
+    }
+    matches
+  }
+
+  /** Prepares the plan to run the given command, after the previous run was cleaned up. */
+  def prepare(command: String, conf: HiveConf) {
+    context.setCmd(command)
+    // Context.clear() removed the scratch directories the query writes its results to. Register
+    // them again, so they are removed once this run is done too.
+    context.getMRScratchDir()
+    context.getLocalScratchDir(true)
+    // Partitions are pruned again when the SparkTask runs, with the new literals.
+    sparkTask.getWork.pctx.getPrunedPartitions.clear()
+    // A FetchTask counts the rows it returned towards the LIMIT of the query. Use a new one.
+    sem.setFetchTask(TaskFactory.get(sem.getFetchTask.getWork, conf).asInstanceOf[FetchTask])
+  }
+}
+
+
+/**
+ * What a query compiled or run at some point depends on: the tables it scans, and the commands
+ * that ran before it. Plans and results are only reused while they are current.
+ *
+ * @param epoch CompiledPlanCache.epoch at that point.
+ * @param tableVersions the version of each table the query scans, or -1 if it isn't cached.
+ */
+class PlanDependencies(epoch: Long, val tableVersions: Seq[((String, String), Long)]) {
+
+  /** Whether no command ran and no table the query scans changed since. */
+  def isCurrent: Boolean = {
+    epoch == CompiledPlanCache.epoch && tableVersions.forall { case ((db, table), version) =>
+      SharkEnv.memoryMetadataManager.tableVersion(db, table) == version
+    }
+  }
+}
+
+
+object PlanDependencies {
+
+  /** Returns the current dependencies of a query planned as the given SparkTask. */
+  def apply(task: SparkTask, epoch: Long): PlanDependencies = {
+    val tables = task.getWork.pctx.getTopToTable.values.map { table =>
+      (table.getDbName, table.getTableName)
+    }
+    new PlanDependencies(epoch, tables.toSeq.distinct.map { case (db, table) =>
+      ((db, table), SharkEnv.memoryMetadataManager.tableVersion(db, table))
+    })
+  }
+}
+
+
+/**
+ * The compiled plans of SELECT queries that are not running, by CompiledPlan.key. A plan is only
+ * used by one query at a time: SharkDriver takes it out of the cache to run it, and puts it back
+ * once it is closed. Plans are dropped when a command other than a query runs (DDL, CACHE,
+ * UNCACHE, INSERT, LOAD...), or when a cached table they scan changes.
+ */
+object CompiledPlanCache extends LogHelper {
+
+  private val _epoch = new AtomicLong
+  private val _hits = new AtomicLong
+
+  // Plans of the least recently used keys come first.
+  private val idle = new JLinkedHashMap[String, ArrayBuffer[CompiledPlan]](16, 0.75f, true)
+
+  // Configuration variables that change for every query.
+  private val VOLATILE_CONF_VARS = Set(
+    HiveConf.ConfVars.HIVEQUERYSTRING.varname,
+    HiveConf.ConfVars.HIVEQUERYID.varname,
+    "mapred.job.name")
+
+  private val fieldsByClass = new ConcurrentHashMap[Class[_], Seq[Field]]
+
+  /** Incremented whenever the cache is invalidated. */
+  def epoch: Long = _epoch.get
+
+  /** The number of queries that reused a compiled plan. */
+  def hits: Long = _hits.get
+
+  def invalidate() {
+    _epoch.incrementAndGet()
+    synchronized {
+      idle.clear()
+    }
+  }
+
+  /**
+   * Returns the normalized text and literals of a SELECT query, or None for other commands. Runs
+   * of whitespace are collapsed and comments removed. Numbers followed by letters (100L) and
+   * adjacent string literals are left in the text.
+   */
+  def normalize(command: String): Option[NormalizedQuery] = {
+    val firstWord = command.takeWhile(isIdentifierChar).toLowerCase
+    if (firstWord != "select" && firstWord != "from") {
+      return None
+    }
+    val text = new StringBuilder
+    val literals = new ArrayBuffer[Object]
+    val n = command.length
+    var i = 0
+    while (i < n) {
+      val c = command.charAt(i)
+      if (Character.isWhitespace(c)) {
+        while (i < n && Character.isWhitespace(command.charAt(i))) i += 1
+        if (i < n && text.nonEmpty && text.last != ' ') text += ' '
+      } else if (c == '-' && command.startsWith("--", i)) {
+        while (i < n && command.charAt(i) != '\n') i += 1
+      } else if (c == '\'' || c == '"') {
+        var end = skipString(command, i)
+        if (end < n && (command.charAt(end) == '\'' || command.charAt(end) == '"')) {
+          while (end < n && (command.charAt(end) == '\'' || command.charAt(end) == '"')) {
+            end = skipString(command, end)
+          }
+          text ++= command.substring(i, end)
+        } else {
+          text ++= "?s"
+          literals += BaseSemanticAnalyzer.unescapeSQLString(command.substring(i, end))
+        }
+        i = end
+      } else if (c == '`') {
+        val end = command.indexOf('`', i + 1)
+        val wordEnd = if (end < 0) n else end + 1
+        text ++= command.substring(i, wordEnd)
+        i = wordEnd
+      } else if (Character.isDigit(c)) {
+        val end = skipNumber(command, i)
+        if (end < n && isIdentifierChar(command.charAt(end))) {
+          val wordEnd = skipIdentifier(command, end)
+          text ++= command.substring(i, wordEnd)
+          i = wordEnd
+        } else {
+          val value = numberValue(command.substring(i, end))
+          text ++= (value match {
+            case _: java.lang.Integer => "?i"
+            case _: java.lang.Long => "?l"
+            case _ => "?d"
+          })
+          literals += value
+          i = end
+        }
+      } else if (isIdentifierChar(c)) {
+        val end = skipIdentifier(command, i)
+        text ++= command.substring(i, end)
+        i = end
+      } else {
+        text += c
+        i += 1
+      }
+    }
+    Some(new NormalizedQuery(text.toString.trim, literals.toArray))
+  }
+
+  /**
+   * The cache key of a query: a compiled plan also depends on the current database, to resolve
+   * table names, and on the configuration.
+   */
+  def key(query: NormalizedQuery, conf: HiveConf): String = {
+    val digest = MessageDigest.getInstance("SHA-1")
+    conf.iterator.filterNot(e => VOLATILE_CONF_VARS.contains(e.getKey))
+      .map(e => e.getKey + "=" + e.getValue).toArray.sorted
+      .foreach(setting => digest.update((setting + "\n").getBytes("UTF-8")))
+    val confDigest = digest.digest().map("%02x".format(_)).mkString
+    Seq(query.text, Hive.get(conf).getCurrentDatabase, confDigest).mkString("\u0000")
+  }
+
+  /**
+   * Takes a compiled plan for the query out of the cache, and binds the query's literals to it.
+   * Returns None if there is no current plan the literals can be bound to.
+   */
+  def acquire(key: String, literals: Array[Object]): Option[CompiledPlan] = {
+    val planOpt = synchronized {
+      val plans = idle.get(key)
+      if (plans == null || plans.isEmpty) None else Some(plans.remove(plans.size - 1))
+    }
+    // A plan that is stale or can't be bound is dropped.
+    val boundPlanOpt = planOpt.filter(plan => plan.isCurrent && plan.bind(literals))
+    if (boundPlanOpt.isDefined) {
+      _hits.incrementAndGet()
+    }
+    boundPlanOpt
+  }
+
+  /** Puts back a plan, once the query that ran it was closed. */
+  def release(plan: CompiledPlan, maxPlans: Int) {
+    if (maxPlans > 0 && plan.isCurrent) {
+      synchronized {
+        var plans = idle.get(plan.key)
+        if (plans == null) {
+          plans = new ArrayBuffer[CompiledPlan]
+          idle.put(plan.key, plans)
+        }
+        plans += plan
+        val keys = idle.keySet.iterator
+        while (idle.size > maxPlans) {
+          keys.next()
+          keys.remove()
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the compiled plan of a query that was just analyzed, or None if its plan can't be
+   * reused: only SELECT queries that run as a single SparkTask are cached.
+   */
+  def newPlan(
+      key: String,
+      query: NormalizedQuery,
+      sem: BaseSemanticAnalyzer,
+      context: QueryContext,
+      schema: Schema,
+      epoch: Long): Option[CompiledPlan] = {
+    if (sem.isInstanceOf[SharkSemanticAnalyzer] && !mayChangeTables(sem)) {
+      querySparkTask(sem.getRootTasks).map { task =>
+        new CompiledPlan(key, sem, context, schema, PlanDependencies(task, epoch), query.literals)
+      }
+    } else {
+      None
+    }
+  }
+
+  /** Returns the SparkTask of a query planned as a single SparkTask, None for other plans. */
+  def querySparkTask(rootTasks: java.util.List[Task[_ <: java.io.Serializable]])
+    : Option[SparkTask] = {
+    if (rootTasks.size == 1) {
+      rootTasks.head match {
+        case task: SparkTask if task.getChildTasks == null || task.getChildTasks.isEmpty =>
+          Some(task)
+        case _ => None
+      }
+    } else {
+      None
+    }
+  }
+
+  /**
+   * Whether running the analyzed command might change what queries compile to. Only queries and
+   * commands that just return results, like SHOW or DESCRIBE, don't.
+   */
+  def mayChangeTables(sem: BaseSemanticAnalyzer): Boolean = {
+    sem.getFetchTask == null || !sem.getOutputs.isEmpty
+  }
+
+  private[shark] def operators(
+      terminalOp: Operator[_ <: HiveDesc]): Seq[Operator[_ <: HiveDesc]] = {
+    val visited = new IdentityHashMap[Operator[_ <: HiveDesc], Operator[_ <: HiveDesc]]
+    def visit(op: Operator[_ <: HiveDesc]) {
+      if (!visited.containsKey(op)) {
+        visited.put(op, op)
+        op.parentOperators.foreach(visit)
+      }
+    }
+    visit(terminalOp)
+    visited.keySet.toSeq
+  }
+
+  /**
+   * Returns the instances of `cls` among the given Hive plan objects, and the plan objects,
+   * collections and arrays they reference.
+   */
+  private[shark] def find[T](roots: Seq[AnyRef], cls: Class[T]): Seq[T] = {
+    val visited = new IdentityHashMap[AnyRef, AnyRef]
+    val found = new ArrayBuffer[T]
+    def visit(obj: AnyRef) {
+      if (obj != null && !visited.containsKey(obj)) {
+        visited.put(obj, obj)
+        if (cls.isInstance(obj)) {
+          found += cls.cast(obj)
+        }
+        obj match {
+          case collection: java.util.Collection[_] =>
+            collection.foreach(e => visit(e.asInstanceOf[AnyRef]))
+          case map: java.util.Map[_, _] =>
+            map.foreach { case (k, v) =>
+              visit(k.asInstanceOf[AnyRef])
+              visit(v.asInstanceOf[AnyRef])
+            }
+          case array: Array[AnyRef] => array.foreach(visit)
+          case _ if obj.getClass.getName.startsWith("org.apache.hadoop.hive.ql.plan.") =>
+            fields(obj.getClass).foreach(field => visit(field.get(obj)))
+          case _ =>
+        }
+      }
+    }
+    roots.foreach(visit)
+    found
+  }
+
+  private[parse] def isConstant(constant: ExprNodeConstantDesc, value: Object): Boolean = {
+    constant.getValue == value && constant.getTypeInfo == typeInfo(value)
+  }
+
+  private def typeInfo(value: Object): TypeInfo = value match {
+    case _: java.lang.Integer => TypeInfoFactory.intTypeInfo
+    case _: java.lang.Long => TypeInfoFactory.longTypeInfo
+    case _: java.lang.Double => TypeInfoFactory.doubleTypeInfo
+    case _ => TypeInfoFactory.stringTypeInfo
+  }
+
+  // The non-primitive fields of a class and its superclasses.
+  private def fields(cls: Class[_]): Seq[Field] = {
+    var classFields = fieldsByClass.get(cls)
+    if (classFields == null) {
+      classFields = Iterator.iterate[Class[_]](cls)(_.getSuperclass).takeWhile(_ != null)
+        .flatMap(_.getDeclaredFields)
+        .filter(f => !Modifier.isStatic(f.getModifiers) && !f.getType.isPrimitive)
+        .toList
+      classFields.foreach(_.setAccessible(true))
+      fieldsByClass.put(cls, classFields)
+    }
+    classFields
+  }
+
+  // Hive types a number literal as the narrowest of int, bigint and double that holds it.
+  private def numberValue(number: String): Object = {
+    try {
+      Int.box(number.toInt)
+    } catch {
+      case _: NumberFormatException =>
+        try {
+          Long.box(number.toLong)
+        } catch {
+          case _: NumberFormatException => Double.box(number.toDouble)
+        }
+    }
+  }
+
+  private def isIdentifierChar(c: Char): Boolean = Character.isLetterOrDigit(c) || c == '_'
+
+  private def skipIdentifier(s: String, start: Int): Int = {
+    var i = start
+    while (i < s.length && isIdentifierChar(s.charAt(i))) i += 1
+    i
+  }
+
+  // Returns the index after the string literal starting at `start`, which can escape its quote.
+  private def skipString(s: String, start: Int): Int = {
+    val quote = s.charAt(start)
+    var i = start + 1
+    while (i < s.length && s.charAt(i) != quote) {
+      i += (if (s.charAt(i) == '\\') 2 else 1)
+    }
+    math.min(i + 1, s.length)
+  }
+
+  // Returns the index after the number starting at `start`: digits, then an optional fraction
+  // and exponent.
+  private def skipNumber(s: String, start: Int): Int = {
+    def skipDigits(from: Int): Int = {
+      var i = from
+      while (i < s.length && Character.isDigit(s.charAt(i))) i += 1
+      i
+    }
+    var i = skipDigits(start)
+    if (i < s.length && s.charAt(i) == '.') {
+      i = skipDigits(i + 1)
+    }
+    if (i < s.length && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+      val sign = if (i + 1 < s.length && "+-".contains(s.charAt(i + 1))) 1 else 0
+      if (i + sign + 1 < s.length && Character.isDigit(s.charAt(i + sign + 1))) {
+        i = skipDigits(i + sign + 1)
+      }
+    }
+    i
+  }
+}
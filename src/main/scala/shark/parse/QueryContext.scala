@@ -23,4 +23,8 @@ import org.apache.hadoop.hive.ql.Context
 /**
  * Shark's query context. Adds Shark-specific information to Hive's Context.
  */
-class QueryContext(conf: Configuration, val useTableRddSink: Boolean) extends Context(conf)
+class QueryContext(conf: Configuration, val useTableRddSink: Boolean) extends Context(conf) {
+
+  // Whether the command is an EXPLAIN ANALYZE, which runs the query to report operator metrics.
+  var explainAnalyze: Boolean = false
+}
@@ -65,6 +65,8 @@ class SharkDDLSemanticAnalyzer(conf: HiveConf) extends DDLSemanticAnalyzer(conf)
   /**
    * Handle table property changes.
    * How Shark-specific changes are handled:
+   * - "shark.cache.sortBy":
+   *   Checked to name a column of the table. The SparkLoadTask sorts the table on that column.
    * - "shark.cache":
    *   If the value evaluated by CacheType#shouldCache() is `true`, then create a SparkLoadTask to
    *   load the Hive table into memory.
@@ -83,11 +85,11 @@ class SharkDDLSemanticAnalyzer(conf: HiveConf) extends DDLSemanticAnalyzer(conf)
 
     val oldCacheMode = CacheType.fromString(oldTblProps.get(SharkTblProperties.CACHE_FLAG.varname))
     val newCacheMode = CacheType.fromString(newTblProps.get(SharkTblProperties.CACHE_FLAG.varname))
-    if ((oldCacheMode == CacheType.TACHYON && newCacheMode != CacheType.TACHYON) ||
+    if ((CacheType.isOffHeap(oldCacheMode) && newCacheMode != oldCacheMode) ||
         (oldCacheMode == CacheType.MEMORY_ONLY && newCacheMode != CacheType.MEMORY_ONLY)) {
       throw new SemanticException("""Table %s.%s's 'shark.cache' table property is %s. Only changes
-        from "'MEMORY' and 'NONE' are supported. Tables stored in TACHYON and MEMORY_ONLY must be
-        "dropped.""".format(databaseName, tableName, oldCacheMode))
+        from "'MEMORY' and 'NONE' are supported. Tables stored in TACHYON, LOCAL_FS and
+        MEMORY_ONLY must be "dropped.""".format(databaseName, tableName, oldCacheMode))
     } else if (newCacheMode == CacheType.MEMORY) {
       // The table should be cached (and is not already cached).
       val partSpecsOpt = if (hiveTable.isPartitioned) {
@@ -103,6 +105,7 @@ class SharkDDLSemanticAnalyzer(conf: HiveConf) extends DDLSemanticAnalyzer(conf)
         None
       }
       newTblProps.put(SharkTblProperties.CACHE_FLAG.varname, newCacheMode.toString)
+      SharkSemanticAnalyzer.getSortColumn(newTblProps, hiveTable.getCols)
       val sparkLoadWork = new SparkLoadWork(
         databaseName,
         tableName,
@@ -46,6 +46,10 @@ class SharkExplainSemanticAnalyzer(conf: HiveConf) extends ExplainSemanticAnalyz
     sem.analyze(childNode, ctx)
 
     val extended = (ast.getChildCount() > 1)
+    val analyze = ctx match {
+      case queryContext: QueryContext => queryContext.explainAnalyze
+      case _ => false
+    }
 
     ctx.setResFile(new Path(ctx.getLocalTmpFileURI()))
     var tasks = sem.getRootTasks()
@@ -60,7 +64,8 @@ class SharkExplainSemanticAnalyzer(conf: HiveConf) extends ExplainSemanticAnalyz
     }
 
     val task = TaskFactory.get(
-      new SharkExplainWork(ctx.getResFile().toString(), tasks, childNode.toStringTree(), extended),
+      new SharkExplainWork(
+        ctx.getResFile().toString(), tasks, childNode.toStringTree(), extended, analyze),
       conf)
 
     rootTasks.add(task)
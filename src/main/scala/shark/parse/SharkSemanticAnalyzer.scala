@@ -28,6 +28,8 @@ import org.apache.hadoop.hive.conf.HiveConf
 import org.apache.hadoop.hive.metastore.Warehouse
 import org.apache.hadoop.hive.metastore.api.{FieldSchema, MetaException}
 import org.apache.hadoop.hive.serde2.`lazy`.LazySimpleSerDe
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils
 import org.apache.hadoop.hive.ql.exec.{DDLTask, FetchTask}
 import org.apache.hadoop.hive.ql.exec.{FileSinkOperator => HiveFileSinkOperator}
 import org.apache.hadoop.hive.ql.exec.MoveTask
@@ -42,6 +44,7 @@ import org.apache.hadoop.hive.ql.session.SessionState
 import shark.{LogHelper, SharkConfVars, SharkEnv, Utils}
 import shark.execution.{HiveDesc, Operator, OperatorFactory, RDDUtils, ReduceSinkOperator}
 import shark.execution.{SharkDDLWork, SparkLoadWork, SparkWork, TerminalOperator}
+import shark.execution.optimization.MetadataAggregation
 import shark.memstore2.{CacheType, ColumnarSerDe, LazySimpleSerDeWrapper, MemoryMetadataManager}
 import shark.memstore2.{MemoryTable, PartitionedMemoryTable, SharkTblProperties, TableRecovery}
 
@@ -213,7 +216,8 @@ class SharkSemanticAnalyzer(conf: HiveConf) extends SemanticAnalyzer(conf) with
                     _resSchema.size,  /* numColumns */
                     hivePartitionKeyOpt,
                     cacheMode,
-                    isInsertInto)
+                    isInsertInto,
+                    SharkSemanticAnalyzer.getSortColumn(hiveTable.getParameters, hiveTable.getCols))
                 }
               } else {
                 throw new SemanticException(
@@ -231,6 +235,7 @@ class SharkSemanticAnalyzer(conf: HiveConf) extends SemanticAnalyzer(conf) with
           if (qb.isCTAS && qb.createTableDesc != null && CacheType.shouldCache(qb.cacheMode)) {
             // The table being created from CTAS should be cached.
             val tblProps = qb.createTableDesc.getTblProps
+            val sortColumnOpt = SharkSemanticAnalyzer.getSortColumn(tblProps, _resSchema)
             if (qb.cacheMode == CacheType.MEMORY) {
               // Save the preferred storage level, since it's needed to create a SparkLoadTask in
               // genMapRedTasks().
@@ -243,7 +248,8 @@ class SharkSemanticAnalyzer(conf: HiveConf) extends SemanticAnalyzer(conf) with
                 numColumns = _resSchema.size,
                 hivePartitionKeyOpt = None,
                 qb.cacheMode,
-                isInsertInto = false)
+                isInsertInto = false,
+                sortColumnOpt = sortColumnOpt)
             }
           } else if (pctx.getContext().asInstanceOf[QueryContext].useTableRddSink && !qb.isCTAS) {
             OperatorFactory.createSharkRddOutputPlan(hiveSinkOps.head)
@@ -262,6 +268,11 @@ class SharkSemanticAnalyzer(conf: HiveConf) extends SemanticAnalyzer(conf) with
     }
 
     SharkSemanticAnalyzer.breakHivePlanByStages(terminalOpSeq)
+
+    // Global aggregations over cached tables might be answered from their statistics.
+    if (qb.getIsQuery && SharkConfVars.getBoolVar(conf, SharkConfVars.METADATA_AGGREGATION)) {
+      terminalOpSeq.foreach(MetadataAggregation.plan(_))
+    }
     genMapRedTasks(qb, pctx, terminalOpSeq)
 
     logDebug("Completed plan generation")
@@ -466,7 +477,7 @@ class SharkSemanticAnalyzer(conf: HiveConf) extends SemanticAnalyzer(conf) with
       // There are two cases that will enable caching:
       // 1) Table name includes "_cached" or "_tachyon".
       // 2) The "shark.cache" table property is "true", or the string representation of a supported
-      //    cache mode (memory, memory-only, Tachyon).
+      //    cache mode (memory, memory-only, Tachyon, local_fs).
       var cacheMode = CacheType.fromString(
         createTableProperties.get(SharkTblProperties.CACHE_FLAG.varname))
       if (checkTableName) {
@@ -480,7 +491,7 @@ class SharkSemanticAnalyzer(conf: HiveConf) extends SemanticAnalyzer(conf) with
       // Continue planning based on the 'cacheMode' read.
       val shouldCache = CacheType.shouldCache(cacheMode)
       if (shouldCache) {
-        if (cacheMode == CacheType.MEMORY_ONLY || cacheMode == CacheType.TACHYON) {
+        if (cacheMode == CacheType.MEMORY_ONLY || CacheType.isOffHeap(cacheMode)) {
           val serDeName = createTableDesc.getSerName
           if (serDeName == null || serDeName == classOf[LazySimpleSerDe].getName) {
             // Hive's SemanticAnalyzer optimizes based on checks for LazySimpleSerDe, which causes
@@ -490,6 +501,10 @@ class SharkSemanticAnalyzer(conf: HiveConf) extends SemanticAnalyzer(conf) with
           }
         }
         createTableProperties.put(SharkTblProperties.CACHE_FLAG.varname, cacheMode.toString)
+        if (isRegularCreateTable) {
+          // The sort column of a CTAS is checked against the schema of the query's result.
+          SharkSemanticAnalyzer.getSortColumn(createTableProperties, createTableDesc.getCols)
+        }
       }
 
       // For CTAS ('isRegularCreateTable' is false), the MemoryStoreSinkOperator creates a new
@@ -531,6 +546,27 @@ object SharkSemanticAnalyzer extends LogHelper {
   private val viewsExpandedField = classOf[SemanticAnalyzer].getDeclaredField("viewsExpanded")
   viewsExpandedField.setAccessible(true)
 
+  /**
+   * Returns the position among `columns` of the column a cached table is sorted on, from its
+   * "shark.cache.sortBy" property. Throws a SemanticException if the property names no column
+   * of `columns`, or a column that is not of a primitive type.
+   */
+  def getSortColumn(tblProps: JavaMap[String, String], columns: Seq[FieldSchema]): Option[Int] = {
+    SharkTblProperties.getSortColumn(tblProps, columns).map { index =>
+      val sortColumnName = tblProps.get(SharkTblProperties.SORT_COLUMN.varname)
+      if (index < 0) {
+        throw new SemanticException("Cannot sort the cached table on %s: no such column".format(
+          sortColumnName))
+      }
+      val typeInfo = TypeInfoUtils.getTypeInfoFromTypeString(columns(index).getType)
+      if (typeInfo.getCategory != Category.PRIMITIVE) {
+        throw new SemanticException("Cannot sort the cached table on %s of type %s".format(
+          sortColumnName, typeInfo.getTypeName))
+      }
+      index
+    }
+  }
+
   private def getHivePartitionKey(qb: QB): String = {
     val selectClauseKey = qb.getParseInfo.getClauseNamesForDest.head
     val destPartition = qb.getMetaData.getDestPartitionForAlias(selectClauseKey)
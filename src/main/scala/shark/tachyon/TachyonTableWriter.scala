@@ -30,4 +30,10 @@ abstract class TachyonTableWriter extends Serializable {
 
   /** Write the data of a partition of a given column to Tachyon. Called only on worker nodes. */
   def writeColumnPartition(column: Int, part: Int, data: ByteBuffer)
+
+  /**
+   * Record the host each partition was written on, indexed by partition. Called only on the
+   * driver node, before updateMetadata. Tachyon tracks the locations of its blocks itself.
+   */
+  def writePartitionLocations(hosts: Seq[String]) {}
 }
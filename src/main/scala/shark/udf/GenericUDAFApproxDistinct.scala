@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.udf
+
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException
+import org.apache.hadoop.hive.ql.udf.generic.{AbstractGenericUDAFResolver, GenericUDAFEvaluator}
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.{AggregationBuffer, Mode}
+import org.apache.hadoop.hive.serde2.objectinspector.{ObjectInspector, PrimitiveObjectInspector}
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.{BinaryObjectInspector,
+  PrimitiveObjectInspectorFactory, PrimitiveObjectInspectorUtils}
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo
+import org.apache.hadoop.io.{BytesWritable, LongWritable}
+
+import shark.util.{HyperLogLog, ValueHasher}
+
+
+/**
+ * approx_distinct(expr [, precision]): the approximate number of distinct non-null values of
+ * expr, estimated with a HyperLogLog sketch. The optional precision (default 12) trades memory
+ * for accuracy: the relative error is about 1.04 / sqrt(2^precision).
+ *
+ * The partial aggregation state is the serialized sketch, so map-side partial aggregation ships
+ * a few KB per group instead of every distinct value, and the reducers merge the sketches.
+ */
+class GenericUDAFApproxDistinct extends AbstractGenericUDAFResolver {
+
+  override def getEvaluator(parameters: Array[TypeInfo]): GenericUDAFEvaluator = {
+    if (parameters.length != 1 && parameters.length != 2) {
+      throw new UDFArgumentLengthException(
+        "approx_distinct takes one or two arguments: (expr [, precision])")
+    }
+    SketchFunctions.checkPrimitive(parameters, 0)
+    if (parameters.length == 2) {
+      SketchFunctions.checkIntegral(parameters, 1)
+    }
+    new GenericUDAFApproxDistinctEvaluator
+  }
+}
+
+
+class GenericUDAFApproxDistinctEvaluator extends GenericUDAFEvaluator {
+
+  class SketchBuffer extends AggregationBuffer {
+    var sketch: HyperLogLog = _
+  }
+
+  // Input object inspectors in PARTIAL1 and COMPLETE mode.
+  @transient var inputOI: PrimitiveObjectInspector = _
+  @transient var precisionOI: PrimitiveObjectInspector = _
+
+  // Partial aggregation object inspector in PARTIAL2 and FINAL mode.
+  @transient var partialOI: BinaryObjectInspector = _
+
+  @transient var hasher: ValueHasher = _
+
+  override def init(m: Mode, parameters: Array[ObjectInspector]): ObjectInspector = {
+    super.init(m, parameters)
+    if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+      inputOI = parameters(0).asInstanceOf[PrimitiveObjectInspector]
+      if (parameters.length > 1) {
+        precisionOI = parameters(1).asInstanceOf[PrimitiveObjectInspector]
+      }
+      hasher = new ValueHasher
+    } else {
+      partialOI = parameters(0).asInstanceOf[BinaryObjectInspector]
+    }
+    if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+      PrimitiveObjectInspectorFactory.writableBinaryObjectInspector
+    } else {
+      PrimitiveObjectInspectorFactory.writableLongObjectInspector
+    }
+  }
+
+  override def getNewAggregationBuffer(): AggregationBuffer = new SketchBuffer
+
+  override def reset(agg: AggregationBuffer) {
+    agg.asInstanceOf[SketchBuffer].sketch = null
+  }
+
+  override def iterate(agg: AggregationBuffer, parameters: Array[Object]) {
+    val buf = agg.asInstanceOf[SketchBuffer]
+    if (buf.sketch == null) {
+      val precision = if (precisionOI == null) {
+        HyperLogLog.DEFAULT_PRECISION
+      } else {
+        PrimitiveObjectInspectorUtils.getInt(parameters(1), precisionOI)
+      }
+      buf.sketch = new HyperLogLog(precision)
+    }
+    val o = parameters(0)
+    if (o != null) {
+      buf.sketch.offerHash(hasher.hash(o, inputOI))
+    }
+  }
+
+  override def terminatePartial(agg: AggregationBuffer): Object = {
+    val buf = agg.asInstanceOf[SketchBuffer]
+    if (buf.sketch == null) null else new BytesWritable(buf.sketch.toBytes)
+  }
+
+  override def merge(agg: AggregationBuffer, partial: Object) {
+    if (partial != null) {
+      val buf = agg.asInstanceOf[SketchBuffer]
+      val bytes = partialOI.getPrimitiveWritableObject(partial)
+      val other = HyperLogLog.fromBytes(bytes.getBytes, 0, bytes.getLength)
+      if (buf.sketch == null) {
+        buf.sketch = other
+      } else {
+        buf.sketch.merge(other)
+      }
+    }
+  }
+
+  override def terminate(agg: AggregationBuffer): Object = {
+    val buf = agg.asInstanceOf[SketchBuffer]
+    new LongWritable(if (buf.sketch == null) 0L else buf.sketch.cardinality)
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.udf
+
+import java.nio.ByteBuffer
+
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException
+import org.apache.hadoop.hive.ql.udf.generic.{AbstractGenericUDAFResolver, GenericUDAFEvaluator}
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.{AggregationBuffer, Mode}
+import org.apache.hadoop.hive.serde2.io.DoubleWritable
+import org.apache.hadoop.hive.serde2.objectinspector.{ObjectInspector, PrimitiveObjectInspector}
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.{BinaryObjectInspector,
+  PrimitiveObjectInspectorFactory, PrimitiveObjectInspectorUtils}
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo
+import org.apache.hadoop.io.BytesWritable
+
+import shark.util.QuantileSketch
+
+
+/**
+ * approx_quantile(expr, p): the approximate p-quantile (0 <= p <= 1) of the non-null values of
+ * a numeric expr, estimated with a mergeable KLL sketch.
+ *
+ * As with approx_distinct, the partial aggregation state is the serialized sketch, so the
+ * quantile is computed with map-side partial aggregation instead of shipping every value.
+ */
+class GenericUDAFApproxQuantile extends AbstractGenericUDAFResolver {
+
+  override def getEvaluator(parameters: Array[TypeInfo]): GenericUDAFEvaluator = {
+    if (parameters.length != 2) {
+      throw new UDFArgumentLengthException("approx_quantile takes two arguments: (expr, p)")
+    }
+    SketchFunctions.checkNumeric(parameters, 0)
+    SketchFunctions.checkNumeric(parameters, 1)
+    new GenericUDAFApproxQuantileEvaluator
+  }
+}
+
+
+/**
+ * approx_median(expr): shorthand for approx_quantile(expr, 0.5).
+ */
+class GenericUDAFApproxMedian extends AbstractGenericUDAFResolver {
+
+  override def getEvaluator(parameters: Array[TypeInfo]): GenericUDAFEvaluator = {
+    if (parameters.length != 1) {
+      throw new UDFArgumentLengthException("approx_median takes one argument: (expr)")
+    }
+    SketchFunctions.checkNumeric(parameters, 0)
+    new GenericUDAFApproxQuantileEvaluator
+  }
+}
+
+
+/**
+ * Evaluator for approx_quantile and approx_median. The final stage does not see the constant
+ * quantile argument, so the partial aggregation state carries it: an 8-byte quantile followed
+ * by the serialized sketch.
+ */
+class GenericUDAFApproxQuantileEvaluator extends GenericUDAFEvaluator {
+
+  class SketchBuffer extends AggregationBuffer {
+    var quantile: Double = GenericUDAFApproxQuantileEvaluator.MEDIAN
+    var sketch: QuantileSketch = _
+  }
+
+  // Input object inspectors in PARTIAL1 and COMPLETE mode.
+  @transient var inputOI: PrimitiveObjectInspector = _
+  @transient var quantileOI: PrimitiveObjectInspector = _
+
+  // Partial aggregation object inspector in PARTIAL2 and FINAL mode.
+  @transient var partialOI: BinaryObjectInspector = _
+
+  override def init(m: Mode, parameters: Array[ObjectInspector]): ObjectInspector = {
+    super.init(m, parameters)
+    if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+      inputOI = parameters(0).asInstanceOf[PrimitiveObjectInspector]
+      if (parameters.length > 1) {
+        quantileOI = parameters(1).asInstanceOf[PrimitiveObjectInspector]
+      }
+    } else {
+      partialOI = parameters(0).asInstanceOf[BinaryObjectInspector]
+    }
+    if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+      PrimitiveObjectInspectorFactory.writableBinaryObjectInspector
+    } else {
+      PrimitiveObjectInspectorFactory.writableDoubleObjectInspector
+    }
+  }
+
+  override def getNewAggregationBuffer(): AggregationBuffer = new SketchBuffer
+
+  override def reset(agg: AggregationBuffer) {
+    val buf = agg.asInstanceOf[SketchBuffer]
+    buf.quantile = GenericUDAFApproxQuantileEvaluator.MEDIAN
+    buf.sketch = null
+  }
+
+  override def iterate(agg: AggregationBuffer, parameters: Array[Object]) {
+    val buf = agg.asInstanceOf[SketchBuffer]
+    if (buf.sketch == null) {
+      if (quantileOI != null) {
+        buf.quantile = PrimitiveObjectInspectorUtils.getDouble(parameters(1), quantileOI)
+        if (buf.quantile < 0.0 || buf.quantile > 1.0) {
+          throw new IllegalArgumentException(
+            "approx_quantile expects a quantile between 0 and 1, got " + buf.quantile)
+        }
+      }
+      buf.sketch = new QuantileSketch
+    }
+    val o = parameters(0)
+    if (o != null) {
+      buf.sketch.offer(PrimitiveObjectInspectorUtils.getDouble(o, inputOI))
+    }
+  }
+
+  override def terminatePartial(agg: AggregationBuffer): Object = {
+    val buf = agg.asInstanceOf[SketchBuffer]
+    if (buf.sketch == null) {
+      null
+    } else {
+      val sketchBytes = buf.sketch.toBytes
+      val bytes = ByteBuffer.allocate(8 + sketchBytes.length)
+      bytes.putDouble(buf.quantile)
+      bytes.put(sketchBytes)
+      new BytesWritable(bytes.array())
+    }
+  }
+
+  override def merge(agg: AggregationBuffer, partial: Object) {
+    if (partial != null) {
+      val buf = agg.asInstanceOf[SketchBuffer]
+      val bytes = partialOI.getPrimitiveWritableObject(partial)
+      val other = QuantileSketch.fromBytes(bytes.getBytes, 8, bytes.getLength - 8)
+      if (buf.sketch == null) {
+        buf.quantile = ByteBuffer.wrap(bytes.getBytes, 0, 8).getDouble()
+        buf.sketch = other
+      } else {
+        buf.sketch.merge(other)
+      }
+    }
+  }
+
+  override def terminate(agg: AggregationBuffer): Object = {
+    val buf = agg.asInstanceOf[SketchBuffer]
+    if (buf.sketch == null || buf.sketch.count == 0) {
+      null
+    } else {
+      new DoubleWritable(buf.sketch.quantile(buf.quantile))
+    }
+  }
+}
+
+
+object GenericUDAFApproxQuantileEvaluator {
+  val MEDIAN = 0.5
+}
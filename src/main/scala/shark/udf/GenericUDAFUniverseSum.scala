@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.udf
+
+import java.nio.ByteBuffer
+
+import scala.collection.mutable.HashMap
+
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException
+import org.apache.hadoop.hive.ql.udf.generic.{AbstractGenericUDAFResolver, GenericUDAFEvaluator}
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.{AggregationBuffer, Mode}
+import org.apache.hadoop.hive.serde2.objectinspector.{ObjectInspector, PrimitiveObjectInspector}
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.{BinaryObjectInspector,
+  PrimitiveObjectInspectorFactory, PrimitiveObjectInspectorUtils}
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo
+import org.apache.hadoop.io.{BytesWritable, Text}
+
+import shark.util.ValueHasher
+
+
+/**
+ * universe_sum(expr, key, fraction): the sum of expr over a join, estimated from the join of
+ * universe samples of its inputs (see UniverseSampling), with a closed-form error bound.
+ */
+class GenericUDAFUniverseSum extends AbstractGenericUDAFResolver {
+
+  override def getEvaluator(parameters: Array[TypeInfo]): GenericUDAFEvaluator = {
+    if (parameters.length != 3) {
+      throw new UDFArgumentLengthException(
+        "universe_sum takes three arguments: (expr, key, fraction)")
+    }
+    SketchFunctions.checkNumeric(parameters, 0)
+    SketchFunctions.checkPrimitive(parameters, 1)
+    SketchFunctions.checkNumeric(parameters, 2)
+    new GenericUDAFUniverseSumEvaluator(true)
+  }
+}
+
+
+/**
+ * universe_count(key, fraction): the number of rows of a join, estimated from the join of
+ * universe samples of its inputs (see UniverseSampling), with a closed-form error bound.
+ */
+class GenericUDAFUniverseCount extends AbstractGenericUDAFResolver {
+
+  override def getEvaluator(parameters: Array[TypeInfo]): GenericUDAFEvaluator = {
+    if (parameters.length != 2) {
+      throw new UDFArgumentLengthException(
+        "universe_count takes two arguments: (key, fraction)")
+    }
+    SketchFunctions.checkPrimitive(parameters, 0)
+    SketchFunctions.checkNumeric(parameters, 1)
+    new GenericUDAFUniverseSumEvaluator(false)
+  }
+}
+
+
+/**
+ * The totals of a universe sample per sampled key, from which the total over the whole population
+ * is estimated. Keys are sampled independently with probability `fraction`, so the
+ * Horvitz-Thompson estimate of the total is the sampled total divided by the fraction, with
+ * variance (1 - fraction) / fraction^2 * (sum of the squared totals of the sampled keys). Keys are
+ * identified by a 64-bit hash; the rare collisions only merge the totals of two keys.
+ */
+class UniverseTotals(var fraction: Double) {
+
+  val totals = new HashMap[Long, Double]
+
+  def add(keyHash: Long, value: Double) {
+    totals(keyHash) = totals.getOrElse(keyHash, 0.0) + value
+  }
+
+  def merge(other: UniverseTotals) {
+    other.totals.foreach { case (keyHash, value) => add(keyHash, value) }
+  }
+
+  def estimate: Double = if (fraction <= 0) 0.0 else totals.values.sum / fraction
+
+  /** Half the width of the confidence interval of the estimate. */
+  def error: Double = {
+    if (fraction <= 0 || fraction >= 1) {
+      0.0
+    } else {
+      val variance = (1 - fraction) / (fraction * fraction) * totals.values.map(t => t * t).sum
+      UniverseSampling.Z * math.sqrt(variance)
+    }
+  }
+
+  def toBytes: Array[Byte] = {
+    val buffer = ByteBuffer.allocate(12 + 16 * totals.size)
+    buffer.putDouble(fraction)
+    buffer.putInt(totals.size)
+    totals.foreach { case (keyHash, value) =>
+      buffer.putLong(keyHash)
+      buffer.putDouble(value)
+    }
+    buffer.array
+  }
+}
+
+
+object UniverseTotals {
+
+  def fromBytes(bytes: Array[Byte], offset: Int, length: Int): UniverseTotals = {
+    val buffer = ByteBuffer.wrap(bytes, offset, length)
+    val result = new UniverseTotals(buffer.getDouble)
+    val size = buffer.getInt
+    var i = 0
+    while (i < size) {
+      result.totals(buffer.getLong) = buffer.getDouble
+      i += 1
+    }
+    result
+  }
+}
+
+
+/**
+ * Evaluator for universe_sum and universe_count. The partial aggregation state is the serialized
+ * per-key totals, as the error bound needs the total of every sampled key over all partitions.
+ */
+class GenericUDAFUniverseSumEvaluator(hasValue: Boolean) extends GenericUDAFEvaluator {
+
+  class TotalsBuffer extends AggregationBuffer {
+    var totals: UniverseTotals = _
+  }
+
+  // Input object inspectors in PARTIAL1 and COMPLETE mode.
+  @transient var valueOI: PrimitiveObjectInspector = _
+  @transient var keyOI: PrimitiveObjectInspector = _
+  @transient var fractionOI: PrimitiveObjectInspector = _
+
+  // Partial aggregation object inspector in PARTIAL2 and FINAL mode.
+  @transient var partialOI: BinaryObjectInspector = _
+
+  @transient var hasher: ValueHasher = _
+
+  override def init(m: Mode, parameters: Array[ObjectInspector]): ObjectInspector = {
+    super.init(m, parameters)
+    if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+      val inputs = parameters.map(_.asInstanceOf[PrimitiveObjectInspector])
+      if (hasValue) {
+        valueOI = inputs(0)
+      }
+      keyOI = inputs(inputs.length - 2)
+      fractionOI = inputs(inputs.length - 1)
+      hasher = new ValueHasher
+    } else {
+      partialOI = parameters(0).asInstanceOf[BinaryObjectInspector]
+    }
+    if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+      PrimitiveObjectInspectorFactory.writableBinaryObjectInspector
+    } else {
+      PrimitiveObjectInspectorFactory.writableStringObjectInspector
+    }
+  }
+
+  override def getNewAggregationBuffer(): AggregationBuffer = new TotalsBuffer
+
+  override def reset(agg: AggregationBuffer) {
+    agg.asInstanceOf[TotalsBuffer].totals = null
+  }
+
+  override def iterate(agg: AggregationBuffer, parameters: Array[Object]) {
+    val buf = agg.asInstanceOf[TotalsBuffer]
+    if (buf.totals == null) {
+      val fraction = PrimitiveObjectInspectorUtils.getDouble(parameters.last, fractionOI)
+      buf.totals = new UniverseTotals(fraction)
+    }
+    val key = parameters(parameters.length - 2)
+    if (key != null) {
+      if (!hasValue) {
+        buf.totals.add(hasher.hash(key, keyOI), 1.0)
+      } else if (parameters(0) != null) {
+        val value = PrimitiveObjectInspectorUtils.getDouble(parameters(0), valueOI)
+        buf.totals.add(hasher.hash(key, keyOI), value)
+      }
+    }
+  }
+
+  override def terminatePartial(agg: AggregationBuffer): Object = {
+    val buf = agg.asInstanceOf[TotalsBuffer]
+    if (buf.totals == null) null else new BytesWritable(buf.totals.toBytes)
+  }
+
+  override def merge(agg: AggregationBuffer, partial: Object) {
+    if (partial != null) {
+      val buf = agg.asInstanceOf[TotalsBuffer]
+      val bytes = partialOI.getPrimitiveWritableObject(partial)
+      val other = UniverseTotals.fromBytes(bytes.getBytes, 0, bytes.getLength)
+      if (buf.totals == null) {
+        buf.totals = other
+      } else {
+        buf.totals.merge(other)
+      }
+    }
+  }
+
+  override def terminate(agg: AggregationBuffer): Object = {
+    val buf = agg.asInstanceOf[TotalsBuffer]
+    if (buf.totals == null) {
+      new Text(UniverseSampling.format(0.0, 0.0))
+    } else {
+      new Text(UniverseSampling.format(buf.totals.estimate, buf.totals.error))
+    }
+  }
+}
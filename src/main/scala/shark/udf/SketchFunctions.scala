@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.udf
+
+import org.apache.hadoop.hive.ql.exec.{FunctionRegistry, UDFArgumentTypeException}
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory
+import org.apache.hadoop.hive.serde2.typeinfo.{PrimitiveTypeInfo, TypeInfo}
+
+
+/**
+ * The sketch based approximate aggregates. Unlike approx_sum and approx_count, they do not need
+ * the sample and dataset sizes, since they estimate a property of the data they are fed.
+ */
+object SketchFunctions {
+
+  val APPROX_DISTINCT = "approx_distinct"
+  val APPROX_QUANTILE = "approx_quantile"
+  val APPROX_MEDIAN = "approx_median"
+
+  val names = Seq(APPROX_DISTINCT, APPROX_QUANTILE, APPROX_MEDIAN)
+
+  def register() {
+    FunctionRegistry.registerTemporaryGenericUDAF(APPROX_DISTINCT, new GenericUDAFApproxDistinct)
+    FunctionRegistry.registerTemporaryGenericUDAF(APPROX_QUANTILE, new GenericUDAFApproxQuantile)
+    FunctionRegistry.registerTemporaryGenericUDAF(APPROX_MEDIAN, new GenericUDAFApproxMedian)
+  }
+
+  /** Whether the given (lower case) piece of a command calls one of the sketch functions. */
+  def isCalledIn(cmd: String): Boolean = names.exists(cmd.contains(_))
+
+  def checkPrimitive(parameters: Array[TypeInfo], i: Int) {
+    if (parameters(i).getCategory != ObjectInspector.Category.PRIMITIVE) {
+      throw new UDFArgumentTypeException(i, "Only primitive type arguments are accepted but "
+        + parameters(i).getTypeName + " was passed as parameter " + (i + 1) + ".")
+    }
+  }
+
+  def checkNumeric(parameters: Array[TypeInfo], i: Int) {
+    checkPrimitive(parameters, i)
+    parameters(i).asInstanceOf[PrimitiveTypeInfo].getPrimitiveCategory match {
+      case PrimitiveCategory.BYTE | PrimitiveCategory.SHORT | PrimitiveCategory.INT |
+           PrimitiveCategory.LONG | PrimitiveCategory.FLOAT | PrimitiveCategory.DOUBLE |
+           PrimitiveCategory.STRING => // Accepted.
+      case _ =>
+        throw new UDFArgumentTypeException(i, "Only numeric or string type arguments are "
+          + "accepted but " + parameters(i).getTypeName + " was passed as parameter "
+          + (i + 1) + ".")
+    }
+  }
+
+  def checkIntegral(parameters: Array[TypeInfo], i: Int) {
+    checkPrimitive(parameters, i)
+    parameters(i).asInstanceOf[PrimitiveTypeInfo].getPrimitiveCategory match {
+      case PrimitiveCategory.BYTE | PrimitiveCategory.SHORT | PrimitiveCategory.INT |
+           PrimitiveCategory.LONG => // Accepted.
+      case _ =>
+        throw new UDFArgumentTypeException(i, "Only integral type arguments are accepted but "
+          + parameters(i).getTypeName + " was passed as parameter " + (i + 1) + ".")
+    }
+  }
+}
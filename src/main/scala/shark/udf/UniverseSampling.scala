@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.udf
+
+import org.apache.hadoop.hive.ql.exec.{FunctionRegistry, UDFArgumentLengthException}
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredObject
+import org.apache.hadoop.hive.serde2.objectinspector.{ObjectInspector, PrimitiveObjectInspector}
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.{
+  PrimitiveObjectInspectorFactory, PrimitiveObjectInspectorUtils}
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils
+import org.apache.hadoop.io.BooleanWritable
+
+import shark.util.ValueHasher
+
+
+/**
+ * Universe sampling, for approximate joins. A universe sample of a table keeps the rows whose
+ * join key hashes into a fixed fraction of the hash space, the same for every table. Joining the
+ * universe samples of two tables on that key gives exactly the rows of the full join whose key
+ * falls in the sample, a fraction of them, instead of the product of two fractions that
+ * independent uniform samples keep. Samples are created and cached like other BlinkDB samples:
+ *
+ *   CREATE TABLE lineitem_u_cached AS
+ *     SELECT * FROM lineitem WHERE universe_sample(l_orderkey, 0.01);
+ *
+ * universe_count and universe_sum then estimate the count and sum over the full join from the
+ * join of the samples, with closed-form error bounds.
+ */
+object UniverseSampling {
+
+  val UNIVERSE_SAMPLE = "universe_sample"
+  val UNIVERSE_COUNT = "universe_count"
+  val UNIVERSE_SUM = "universe_sum"
+
+  // Error bounds are reported for a 95% confidence interval.
+  val CONFIDENCE = 0.95
+  val Z = 1.96
+
+  def register() {
+    FunctionRegistry.registerTemporaryGenericUDF(UNIVERSE_SAMPLE, classOf[GenericUDFUniverseSample])
+    FunctionRegistry.registerTemporaryGenericUDAF(UNIVERSE_COUNT, new GenericUDAFUniverseCount)
+    FunctionRegistry.registerTemporaryGenericUDAF(UNIVERSE_SUM, new GenericUDAFUniverseSum)
+  }
+
+  /** The position of a key hash in the hash space, uniformly distributed in [0, 1). */
+  def position(hash: Long): Double = (hash >>> 11) * (1.0 / (1L << 53))
+
+  /** Format an estimate with its error bar: "estimate +/- error (xx% Confidence)". */
+  def format(estimate: Double, error: Double): String = {
+    "%s +/- %s (%d%% Confidence)".format(estimate, error, math.round(CONFIDENCE * 100))
+  }
+}
+
+
+/**
+ * universe_sample(key1 [, key2, ...], fraction): true for the rows whose key hashes into the
+ * first `fraction` of the hash space. Rows with a null key are never sampled, as they never join.
+ * Keys of different integral types hash the same, so the samples of a table keyed by int and one
+ * keyed by bigint are consistent.
+ */
+class GenericUDFUniverseSample extends GenericUDF {
+
+  @transient var keyOIs: Array[PrimitiveObjectInspector] = _
+  @transient var fractionOI: PrimitiveObjectInspector = _
+  @transient var hasher: ValueHasher = _
+  @transient var result: BooleanWritable = _
+
+  override def initialize(arguments: Array[ObjectInspector]): ObjectInspector = {
+    if (arguments.length < 2) {
+      throw new UDFArgumentLengthException(UniverseSampling.UNIVERSE_SAMPLE +
+        " takes at least two arguments: (key1 [, key2, ...], fraction)")
+    }
+    val typeInfos = arguments.map(TypeInfoUtils.getTypeInfoFromObjectInspector)
+    arguments.indices.init.foreach(SketchFunctions.checkPrimitive(typeInfos, _))
+    SketchFunctions.checkNumeric(typeInfos, arguments.length - 1)
+    keyOIs = arguments.init.map(_.asInstanceOf[PrimitiveObjectInspector])
+    fractionOI = arguments.last.asInstanceOf[PrimitiveObjectInspector]
+    hasher = new ValueHasher
+    result = new BooleanWritable
+    PrimitiveObjectInspectorFactory.writableBooleanObjectInspector
+  }
+
+  override def evaluate(arguments: Array[DeferredObject]): Object = {
+    var hash = 0L
+    var i = 0
+    while (i < keyOIs.length) {
+      val key = arguments(i).get
+      if (key == null) {
+        result.set(false)
+        return result
+      }
+      hash = ValueHasher.mix(hash * 31 + hasher.hash(key, keyOIs(i)))
+      i += 1
+    }
+    val fraction = PrimitiveObjectInspectorUtils.getDouble(arguments(i).get, fractionOI)
+    result.set(UniverseSampling.position(hash) < fraction)
+    result
+  }
+
+  override def getDisplayString(children: Array[String]): String = {
+    UniverseSampling.UNIVERSE_SAMPLE + children.mkString("(", ", ", ")")
+  }
+}
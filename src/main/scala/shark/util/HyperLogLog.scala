@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.util
+
+
+/**
+ * HyperLogLog
+ * <a href="http://algo.inria.fr/flajolet/Publications/FlFuGaMe07.pdf">Flajolet et al.</a>
+ * @constructor create an empty sketch.
+ * @param precision is the number of hash bits used to pick a register. The sketch uses
+ *        2^precision one-byte registers and has a relative error of about 1.04 / sqrt(2^precision).
+ *
+ * The sketch is fed 64-bit hashes (see ValueHasher). It is mergeable: two sketches of the same
+ * precision can be combined by taking the register-wise maximum, which is what makes it usable
+ * as a partial aggregation state.
+ */
+class HyperLogLog(val precision: Int, private val registers: Array[Byte])
+  extends AnyRef with Serializable {
+
+  require(precision >= HyperLogLog.MIN_PRECISION && precision <= HyperLogLog.MAX_PRECISION,
+    "HyperLogLog precision must be between %d and %d".format(
+      HyperLogLog.MIN_PRECISION, HyperLogLog.MAX_PRECISION))
+  require(registers.length == (1 << precision))
+
+  def this(precision: Int) = this(precision, new Array[Byte](1 << precision))
+
+  def this() = this(HyperLogLog.DEFAULT_PRECISION)
+
+  def numRegisters: Int = registers.length
+
+  /**
+   * @param hash is a 64-bit hash of the value to add.
+   */
+  def offerHash(hash: Long) {
+    val index = (hash >>> (64 - precision)).toInt
+    // Set a sentinel bit so the rank is bounded by 64 - precision + 1.
+    val w = (hash << precision) | (1L << (precision - 1))
+    val rank = (java.lang.Long.numberOfLeadingZeros(w) + 1).toByte
+    if (rank > registers(index)) {
+      registers(index) = rank
+    }
+  }
+
+  def merge(other: HyperLogLog): HyperLogLog = {
+    require(precision == other.precision,
+      "Cannot merge HyperLogLog sketches of precision %d and %d".format(
+        precision, other.precision))
+    var i = 0
+    while (i < registers.length) {
+      if (other.registers(i) > registers(i)) {
+        registers(i) = other.registers(i)
+      }
+      i += 1
+    }
+    this
+  }
+
+  def reset() {
+    java.util.Arrays.fill(registers, 0.toByte)
+  }
+
+  /** The estimated number of distinct values offered to this sketch. */
+  def cardinality: Long = {
+    val m = registers.length.toDouble
+    var sum = 0.0
+    var zeros = 0
+    var i = 0
+    while (i < registers.length) {
+      sum += 1.0 / (1L << registers(i))
+      if (registers(i) == 0) zeros += 1
+      i += 1
+    }
+    val estimate = HyperLogLog.alpha(registers.length) * m * m / sum
+    if (estimate <= 2.5 * m && zeros > 0) {
+      // Small range correction: fall back to linear counting.
+      math.round(m * math.log(m / zeros))
+    } else {
+      math.round(estimate)
+    }
+  }
+
+  /** Serialize into a compact byte array: the precision followed by the registers. */
+  def toBytes: Array[Byte] = {
+    val bytes = new Array[Byte](1 + registers.length)
+    bytes(0) = precision.toByte
+    System.arraycopy(registers, 0, bytes, 1, registers.length)
+    bytes
+  }
+
+  override def toString = {
+    "HyperLogLog(precision=" + precision + ", cardinality=" + cardinality + ")"
+  }
+}
+
+
+object HyperLogLog {
+
+  val MIN_PRECISION = 4
+  val MAX_PRECISION = 18
+
+  // 4096 registers: 4KB of state and about 1.6% standard error.
+  val DEFAULT_PRECISION = 12
+
+  def fromBytes(bytes: Array[Byte], offset: Int, length: Int): HyperLogLog = {
+    val precision = bytes(offset).toInt
+    val registers = new Array[Byte](length - 1)
+    System.arraycopy(bytes, offset + 1, registers, 0, length - 1)
+    new HyperLogLog(precision, registers)
+  }
+
+  def fromBytes(bytes: Array[Byte]): HyperLogLog = fromBytes(bytes, 0, bytes.length)
+
+  private def alpha(m: Int): Double = m match {
+    case 16 => 0.673
+    case 32 => 0.697
+    case 64 => 0.709
+    case _ => 0.7213 / (1 + 1.079 / m)
+  }
+}
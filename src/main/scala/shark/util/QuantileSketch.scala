@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.util
+
+import java.nio.ByteBuffer
+import java.util.Random
+
+import scala.collection.mutable.ArrayBuffer
+
+
+/**
+ * KLL quantile sketch
+ * <a href="http://arxiv.org/abs/1603.05346">Karnin, Lang, Liberty</a>
+ * @constructor create an empty sketch.
+ * @param k controls the accuracy. The rank error is roughly 1.65 / k with high probability, and
+ *        the sketch holds O(k) values regardless of the input size.
+ *
+ * Values are kept in a hierarchy of compactors. A value at level h stands for 2^h input values.
+ * When a level overflows, it is sorted and every other value is promoted to the next level. Two
+ * sketches are merged by concatenating their levels and compacting, so the sketch can be used as
+ * a partial aggregation state.
+ */
+class QuantileSketch(val k: Int) extends AnyRef with Serializable {
+
+  require(k >= 8, "QuantileSketch k must be at least 8")
+
+  def this() = this(QuantileSketch.DEFAULT_K)
+
+  private val compactors = new ArrayBuffer[ArrayBuffer[Double]]
+  private var size = 0
+  private var maxSize = 0
+  private var _count = 0L
+
+  // Only used to pick which half of a level survives a compaction.
+  @transient private var _rand: Random = _
+
+  grow()
+
+  /** The number of values offered to (or merged into) this sketch. */
+  def count: Long = _count
+
+  def offer(v: Double) {
+    compactors(0) += v
+    size += 1
+    _count += 1
+    if (size >= maxSize) {
+      compress()
+    }
+  }
+
+  def merge(other: QuantileSketch): QuantileSketch = {
+    while (compactors.size < other.compactors.size) {
+      grow()
+    }
+    var h = 0
+    while (h < other.compactors.size) {
+      compactors(h) ++= other.compactors(h)
+      h += 1
+    }
+    _count += other._count
+    size = compactors.map(_.size).sum
+    while (size >= maxSize) {
+      compress()
+    }
+    this
+  }
+
+  /**
+   * Return the approximate q-quantile of the values offered, for q in [0, 1], or NaN if the
+   * sketch is empty.
+   */
+  def quantile(q: Double): Double = {
+    require(q >= 0.0 && q <= 1.0, "Quantile must be between 0 and 1")
+    val weighted = new ArrayBuffer[(Double, Long)](size)
+    var h = 0
+    while (h < compactors.size) {
+      val weight = 1L << h
+      compactors(h).foreach(v => weighted += ((v, weight)))
+      h += 1
+    }
+    if (weighted.isEmpty) {
+      Double.NaN
+    } else {
+      val sorted = weighted.sortBy(_._1)
+      val totalWeight = sorted.map(_._2).sum
+      val targetRank = q * totalWeight
+      var cumulative = 0L
+      var i = 0
+      while (i < sorted.size - 1 && cumulative + sorted(i)._2 < targetRank) {
+        cumulative += sorted(i)._2
+        i += 1
+      }
+      sorted(i)._1
+    }
+  }
+
+  def toBytes: Array[Byte] = {
+    val buf = ByteBuffer.allocate(4 + 8 + 4 + 4 * compactors.size + 8 * size)
+    buf.putInt(k)
+    buf.putLong(_count)
+    buf.putInt(compactors.size)
+    compactors.foreach { level =>
+      buf.putInt(level.size)
+      level.foreach(buf.putDouble(_))
+    }
+    buf.array()
+  }
+
+  private def capacity(height: Int): Int = {
+    val depth = compactors.size - height - 1
+    math.ceil(math.pow(QuantileSketch.C, depth) * k).toInt + 1
+  }
+
+  private def grow() {
+    compactors += new ArrayBuffer[Double]
+    maxSize = (0 until compactors.size).map(capacity).sum
+  }
+
+  private def compress() {
+    var h = 0
+    while (h < compactors.size) {
+      if (compactors(h).size >= capacity(h)) {
+        if (h + 1 >= compactors.size) {
+          grow()
+        }
+        compact(compactors(h), compactors(h + 1))
+        size = compactors.map(_.size).sum
+        // Compacting one level is enough if it freed up space.
+        if (size < maxSize) {
+          return
+        }
+      }
+      h += 1
+    }
+  }
+
+  private def compact(level: ArrayBuffer[Double], next: ArrayBuffer[Double]) {
+    if (_rand == null) {
+      _rand = new Random(QuantileSketch.SEED)
+    }
+    val sorted = level.sorted
+    level.clear()
+    // If the level has an odd number of values, the largest one stays behind.
+    val end = if (sorted.size % 2 == 1) {
+      level += sorted.last
+      sorted.size - 1
+    } else {
+      sorted.size
+    }
+    var i = if (_rand.nextBoolean()) 1 else 0
+    while (i < end) {
+      next += sorted(i)
+      i += 2
+    }
+  }
+}
+
+
+object QuantileSketch {
+
+  val DEFAULT_K = 200
+
+  // Ratio between the capacities of consecutive levels.
+  private val C = 2.0 / 3.0
+
+  private val SEED = 0x4b4c4c
+
+  def fromBytes(bytes: Array[Byte], offset: Int, length: Int): QuantileSketch = {
+    val buf = ByteBuffer.wrap(bytes, offset, length)
+    val sketch = new QuantileSketch(buf.getInt())
+    sketch._count = buf.getLong()
+    val numLevels = buf.getInt()
+    while (sketch.compactors.size < numLevels) {
+      sketch.grow()
+    }
+    var h = 0
+    while (h < numLevels) {
+      var n = buf.getInt()
+      while (n > 0) {
+        sketch.compactors(h) += buf.getDouble()
+        n -= 1
+      }
+      h += 1
+    }
+    sketch.size = sketch.compactors.map(_.size).sum
+    sketch
+  }
+
+  def fromBytes(bytes: Array[Byte]): QuantileSketch = fromBytes(bytes, 0, bytes.length)
+}
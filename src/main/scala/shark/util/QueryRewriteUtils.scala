@@ -24,17 +24,36 @@ import shark.memstore2.SharkTblProperties
 
 object QueryRewriteUtils {
 
+  private val EXPLAIN_ANALYZE = """(?is)EXPLAIN\s+ANALYZE\s+(.*)""".r
+
+  private val CACHE_SORTED_BY = """(?i)CACHE\s+(\S+)\s+SORTED\s+BY\s*\(\s*(\w+)\s*\)""".r
+
   def cacheToAlterTable(cmd: String): String = {
     val cmdSplit = cmd.split(' ')
-    if (cmdSplit.size == 2) {
-      val tableName = cmdSplit(1)
-      "ALTER TABLE %s SET TBLPROPERTIES ('shark.cache' = 'true')".format(tableName)
-    } else {
-      throw new SemanticException(
-        s"CACHE accepts a single table name: 'CACHE <table name>' (received command: '$cmd')")
+    cmd match {
+      case CACHE_SORTED_BY(tableName, sortColumn) =>
+        "ALTER TABLE %s SET TBLPROPERTIES ('shark.cache' = 'true', '%s' = '%s')".format(
+          tableName, SharkTblProperties.SORT_COLUMN.varname, sortColumn)
+      case _ if cmdSplit.size == 2 =>
+        val tableName = cmdSplit(1)
+        "ALTER TABLE %s SET TBLPROPERTIES ('shark.cache' = 'true')".format(tableName)
+      case _ =>
+        throw new SemanticException("CACHE accepts a single table name, optionally followed by " +
+          s"SORTED BY (<column>): 'CACHE <table name>' (received command: '$cmd')")
     }
   }
 
+  def isExplainAnalyze(cmd: String): Boolean = EXPLAIN_ANALYZE.unapplySeq(cmd).isDefined
+
+  /**
+   * Rewrites 'EXPLAIN ANALYZE <query>' to 'EXPLAIN <query>', which Hive can parse. The query
+   * context records that the query should run, see QueryContext#explainAnalyze.
+   */
+  def explainAnalyzeToExplain(cmd: String): String = cmd match {
+    case EXPLAIN_ANALYZE(query) => "EXPLAIN " + query
+    case _ => cmd
+  }
+
   def uncacheToAlterTable(cmd: String): String = {
     val cmdSplit = cmd.split(' ')
     if (cmdSplit.size == 2) {
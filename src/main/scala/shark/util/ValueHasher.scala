@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.util
+
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.{BinaryObjectInspector,
+  BooleanObjectInspector, PrimitiveObjectInspectorUtils, StringObjectInspector,
+  TimestampObjectInspector}
+
+
+/**
+ * Computes 64-bit hashes of primitive Hive values, independently of the object inspector used to
+ * read them (e.g. lazy, writable or java). Used to feed HyperLogLog sketches.
+ *
+ * Not thread safe: the instance reuses its hash output buffer.
+ */
+class ValueHasher {
+
+  private val results = new Array[Int](4)
+
+  def hash(o: Object, oi: PrimitiveObjectInspector): Long = {
+    oi.getPrimitiveCategory match {
+      case PrimitiveCategory.BOOLEAN =>
+        ValueHasher.mix(if (oi.asInstanceOf[BooleanObjectInspector].get(o)) 1L else 0L)
+      case PrimitiveCategory.BYTE | PrimitiveCategory.SHORT | PrimitiveCategory.INT |
+           PrimitiveCategory.LONG =>
+        ValueHasher.mix(PrimitiveObjectInspectorUtils.getLong(o, oi))
+      case PrimitiveCategory.FLOAT | PrimitiveCategory.DOUBLE =>
+        ValueHasher.mix(
+          java.lang.Double.doubleToLongBits(PrimitiveObjectInspectorUtils.getDouble(o, oi)))
+      case PrimitiveCategory.TIMESTAMP =>
+        val ts = oi.asInstanceOf[TimestampObjectInspector].getPrimitiveJavaObject(o)
+        ValueHasher.mix(ts.getTime * 1000000L + ts.getNanos % 1000000)
+      case PrimitiveCategory.STRING =>
+        val text = oi.asInstanceOf[StringObjectInspector].getPrimitiveWritableObject(o)
+        hash(text.getBytes, text.getLength)
+      case PrimitiveCategory.BINARY =>
+        val bytes = oi.asInstanceOf[BinaryObjectInspector].getPrimitiveWritableObject(o)
+        hash(bytes.getBytes, bytes.getLength)
+      case _ =>
+        val bytes = PrimitiveObjectInspectorUtils.getString(o, oi).getBytes("UTF-8")
+        hash(bytes, bytes.length)
+    }
+  }
+
+  def hash(bytes: Array[Byte], length: Int): Long = {
+    MurmurHash3_x86_128.hash(bytes, ValueHasher.SEED, length, results)
+    (results(0).toLong << 32) | (results(1) & 0xFFFFFFFFL)
+  }
+}
+
+
+object ValueHasher {
+
+  val SEED = 0x5bd1e995
+
+  /** The 64-bit finalizer of MurmurHash3, which spreads the bits of a long evenly. */
+  def mix(value: Long): Long = {
+    var k = value
+    k ^= k >>> 33
+    k *= 0xff51afd7ed558ccdL
+    k ^= k >>> 33
+    k *= 0xc4ceb9fe1a85ec53L
+    k ^= k >>> 33
+    k
+  }
+}
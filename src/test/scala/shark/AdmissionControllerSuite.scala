@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark
+
+import scala.concurrent.{Await, future}
+import scala.concurrent.ExecutionContext.Implicits.global
+import scala.concurrent.duration._
+
+import org.apache.hadoop.hive.conf.HiveConf
+import org.scalatest.FunSuite
+
+import shark.api.QueryExecutionException
+
+
+class AdmissionControllerSuite extends FunSuite {
+
+  // Plans are only used to estimate memory, which is not limited here.
+  private def conf(maxConcurrentQueries: Int, timeout: Int = 0): HiveConf = {
+    val conf = new HiveConf
+    conf.setInt(SharkConfVars.SERVER_MAX_CONCURRENT_QUERIES.varname, maxConcurrentQueries)
+    conf.setInt(SharkConfVars.SERVER_QUERY_TIMEOUT.varname, timeout)
+    conf
+  }
+
+  test("queries over the concurrency limit wait for a running query") {
+    val first = AdmissionController.admit(null, conf(1), "session1")
+    val second = future { AdmissionController.admit(null, conf(1), "session2") }
+    Thread.sleep(500)
+    assert(!second.isCompleted)
+    assert(AdmissionController.numQueued === 1)
+    AdmissionController.release(first)
+    AdmissionController.release(Await.result(second, 10.seconds))
+    assert(AdmissionController.numRunning === 0)
+  }
+
+  test("queued queries are cancelled when their session ends or they time out") {
+    val first = AdmissionController.admit(null, conf(1), "session1")
+    val cancelled = future { AdmissionController.admit(null, conf(1), "session2") }
+    val timedOut = future { AdmissionController.admit(null, conf(1, timeout = 1), "session3") }
+    Thread.sleep(500)
+    AdmissionController.cancel("session2")
+    intercept[QueryExecutionException] { Await.result(cancelled, 10.seconds) }
+    Thread.sleep(1000)
+    assert(!AdmissionController.expire("session3"))
+    intercept[QueryExecutionException] { Await.result(timedOut, 10.seconds) }
+    // The running query isn't affected.
+    assert(!AdmissionController.expire("session1"))
+    AdmissionController.release(first)
+    assert(AdmissionController.numQueued === 0)
+    assert(AdmissionController.numRunning === 0)
+  }
+}
@@ -17,18 +17,32 @@
 
 package shark
 
+import java.util.concurrent.CountDownLatch
+
 import scala.collection.JavaConversions._
+import scala.concurrent.{Await, future}
+import scala.concurrent.ExecutionContext.Implicits.global
+import scala.concurrent.duration._
+
+import com.google.common.io.Files
 
 import org.scalatest.FunSuite
 
+import org.apache.hadoop.fs.FileUtil
 import org.apache.hadoop.hive.metastore.MetaStoreUtils.DEFAULT_DATABASE_NAME
+import org.apache.hadoop.hive.ql.exec.{FunctionRegistry, UDF}
 import org.apache.hadoop.hive.ql.metadata.Hive
+import org.apache.hadoop.hive.ql.session.SessionState
+import org.apache.spark.SparkEnv
 import org.apache.spark.rdd.RDD
 import org.apache.spark.rdd.UnionRDD
 import org.apache.spark.storage.StorageLevel
 
 import shark.api.QueryExecutionException
+import shark.execution.SharedScanScheduler
+import shark.localfs.LocalFSUtil
 import shark.memstore2.{CacheType, MemoryMetadataManager, PartitionedMemoryTable}
+import shark.parse.CompiledPlanCache
 import shark.tgf.{RDDSchema, Schema}
 // import expectSql() shortcut methods
 import shark.SharkRunner._
@@ -129,6 +143,238 @@ class SQLSuite extends FunSuite {
       Array("0\t1", "1\t71", "2\t69", "3\t62", "4\t74", "5\t6", "6\t5", "7\t6", "8\t8", "9\t7"))
   }
 
+  test("count, min and max from cached table statistics") {
+    expectSql("select count(*), min(key), max(key) from test_cached", "500\t0\t498")
+    expectSql("select min(val) from test_cached", "val_0")
+    createCachedPartitionedTable("metadata_agg_part_cached", 3 /* numPartitionsToCreate */)
+    expectSql("select count(*), max(key) from metadata_agg_part_cached where keypart = 2",
+      "500\t498")
+    expectSql("select count(*) from metadata_agg_part_cached where keypart > 1", "1000")
+    // Predicates on regular columns need a scan.
+    expectSql("select count(*) from metadata_agg_part_cached where key = 407", "3")
+    // So do predicates without columns, and non-deterministic ones.
+    expectSql("select count(*) from test_cached where 1 = 0", "0")
+    assert(sc.sql("select count(*) from test_cached where rand(1) < 0.5").head.toInt < 500)
+    assert(sc.sql("""select count(*) from metadata_agg_part_cached
+      where keypart = 2 and rand(1) < 0.5""").head.toInt < 500)
+  }
+
+  test("approx_distinct and approx_median from cached column sketches") {
+    sc.runSql("set shark.column.sketches=true")
+    try {
+      sc.runSql("drop table if exists test_sketches_cached")
+      sc.runSql("create table test_sketches_cached as select * from test")
+      val query = "select approx_distinct(key), approx_median(key) from %s"
+      val scanned = sc.sql(query.format("test")).head.split("\t")
+      val fromSketches = sc.sql(query.format("test_sketches_cached")).head.split("\t")
+      // Merging HyperLogLog sketches does not depend on the order, so the estimates are equal.
+      assert(fromSketches(0) === scanned(0))
+      val median = sc.sql("select percentile(cast(key as bigint), 0.5) from test").head.toDouble
+      assert(math.abs(fromSketches(1).toDouble - median) < 25)
+    } finally {
+      sc.runSql("set shark.column.sketches=false")
+    }
+  }
+
+  test("bootstrap error bounds of aggregates") {
+    val query = "select key % 2, sum(key), count(*) from test_cached group by key % 2"
+    val exact = sc.sql(query).map(_.split("\t")).map(row => (row(0), row.tail)).toMap
+    val errorBar = """(\S+) \+/- (\S+) \(95% Confidence\)""".r
+    def checkBounds(row: Array[String]) {
+      for ((field, i) <- row.tail.zipWithIndex) {
+        val errorBar(estimate, error) = field
+        // Replica 0 is the unweighted input, so the estimate is the exact aggregate.
+        assert(estimate.toDouble === exact(row(0))(i).toDouble)
+        assert(error.toDouble > 0 && error.toDouble < 0.5 * estimate.toDouble)
+      }
+    }
+    sc.runSql("set blinkdb.bootstrap.trials=50")
+    try {
+      // With map side aggregation, replicas are shuffled packed per key.
+      val mapSide = sc.sql(query).map(_.split("\t"))
+      assert(mapSide.size === 2)
+      mapSide.foreach(checkBounds)
+      // Without it, the weights are drawn after the shuffle.
+      sc.runSql("set hive.map.aggr=false")
+      val reduceSide = sc.sql(query).map(_.split("\t"))
+      assert(reduceSide.size === 2)
+      reduceSide.foreach(checkBounds)
+    } finally {
+      sc.runSql("set hive.map.aggr=true")
+      sc.runSql("set blinkdb.bootstrap.trials=0")
+    }
+  }
+
+  test("shared scan of a cached table by a single query") {
+    sc.runSql("set shark.sharedscan=true")
+    sc.runSql("set shark.sharedscan.window.ms=10")
+    expectSql("select val, count(*) from test_cached where key = 484 group by val", "val_484\t1")
+    sc.runSql("set shark.sharedscan=false")
+  }
+
+  test("concurrent queries share one scan of a cached table") {
+    val queries = Seq(
+      "select val, count(*) from %s where key = 484 group by val",
+      "select key % 3, count(*) from %s group by key % 3",
+      "select val, sum(key) from %s where key < 20 group by val")
+    val expected = queries.map(query => sc.sql(query.format("test")).sorted)
+    sc.runSql("set shark.sharedscan=true")
+    // Long enough not to expire: the first query stops waiting once the others have joined.
+    sc.runSql("set shark.sharedscan.window.ms=30000")
+    try {
+      val numSharedScans = SharedScanScheduler.numSharedScans.get
+      val start = new CountDownLatch(1)
+      val results = queries.map { query =>
+        future {
+          start.await()
+          sc.sql(query.format("test_cached")).sorted
+        }
+      }
+      start.countDown()
+      results.zip(expected).foreach { case(result, rows) =>
+        assert(Await.result(result, 60.seconds) === rows)
+      }
+      assert(SharedScanScheduler.numSharedScans.get === numSharedScans + 1)
+    } finally {
+      sc.runSql("set shark.sharedscan=false")
+      sc.runSql("set shark.sharedscan.window.ms=50")
+    }
+  }
+
+  test("group by on dictionary codes of a cached string column") {
+    sc.runSql("drop table if exists test_dict_cached")
+    sc.runSql("""create table test_dict_cached as
+      select substr(val, 1, 5) as prefix, key from test""")
+    val query = "select prefix, count(*), sum(key) from %s group by prefix"
+    val expected = sc.sql(query.format("test")).sorted
+    assert(expected.size === 10)
+    assert(sc.sql(query.format("test_dict_cached")).sorted === expected)
+    sc.runSql("set shark.groupby.dictionary=false")
+    assert(sc.sql(query.format("test_dict_cached")).sorted === expected)
+    sc.runSql("set shark.groupby.dictionary=true")
+  }
+
+  test("EXPLAIN ANALYZE runs the query and reports operator metrics") {
+    val query = "select val, count(*) from test_cached group by val"
+    assert(!sc.sql("explain " + query).exists(_.contains("Runtime:")))
+    val plan = sc.sql("explain analyze " + query)
+    assert(plan.exists(_.contains("Run in")))
+    assert(plan.exists(line => line.contains("Runtime:") && line.contains("rows in: 500,")))
+    assert(plan.exists(line => line.contains("Runtime:") && line.contains("hash table entries")))
+    // Metrics are only collected for EXPLAIN ANALYZE.
+    assert(sc.sql("set shark.exec.operatorMetrics").exists(_.contains("false")))
+  }
+
+  test("queries that only differ in their literals reuse a compiled plan") {
+    val hits = CompiledPlanCache.hits
+    assert(sc.sql("select val from test_cached where key = 484") === Seq("val_484"))
+    assert(sc.sql("select  val from test_cached\n where key = 86") === Seq("val_86"))
+    assert(CompiledPlanCache.hits === hits + 1)
+    // The LIMIT is matched exactly, and applies to every run.
+    assert(sc.sql("select key from test_cached where key < 100 limit 3").size === 3)
+    assert(sc.sql("select key from test_cached where key < 200 limit 3").size === 3)
+    assert(sc.sql("select key from test_cached where key < 200 limit 4").size === 4)
+    assert(CompiledPlanCache.hits === hits + 2)
+    // DDL invalidates compiled plans.
+    sc.sql("drop table if exists test_plan_cache")
+    assert(sc.sql("select val from test_cached where key = 484") === Seq("val_484"))
+    assert(CompiledPlanCache.hits === hits + 2)
+  }
+
+  test("runSql returns cached results until a table they were computed from changes") {
+    sc.runSql("drop table if exists test_result_cache_cached")
+    sc.runSql("create table test_result_cache_cached as select * from test_cached where key < 10")
+    val query = "select count(*) from test_result_cache_cached where key < 5"
+    val hits = QueryResultCache.hits
+    assert(sc.runSql(query).results.head.head.toString === "5")
+    assert(sc.runSql(query).results.head.head.toString === "5")
+    assert(QueryResultCache.hits === hits + 1)
+    sc.runSql("insert into table test_result_cache_cached select * from test_cached where key = 0")
+    assert(sc.runSql(query).results.head.head.toString === "8")
+    assert(QueryResultCache.hits === hits + 1)
+    // Results of non-deterministic queries aren't cached.
+    sc.runSql("select rand() from test_result_cache_cached limit 1")
+    sc.runSql("select rand() from test_result_cache_cached limit 1")
+    assert(QueryResultCache.hits === hits + 1)
+    sc.runSql("drop table if exists test_result_cache_cached")
+  }
+
+  test("admission control estimates the memory of queries that shuffle cached tables") {
+    def estimate(query: String): Long = {
+      val driver = new SharkDriver(SharkContext.hiveconf)
+      driver.init()
+      try {
+        assert(driver.compile(query) === 0)
+        AdmissionController.estimateMemory(driver.plan)
+      } finally {
+        driver.destroy()
+      }
+    }
+    // 500 rows, of which only the columns the query reads are counted.
+    assert(estimate("select key, count(*) from test_cached group by key") ===
+      500 * 2 * AdmissionController.BYTES_PER_VALUE)
+    assert(estimate("select key, count(value) from test_cached group by key") ===
+      500 * 3 * AdmissionController.BYTES_PER_VALUE)
+    assert(estimate("select * from test_cached where key = 100") === 0)
+  }
+
+  test("admission control cancels the jobs of a query that times out while running") {
+    FunctionRegistry.registerTemporaryUDF("test_sleep", classOf[TestSleepUDF], false)
+    val session = "timeout-session"
+    sc.runSql("set shark.server.queryTimeout=1")
+    // Runs a query that sleeps for a second per row in the session, as SharkServer does.
+    val query = future {
+      SparkEnv.set(sc.sparkEnv)
+      SessionState.start(SharkContext.sessionState)
+      SharkEnv.sc.setJobGroup(session, "Session ID = " + session)
+      val driver = new SharkDriver(SharkContext.hiveconf)
+      driver.init()
+      driver.serverSession = session
+      try {
+        val response = driver.run("select test_sleep(key) from test_cached")
+        (response.getResponseCode, response.getErrorMessage)
+      } finally {
+        driver.destroy()
+      }
+    }
+    try {
+      // Wait for the query to run past its deadline, then cancel it as JDBCWatcher does.
+      var expired = false
+      var waited = 0
+      while (!expired && waited < 30000) {
+        Thread.sleep(100)
+        waited += 100
+        expired = AdmissionController.expire(session)
+      }
+      assert(expired, "the query did not time out while running")
+      SharkEnv.sc.cancelJobGroup(session)
+      // Without the cancellation, the query would sleep for 500 seconds.
+      val (code, message) = Await.result(query, 30.seconds)
+      assert(code != 0)
+      assert(message.contains("shark.server.queryTimeout"))
+      assert(AdmissionController.numRunning === 0)
+    } finally {
+      sc.runSql("set shark.server.queryTimeout=0")
+    }
+  }
+
+  test("universe samples of two tables keep the same join keys") {
+    sc.runSql("drop table if exists test_universe_cached")
+    sc.runSql("""create table test_universe_cached as
+      select * from test where universe_sample(key, 0.3)""")
+    val sampled = sc.sql("""select count(*) from test_universe_cached a
+      join test_universe_cached b on a.key = b.key""").head.toLong
+    val full = sc.sql("""select count(*) from test a join test b on a.key = b.key
+      where universe_sample(a.key, 0.3)""").head.toLong
+    assert(sampled > 0)
+    assert(sampled === full)
+    // A sample of the whole universe gives the exact count.
+    val count = sc.sql("select count(*) from test a join test b on a.key = b.key").head
+    expectSql("""select universe_count(a.key, 1.0) from test_cached a
+      join test_cached b on a.key = b.key""", count.toDouble + " +/- 0.0 (95% Confidence)")
+    sc.runSql("drop table if exists test_universe_cached")
+  }
+
   test("count bigint") {
     sc.runSql("drop table if exists test_bigint")
     sc.runSql("create table test_bigint (key bigint, val string)")
@@ -634,6 +880,107 @@ class SQLSuite extends FunSuite {
     assert(unionRDD.rdds.size == numParentRDDs + 1)
   }
 
+  test("tables cached with 'shark.cache'='local_fs'") {
+    val warehouse = Files.createTempDir()
+    val localFSUtil = SharkEnv.localFSUtil
+    SharkEnv.localFSUtil = new LocalFSUtil(warehouse.getPath)
+    try {
+      sc.runSql("drop table if exists test_local_fs")
+      sc.runSql("""create table test_local_fs TBLPROPERTIES ('shark.cache'='local_fs') as
+        select * from test""")
+      expectSql("select count(*) from test_local_fs", "500")
+      expectSql("select val from test_local_fs where key = 484", "val_484")
+      sc.runSql("insert into table test_local_fs select * from test where key = 484")
+      expectSql("select count(*) from test_local_fs where key = 484", "2")
+
+      // Each partition's preferred location is the block manager host of the task that wrote it.
+      val host = sc.sparkEnv.blockManager.blockManagerId.host
+      val rdds = SharkEnv.localFSUtil.createRDD("default.test_local_fs", None).map(_._1)
+      assert(rdds.size === 2)
+      rdds.foreach { rdd =>
+        assert(rdd.partitions.forall(split => rdd.preferredLocations(split) == Seq(host)))
+      }
+
+      sc.runSql("drop table test_local_fs")
+      assert(!SharkEnv.localFSUtil.tableExists("default.test_local_fs", None))
+    } finally {
+      SharkEnv.localFSUtil = localFSUtil
+      FileUtil.fullyDelete(warehouse)
+    }
+  }
+
+  test("appends to a cached table are compacted in the background") {
+    sc.runSql("drop table if exists compact_cached")
+    sc.runSql("create table compact_cached as select * from test")
+    sc.runSql("set shark.cache.compaction.deltas=3")
+    (1 to 3).foreach(_ => sc.runSql("insert into table compact_cached select * from test"))
+    val memoryTable = sharkMetastore.getMemoryTable(DEFAULT_DB_NAME, "compact_cached").get
+    val deltas = memoryTable.deltas
+    waitUntil(memoryTable.deltas.isEmpty)
+    sc.runSql("set shark.cache.compaction.deltas=16")
+    assert(memoryTable.deltas.isEmpty, "the deltas of compact_cached were not compacted")
+    // No query was scanning the deltas, so they were unpersisted as they were replaced.
+    assert(deltas.forall(_.rdd.getStorageLevel == StorageLevel.NONE))
+
+    // The base segment and a single compacted segment remain, with stats for each partition.
+    val (rdd, stats) = memoryTable.getRDDAndStats.get
+    assert(rdd.asInstanceOf[UnionRDD[_]].rdds.size == 2)
+    assert(stats.size == rdd.partitions.size)
+    assert(stats.values.map(_.numRows).sum == 4 * 500)
+    expectSql("select count(*) from compact_cached", "2000")
+    assert(sc.sql("select * from compact_cached where key < 10").sorted ===
+      sc.sql("select * from test where key < 10").flatMap(row => Seq.fill(4)(row)).sorted)
+    sc.runSql("drop table if exists compact_cached")
+  }
+
+  test("compacted segments of a cached table are merged once there are enough of them") {
+    sc.runSql("drop table if exists compact_twice_cached")
+    sc.runSql("create table compact_twice_cached as select * from test")
+    sc.runSql("set shark.cache.compaction.deltas=2")
+    sc.runSql("set shark.cache.compaction.segments=2")
+    val memoryTable = sharkMetastore.getMemoryTable(DEFAULT_DB_NAME, "compact_twice_cached").get
+    (1 to 2).foreach { _ =>
+      (1 to 2).foreach(_ => sc.runSql("insert into table compact_twice_cached select * from test"))
+      waitUntil(memoryTable.deltas.isEmpty)
+    }
+    assert(memoryTable.appendedSegments.size == 2)
+    // The next append finds two compacted segments, and merges them with the new delta.
+    sc.runSql("insert into table compact_twice_cached select * from test")
+    waitUntil(memoryTable.appendedSegments.size == 1)
+    sc.runSql("set shark.cache.compaction.deltas=16")
+    sc.runSql("set shark.cache.compaction.segments=8")
+    assert(memoryTable.appendedSegments.size == 1)
+    assert(!memoryTable.appendedSegments.head.isDelta)
+    expectSql("select count(*) from compact_twice_cached", "3000")
+    sc.runSql("drop table if exists compact_twice_cached")
+  }
+
+  test("a TableRDD keeps the deltas it reads persisted across a compaction") {
+    sc.runSql("drop table if exists compact_rdd_cached")
+    sc.runSql("create table compact_rdd_cached as select * from test")
+    sc.runSql("set shark.cache.compaction.deltas=2")
+    sc.runSql("insert into table compact_rdd_cached select * from test")
+    val memoryTable = sharkMetastore.getMemoryTable(DEFAULT_DB_NAME, "compact_rdd_cached").get
+    val deltas = memoryTable.deltas
+    val rdd = sc.sql2rdd("select * from compact_rdd_cached")
+    sc.runSql("insert into table compact_rdd_cached select * from test")
+    waitUntil(memoryTable.deltas.isEmpty)
+    sc.runSql("set shark.cache.compaction.deltas=16")
+    assert(memoryTable.deltas.isEmpty, "the deltas of compact_rdd_cached were not compacted")
+    assert(deltas.forall(_.rdd.getStorageLevel != StorageLevel.NONE))
+    assert(rdd.count() === 1000)
+    sc.runSql("drop table if exists compact_rdd_cached")
+  }
+
+  // Waits up to 30 seconds for `condition` to hold, e.g. for a background compaction to complete.
+  private def waitUntil(condition: => Boolean) {
+    var waited = 0
+    while (!condition && waited < 30000) {
+      Thread.sleep(100)
+      waited += 100
+    }
+  }
+
   test("flatten UnionRDDs for partitioned tables") {
     sc.sql("drop table if exists part_table_cached")
     sc.sql("""create table part_table_cached(key int, value string)
@@ -1016,6 +1363,32 @@ class SQLSuite extends FunSuite {
     sc.runSql("drop table if exists unified_load")
   }
 
+  test ("CACHE ... SORTED BY range-partitions and sorts the table on the column") {
+    sc.runSql("drop table if exists sorted_load")
+    sc.runSql("create table sorted_load as select * from test")
+    sc.runSql("cache sorted_load sorted by (key)")
+    val hiveTable = Hive.get().getTable(DEFAULT_DB_NAME, "sorted_load")
+    assert(hiveTable.getProperty("shark.cache.sortBy") == "key")
+    expectUnifiedKVTable("sorted_load")
+
+    // The key ranges of the partitions don't overlap.
+    val stats = sharkMetastore.getMemoryTable(DEFAULT_DB_NAME, "sorted_load").get.getStats.get
+    val nonEmptyStats = stats.values.filter(_.numRows > 0).toSeq
+    assert(nonEmptyStats.forall(_.sortColumn == 0))
+    val keyRanges = nonEmptyStats.map { s =>
+      (s.stats(0).min.asInstanceOf[Int], s.stats(0).max.asInstanceOf[Int])
+    }.sorted
+    keyRanges.zip(keyRanges.drop(1)).foreach { case(prev, next) => assert(prev._2 < next._1) }
+
+    // Range scans return the same rows as scans of the unsorted table.
+    Seq("key >= 100 and key < 200", "key = 484", "key between 10 and 20", "300 < key",
+        "key < 0").foreach { predicate =>
+      val query = "select * from %s where " + predicate
+      assert(sc.sql(query.format("sorted_load")).sorted === sc.sql(query.format("test")).sorted)
+    }
+    sc.runSql("drop table if exists sorted_load")
+  }
+
   //////////////////////////////////////////////////////////////////////////////
   // Cached table persistence
   //////////////////////////////////////////////////////////////////////////////
@@ -1087,3 +1460,11 @@ object TestTGF2 {
     RDDSchema(rdd.asInstanceOf[RDD[Seq[_]]], "myvalues int")
   }
 }
+
+
+class TestSleepUDF extends UDF {
+  def evaluate(key: Int): Int = {
+    Thread.sleep(1000)
+    key
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.execution
+
+import org.apache.spark.CacheLocality
+import org.apache.spark.rdd.PartitionPruningRDD
+import org.scalatest.FunSuite
+
+import shark.SharkRunner
+
+
+class CoalescedTableScanRDDSuite extends FunSuite {
+
+  val sc = SharkRunner.init()
+
+  test("splits are grouped by host and packed up to the target size") {
+    val hosts = Map(0 -> Some("a"), 1 -> Some("b"), 2 -> None)
+    val sizes = Map(0 -> 40L, 1 -> 40L, 2 -> 40L, 3 -> 150L, 4 -> 40L)
+    // Splits 0 to 4 of RDDs 0 to 2, each RDD on one host.
+    val splits = for (r <- 0 to 2; split <- 0 to 4) yield (r, split)
+    val groups = CoalescedTableScanRDD.group(
+      splits, { case(r, _) => hosts(r) }, { case(_, split) => sizes(split) }, 100L)
+
+    // Every split is read once, by a group of its host.
+    assert(groups.flatMap(_._1).sorted === splits)
+    groups.foreach { case(members, groupHosts) =>
+      assert(members.map(_._1).distinct.size === 1)
+      assert(groupHosts === hosts(members.head._1).toSeq)
+    }
+    // 40 + 40, then 40 alone since 150 does not fit, 150 alone, then 40.
+    val groupsOfRdd0 = groups.filter(_._1.head._1 == 0).map(_._1.map(_._2))
+    assert(groupsOfRdd0 === Seq(Seq(0, 1), Seq(2), Seq(3), Seq(4)))
+    assert(groups.size === 12)
+  }
+
+  test("cached partitions are sized from their stored blocks") {
+    val cached = sc.parallelize(1 to 400, 4).map(i => Array.fill(100)(i.toByte)).cache()
+    cached.count()
+    val uncached = sc.parallelize(1 to 400, 4)
+    val mapped = cached.mapPartitions(_.map(_.length), true)
+    val pruned = PartitionPruningRDD.create(cached, _ % 2 == 1)
+
+    val Seq(cachedSizes, uncachedSizes, mappedSizes, prunedSizes) =
+      CacheLocality.cachedPartitionSizes(Seq(cached, uncached, mapped, pruned))
+    assert(cachedSizes.size === 4)
+    // Each partition holds 100 arrays of 100 bytes.
+    assert(cachedSizes.forall(size => size.isDefined && size.get >= 100 * 100))
+    assert(uncachedSizes.forall(_.isEmpty))
+    assert(mappedSizes === cachedSizes)
+    assert(prunedSizes === Seq(cachedSizes(1), cachedSizes(3)))
+    cached.unpersist()
+  }
+
+  test("scan tasks read the rows of several RDDs with their partition values, locally") {
+    val rdds = Seq(sc.parallelize(1 to 10, 3).cache(), sc.parallelize(11 to 20, 2).cache())
+    rdds.foreach(_.count())
+    val partValues = Seq(Array("p=1"), Array("p=2"))
+    def rows(rdd: CoalescedTableScanRDD) = rdd.map { row =>
+      val rowWithPart = row.asInstanceOf[Array[Object]]
+      (rowWithPart(0).asInstanceOf[Int], rowWithPart(1).asInstanceOf[Array[String]].toSeq)
+    }.collect().sortBy(_._1).toSeq
+    val expected = (1 to 10).map((_, Seq("p=1"))) ++ (11 to 20).map((_, Seq("p=2")))
+
+    val coalesced = CoalescedTableScanRDD(rdds, partValues, Seq(1L, 1L), 1024L * 1024L)
+    assert(coalesced.partitions.size === 1)
+    val host = CacheLocality.preferredHosts(rdds(0), 0)
+    assert(!host.isEmpty)
+    assert(coalesced.preferredLocations(coalesced.partitions(0)) === host)
+    assert(rows(coalesced) === expected)
+
+    // With a target smaller than any partition, each partition gets a task of its own.
+    val split = CoalescedTableScanRDD(rdds, partValues, Seq(1L, 1L), 1L)
+    assert(split.partitions.size === 5)
+    assert(rows(split) === expected)
+    rdds.foreach(_.unpersist())
+  }
+}
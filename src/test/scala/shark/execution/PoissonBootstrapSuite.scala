@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.execution
+
+import org.apache.hadoop.io.BytesWritable
+
+import org.scalatest.FunSuite
+
+
+class PoissonBootstrapSuite extends FunSuite {
+
+  test("Poisson(1) weights have mean and variance 1") {
+    val rand = PoissonBootstrap.newRandom(0)
+    val n = 200000
+    val weights = Array.fill(n)(PoissonBootstrap.nextWeight(rand))
+    val mean = weights.sum.toDouble / n
+    val variance = weights.map(w => (w - mean) * (w - mean)).sum / n
+    assert(math.abs(mean - 1.0) < 0.02)
+    assert(math.abs(variance - 1.0) < 0.03)
+    assert(weights.forall(w => w >= 0 && w <= PoissonBootstrap.MAX_WEIGHT))
+  }
+
+  test("weights are deterministic per partition") {
+    val a = PoissonBootstrap.newRandom(3)
+    val b = PoissonBootstrap.newRandom(3)
+    val c = PoissonBootstrap.newRandom(4)
+    val wa = Seq.fill(100)(PoissonBootstrap.nextWeight(a))
+    val wb = Seq.fill(100)(PoissonBootstrap.nextWeight(b))
+    val wc = Seq.fill(100)(PoissonBootstrap.nextWeight(c))
+    assert(wa === wb)
+    assert(wa != wc)
+  }
+
+  test("packed replica values round trip") {
+    val values = Seq(Array[Byte](1, 2, 3), Array[Byte](), Array.tabulate[Byte](300)(_.toByte))
+    val packed = new BytesWritable
+    values.foreach(v => PoissonBootstrap.appendValue(packed, new BytesWritable(v)))
+    val bytes = java.util.Arrays.copyOf(packed.getBytes, packed.getLength)
+    val unpacked = new scala.collection.mutable.ArrayBuffer[(Int, Seq[Byte])]
+    PoissonBootstrap.foreachValue(bytes) { (replica, offset, length) =>
+      unpacked += ((replica, bytes.slice(offset, offset + length).toSeq))
+    }
+    assert(unpacked === values.map(_.toSeq).zipWithIndex.map(_.swap))
+  }
+
+  test("percentile interval") {
+    val replicas = Array.tabulate(101)(i => (100 - i).toDouble)
+    val (lower, upper) = PoissonBootstrap.percentileInterval(replicas, 0.9)
+    assert(lower === 5.0)
+    assert(upper === 95.0)
+  }
+
+  test("format") {
+    assert(PoissonBootstrap.format(10.0, Array(9.0, 11.0), 0.95) ===
+      "10.0 +/- 1.0 (95% Confidence)")
+    assert(PoissonBootstrap.format(10.0, Array.empty[Double], 0.95) ===
+      "10.0 +/- 0.0 (95% Confidence)")
+  }
+}
@@ -30,6 +30,8 @@ import org.scalatest.FunSuite
 import org.apache.spark.SparkConf
 import org.apache.spark.serializer.{JavaSerializer => SparkJavaSerializer}
 
+import shark.SharkConfVars
+
 
 object SerializationSuite {
   val DEPRECATED_HIVECONF_PROPERTIES = List(
@@ -79,6 +81,62 @@ class SerializationSuite extends FunSuite {
     assertHiveConfEquals(opWrapped.localHconf, desered.value.localHconf)
   }
 
+  test("operators are sent as XML if binary plans are off") {
+    import shark.execution.{FileSinkOperator => SharkFileSinkOperator, Operator}
+
+    val operator = new SharkFileSinkOperator
+    operator.localHconf = new HiveConf
+    operator.localHiveOp = new org.apache.hadoop.hive.ql.exec.FileSinkOperator
+    assert(OperatorSerializationWrapper(operator).isBinary)
+
+    val conf = new HiveConf
+    conf.setBoolean(SharkConfVars.BINARY_QUERY_PLAN.varname, false)
+    val savedConf = Operator.hconf
+    Operator.hconf = conf
+    try {
+      val opWrapped = OperatorSerializationWrapper(operator)
+      assert(!opWrapped.isBinary)
+
+      val ser = new SparkJavaSerializer(new SparkConf(loadDefaults = false))
+      val bytes = ser.newInstance().serialize(opWrapped)
+      val desered = ser.newInstance()
+        .deserialize[OperatorSerializationWrapper[SharkFileSinkOperator]](bytes)
+      assert(desered.value.localHiveOp != null)
+      assertHiveConfEquals(operator.localHconf, desered.value.localHconf)
+    } finally {
+      Operator.hconf = savedConf
+    }
+  }
+
+  test("tasks reuse the operators released by earlier tasks of the same plan") {
+    import shark.execution.{FileSinkOperator => SharkFileSinkOperator}
+
+    val operator = new SharkFileSinkOperator
+    operator.localHconf = new HiveConf
+    operator.localHiveOp = new org.apache.hadoop.hive.ql.exec.FileSinkOperator
+    val opWrapped = OperatorSerializationWrapper(operator)
+    assert(opWrapped.fingerprint != null)
+
+    val ser = new SparkJavaSerializer(new SparkConf(loadDefaults = false))
+    val bytes = ser.newInstance().serialize(opWrapped)
+    def newTask() = ser.newInstance()
+      .deserialize[OperatorSerializationWrapper[SharkFileSinkOperator]](bytes)
+
+    PlanCache.clear()
+    val task1 = newTask()
+    val task2 = newTask()
+    val op1 = task1.value
+    // An operator is only used by one task at a time.
+    assert(task2.value ne op1)
+    task1.release()
+    assert(newTask().value eq op1)
+
+    // Operators created on the master are never cached.
+    opWrapped.release()
+    assert(PlanCache.acquire(opWrapped.fingerprint) === null)
+    PlanCache.clear()
+  }
+
   test("XMLEncoder HiveConfPersistenceDelegate") {
     val hiveConf = new HiveConf
     hiveConf.setAuxJars("hive-aux.jar")
@@ -22,6 +22,7 @@ import java.io.{ByteArrayInputStream, ByteArrayOutputStream}
 import com.ning.compress.lzf.{LZFInputStream, LZFOutputStream}
 
 import org.apache.hadoop.io.BytesWritable
+import org.apache.spark.SparkConf
 import org.scalatest.FunSuite
 import org.scalatest.matchers.ShouldMatchers
 
@@ -109,4 +110,75 @@ class ShuffleSerializerSuite extends FunSuite with ShouldMatchers {
       (expected._2.getBytes) should equal (output._2)
     }
   }
+
+  private def roundTrip(
+      items: Seq[(ReduceKey, BytesWritable)],
+      ser: ShuffleSerializer,
+      flushEvery: Int = 0): Array[Byte] = {
+    val bos = new ByteArrayOutputStream()
+    val serStream = ser.newInstance().serializeStream(bos)
+    items.zipWithIndex.foreach { case(item, i) =>
+      serStream.writeObject(item)
+      if (flushEvery > 0 && i % flushEvery == 0) serStream.flush()
+    }
+    serStream.close()
+    val bytes = bos.toByteArray
+    val serInStream = ser.newInstance().deserializeStream(new ByteArrayInputStream(bytes))
+    items.foreach { expected: (ReduceKey, BytesWritable) =>
+      val output: (ReduceKey, Array[Byte]) = serInStream.readObject()
+      (expected._1) should equal (output._1)
+      (expected._2.getBytes.take(expected._2.getLength)) should equal (output._2)
+    }
+    evaluating { serInStream.readObject[Any]() } should produce [java.io.EOFException]
+    bytes
+  }
+
+  test("Keys sharing prefixes across blocks and flushes") {
+    val rand = new scala.util.Random(42)
+    val items = (0 until 20000).map { i =>
+      val key = ("prefix-" + (i / 7) + "-" + rand.nextInt(3)).getBytes
+      val value = Array.fill(rand.nextInt(20))(rand.nextInt(4).toByte)
+      (new ReduceKeyMapSide(new BytesWritable(key)): ReduceKey, new BytesWritable(value))
+    }
+    val conf = new SparkConf(false).set("spark.shark.shuffle.blockSize", "1024")
+      .set("spark.shark.shuffle.compressBlocks", "true")
+    roundTrip(items, new ShuffleSerializer(conf))
+    roundTrip(items, new ShuffleSerializer(conf), flushEvery = 333)
+    roundTrip(items, new ShuffleSerializer(conf.set("spark.shark.shuffle.compressBlocks", "false")))
+  }
+
+  test("Blocks are only compressed by default when Spark does not compress the stream") {
+    val items = (0 until 1000).map { i =>
+      val value = new BytesWritable(Array.fill(50)(5.toByte))
+      (new ReduceKeyMapSide(new BytesWritable(i.toString.getBytes)): ReduceKey, value)
+    }
+    val uncompressed = roundTrip(items, new ShuffleSerializer(new SparkConf(false)))
+    uncompressed.length should be > (50 * 1000)
+    val conf = new SparkConf(false).set("spark.shuffle.compress", "false")
+    val compressed = roundTrip(items, new ShuffleSerializer(conf))
+    compressed.length should be < (uncompressed.length / 2)
+  }
+
+  test("Empty keys, empty values and records larger than a block") {
+    val items = Seq(Array[Byte](), Array.fill(5000)(1.toByte), Array[Byte](), Array[Byte](1, 2))
+      .flatMap { key =>
+        Seq(Array[Byte](), Array.fill(3000)(7.toByte)).map { value =>
+          (new ReduceKeyMapSide(new BytesWritable(key)): ReduceKey, new BytesWritable(value))
+        }
+      }
+    val conf = new SparkConf(false).set("spark.shark.shuffle.blockSize", "1024")
+    roundTrip(items, new ShuffleSerializer(conf))
+  }
+
+  test("Repeated keys are stored once per block") {
+    val key = Array.fill(100)(3.toByte)
+    val items = (0 until 1000).map { i =>
+      val value = new BytesWritable(Array[Byte](i.toByte))
+      (new ReduceKeyMapSide(new BytesWritable(key)): ReduceKey, value)
+    }
+    val conf = new SparkConf(false).set("spark.shark.shuffle.compressBlocks", "false")
+    val bytes = roundTrip(items, new ShuffleSerializer(conf))
+    // The key once, then 4 bytes per record.
+    bytes.length should be < (100 + 5 * 1000 + 10)
+  }
 }
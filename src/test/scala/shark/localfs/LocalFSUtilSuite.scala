@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.localfs
+
+import java.io.File
+import java.nio.ByteBuffer
+import java.util.BitSet
+
+import com.google.common.io.Files
+
+import org.apache.hadoop.fs.FileUtil
+import org.scalatest.{BeforeAndAfterAll, FunSuite}
+
+import shark.SharkRunner
+import shark.execution.serialization.JavaSerializer
+import shark.memstore2.{TablePartition, TablePartitionStats}
+
+
+class LocalFSUtilSuite extends FunSuite with BeforeAndAfterAll {
+
+  val sc = SharkRunner.init()
+
+  val warehouse = Files.createTempDir()
+
+  override def afterAll() {
+    FileUtil.fullyDelete(warehouse)
+  }
+
+  private def column(bytes: Byte*) = ByteBuffer.wrap(bytes.toArray)
+
+  test("create, rename and drop table directories") {
+    val util = new LocalFSUtil(warehouse.getPath)
+    assert(!util.tableExists("default.t1", None))
+    assert(util.createDirectory("default.t1", None))
+    assert(util.createDirectory("default.t1", Some("p=1")))
+    assert(util.tableExists("default.t1", Some("p=1")))
+    assert(util.renameDirectory("default.t1", "default.t2"))
+    assert(!util.tableExists("default.t1", None))
+    assert(util.tableExists("default.t2", Some("p=1")))
+    assert(util.dropTable("default.t2", None))
+    assert(!util.tableExists("default.t2", None))
+  }
+
+  test("read back written partitions, mapping only the columns used") {
+    val util = new LocalFSUtil(warehouse.getPath)
+    val partitions = Seq(
+      new TablePartition(2, Array(column(1, 2), column(3, 4))),
+      new TablePartition(1, Array(column(5), column(6))))
+
+    // Column 0 holds the number of rows of each partition.
+    val writer = util.createTableWriter("default.t3", None, numColumns = 3)
+    writer.createTable(ByteBuffer.allocate(0))
+    // Inserts whose statistics have not been written yet are not visible.
+    assert(util.createRDD("default.t3", None).isEmpty)
+    partitions.zipWithIndex.foreach { case(partition, part) =>
+      partition.toTachyon.zipWithIndex.foreach { case(buf, col) =>
+        writer.writeColumnPartition(col, part, buf)
+      }
+    }
+    val stats = Map(
+      0 -> new TablePartitionStats(Array(), 2), 1 -> new TablePartitionStats(Array(), 1))
+    writer.writePartitionLocations(Seq("host1", "host2"))
+    writer.updateMetadata(ByteBuffer.wrap(JavaSerializer.serialize(stats)))
+
+    val rddsAndStats = util.createRDD("default.t3", None)
+    assert(rddsAndStats.size === 1)
+    val (rdd, indexToStats) = rddsAndStats.head
+    assert(indexToStats.keySet === Set(0, 1))
+    assert(rdd.partitions.map(rdd.preferredLocations).toSeq === Seq(Seq("host1"), Seq("host2")))
+    val columnUsed = new BitSet
+    columnUsed.set(1)
+    assert(util.pushDownColumnPruning(rdd, columnUsed))
+
+    val read = rdd.collect()
+    assert(read.map(_.numRows).toSeq === Seq(2L, 1L))
+    assert(read.map(_.columns(0)).forall(_ == null))
+    assert(read.map(_.columns(1)).toSeq === Seq(column(3, 4), column(6)))
+
+    // A second insert gets a directory of its own.
+    val writer2 = util.createTableWriter("default.t3", None, numColumns = 3)
+    writer2.createTable(ByteBuffer.wrap(JavaSerializer.serialize(Map[Int, TablePartitionStats]())))
+    assert(util.createRDD("default.t3", None).size === 2)
+    assert(util.dropTable("default.t3", None))
+  }
+}
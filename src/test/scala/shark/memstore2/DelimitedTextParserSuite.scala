@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.memstore2
+
+import java.util.Properties
+
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.hive.serde.Constants
+import org.apache.hadoop.hive.serde2.`lazy`.LazySimpleSerDe
+import org.apache.hadoop.io.Text
+
+import org.scalatest.FunSuite
+
+
+class DelimitedTextParserSuite extends FunSuite {
+
+  private def tableProps(types: String): Properties = {
+    val props = new Properties
+    props.setProperty(Constants.LIST_COLUMNS,
+      (0 until types.split(":").size).map("c" + _).mkString(","))
+    props.setProperty(Constants.LIST_COLUMN_TYPES, types)
+    props.setProperty(Constants.FIELD_DELIM, ",")
+    props.setProperty(Constants.SERIALIZATION_FORMAT, ",")
+    props
+  }
+
+  test("direct parsing builds the same partition as LazySimpleSerDe") {
+    val conf = new Configuration
+    val props = tableProps("int:bigint:double:string:boolean:smallint:timestamp")
+    val lines = Seq(
+      "1,10000000000,1.5,abc,true,7,2013-01-01 10:00:00",
+      "\\N,\\N,\\N,\\N,\\N,\\N,\\N",
+      "x,1.5,nan?,,TRUE,99999,not a timestamp",
+      "-3,+4,-0.25,a b c,false",
+      "",
+      "5,6,7.0,def,False,8,2013-01-01 10:00:00.5,extra")
+
+    val lazySerDe = new LazySimpleSerDe
+    lazySerDe.initialize(conf, props)
+    val expected = new ColumnarSerDe
+    expected.initialize(conf, props)
+    lines.foreach { line =>
+      expected.serialize(lazySerDe.deserialize(new Text(line)), lazySerDe.getObjectInspector)
+    }
+
+    val actual = new ColumnarSerDe
+    actual.initialize(conf, props)
+    val parser = new DelimitedTextParser(actual.serDeParams, Nil)
+    lines.foreach(line => actual.serializeText(new Text(line), parser))
+
+    val expectedPartition = expected.tablePartitionBuilder.build()
+    val actualPartition = actual.tablePartitionBuilder.build()
+    assert(actualPartition.numRows === lines.size)
+    assert(actualPartition.columns.toSeq === expectedPartition.columns.toSeq)
+  }
+
+  test("partition values are appended to every row") {
+    val conf = new Configuration
+    val props = tableProps("int:string:string")
+    val serde = new ColumnarSerDe
+    serde.initialize(conf, props)
+    val parser = new DelimitedTextParser(serde.serDeParams, Seq("2013-01-01"))
+    serde.serializeText(new Text("1,a"), parser)
+    serde.serializeText(new Text("2,b"), parser)
+    val stats = serde.tablePartitionBuilder.stats
+    assert(stats.numRows === 2)
+    assert(stats.stats(2).min === new Text("2013-01-01"))
+    assert(stats.stats(2).max === new Text("2013-01-01"))
+  }
+
+  test("only plain delimited text of primitive columns is parsed directly") {
+    val conf = new Configuration
+    assert(DelimitedTextParser.canParse(conf, classOf[LazySimpleSerDe], tableProps("int:string")))
+    assert(!DelimitedTextParser.canParse(
+      conf, classOf[LazySimpleSerDe], tableProps("int:array<string>")))
+    assert(!DelimitedTextParser.canParse(conf, classOf[LazySimpleSerDe], tableProps("binary")))
+    val escaped = tableProps("int:string")
+    escaped.setProperty(Constants.ESCAPE_CHAR, "\\")
+    assert(!DelimitedTextParser.canParse(conf, classOf[LazySimpleSerDe], escaped))
+  }
+}
@@ -17,7 +17,9 @@
 
 package shark.memstore2
 
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream}
 import java.nio.ByteBuffer
+import java.nio.channels.Channels
 
 import org.scalatest.FunSuite
 
@@ -118,4 +120,46 @@ class TablePartitionSuite extends FunSuite {
     assert(tp1.columns(1).get() == 2)
     assert(tp1.columns(1).get() == 3)
   }
+
+  test("write TablePartition to a channel and wrap it without copying") {
+    // Only the bytes up to the limit of each column are written.
+    val col1 = ByteBuffer.allocate(10)
+    col1.put(Array[Byte](0, 1, 2))
+    col1.flip()
+    val col2 = ByteBuffer.allocateDirect(3)
+    col2.put(Array[Byte](1, 2, 3))
+    col2.rewind()
+    val tp = new TablePartition(3, Array(col1, null, col2))
+
+    val bos = new ByteArrayOutputStream()
+    tp.writeTo(Channels.newChannel(bos))
+    val bytes = bos.toByteArray
+    assert(bytes.length === tp.serializedSize)
+
+    val tp1 = TablePartition.readFrom(ByteBuffer.wrap(bytes))
+    assert(tp1.numRows === 3)
+    assert(tp1.columns(1) === null)
+    assert(tp1.columns(0) === ByteBuffer.wrap(Array[Byte](0, 1, 2)))
+    assert(tp1.columns(2) === ByteBuffer.wrap(Array[Byte](1, 2, 3)))
+    assert(tp1.columns(2).array() eq bytes)
+
+    val tp2 = TablePartition.readFrom(Channels.newChannel(new ByteArrayInputStream(bytes)))
+    assert(tp2.numRows === 3)
+    assert(tp2.columns.toSeq === tp1.columns.toSeq)
+  }
+
+  test("serialize TablePartition using Kryo with the Shark registrator") {
+    val col1 = ByteBuffer.allocateDirect(3)
+    col1.put(Array[Byte](0, 1, 2))
+    col1.rewind()
+    val tp = new TablePartition(3, Array(col1, ByteBuffer.wrap(Array[Byte](1, 2, 3))))
+
+    val conf = new SparkConf(false).set("spark.kryo.registrator", "shark.KryoRegistrator")
+    val ser = new KryoSerializer(conf)
+    val bytes = ser.newInstance().serialize(tp)
+    val tp1 = ser.newInstance().deserialize[TablePartition](bytes)
+    assert(tp1.numRows === 3)
+    assert(tp1.columns(0) === ByteBuffer.wrap(Array[Byte](0, 1, 2)))
+    assert(tp1.columns(1) === ByteBuffer.wrap(Array[Byte](1, 2, 3)))
+  }
 }
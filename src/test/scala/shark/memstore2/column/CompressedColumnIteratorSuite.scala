@@ -21,7 +21,7 @@ import java.nio.ByteBuffer
 import java.nio.ByteOrder
 import org.scalatest.FunSuite
 
-import org.apache.hadoop.io.Text
+import org.apache.hadoop.io.{DataInputBuffer, DataOutputBuffer, Text}
 import org.apache.hadoop.hive.serde2.objectinspector.primitive._
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector
 
@@ -64,6 +64,7 @@ class CompressedColumnIteratorSuite extends FunSuite {
       assert(algo.compressionRatio >= 1.0)
     } else {
       val compressedBuffer = algo.compress(b, t)
+      val start = compressedBuffer.duplicate().order(compressedBuffer.order())
       val iter = new TestIterator(compressedBuffer, compressedBuffer.getInt())
 
       val oi: ObjectInspector = t match {
@@ -83,6 +84,21 @@ class CompressedColumnIteratorSuite extends FunSuite {
 
       // Make sure we reach the end of the iterator.
       assert(!iter.hasNext)
+
+      // Skipping values gives the same values after them.
+      for (skipped <- Seq(0, 1, 2, 3, 5, l.size / 2, l.size - 1, l.size).distinct
+          if skipped >= 0 && skipped <= l.size) {
+        val buffer = start.duplicate().order(start.order())
+        val skipIter = new TestIterator(buffer, buffer.getInt())
+        skipIter.skip(skipped)
+        l.drop(skipped).take(3).foreach { x =>
+          skipIter.next()
+          assert(t.get(skipIter.current, oi) === x)
+        }
+        if (skipped == l.size) {
+          assert(!skipIter.hasNext)
+        }
+      }
     }
   }
 
@@ -137,6 +153,19 @@ class CompressedColumnIteratorSuite extends FunSuite {
     testList(strs, STRING, new DictionaryEncoding, 38, shouldNotCompress = false)
   }
 
+  test("DictionaryText reads back as a plain string") {
+    val value = new DictionaryText(new Array[Text](1), 1, 0)
+    value.set("abcd")
+    val out = new DataOutputBuffer
+    value.write(out)
+    val in = new DataInputBuffer
+    in.reset(out.getData, out.getLength)
+    val copy = classOf[DictionaryText].newInstance()
+    copy.readFields(in)
+    assert(copy === new Text("abcd"))
+    assert(copy.dictionary === null)
+  }
+
   test("Dictionary Encoding at limit of unique values") {
     val ints = Range(0, Short.MaxValue - 1).flatMap(i => Iterator(i, i, i))
     val expectedLen = 4 + (Short.MaxValue - 1) * 4 + 2 * (Short.MaxValue - 1) * 3
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.memstore2.column
+
+import java.nio.ByteBuffer
+
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory
+import org.apache.hadoop.io.{IntWritable, Text}
+
+import org.scalatest.FunSuite
+
+
+class KeyRangeSuite extends FunSuite {
+
+  private def intColumn(values: Seq[Integer], shouldCompress: Boolean): ByteBuffer = {
+    val oi = PrimitiveObjectInspectorFactory.writableIntObjectInspector
+    val c = ColumnBuilder.create(oi, shouldCompress)
+    c.initialize(4)
+    values.foreach(v => c.append(if (v == null) null else new IntWritable(v), oi))
+    c.build()
+  }
+
+  // 2 nulls, then 1, 3, 3, 3, 5, 7, 7, 9.
+  private val ints = Seq[Integer](null, null, 1, 3, 3, 3, 5, 7, 7, 9)
+
+  test("ranges of a sorted int column") {
+    Seq(false, true).foreach { shouldCompress =>
+      val column = intColumn(ints, shouldCompress)
+      def rows(range: KeyRange) = KeyRange.findRows(column, ints.size, range)
+      assert(rows(KeyRange.point(3)) === (3, 6))
+      assert(rows(KeyRange.point(4))._1 === rows(KeyRange.point(4))._2)
+      assert(rows(KeyRange.bound(3, isLower = true, inclusive = false)) === (6, 10))
+      assert(rows(KeyRange.bound(7, isLower = false, inclusive = true)) === (2, 9))
+      assert(rows(KeyRange.bound(1, isLower = false, inclusive = false)) === (2, 2))
+      assert(rows(KeyRange.bound(2.5, isLower = true, inclusive = true).intersect(
+        KeyRange.bound(7L, isLower = false, inclusive = false))) === (3, 7))
+      assert(rows(KeyRange.bound(10, isLower = true, inclusive = true))._1 === ints.size)
+      // A bound of another type than the column's doesn't narrow anything.
+      assert(rows(KeyRange.point("3")) === (0, ints.size))
+    }
+  }
+
+  test("ranges of a sorted string column") {
+    val oi = PrimitiveObjectInspectorFactory.writableStringObjectInspector
+    val values = Seq(null, "a", "b", "b", "ba", "c")
+    val c = ColumnBuilder.create(oi)
+    c.initialize(4)
+    values.foreach(v => c.append(if (v == null) null else new Text(v), oi))
+    val column = c.build()
+    assert(KeyRange.findRows(column, values.size, KeyRange.point("b")) === (2, 4))
+    val range = KeyRange.bound("b", isLower = true, inclusive = false).intersect(
+      KeyRange.bound("c", isLower = false, inclusive = false))
+    assert(KeyRange.findRows(column, values.size, range) === (4, 5))
+  }
+
+  test("intersection keeps the tighter bounds") {
+    val range = KeyRange.bound(1, isLower = true, inclusive = true)
+      .intersect(KeyRange.bound(1, isLower = true, inclusive = false))
+      .intersect(KeyRange.bound(5, isLower = false, inclusive = true))
+      .intersect(KeyRange.bound(8, isLower = false, inclusive = true))
+    assert(range === KeyRange(Some(1L), false, Some(5L), true))
+    assert(KeyRange.ALL.intersect(KeyRange.ALL).isAll)
+  }
+}
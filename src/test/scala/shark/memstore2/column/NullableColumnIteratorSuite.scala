@@ -109,4 +109,27 @@ class NullableColumnIteratorSuite extends FunSuite {
     testList(List(123.asInstanceOf[AnyRef], 4.asInstanceOf[AnyRef], null))
     testList(List(null))
   }
+
+  test("Skip over nulls and strings") {
+    val oi = PrimitiveObjectInspectorFactory.writableStringObjectInspector
+    val a = Array[Text](new Text("a"), null, new Text("bc"), null, null, new Text("def"),
+      new Text(""), null, new Text("g"))
+    for (skipped <- 0 to a.length) {
+      val c = ColumnBuilder.create(oi)
+      c.initialize(4)
+      a.foreach(t => c.append(t, oi))
+      val i = ColumnIterator.newIterator(c.build())
+      i.skip(skipped)
+      a.drop(skipped).foreach { t =>
+        assert(i.hasNext)
+        i.next()
+        if (t == null) {
+          assert(i.current == null)
+        } else {
+          assert(i.current.toString == t.toString)
+        }
+      }
+      assert(!i.hasNext)
+    }
+  }
 }
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.parse
+
+import org.scalatest.FunSuite
+
+
+class CompiledPlanCacheSuite extends FunSuite {
+
+  private def normalize(command: String) = CompiledPlanCache.normalize(command).get
+
+  test("literals are replaced by typed placeholders") {
+    val query = normalize(
+      "select  a, 'x\\'y' from t\n where b = 5 and c > 2.5 and d < 10000000000 -- comment\n")
+    assert(query.text === "select a, ?s from t where b = ?i and c > ?d and d < ?l")
+    assert(query.literals.toSeq === Seq("x'y", 5, 2.5, 10000000000L))
+  }
+
+  test("identifiers and typed number literals are left in the text") {
+    val query = normalize("select c1, `a 1`, t.x2 from t2 where y = 100l and z = 'a''b'")
+    assert(query.text === "select c1, `a 1`, t.x2 from t2 where y = 100l and z = 'a''b'")
+    assert(query.literals.isEmpty)
+  }
+
+  test("only queries are normalized") {
+    assert(CompiledPlanCache.normalize("from t select a where b = 1").isDefined)
+    assert(CompiledPlanCache.normalize("insert into table t select 1 from s").isEmpty)
+    assert(CompiledPlanCache.normalize("drop table t").isEmpty)
+  }
+}
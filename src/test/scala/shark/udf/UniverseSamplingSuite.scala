@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.udf
+
+import org.scalatest.FunSuite
+
+import shark.util.ValueHasher
+
+
+class UniverseSamplingSuite extends FunSuite {
+
+  test("hash positions are uniform") {
+    val n = 100000
+    val sampled = (0 until n).count(i => UniverseSampling.position(ValueHasher.mix(i)) < 0.1)
+    assert(math.abs(sampled - n * 0.1) < n * 0.005)
+  }
+
+  test("totals are scaled by the fraction, with a Horvitz-Thompson error bound") {
+    val totals = new UniverseTotals(0.25)
+    totals.add(1L, 3.0)
+    totals.add(2L, 4.0)
+    totals.add(1L, 1.0)
+    assert(totals.estimate === 32.0)
+    // (1 - 0.25) / 0.25^2 * (4^2 + 4^2) = 384
+    assert(math.abs(totals.error - UniverseSampling.Z * math.sqrt(384.0)) < 1e-9)
+    assert(new UniverseTotals(1.0).error === 0.0)
+  }
+
+  test("totals merge and serialization") {
+    val a = new UniverseTotals(0.5)
+    a.add(1L, 1.0)
+    a.add(2L, 2.0)
+    val b = new UniverseTotals(0.5)
+    b.add(2L, 3.0)
+    b.add(3L, 4.0)
+    a.merge(b)
+    val bytes = a.toBytes
+    val copy = UniverseTotals.fromBytes(bytes, 0, bytes.length)
+    assert(copy.fraction === 0.5)
+    assert(copy.totals === Map(1L -> 1.0, 2L -> 5.0, 3L -> 4.0))
+    assert(copy.estimate === 20.0)
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2012 The Regents of The University California.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package shark.util
+
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory
+import org.apache.hadoop.io.Text
+
+import org.scalatest.FunSuite
+
+
+class SketchSuite extends FunSuite {
+
+  private def hll(values: Range): HyperLogLog = {
+    val sketch = new HyperLogLog
+    values.foreach(i => sketch.offerHash(ValueHasher.mix(i)))
+    sketch
+  }
+
+  test("HyperLogLog small and large cardinalities") {
+    assert(new HyperLogLog().cardinality === 0)
+    assert(math.abs(hll(0 until 100).cardinality - 100) <= 3)
+    val estimate = hll(0 until 1000000).cardinality
+    assert(math.abs(estimate - 1000000) < 1000000 * 0.05)
+  }
+
+  test("HyperLogLog ignores duplicates") {
+    val sketch = hll(0 until 1000)
+    (0 until 1000).foreach(i => sketch.offerHash(ValueHasher.mix(i)))
+    assert(sketch.cardinality === hll(0 until 1000).cardinality)
+  }
+
+  test("HyperLogLog merge and serialization") {
+    val merged = hll(0 until 60000).merge(hll(40000 until 100000))
+    assert(merged.cardinality === hll(0 until 100000).cardinality)
+    val copy = HyperLogLog.fromBytes(merged.toBytes)
+    assert(copy.precision === merged.precision)
+    assert(copy.cardinality === merged.cardinality)
+  }
+
+  test("ValueHasher hashes equal values the same across object inspectors") {
+    val hasher = new ValueHasher
+    val javaString = hasher.hash("blinkdb",
+      PrimitiveObjectInspectorFactory.javaStringObjectInspector)
+    val writableString = hasher.hash(new Text("blinkdb"),
+      PrimitiveObjectInspectorFactory.writableStringObjectInspector)
+    assert(javaString === writableString)
+    assert(hasher.hash(new java.lang.Integer(7),
+      PrimitiveObjectInspectorFactory.javaIntObjectInspector) ===
+      hasher.hash(new java.lang.Long(7L),
+        PrimitiveObjectInspectorFactory.javaLongObjectInspector))
+  }
+
+  test("QuantileSketch") {
+    val sketch = new QuantileSketch
+    assert(sketch.quantile(0.5).isNaN)
+    (1 to 100000).foreach(i => sketch.offer(i))
+    assert(sketch.count === 100000)
+    assert(math.abs(sketch.quantile(0.5) - 50000) < 100000 * 0.02)
+    assert(math.abs(sketch.quantile(0.9) - 90000) < 100000 * 0.02)
+    assert(sketch.quantile(0.0) <= sketch.quantile(1.0))
+  }
+
+  test("QuantileSketch merge and serialization") {
+    val a = new QuantileSketch
+    val b = new QuantileSketch
+    (1 to 50000).foreach(i => a.offer(i))
+    (50001 to 100000).foreach(i => b.offer(i))
+    val merged = QuantileSketch.fromBytes(a.merge(b).toBytes)
+    assert(merged.count === 100000)
+    assert(math.abs(merged.quantile(0.5) - 50000) < 100000 * 0.02)
+    assert(math.abs(merged.quantile(0.25) - 25000) < 100000 * 0.02)
+  }
+}